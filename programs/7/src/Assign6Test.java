@@ -25,6 +25,41 @@ public class Assign6Test extends TestCase {
       assertEquals("by-value-value " + name, answer, interp.SDCpsEval().toString());
   }
 
+  private void vmEvalCheck(String name, String answer, String program) {
+      Interpreter interp = new Interpreter(new StringReader(program));
+      assertEquals("by-value-value " + name, answer, interp.vmEval().toString());
+  }
+  private void vmCpsEvalCheck(String name, String answer, String program) {
+      Interpreter interp = new Interpreter(new StringReader(program));
+      assertEquals("by-value-value " + name, answer, interp.vmCpsEval().toString());
+  }
+  private void jitEvalCheck(String name, String answer, String program) {
+      Interpreter interp = new Interpreter(new StringReader(program));
+      assertEquals("by-value-value " + name, answer, interp.jitEval().toString());
+  }
+  private void jitCpsEvalCheck(String name, String answer, String program) {
+      Interpreter interp = new Interpreter(new StringReader(program));
+      assertEquals("by-value-value " + name, answer, interp.jitCpsEval().toString());
+  }
+
+  private void compiledSDEvalCheck(String name, String answer, String program) {
+      Interpreter interp = new Interpreter(new StringReader(program));
+      assertEquals("by-value-value " + name, answer, interp.compiledSDEval().toString());
+      assertEquals("by-value-value rerun " + name, answer, interp.compiledSDEval().toString());
+  }
+
+  private void specSDEvalCheck(String name, String answer, String program) {
+      Interpreter interp = new Interpreter(new StringReader(program));
+      assertEquals("by-value-value " + name, answer, interp.specSDEval().toString());
+  }
+
+  private void switchEvalCheck(String name, String answer, String program) {
+      Interpreter interp = new Interpreter(new StringReader(program));
+      assertEquals("by-value-value " + name, answer, interp.switchEval().toString());
+      interp = new Interpreter(new StringReader(program));
+      assertEquals("by-value-value " + name, answer, interp.switchSDEval().toString());
+  }
+
   private void toDeleteCheck(String name, String answer, String program) {
     Interpreter interp = new Interpreter(new StringReader(program));
     assertEquals("by-value-value " + name, answer, interp.convertToCPS().toString());
@@ -36,10 +71,22 @@ public class Assign6Test extends TestCase {
     cpsEvalCheck(name, answer, program);
     SDEvalCheck(name, answer, program);
     CpsSDEvalCheck(name, answer, program);
+    vmEvalCheck(name, answer, program);
+    vmCpsEvalCheck(name, answer, program);
+    jitEvalCheck(name, answer, program);
+    jitCpsEvalCheck(name, answer, program);
+    compiledSDEvalCheck(name, answer, program);
+    specSDEvalCheck(name, answer, program);
+    switchEvalCheck(name, answer, program);
   }
   private void nonCpsEvalCheck(String name, String answer, String program) {
     evalCheck(name, answer, program);
     SDEvalCheck(name, answer, program);
+    vmEvalCheck(name, answer, program);
+    jitEvalCheck(name, answer, program);
+    compiledSDEvalCheck(name, answer, program);
+    specSDEvalCheck(name, answer, program);
+    switchEvalCheck(name, answer, program);
   }
   
   private void unshadowCheck(String name, String answer, String program) {
@@ -732,6 +779,64 @@ public class Assign6Test extends TestCase {
              "               in prodHelp(s1); " +
              "in prod(cons(2,cons(5,null)))");
   }
+
+  public void testSpecDeopt() {
+    try {
+      String output = "(true true 7)";
+      String input = "let eq := map x,y to x = y; add := map x,y to x + y; " +
+                     "in cons(eq(1, 1), cons(eq(cons(1, null), cons(1, null)), cons(add(3, 4), null)))";
+      nonCpsEvalCheck("specDeopt", output, input );
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("specDeopt threw " + e);
+    }
+  } //end of func
+
+  public void testSpecDivide() {
+    try {
+      /* The divisor is evaluated first, both before and after the division node specializes */
+      String output = "(3 2)";
+      String input = "let r := ref 12; in let d := map y to (! r) / ({r <- 6; y}); in cons(d(2), cons(d(3), null))";
+      allEvalCheck("specDivide", output, input );
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("specDivide threw " + e);
+    }
+  } //end of func
+
+  public void testSpecDeoptError() {
+    try {
+      String input = "let add := map x,y to x + y; in cons(add(3, 4), cons(add(3, null), null))";
+      specSDEvalCheck("specDeoptError", "!", input );
+
+      fail("specDeoptError did not throw EvalException exception");
+    } catch (EvalException e) {
+      assertEquals("specDeoptError", "Binary operator `+' applied to non-integer ()", e.getMessage());
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("specDeoptError threw " + e);
+    }
+  } //end of func
+
+  public void testLongTailLoop() {
+    try {
+      String output = "0";
+      String input = "letrec loop := map n to if n = 0 then 0 else loop(n - 1); in loop(200000)";
+      evalCheck("longTailLoop", output, input );
+      cpsEvalCheck("longTailLoop", output, input );
+      SDEvalCheck("longTailLoop", output, input );
+      CpsSDEvalCheck("longTailLoop", output, input );
+      switchEvalCheck("longTailLoop", output, input );
+      compiledSDEvalCheck("longTailLoop", output, input );
+      specSDEvalCheck("longTailLoop", output, input );
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("longTailLoop threw " + e);
+    }
+  } //end of func
 }
 
 
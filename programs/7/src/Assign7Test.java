@@ -1,5 +1,9 @@
 import junit.framework.TestCase;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 
 /**
  * testing framework for typed jam
@@ -53,6 +57,50 @@ public class Assign7Test extends TestCase {
     System.out.printf("memory size [%d] : %.7s%n", count, name);
   }
 
+  private void vmCheck(String name, String answer, String program, int hs) {
+    Interpreter interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.vmEval().toString());
+    interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.vmCpsEval().toString());
+  }
+
+  private void jitCheck(String name, String answer, String program, int hs) {
+    Interpreter interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.jitEval().toString());
+    interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.jitCpsEval().toString());
+  }
+
+  private void SDCheck(String name, String answer, String program, int hs) {
+    Interpreter interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.SDEval().toString());
+    interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.anfEval().toString());
+    interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.SDAnfEval().toString());
+  }
+
+  private void compiledCheck(String name, String answer, String program, int hs) {
+    Interpreter interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.compiledSDEval().toString());
+    interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.specSDEval().toString());
+  }
+
+  private void switchCheck(String name, String answer, String program, int hs) {
+    Interpreter interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.switchEval().toString());
+    interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.switchSDEval().toString());
+  }
+
+  private void cekCheck(String name, String answer, String program, int hs) {
+    Interpreter interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.cekEval().toString());
+    interp = new Interpreter(new StringReader(program), hs);
+    assertEquals("by-value-value " + name, answer, interp.cekSDEval().toString());
+  }
+
   private void ramSDCheck(String name, String answer, String program, int hs) {
     Interpreter interp = new Interpreter(new StringReader(program), hs);
     assertEquals("by-value-value " + name, answer, interp.ramSDEval().toString());
@@ -77,6 +125,13 @@ public class Assign7Test extends TestCase {
     cpsCheck(name, answer, program, hs);
 //    SDEagerCheck(name, answer, program, hs);
     SDCpsCheck(name, answer, program, hs);
+    SDCheck(name, answer, program, hs);
+    compiledCheck(name, answer, program, hs);
+    vmCheck(name, answer, program, hs);
+    jitCheck(name, answer, program, hs);
+    cekCheck(name, answer, program, hs);
+    switchCheck(name, answer, program, hs);
+    ramAllCheck(name, answer, program, hs);
   }
 
   /*
@@ -521,6 +576,774 @@ public class Assign7Test extends TestCase {
     }
   } //end of func
 
+  public void testVarEnvIndex() {
+    Variable[] vars = new Variable[5000];
+    VarEnv env = EmptyVarEnv.ONLY;
+    for (int i = 0; i < vars.length; i++) {
+      vars[i] = new Variable("v" + i);
+      env = env.cons(new Binding(vars[i], new IntConstant(i)));
+    }
+    VarEnv outer = env;
+    for (int i = 0; i < vars.length; i += 2) env = env.cons(new Binding(vars[i], new IntConstant(-i)));
+    for (int i = 0; i < vars.length; i++) {
+      assertEquals("outer " + vars[i], new IntConstant(i), outer.lookup(vars[i]));
+      assertEquals("inner " + vars[i], new IntConstant(i % 2 == 0 ? -i : i), env.lookup(vars[i]));
+    }
+    try {
+      env.lookup(new Variable("v0"));
+      fail("lookup of an unbound Variable with a bound name succeeded");
+    } catch (SyntaxException e) { }
+  }
+
+  public void testLetccEscape() {
+    try {
+      String[][] cases = {
+        // early exit from a loop
+        { "7", "letcc done in letrec loop := map i to if i * i > 40 then done(i) else loop(i + 1); in loop(0)" },
+        { "5", "1 + (letcc x in if true then x(4) else 3)" },
+        // the continuation is invoked by a closure after its letcc has returned
+        { "10", "let g := letcc k in map x to k(map y to y + x); in g(5)" },
+        // the continuation is used as a value
+        { "2", "let r := letcc k in k; in if number?(r) then r else r(2)" }
+      };
+      for (String[] c : cases) allCheck("letccEscape " + c[1], c[0], c[1]);
+    } catch (Exception e) {
+      fail("letccEscape threw " + e);
+    }
+  }
+
+  public void testLetccFallbackOrder() {
+    try {
+      // a program that falls back to CPS because of an unrelated letcc keeps the direct-style evaluation order
+      String[] programs = {
+        "let r := ref 1; in let f := map x to x; in let a := f(! r); b := f({r <- 2; 0}); in a",
+        "let r := ref 1; in let f := map x to x; in f(! r) / f({r <- 2; 1})"
+      };
+      String[] prefixes = {
+        "",
+        // the continuation is used as a value
+        "let k := letcc k in k; in ",
+        // the continuation is reentered after its letcc has returned
+        "let g := letcc k in map x to k(map y to 0); in let z := g(0); in "
+      };
+      for (String p : programs)
+        for (String prefix : prefixes) allCheck("letccFallbackOrder " + prefix + p, "2", prefix + p);
+    } catch (Exception e) {
+      fail("letccFallbackOrder threw " + e);
+    }
+  }
+
+  public void testSDCallSiteCache() {
+    try {
+      // h(acc) applies two different closures and a primitive; loop(...) always applies the same closure
+      String input = "let f := map x to x + 1; g := map x to x * 2; " +
+        "in letrec loop := map h, n, acc to if n = 0 then acc else loop(h, n - 1, h(acc)); " +
+        "in cons(loop(f, 100, 0), cons(loop(g, 10, 1), cons(loop(first, 1, cons(5, null)), null)))";
+      long hits = CallSiteCache.totalHits(), misses = CallSiteCache.totalMisses();
+      Interpreter interp = new Interpreter(new StringReader(input));
+      int threshold = TierCompiler.threshold();
+      TierCompiler.setThreshold(-1);  // keep the loop in SDEvaluator
+      try { assertEquals("callSiteCache", "(100 1024 5)", interp.SDEval().toString()); }
+      finally { TierCompiler.setThreshold(threshold); }
+      assertTrue("callSiteCache hits", CallSiteCache.totalHits() - hits > 100);
+      assertTrue("callSiteCache misses", CallSiteCache.totalMisses() - misses < 20);
+      interp = new Interpreter(new StringReader("let f := map x to x; in {f(1); f(1, 2)}"));
+      interp.SDEval();
+      fail("callSiteCache arity error not reported");
+    } catch (EvalException e) {
+      assertTrue("callSiteCache arity message " + e.getMessage(), e.getMessage().contains("2 arguments instead of 1"));
+    } catch (Exception e) {
+      fail("callSiteCache threw " + e);
+    }
+  }
+
+  public void testIntConstantCache() {
+    assertSame("small ints are canonical", IntConstant.valueOf(7), IntConstant.valueOf(7));
+    assertSame("cache lower bound", IntConstant.valueOf(IntConstant.MIN_CACHED), IntConstant.valueOf(IntConstant.MIN_CACHED));
+    assertEquals("large ints are equal", IntConstant.valueOf(1 << 20), new IntConstant(1 << 20));
+    java.util.HashSet<JamVal> set = new java.util.HashSet<JamVal>();
+    set.add(new IntConstant(1 << 20));
+    set.add(IntConstant.valueOf(3));
+    assertTrue("IntConstant as hash key", set.contains(IntConstant.valueOf(1 << 20)) && set.contains(new IntConstant(3)));
+    try {
+      // chained arithmetic and comparisons on large and small ints
+      allCheck("intChain", "(true 2000000 -3 false)",
+               "let x := 1000; y := 4; in cons(((x * x) + (2 * y)) > (x * (y - 3)), cons((2 * x) * x, " +
+               "cons((y - 10) / 2, cons((x * x) = ((x * x) + 1), null))))");
+    } catch (Exception e) {
+      fail("intConstantCache threw " + e);
+    }
+    String[][] errors = {
+      { "Attempt to divide by zero", "let x := 0; in 1 + (5 / (x * 3))" },
+      { "Binary operator `*' applied to non-integer true", "let x := true; in 1 + (2 * x)" }
+    };
+    for (String[] c : errors) {
+      try {
+        new Interpreter(new StringReader(c[1])).eval();
+        fail("intConstantCache eval " + c[1] + " did not throw");
+      } catch (EvalException e) { assertEquals("intConstantCache eval " + c[1], c[0], e.getMessage()); }
+      try {
+        new Interpreter(new StringReader(c[1])).SDEval();
+        fail("intConstantCache SDEval " + c[1] + " did not throw");
+      } catch (EvalException e) { assertEquals("intConstantCache SDEval " + c[1], c[0], e.getMessage()); }
+    }
+  }
+
+  public void testTiering() {
+    int threshold = TierCompiler.threshold();
+    TierCompiler.setThreshold(5);
+    try {
+      String[][] cases = {
+        { "28657", "letrec fib := map n to if n <= 1 then 1 else fib(n - 1) + fib(n - 2); in fib(22)" },
+        // a hot tail-recursive loop must still run in constant stack after it is compiled
+        { "200000", "letrec loop := map n, acc to if n = 0 then acc else loop(n - 1, acc + 1); in loop(200000, 0)" },
+        // letcc and letrec inside a hot function body
+        { "(3 3 3 3 3 3 3 3)", "letrec f := map n to letcc k in letrec g := map i to if i > 2 then k(i) else g(i + 1); " +
+          "in g(0); h := map n, l to if n = 0 then l else h(n - 1, cons(f(n), l)); in h(8, null)" },
+        { "(-2 -1 0 1 2 3)", "let r := ref null; in letrec push := map x to {r <- cons(x, ! r); x}; " +
+          "in {push(3); push(2); push(1); push(0); push(-1); push(-2); ! r}" },
+        // compiled code evaluates the divisor of / before the dividend
+        { "36", "let r := ref 0; in letrec d := map n to if n = 0 then 0 else d(n - 1) + ((! r) / ({r <- n; 1})); " +
+          "in d(8)" }
+      };
+      for (String[] c : cases) {
+        long compilations = TierCompiler.compilations();
+        Interpreter interp = new Interpreter(new StringReader(c[1]));
+        assertEquals("tiering eval " + c[1], c[0], interp.eval().toString());
+        interp = new Interpreter(new StringReader(c[1]));
+        assertEquals("tiering SDEval " + c[1], c[0], interp.SDEval().toString());
+        assertTrue("tiering compiled " + c[1], TierCompiler.compilations() > compilations);
+      }
+      try {
+        new Interpreter(new StringReader("letrec f := map n to if n = 0 then true + 1 else f(n - 1); in f(10)")).SDEval();
+        fail("tiering error in compiled code not reported");
+      } catch (EvalException e) {
+        assertEquals("tiering error", "Binary operator `+' applied to non-integer true", e.getMessage());
+      }
+    } catch (Exception e) {
+      fail("tiering threw " + e);
+    } finally {
+      TierCompiler.setThreshold(threshold);
+    }
+  }
+
+  public void testEvalOrder() {
+    try {
+      // let right hand sides are evaluated from last to first and the divisor of / before the dividend, whether or
+      // not they call functions
+      String[] programs = {
+        "let r := ref 1; in let a := ! r; b := ({r <- 2; 0}); in a",
+        "let r := ref 1; in (! r) / ({r <- 2; 1})",
+        "let r := ref 1; in let f := map x to let a := ! r; b := ({r <- 2; 0}); in a; in f(0)",
+        "let r := ref 1; in let f := map x to (! r) / ({r <- 2; 1}); in f(0)",
+        "let r := ref 1; in let f := map x to x; in let a := f(! r); b := f({r <- 2; 0}); in a",
+        "let r := ref 1; in let f := map x to x; in f(! r) / f({r <- 2; 1})",
+        "let r := ref 1; in let f := map x to x; in let a := {f(0); ! r}; b := {f(0); r <- 2; 0}; in a",
+        "let r := ref 1; in let f := map x to x; in ({f(0); ! r}) / ({f(0); r <- 2; 1})"
+      };
+      for (String p : programs) allCheck("evalOrder " + p, "2", p);
+    } catch (Exception e) {
+      fail("evalOrder threw " + e);
+    }
+  }
+
+  public void testVmSuperinstructions() {
+    try {
+      // comparisons and arithmetic on a local, calls of a local or nonlocal variable, and returns of a local
+      String[][] cases = {
+        { "-10", "letrec count := map n, acc to if n >= 10 then acc else count(n + 1, acc - 1); in count(0, 0)" },
+        { "(true false 5)", "let k := map to 5; in letrec f := map n to if n != 0 then n = 3 else false; " +
+          "in cons(f(3), cons(f(0), cons(k(), null)))" },
+        { "6", "let g := map x to x * 2; in let h := map y to let z := y; in g(z); in h(3)" },
+        { "(1)", "let f := map x, l to cons(x, l); in let g := map y to if y < 2 then f(y, null) else y; in g(1)" }
+      };
+      for (String[] c : cases) vmCheck("vmSuperinstructions", c[0], c[1], defaultSize);
+      String[] nonFunction = { "let f := 3; in f(1)", "let f := 3; in let g := map to f(1); in g()" };
+      for (String input : nonFunction) {
+        try {
+          new Interpreter(new StringReader(input)).vmEval();
+          fail("vmSuperinstructions " + input + " did not throw");
+        } catch (EvalException e) {
+          assertTrue("vmSuperinstructions " + e.getMessage(), e.getMessage().contains("is not a valid function"));
+        }
+      }
+    } catch (Exception e) {
+      fail("vmSuperinstructions threw " + e);
+    }
+  }
+
+  public void testOnePassCps() {
+    try {
+      Parser p = new Parser(new StringReader("-((map x to x)(1))"));
+      assertEquals("onePassCps", "let x:1 := 1; in - x:1", p.cpsProg().toString());
+      p = new Parser(new StringReader("letcc x in if true then 1 + x(5) else 3"));
+      assertEquals("onePassCps letcc",
+                   "let :0 := map x to x; in let x:1 := map :1,:2 to :0(:1); in " +
+                   "if true then x:1(5, map :3 to :0((1 + :3))) else :0(3)", p.fullCpsProg().toString());
+      String[][] cases = {
+        { "-292", "-(let square := map x to x*x; in square(2)) * (let p := ref 73; in (map w to w)(!p))" },
+        { "2", "let f := map x to x; in {f(1); arity(f) + f(first(f(cons(1,null))))}" },
+        // the effects of simple arguments stay ordered with the calls in later arguments
+        { "(5 6)", "let r := ref 5; in let f := map x to {r <- x; x}; in cons(! r, cons(f(6), null))" },
+        { "(6 6)", "let r := ref 5; in let f := map x to {r <- x; x}; in cons(f(6), cons(! r, null))" }
+      };
+      for (String[] c : cases) {
+        p = new Parser(new StringReader(c[1]));
+        p.checkProg();
+        int words = p.lexer().wordTable().size();
+        String cps = p.cpsProg().toString();
+        assertEquals("onePassCps grew the word table for " + c[1], words, p.lexer().wordTable().size());
+        assertTrue("onePassCps administrative redex in " + cps, ! cps.contains("(map "));
+        allCheck("onePassCps", c[0], c[1]);
+      }
+    } catch (Exception e) {
+      fail("onePassCps threw " + e);
+    }
+  }
+
+  public void testCpsOptimizer() {
+    try {
+      Parser p = new Parser(new StringReader("let y := (let f := map x to x + 1; in f(2)); in if y > 2 then y else 0"));
+      assertEquals("cpsOptimizer contify", "let y:1 := (2 + 1); in if (y:1 > 2) then y:1 else 0", p.optCpsProg().toString());
+      p = new Parser(new StringReader("letcc x in if true then 1 + x(5) else 3"));
+      assertEquals("cpsOptimizer letcc", "let :0 := map x to x; in if true then :0(5) else :0(3)",
+                   CpsOptimizer.optimize(p.fullCpsProg()).toString());
+      String[][] cases = {
+        { "4", "let g := map h to h(4); in let z := g(map q to q * 2); in if z = 8 then g(map q to q) else z" },
+        // a map whose arity is observed keeps its parameters
+        { "2", "let f := map x to x; in {f(1); arity(f) + f(first(f(cons(1,null))))}" },
+        { "(3 1)", "let r := ref 1; in let f := map x, y to x; in let a := f(3, r <- 2); in cons(a, cons(f(1, r), null))" }
+      };
+      for (String[] c : cases) allCheck("cpsOptimizer", c[0], c[1]);
+      String letcc = "letcc k in let r := letcc j in if false then k(1) else j(2); in r + (letcc m in m(3))";
+      SDCpsCheck("cpsOptimizer letcc", "5", letcc, defaultSize);
+      assertEquals("cpsOptimizer letcc ram", "5", new Interpreter(new StringReader(letcc)).ramSDCpsEval().toString());
+    } catch (Exception e) {
+      fail("cpsOptimizer threw " + e);
+    }
+  }
+
+  public void testSelectiveCps() {
+    try {
+      String[][] cases = {
+        // letcc in one helper: only loop and the continuation take continuations
+        { "11", "letrec find := map l to letcc k in letrec loop := map m to if m = null then 0 " +
+                "else if first(m) > 2 then k(first(m)) else loop(rest(m)); in loop(l); " +
+                "sum := map l to if l = null then 0 else first(l) + sum(rest(l)); " +
+                "in let l := cons(1, cons(3, cons(4, null))); in sum(l) + find(l)" },
+        { "5", "letcc k in let f := map x to if x > 2 then k(x) else x; in f(1) + f(5)" },
+        { "13", "let g := map x to letcc j in if x = 0 then j(10) else x; in g(0) + g(3)" },
+        // the continuation is passed to find, so the whole program is converted
+        { "103", "letrec find := map l, k to if l = null then null else if first(l) > 2 then k(first(l)) " +
+                 "else find(rest(l), k); in 100 + (letcc k in {find(cons(1, cons(3, cons(4, null))), k); 0})" }
+      };
+      for (String[] c : cases) {
+        eagerCheck("selectiveCps", c[0], c[1]);
+        cpsCheck("selectiveCps", c[0], c[1], defaultSize);
+        SDCpsCheck("selectiveCps", c[0], c[1], defaultSize);
+        ramSDCpsCheck("selectiveCps", c[0], c[1], defaultSize);
+        Interpreter interp = new Interpreter(new StringReader(c[1]));
+        assertEquals("selectiveCps vm", c[0], interp.vmCpsEval().toString());
+        interp = new Interpreter(new StringReader(c[1]));
+        assertEquals("selectiveCps jit", c[0], interp.jitCpsEval().toString());
+      }
+      Parser p = new Parser(new StringReader(cases[0][1]));
+      String sum = "sum:1 := map l:2 to if (l:2 = null) then 0 else (first(l:2) + sum:1(rest(l:2)));";
+      assertTrue("selectiveCps converted sum", p.checkProg().toString().contains(sum));
+      assertTrue("selectiveCps converted sum", p.cpsProg().toString().contains(sum));
+      assertTrue("selectiveCps loop", p.cpsProg().toString().contains("loop:4 := map m:5,:2 to"));
+      assertEquals("selectiveCps escape", "let g:1 := map x:1 to let j:2 := map :0,:1 to :0; in " +
+                   "if (x:1 = 0) then j:2(10, map x to x) else x:1; in (g:1(0) + g:1(3))",
+                   new Parser(new StringReader(cases[2][1])).cpsProg().toString());
+      p = new Parser(new StringReader(cases[3][1]));
+      assertTrue("selectiveCps escaping k", ContinuationReach.cpsFuns(p.checkProg()) == null);
+      p = new Parser(new StringReader("map z to z"));
+      assertTrue("selectiveCps no letcc", ContinuationReach.cpsFuns(p.checkProg()) == null);
+    } catch (Exception e) {
+      fail("selectiveCps threw " + e);
+    }
+  }
+
+  public void testAnf() {
+    try {
+      Parser p = new Parser(new StringReader("let f := map x, y to x * y; in f(f(1 + 2, 3), -(4 + f(5, 6)))"));
+      assertEquals("anf", "let f:1 := map x:1,y:1 to (x:1 * y:1); in let :0 := (1 + 2); in let :1 := f:1(:0, 3); in " +
+                   "let :2 := f:1(5, 6); in let :3 := (4 + :2); in let :4 := - :3; in f:1(:1, :4)", p.anfProg().toString());
+      String[][] cases = {
+        { "-306", "let f := map x, y to x * y; in f(f(1 + 2, 3), -(4 + f(5, 6)))" },
+        // let right hand sides are evaluated from last to first
+        { "(6 50)", "let r := ref 5; in let a := {r <- ((! r) + 1); ! r}; b := (! r) * 10; in cons(a, cons(b, null))" },
+        { "3", "if (1 < 2) & (3 > 4) then 1 else (map x to x + 1)(2)" },
+        // the divisor of / is evaluated before the dividend
+        { "(3 2)", "let r := ref 12; in let d := map y to (! r) / ({r <- 6; y}); in cons(d(2), cons(d(3), null))" },
+        { "103", "letrec find := map l, k to if l = null then null else if first(l) > 2 then k(first(l)) " +
+                 "else find(rest(l), k); in 100 + (letcc k in {find(cons(1, cons(3, cons(4, null))), k); 0})" },
+        // re-entering a continuation after the letcc has returned
+        { "3", "let n := ref 0; in let r := letcc k in cons(k, null); in " +
+               "if (! n) < 3 then {n <- ((! n) + 1); (first(r))(cons(first(r), null))} else ! n" }
+      };
+      for (String[] c : cases) {
+        Interpreter interp = new Interpreter(new StringReader(c[1]));
+        assertEquals("anfEval " + c[1], c[0], interp.anfEval().toString());
+        interp = new Interpreter(new StringReader(c[1]));
+        assertEquals("SDAnfEval " + c[1], c[0], interp.SDAnfEval().toString());
+      }
+    } catch (Exception e) {
+      fail("anf threw " + e);
+    }
+  }
+
+  public void testLexer() {
+    try {
+      Lexer in = new Lexer(new StringReader("x<=y<-z>=w!=!v:=2147483647 // comment\n /* comment */ x?"));
+      Token[] expected = { null, Lexer.LESS_THAN_EQUALS, null, Lexer.GETS, null, Lexer.GREATER_THAN_EQUALS, null,
+                           Lexer.NOT_EQUALS, Lexer.BANG, null, Bind.ONLY };
+      Token x = in.readToken();
+      for (int i = 1; i < expected.length; i++) {
+        Token t = in.readToken();
+        if (expected[i] != null) assertTrue("lexer token " + i + " is " + t, t == expected[i]);
+        else assertTrue("lexer token " + i + " is " + t, t instanceof Variable);
+      }
+      assertEquals("lexer max int", Integer.MAX_VALUE, ((IntConstant) in.readToken()).value());
+      assertTrue("lexer interns words", in.peek() != x && in.readToken().toString().equals("x?"));
+      assertTrue("lexer end", in.readToken() == null);
+      // words that cross the boundary of the input buffer
+      StringBuilder sb = new StringBuilder();
+      int n = 0;
+      for (; sb.length() < 3 * Lexer.BUFFER_SIZE; n++) sb.append("abcdefghijklm + 12345 + ");
+      sb.append("abcdefghijklm");
+      in = new Lexer(new StringReader(sb.toString()));
+      Token first = in.readToken();
+      int words = 1;
+      for (Token t = in.readToken(); t != null; t = in.readToken())
+        if (t instanceof Variable) {
+          assertTrue("lexer word " + t, t == first);
+          words++;
+        }
+        else assertTrue("lexer token " + t, t == Lexer.PLUS || t.toString().equals("12345"));
+      assertEquals("lexer words", n + 1, words);
+      try {
+        new Lexer(new StringReader("2147483648")).readToken();
+        fail("lexer did not reject 2147483648");
+      } catch (ParseException e) { }
+    } catch (Exception e) {
+      fail("lexer threw " + e);
+    }
+  }
+
+  public void testMappedSource() {
+    try {
+      String program = "letrec fact := map n to if n = 0 then 1 else n * fact(n - 1); in /* mapped */ fact(10)";
+      File f = File.createTempFile("jam", ".jam");
+      f.deleteOnExit();
+      try (Writer w = new FileWriter(f)) { w.write(program); }
+      Interpreter interp = new Interpreter(f.getPath());
+      assertEquals("mappedSource", "3628800", interp.eval().toString());
+      assertEquals("mappedSource parse", new Parser(new StringReader(program)).parseProg().toString(),
+                   new Parser(f.getPath()).parseProg().toString());
+      // a lexer scans a ByteBuffer from its position to its limit
+      ByteBuffer bytes = ByteBuffer.wrap("ignored 12 + x; ignored".getBytes("US-ASCII"));
+      bytes.position(8).limit(14);
+      Lexer in = new Lexer(bytes);
+      assertEquals("mappedSource bytes", "12", in.readToken().toString());
+      assertTrue("mappedSource bytes", in.readToken() == Lexer.PLUS);
+      assertEquals("mappedSource bytes", "x", in.readToken().toString());
+      assertTrue("mappedSource bytes", in.readToken() == null);
+    } catch (Exception e) {
+      fail("mappedSource threw " + e);
+    }
+  }
+
+  public void testDeepProgram() {
+    try {
+      // the front end keeps its pending work on the heap, so it handles programs nested 1,000,000 deep
+      int n = 1000000;
+      StringBuilder program = new StringBuilder();
+      for (int i = 0; i < n; i++) program.append("let x := ").append(i == 0 ? "0" : "x + 1").append("; in ");
+      program.append("x");
+      Parser p = new Parser(new StringReader(program.toString()));
+      SymAST exp = p.checkProg();
+      for (int i = 0; i < n; i++) exp = ((Let) exp).body();
+      assertEquals("deepProgram check", "x:" + n, exp.toString());
+      SDAST sd = p.statCheckProg();
+      for (int i = 0; i < n; i++) sd = ((SLet) sd).body();
+      assertEquals("deepProgram SD", "[0,0]", sd.toString());
+      exp = p.cpsProg();  // the program is simple, so its CPS form is the reshaped program
+      for (int i = 0; i < n; i++) exp = ((Let) exp).body();
+      assertEquals("deepProgram CPS", "x:" + n, exp.toString());
+      assertEquals("deepProgram eval", "" + (n - 1),
+                   SwitchEvaluator.eval(p.checkProg(), EmptyVarEnv.ONLY).toString());
+
+      // lets whose right hand sides call a function, nested 100,000 deep, through the CPS and ANF conversions
+      int k = 100000;
+      StringBuilder calls = new StringBuilder("let f := map y to y + 1; in let x := 0; in ");
+      for (int i = 0; i < k; i++) calls.append("let x := f(x); in ");
+      calls.append("x");
+      p = new Parser(new StringReader(calls.toString()));
+      exp = ((Let) ((Let) p.cpsProg()).body()).body();
+      for (int i = 1; i < k; i++) exp = ((Map) ((App) exp).args()[1]).body();
+      assertEquals("deepProgram CPS calls", "f:1(x:" + (k + 1) + ", map x:" + (k + 2) + " to x:" + (k + 2) + ")",
+                   exp.toString());
+      exp = p.anfProg();
+      for (int i = 0; i < k + 2; i++) exp = ((Let) exp).body();
+      assertEquals("deepProgram ANF calls", "x:" + (k + 2), exp.toString());
+      p.statCpsProg();
+      p.statAnfProg();
+
+      // parens, blocks, unary and binary operators, applications, maps, letrec, and letcc nested 100,000 deep
+      int m = 100000;
+      StringBuilder nested = new StringBuilder();
+      for (int i = 0; i < m; i++) nested.append("letrec f := map y to {y; (");
+      nested.append("letcc k in k(-(y + 1 + 2))");
+      for (int i = 0; i < m; i++) nested.append(")}; in f(1)");
+      p = new Parser(new StringReader(nested.toString()));
+      sd = p.statCheckProg();
+      for (int i = 0; i < m; i++) sd = (SDAST) ((Block) ((SMap) ((SLetRec) sd).rhss()[0]).body()).exps()[1];
+      assertEquals("deepProgram nested", "letcc [*1*] in [0,0](- (([1,0] + 1) + 2))", sd.toString());
+
+      // the rhs of a letrec may refer to a later lhs
+      Interpreter interp = new Interpreter(new StringReader(
+        "letrec even := map n to if n = 0 then true else odd(n - 1); " +
+        "odd := map n to if n = 0 then false else even(n - 1); in even(10)"));
+      assertEquals("deepProgram letrec", "true", interp.SDEval().toString());
+    } catch (Exception e) {
+      fail("deepProgram threw " + e);
+    }
+  }
+
+  public void testDeepCpsConversion() {
+    try {
+      // a chain of lets whose right hand sides call a function is converted without a Java frame per let
+      int n = 10000;
+      StringBuilder program = new StringBuilder("let f := map y to y + 1; in let x := 0; in ");
+      for (int i = 0; i < n; i++) program.append("let x := f(x); in ");
+      program.append("x");
+      Parser p = new Parser(new StringReader(program.toString()));
+      SymAST exp = ((Let) ((Let) p.cpsProg()).body()).body();
+      for (int i = 1; i < n; i++) exp = ((Map) ((App) exp).args()[1]).body();
+      assertEquals("deepCpsConversion CPS", "f:1(x:" + (n + 1) + ", map x:" + (n + 2) + " to x:" + (n + 2) + ")",
+                   exp.toString());
+      p.statCpsProg();
+      assertEquals("deepCpsConversion SDCpsEval", "" + n,
+                   new Interpreter(new StringReader(program.toString())).SDCpsEval().toString());
+    } catch (Exception e) {
+      fail("deepCpsConversion threw " + e);
+    }
+  }
+
+  public void testDeepAnfConversion() {
+    try {
+      // a chain of lets whose right hand sides call a function is converted without a Java frame per let
+      int n = 10000;
+      StringBuilder program = new StringBuilder("let f := map y to y + 1; in let x := 0; in ");
+      for (int i = 0; i < n; i++) program.append("let x := f(x); in ");
+      program.append("x");
+      Parser p = new Parser(new StringReader(program.toString()));
+      SymAST exp = p.anfProg();
+      for (int i = 0; i < n + 1; i++) exp = ((Let) exp).body();
+      assertEquals("deepAnfConversion ANF", "let x:" + (n + 2) + " := f:1(x:" + (n + 1) + "); in x:" + (n + 2),
+                   exp.toString());
+      p.statAnfProg();
+
+      // evaluating the ANF program still takes Java frames for each let, so a shallower chain is evaluated
+      int m = 1000;
+      program = new StringBuilder("let f := map y to y + 1; in let x := 0; in ");
+      for (int i = 0; i < m; i++) program.append("let x := f(x); in ");
+      program.append("x");
+      assertEquals("deepAnfConversion SDAnfEval", "" + m,
+                   new Interpreter(new StringReader(program.toString())).SDAnfEval().toString());
+    } catch (Exception e) {
+      fail("deepAnfConversion threw " + e);
+    }
+  }
+
+  public void testProgramStream() {
+    try {
+      String[] programs = { "1 + 2", "let x := 3; in x * x", "letrec f := map n to if n = 0 then 1 else n * f(n - 1); in f(5)",
+                            "letcc k in 1 + k(2)", "map x to x" };
+      Parser p = new Parser(new StringReader(String.join("; ", programs) + ";"));
+      for (String program : programs) {
+        Parser single = new Parser(new StringReader(program));
+        assertEquals("programStream parse", single.parseProg().toString(), p.nextProg().toString());
+        assertEquals("programStream check", single.checkProg().toString(), p.checkProg().toString());
+        assertEquals("programStream SD", single.statCheckProg().toString(), p.statCheckProg().toString());
+        assertEquals("programStream CPS", single.cpsProg().toString(), p.cpsProg().toString());
+      }
+      assertTrue("programStream end", p.nextProg() == null);
+
+      Interpreter interp = new Interpreter(new Parser(new StringReader("1 + 2; {3; 4}; (map x to x + 1)(5)")));
+      String results = "";
+      while (interp.nextProg()) results += interp.SDEval() + " ";
+      assertEquals("programStream eval", "3 4 6 ", results);
+
+      // the modes that keep a translation of the program translate each program in the stream
+      interp = new Interpreter(new Parser(new StringReader("1 + 2; {3; 4}; (map x to x + 1)(5)")));
+      results = "";
+      while (interp.nextProg()) results += interp.compiledSDEval() + "/" + interp.jitEval() + " ";
+      assertEquals("programStream compiled", "3/3 4/4 6/6 ", results);
+    } catch (Exception e) {
+      fail("programStream threw " + e);
+    }
+    try {
+      Parser p = new Parser(new StringReader("1 + 2 3"));
+      p.nextProg();
+      fail("programStream accepted a program followed by a token other than `;'");
+    } catch (ParseException e) {
+      assertTrue("programStream error", e.getMessage().endsWith("followed by token 3 instead of `;'"));
+    }
+  }
+
+  public void testParserReset() {
+    try {
+      Parser p = new Parser(new StringReader("let x := 3; in x * x"));
+      int words = p.lexer().wordTable().size();
+      assertEquals("parserReset first", "let x:1 := 3; in (x:1 * x:1)", p.checkProg().toString());
+      assertTrue("parserReset interned x", p.lexer().wordTable().containsKey("x"));
+      String program = "letrec f := map n to if n = 0 then 1 else n * f(n - 1); in f(first(cons(5, null)))";
+      p.reset(new StringReader(program));
+      assertTrue("parserReset dropped x", ! p.lexer().wordTable().containsKey("x"));
+      assertEquals("parserReset words", words, p.lexer().wordTable().size());
+      Parser fresh = new Parser(new StringReader(program));
+      assertEquals("parserReset check", fresh.checkProg().toString(), p.checkProg().toString());
+      assertEquals("parserReset CPS", fresh.cpsProg().toString(), p.cpsProg().toString());
+      assertEquals("parserReset eval", "120", new Interpreter(p).SDCpsEval().toString());
+      p.reset(new StringReader("1 + 2; 3"));
+      assertEquals("parserReset stream", "(1 + 2)", p.nextProg().toString());
+      assertEquals("parserReset stream", "3", p.nextProg().toString());
+      assertTrue("parserReset stream end", p.nextProg() == null);
+    } catch (Exception e) {
+      fail("parserReset threw " + e);
+    }
+  }
+
+  public void testSharedParserTables() {
+    try {
+      // a reset Parser reuses its copies of the CPS forms of the primitives; another Parser has its own copies,
+      // which share only the immutable bodies of the forms in the shared table
+      Parser p = new Parser(new StringReader("let x := 1; in cons"));
+      SymAST cons = ((Let) p.cpsProg()).body();
+      p.reset(new StringReader("cons"));
+      assertTrue("sharedParserTables reset", p.cpsProg() == cons);
+      SymAST other = new Parser(new StringReader("cons")).cpsProg();
+      assertEquals("sharedParserTables other Parser", cons.toString(), other.toString());
+      assertTrue("sharedParserTables other Parser", other != cons && ((Map) other).body() == ((Map) cons).body());
+    } catch (Exception e) {
+      fail("sharedParserTables threw " + e);
+    }
+  }
+
+  public void testSharedTablesAcrossThreads() {
+    // each Parser runs its own copies of the CPS forms of the primitives, so threads do not share TierProfiles
+    final String program = "letrec f := map n, acc to if n = 0 then acc else f(n - 1, cons(number?(n), acc)); " +
+      "in cons(arity(first), f(200, null))";
+    int threshold = TierCompiler.threshold();
+    TierCompiler.setThreshold(50);
+    try {
+      final String expected = new Interpreter(new StringReader(program)).cpsEval().toString();
+      final String[] results = new String[4];
+      Thread[] threads = new Thread[results.length];
+      for (int t = 0; t < threads.length; t++) {
+        final int id = t;
+        threads[t] = new Thread(() -> {
+          try {
+            String r = null;
+            for (int i = 0; i < 50; i++) r = new Interpreter(new StringReader(program)).cpsEval().toString();
+            results[id] = r;
+          } catch (Exception e) { results[id] = e.toString(); }
+        });
+        threads[t].start();
+      }
+      for (Thread t : threads) t.join();
+      for (String r : results) assertEquals("sharedTablesAcrossThreads", expected, r);
+    } catch (Exception e) {
+      fail("sharedTablesAcrossThreads threw " + e);
+    } finally {
+      TierCompiler.setThreshold(threshold);
+    }
+  }
+
+  /** Returns the number of Java frames when f(n) reaches its division by zero, n non-tail calls deep */
+  private static int callFrames(String mode, int n) throws Exception {
+    String program = "letrec f := map n to if n = 0 then 1 / 0 else 1 + f(n - 1); in f(" + n + ")";
+    try {
+      Interpreter.class.getMethod(mode).invoke(new Interpreter(new StringReader(program)));
+    } catch (java.lang.reflect.InvocationTargetException e) {
+      if (e.getCause() instanceof EvalException) return e.getCause().getStackTrace().length;
+      throw e;
+    }
+    throw new AssertionError(mode + " did not divide by zero");
+  }
+
+  public void testNonTailCallDepth() {
+    try {
+      /* A non-tail call costs no more than the 17 frames it cost before tail calls were trampolined; the depths stay
+         below the 1024 frames that a stack trace records */
+      for (String mode : new String[] {"eval", "SDEval"}) {
+        int perCall = (callFrames(mode, 40) - callFrames(mode, 20)) / 20;
+        assertTrue(mode + " uses " + perCall + " frames per non-tail call", perCall <= 17);
+      }
+    } catch (Exception e) {
+      fail("nonTailCallDepth threw " + e);
+    }
+  }
+
+  public void testCekDeepRecursion() {
+    try {
+      String input = "letrec build := map n to if n = 0 then null else cons(n, build(n - 1)); " +
+        "length := map l to if l = null then 0 else 1 + length(rest(l)); in length(build(1000000))";
+      cekCheck("cekDeepRecursion", "1000000", input, defaultSize);
+    } catch (Exception e) {
+      fail("cekDeepRecursion threw " + e);
+    }
+  }
+
+  public void testCekLetcc() {
+    try {
+      Interpreter interp = new Interpreter(new StringReader("letcc x in if true then 1 + x(5) else 3"));
+      assertEquals("cekLetcc", "5", interp.cekEval().toString());
+      interp = new Interpreter(new StringReader(
+        "letrec find := map l, k to if l = null then null else if first(l) > 2 then k(first(l)) " +
+        "else find(rest(l), k); in 100 + (letcc k in {find(cons(1, cons(3, cons(4, null))), k); 0})"));
+      assertEquals("cekLetcc escape", "103", interp.cekEval().toString());
+      // re-entering a continuation after the letcc has returned
+      interp = new Interpreter(new StringReader(
+        "let n := ref 0; in let r := letcc k in cons(k, null); in " +
+        "if (! n) < 3 then {n <- ((! n) + 1); (first(r))(cons(first(r), null))} else ! n"));
+      assertEquals("cekLetcc reentry", "3", interp.cekEval().toString());
+    } catch (Exception e) {
+      fail("cekLetcc threw " + e);
+    }
+  }
+
+  public void testCekDivide() {
+    try {
+      // the divisor of / is evaluated and checked before the dividend, as in Evaluator
+      cekCheck("cekDivide", "(3 2)", "let r := ref 12; in let d := map y to (! r) / ({r <- 6; y}); " +
+               "in cons(d(2), cons(d(3), null))", defaultSize);
+      String input = "let r := ref 0; in {(r <- 1) / 0; ! r}";
+      try {
+        new Interpreter(new StringReader(input)).cekEval();
+        fail("cekDivide division by zero not reported");
+      } catch (EvalException e) { assertEquals("cekDivide zero", "Attempt to divide by zero", e.getMessage()); }
+    } catch (Exception e) {
+      fail("cekDivide threw " + e);
+    }
+  }
+
+  /** Returns n copies of an expression that allocates a two-element list, separated by semicolons */
+  private static String garbage(int n) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < n; i++) b.append(i == 0 ? "" : "; ").append("cons(1, cons(2, null))");
+    return b.toString();
+  }
+
+  public void testRamCollect() {
+    try {
+      String output = "(1 2)";
+      String input = "{" + garbage(400) + "}";
+      Interpreter interp = new Interpreter(new StringReader(input), 1000);
+      assertEquals("ramCollect", output, interp.ramSDEval().toString());
+      assertTrue("ramCollect collections", interp.ramCollections() > 0);
+    } catch (Exception e) {
+      fail("ramCollect threw " + e);
+    }
+  }
+
+  public void testRamCollectLive() {
+    try {
+      String output = "((41 7) 7)";
+      String input = "let x := 7; y := cons(7, null); in cons(cons(41, {" + garbage(400) + "; y}), cons(x, null))";
+      ramSDCheck("ramCollectLive", output, input, 1000);
+    } catch (Exception e) {
+      fail("ramCollectLive threw " + e);
+    }
+  }
+
+  public void testRamImmediates() {
+    try {
+      Interpreter interp = new Interpreter(new StringReader(
+        "let x := 3; in if (x * x - 9 = 0) & ~ false then (x + 1) * 1000 else null"), 10);
+      assertEquals("ramImmediates", "4000", interp.ramSDEval().toString());
+      assertEquals("ramImmediates collections", 0, interp.ramCollections());
+      ramSDCheck("ramBoxedInt", "(2000000001 -1073741825 true)",
+                 "let x := 2000000000; in cons(x + 1, cons(-1073741824 - 1, cons(x = (1000000000 * 2), null)))", 100);
+    } catch (Exception e) {
+      fail("ramImmediates threw " + e);
+    }
+  }
+
+  public void testRamClosures() {
+    try {
+      ramAllCheck("ramClosures", "(7 1)",
+                  "let add := map x to map y to x + y; in cons((add(3))(4), cons(arity(add), null))", 1000);
+      ramSDCheck("ramClosures", "(closure: map [*1*] to [0,0])", "map z to z", 1000);
+    } catch (Exception e) {
+      fail("ramClosures threw " + e);
+    }
+  }
+
+  public void testRamTailLoop() {
+    try {
+      String input = "letrec loop := map n, l to if n = 0 then first(l) else loop(n - 1, cons(n, null)); in loop(200000, null)";
+      Interpreter interp = new Interpreter(new StringReader(input), 1000);
+      assertEquals("ramTailLoop", "1", interp.ramSDEval().toString());
+      assertTrue("ramTailLoop frames reused", interp.ramFramesReused() >= 199999);
+      ramSDCpsCheck("ramTailLoop", "1", input, 1000);
+    } catch (Exception e) {
+      fail("ramTailLoop threw " + e);
+    }
+  }
+
+  public void testRamHeapOverflow() {
+    try {
+      StringBuilder input = new StringBuilder();
+      for (int i = 0; i < 300; i++) input.append("cons(1, ");
+      input.append("null");
+      for (int i = 0; i < 300; i++) input.append(")");
+      ramSDCheck("ramHeapOverflow", "", input.toString(), 1000);
+      fail("ramHeapOverflow did not overflow the heap");
+    } catch (EvalException e) {
+      assertTrue("ramHeapOverflow", e.getMessage().startsWith("Heap overflow"));
+    }
+  }
+
+  public void testJitRerunAndFallback() {
+    try {
+      // an Interpreter keeps the compiled class, and each run starts from a fresh state
+      Interpreter interp = new Interpreter(new StringReader("let r := ref 1; in {r <- (! r + 1); ! r}"));
+      assertEquals("jitRerun first", "2", interp.jitEval().toString());
+      assertEquals("jitRerun second", "2", interp.jitEval().toString());
+      assertEquals("jitRerun CPS", "2", interp.jitCpsEval().toString());
+      assertEquals("jitRerun CPS", "2", interp.jitCpsEval().toString());
+
+      // a program too large for a JVM method runs on the VM
+      StringBuilder big = new StringBuilder("{");
+      for (int i = 0; i < 20000; i++) big.append(i).append("; ");
+      big.append("7}");
+      try {
+        JitCompiler.compile(new Parser(new StringReader(big.toString())).statCheckProg());
+        fail("jitFallback compiled a method that is too large");
+      } catch (MethodTooLarge e) { }
+      assertEquals("jitFallback", "7", new Interpreter(new StringReader(big.toString())).jitEval().toString());
+    } catch (Exception e) {
+      fail("jitRerunAndFallback threw " + e);
+    }
+  }
+
+  public void testJitTailCalls() {
+    try {
+      /* In CPS every call is a tail call, and almost none of them are self calls */
+      jitCheck("jitTailCallsFib", "610",
+               "letrec fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); in fib(15)", defaultSize);
+      jitCheck("jitTailCallsEvenOdd", "true",
+               "letrec even := map n to if n = 0 then true else odd(n - 1);" +
+               "       odd := map n to if n = 0 then false else even(n - 1);" +
+               "in even(100000)", defaultSize);
+    } catch (Exception e) {
+      fail("jitTailCalls threw " + e);
+    }
+  }
+
 
 }
 
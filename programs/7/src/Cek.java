@@ -0,0 +1,307 @@
+import java.util.Arrays;
+
+/** A CEK machine that evaluates SymAST and SDAST programs.  Its registers are the control expression, the
+  * environment (a VarEnv or an SDEnv) and the continuation, a chain of Kont frames on the Java heap.  The machine
+  * runs in a loop and never recurses in Java, so the depth of a computation is bounded only by the heap, and letcc
+  * binds its variable to the current continuation as an ordinary value.  Kont frames are never mutated, so a
+  * continuation can be resumed any number of times. */
+class Cek implements ASTVisitor<JamVal> {
+
+  /* Registers.  A visitor method either returns the value of control, or loads the registers with the next
+   * expression to evaluate and returns null. */
+  private AST control;
+  private Environment env;
+  private Kont k;
+
+  /** Evaluates prog in the environment e */
+  static JamVal run(AST prog, Environment e) { return new Cek().eval(prog, e, Kont.HALT); }
+
+  /** Runs the machine from control c, environment e and continuation kont until kont returns */
+  private JamVal eval(AST c, Environment e, Kont kont) {
+    control = c; env = e; k = kont;
+    while (true) {
+      JamVal v = control.accept(this);
+      while (v != null) {
+        if (k == Kont.HALT) return v;
+        Kont f = k;
+        k = f.next;
+        v = f.resume(v, this);
+      }
+    }
+  }
+
+  /** Loads the registers and returns null */
+  private JamVal load(AST c, Environment e, Kont kont) {
+    control = c; env = e; k = kont;
+    return null;
+  }
+
+  /** Applies rator to vals on behalf of the application a, returning with k as the continuation */
+  private JamVal apply(JamVal rator, JamVal[] vals, App a) {
+    if (rator instanceof CekClosure) {
+      CekClosure c = (CekClosure) rator;
+      return load(c.body(), c.extend(vals), k);
+    }
+    if (rator instanceof CekContinuation) {
+      if (vals.length != 1) throw new EvalException(rator + " applied to " + vals.length + " arguments instead of 1");
+      k = ((CekContinuation) rator).k;
+      return vals[0];
+    }
+    if (rator instanceof PrimFun) return VM.prim(((PrimFun) rator).code(), vals, 0, vals.length);
+    if (rator instanceof Closure) return ((Closure) rator).apply(vals);
+    throw new EvalException(rator + " appears at head of application " + a  + " but it is not a valid function");
+  }
+
+  public JamVal forBoolConstant(BoolConstant b) { return b; }
+  public JamVal forIntConstant(IntConstant i) { return i; }
+  public JamVal forNullConstant(NullConstant n) { return JamEmpty.ONLY; }
+  public JamVal forPrimFun(PrimFun f) { return f; }
+
+  public JamVal forSymVariable(Variable v) { return env.lookup(v); }
+  public JamVal forPair(Pair p) { return env.lookup(p); }
+
+  public JamVal forMap(Map m) { return new CekClosure(m, env); }
+  public JamVal forSMap(SMap sm) { return new CekClosure(sm, ((SDEnv) env).innermost(sm.freeDepth())); }
+
+  public JamVal forUnOpApp(UnOpApp u) {
+    return load(u.arg(), env, new UnOpK(u.rator().code(), k));
+  }
+  public JamVal forBinOpApp(BinOpApp b) {
+    int op = b.rator().code();
+    if (op == VMCode.B_DIVIDE) return load(b.arg2(), env, new DivisorK(b.arg1(), env, k));
+    return load(b.arg1(), env, new BinOpArg1K(b, op, env, k));
+  }
+  public JamVal forApp(App a) { return load(a.rator(), env, new AppK(a, null, env, k)); }
+  public JamVal forIf(If i) { return load(i.test(), env, new IfK(i, env, k)); }
+
+  public JamVal forBlock(Block b) {
+    AST[] exps = b.exps();
+    return load(exps[0], env, exps.length == 1 ? k : new BlockK(exps, 1, env, k));
+  }
+
+  /* Let right hand sides are evaluated from last to first, as in Evaluator */
+
+  public JamVal forLet(Let l) {
+    SymAST[] exps = l.exps();
+    return load(exps[exps.length - 1], env, new LetK(l, exps, new JamVal[exps.length], exps.length - 1, env, k));
+  }
+  public JamVal forSLet(SLet sl) {
+    SDAST[] rhss = sl.rhss();
+    return load(rhss[rhss.length - 1], env, new LetK(sl, rhss, new JamVal[rhss.length], rhss.length - 1, env, k));
+  }
+
+  public JamVal forLetRec(LetRec l) {
+    Variable[] vars = l.vars();
+    int n = vars.length;
+    Binding[] bindings = new Binding[n];
+    VarEnv newEnv = (VarEnv) env;
+    for (int i = n-1; i >= 0; i--) {
+      bindings[i] = new Binding(vars[i], null);  // bind var[i], setting value to null, which is not a JamVal
+      newEnv = newEnv.cons(bindings[i]);
+    }
+    return load(l.exps()[0], newEnv, new LetRecK(l.exps(), l.body(), bindings, null, 0, newEnv, k));
+  }
+  public JamVal forSLetRec(SLetRec slr) {
+    JamVal[] vals = new JamVal[slr.rhss().length];
+    SDEnv newEnv = ((SDEnv) env).cons(vals);
+    return load(slr.rhss()[0], newEnv, new LetRecK(slr.rhss(), slr.body(), null, vals, 0, newEnv, k));
+  }
+
+  public JamVal forLetcc(Letcc host) {
+    return load(host.body(), ((VarEnv) env).cons(new Binding(host.var(), new CekContinuation(k))), k);
+  }
+  public JamVal forSLetcc(SLetcc host) {
+    return load(host.body(), ((SDEnv) env).cons(new JamVal[] { new CekContinuation(k) }), k);
+  }
+
+  /* Continuation frames */
+
+  /** The continuation of an operand of a unary operator */
+  private static final class UnOpK extends Kont {
+    private final int op;
+    UnOpK(int op, Kont next) { super(next); this.op = op; }
+    JamVal resume(JamVal v, Cek m) { return VM.unOp(op, v); }
+  }
+
+  /** The continuation of the first operand of a binary operator other than / */
+  private static final class BinOpArg1K extends Kont {
+    private final BinOpApp b;
+    private final int op;
+    private final Environment env;
+    BinOpArg1K(BinOpApp b, int op, Environment env, Kont next) { super(next); this.b = b; this.op = op; this.env = env; }
+    JamVal resume(JamVal v, Cek m) {
+      if (op == VMCode.B_AND) return Jit.boolArg(v, op) ? m.load(b.arg2(), env, new BoolArgK(op, next)) : v;
+      if (op == VMCode.B_OR) return Jit.boolArg(v, op) ? v : m.load(b.arg2(), env, new BoolArgK(op, next));
+      return m.load(b.arg2(), env, new BinOpArg2K(b, op, v, next));
+    }
+  }
+
+  /** The continuation of the divisor of /; it evaluates the dividend */
+  private static final class DivisorK extends Kont {
+    private final AST dividend;
+    private final Environment env;
+    DivisorK(AST dividend, Environment env, Kont next) { super(next); this.dividend = dividend; this.env = env; }
+    JamVal resume(JamVal v, Cek m) { return m.load(dividend, env, new DividendK(VM.checkDivisor(v), next)); }
+  }
+
+  /** The continuation of the dividend of / */
+  private static final class DividendK extends Kont {
+    private final int divisor;
+    DividendK(int divisor, Kont next) { super(next); this.divisor = divisor; }
+    JamVal resume(JamVal v, Cek m) { return VM.divide(v, divisor); }
+  }
+
+  /** The continuation of the second operand of a strict binary operator */
+  private static final class BinOpArg2K extends Kont {
+    private final BinOpApp b;
+    private final int op;
+    private final JamVal arg1;
+    BinOpArg2K(BinOpApp b, int op, JamVal arg1, Kont next) { super(next); this.b = b; this.op = op; this.arg1 = arg1; }
+    JamVal resume(JamVal v, Cek m) {
+      if (op == VMCode.B_GETS && ! (arg1 instanceof JamRef))
+        throw new EvalException("Left argument " + b.arg1() + " of <- is not a JamRef");
+      return VM.binOp(op, arg1, v);
+    }
+  }
+
+  /** The continuation of the second operand of & or | */
+  private static final class BoolArgK extends Kont {
+    private final int op;
+    BoolArgK(int op, Kont next) { super(next); this.op = op; }
+    JamVal resume(JamVal v, Cek m) { return BoolConstant.toBoolConstant(Jit.boolArg(v, op)); }
+  }
+
+  /** The continuation of the rator (when vals is null) or of an argument of an application.  vals holds the rator
+    * followed by the values of the arguments evaluated so far. */
+  private static final class AppK extends Kont {
+    private final App a;
+    private final JamVal[] vals;
+    private final Environment env;
+    AppK(App a, JamVal[] vals, Environment env, Kont next) { super(next); this.a = a; this.vals = vals; this.env = env; }
+    JamVal resume(JamVal v, Cek m) {
+      AST[] args = a.args();
+      int i = vals == null ? 0 : vals.length;
+      JamVal[] vs = vals == null ? new JamVal[] { v } : Arrays.copyOf(vals, i + 1);
+      vs[i] = v;
+      if (i < args.length) return m.load(args[i], env, new AppK(a, vs, env, next));
+      return m.apply(vs[0], Arrays.copyOfRange(vs, 1, vs.length), a);
+    }
+  }
+
+  /** The continuation of the test of an if */
+  private static final class IfK extends Kont {
+    private final If i;
+    private final Environment env;
+    IfK(If i, Environment env, Kont next) { super(next); this.i = i; this.env = env; }
+    JamVal resume(JamVal v, Cek m) { return m.load(Jit.test(v) ? i.conseq() : i.alt(), env, next); }
+  }
+
+  /** The continuation of exps[i-1] in a block */
+  private static final class BlockK extends Kont {
+    private final AST[] exps;
+    private final int i;
+    private final Environment env;
+    BlockK(AST[] exps, int i, Environment env, Kont next) { super(next); this.exps = exps; this.i = i; this.env = env; }
+    JamVal resume(JamVal v, Cek m) {
+      return m.load(exps[i], env, i == exps.length - 1 ? next : new BlockK(exps, i + 1, env, next));
+    }
+  }
+
+  /** The continuation of the right hand side rhss[i] of let, a Let or an SLet.  vals holds the values of rhss[i+1..]
+    * and is shared by the frames of one evaluation of let; each frame only writes slot i. */
+  private static final class LetK extends Kont {
+    private final AST let;
+    private final AST[] rhss;
+    private final JamVal[] vals;
+    private final int i;
+    private final Environment env;
+    LetK(AST let, AST[] rhss, JamVal[] vals, int i, Environment env, Kont next) {
+      super(next); this.let = let; this.rhss = rhss; this.vals = vals; this.i = i; this.env = env;
+    }
+    JamVal resume(JamVal v, Cek m) {
+      JamVal[] vs = vals[i] == null ? vals : vals.clone();  // a fresh array if this frame is being resumed again
+      vs[i] = v;
+      if (i > 0) return m.load(rhss[i-1], env, new LetK(let, rhss, vs, i - 1, env, next));
+      if (let instanceof SLet) return m.load(((SLet) let).body(), ((SDEnv) env).cons(vs), next);
+      Variable[] vars = ((Let) let).vars();
+      VarEnv newEnv = (VarEnv) env;
+      for (int j = vars.length - 1; j >= 0; j--) newEnv = newEnv.cons(new Binding(vars[j], vs[j]));
+      return m.load(((Let) let).body(), newEnv, next);
+    }
+  }
+
+  /** The continuation of the right hand side rhss[i] of a letrec whose variables are bound in env, by bindings in a
+    * LetRec or by the frame vals in an SLetRec */
+  private static final class LetRecK extends Kont {
+    private final AST[] rhss;
+    private final AST body;
+    private final Binding[] bindings;
+    private final JamVal[] vals;
+    private final int i;
+    private final Environment env;
+    LetRecK(AST[] rhss, AST body, Binding[] bindings, JamVal[] vals, int i, Environment env, Kont next) {
+      super(next); this.rhss = rhss; this.body = body; this.bindings = bindings; this.vals = vals; this.i = i;
+      this.env = env;
+    }
+    JamVal resume(JamVal v, Cek m) {
+      if (bindings != null) bindings[i].setBinding(v);
+      else vals[i] = v;
+      if (i < rhss.length - 1) return m.load(rhss[i+1], env, new LetRecK(rhss, body, bindings, vals, i + 1, env, next));
+      return m.load(body, env, next);
+    }
+  }
+}
+
+/** A frame of a Cek continuation.  resume returns the value passed to next, or null after loading the machine's
+  * registers. */
+abstract class Kont {
+  /** The continuation that returns from the machine */
+  static final Kont HALT = new Kont(null) {
+    JamVal resume(JamVal v, Cek m) { throw new EvalException("Cek continuation resumed after halting"); }
+  };
+
+  final Kont next;
+  Kont(Kont next) { this.next = next; }
+  abstract JamVal resume(JamVal v, Cek m);
+}
+
+/** Jam closure representation for the Cek machine; map is a Map over a VarEnv or an SMap over an SDEnv */
+class CekClosure extends JamFun implements Closure {
+  private final AST map;
+  private final Environment env;
+
+  CekClosure(AST map, Environment env) { this.map = map; this.env = env; }
+
+  public int arity() { return map instanceof SMap ? ((SMap) map).arity() : ((Map) map).vars().length; }
+  AST body() { return map instanceof SMap ? ((SMap) map).body() : ((Map) map).body(); }
+
+  /** Returns env extended with args bound to the parameters of map */
+  Environment extend(JamVal[] args) {
+    int n = arity();
+    if (n != args.length) throw new EvalException("closure " + this + " applied to " +
+                                                  args.length + " arguments instead of " + n + " arguments");
+    if (map instanceof SMap) return ((SDEnv) env).cons(args);
+    Variable[] vars = ((Map) map).vars();
+    VarEnv newEnv = (VarEnv) env;
+    for (int i = n-1 ; i >= 0; i--) newEnv = newEnv.cons(new Binding(vars[i], args[i]));
+    return newEnv;
+  }
+
+  public JamVal apply(JamVal[] args) { return Cek.run(body(), extend(args)); }
+  public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
+  public String toString() { return "(closure: " + map + ")"; }
+}
+
+/** A continuation captured by letcc in the Cek machine */
+class CekContinuation extends JamFun implements Closure {
+  final Kont k;
+
+  CekContinuation(Kont k) { this.k = k; }
+
+  public int arity() { return 1; }
+  public JamVal apply(JamVal[] args) {
+    throw new EvalException(this + " cannot be applied outside of the Cek machine that captured it");
+  }
+  public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
+  public String toString() { return "(continuation)"; }
+}
@@ -0,0 +1,826 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** Run-time support for Jam programs compiled to JVM classes by JitCompiler.  A generated class lives in its own
+  * class loader, so it can only see public members; this class is the complete public interface between the
+  * generated code and the rest of the interpreter.  Values are passed as Object so that the generated code never
+  * casts to a Jam type.  A frame is an Object[] whose slot 0 holds the static link, as in the VM. */
+public class Jit {
+
+  private Jit() {}
+
+  /** The interface implemented by every generated class */
+  public interface Code {
+    /** Evaluates the main program */
+    Object main();
+    /** Evaluates the body of function fun in frame */
+    Object run(int fun, Object[] frame);
+  }
+
+  public static Object plus(Object x, Object y) {
+    return IntConstant.valueOf(VM.intArg(x, VMCode.B_PLUS) + VM.intArg(y, VMCode.B_PLUS));
+  }
+  public static Object minus(Object x, Object y) {
+    return IntConstant.valueOf(VM.intArg(x, VMCode.B_MINUS) - VM.intArg(y, VMCode.B_MINUS));
+  }
+  public static Object times(Object x, Object y) {
+    return IntConstant.valueOf(VM.intArg(x, VMCode.B_TIMES) * VM.intArg(y, VMCode.B_TIMES));
+  }
+  public static boolean equal(Object x, Object y) { return VM.equal(x, y); }
+  public static boolean notEqual(Object x, Object y) { return ! VM.equal(x, y); }
+  public static boolean less(Object x, Object y) {
+    return VM.intArg(x, VMCode.B_LESS) < VM.intArg(y, VMCode.B_LESS);
+  }
+  public static boolean greater(Object x, Object y) {
+    return VM.intArg(x, VMCode.B_GREATER) > VM.intArg(y, VMCode.B_GREATER);
+  }
+  public static boolean lessEqual(Object x, Object y) {
+    return VM.intArg(x, VMCode.B_LESS_EQUALS) <= VM.intArg(y, VMCode.B_LESS_EQUALS);
+  }
+  public static boolean greaterEqual(Object x, Object y) {
+    return VM.intArg(x, VMCode.B_GREATER_EQUALS) >= VM.intArg(y, VMCode.B_GREATER_EQUALS);
+  }
+
+  /** Converts the result of a comparison into a Jam boolean */
+  public static Object bool(boolean b) { return BoolConstant.toBoolConstant(b); }
+
+  /** Returns the divisor x of / after checking it with VM.checkDivisor */
+  public static Object divisor(Object x) {
+    VM.checkDivisor(x);
+    return x;
+  }
+  /** Divides x by the divisor y, which has already been checked by divisor */
+  public static Object divide(Object y, Object x) { return VM.divide(x, ((IntConstant) y).value()); }
+
+  public static Object unOp(int op, Object x) { return VM.unOp(op, x); }
+  public static Object binOp(int op, Object x, Object y) { return VM.binOp(op, x, y); }
+
+  /** Returns the value of the test of an if */
+  public static boolean test(Object x) {
+    if (x == BoolConstant.TRUE) return true;
+    if (x == BoolConstant.FALSE) return false;
+    throw new EvalException("non Boolean " + x + " used as test in if");
+  }
+
+  /** Returns the value of an argument of the non-strict binary operator op */
+  public static boolean boolArg(Object x, int op) {
+    if (x == BoolConstant.TRUE) return true;
+    if (x == BoolConstant.FALSE) return false;
+    throw new EvalException("Binary operator `" + VMCode.BINOPS[op] + "' applied to non-boolean " + x);
+  }
+
+  public static Object prim1(int p, Object x) { return VM.prim(p, new Object[] { x }, 0, 1); }
+  public static Object cons(Object x, Object y) { return VM.prim(VMCode.P_CONS, new Object[] { x, y }, 0, 2); }
+  /** Applies primitive p to the arguments in slots 1.. of args */
+  public static Object prim(int p, Object[] args) { return VM.prim(p, args, 1, args.length - 1); }
+
+  /** Returns a closure for function fun of program prog over env */
+  public static Object closure(Object prog, int fun, Object[] env) {
+    return new JitClosure((JitProgram) prog, fun, env);
+  }
+
+  /** Applies rator to the arguments in slots 1.. of frame on behalf of the application app */
+  public static Object call(Object rator, Object[] frame, Object app) {
+    int n = frame.length - 1;
+    if (rator instanceof JitClosure) {
+      JitClosure c = (JitClosure) rator;
+      int arity = c.arity();
+      if (arity != n) throw new EvalException("closure " + c + " applied to " + n +
+                                              " arguments instead of " + arity + " arguments");
+      frame[0] = c.env;
+      return complete(c.prog.code.run(c.fun, frame));
+    }
+    return callOther(rator, frame, app);
+  }
+
+  /** Applies rator to the arguments in slots 1.. of frame on behalf of the application app in tail position.  The
+    * application of a compiled closure is returned as a JitTailCall, which the nearest enclosing call completes. */
+  public static Object tailCall(Object rator, Object[] frame, Object app) {
+    if (rator instanceof JitClosure) {
+      JitClosure c = (JitClosure) rator;
+      int n = frame.length - 1;
+      int arity = c.arity();
+      if (arity != n) throw new EvalException("closure " + c + " applied to " + n +
+                                              " arguments instead of " + arity + " arguments");
+      frame[0] = c.env;
+      return new JitTailCall(c, frame);
+    }
+    return callOther(rator, frame, app);
+  }
+
+  /** Applies rator, which is not a compiled closure, to the arguments in slots 1.. of frame */
+  private static Object callOther(Object rator, Object[] frame, Object app) {
+    if (rator instanceof PrimFun)
+      return VM.prim(((PrimFun) rator).code(), frame, 1, frame.length - 1);
+    if (rator instanceof Closure)
+      return ((Closure) rator).apply(Arrays.copyOfRange(frame, 1, frame.length, JamVal[].class));
+    throw new EvalException(rator + " appears at head of application " + app + " but it is not a valid function");
+  }
+
+  /** Performs the tail calls starting with result until one returns a value */
+  static Object complete(Object result) {
+    while (result instanceof JitTailCall) {
+      JitTailCall call = (JitTailCall) result;
+      result = call.closure.prog.code.run(call.closure.fun, call.frame);
+    }
+    return result;
+  }
+
+  /** If rator is function fun of prog and frame holds the right number of arguments for it, links frame to the
+    * environment of rator and returns true; the caller then reuses its own activation for the call. */
+  public static boolean enterSelf(Object rator, Object[] frame, Object prog, int fun) {
+    if (! (rator instanceof JitClosure)) return false;
+    JitClosure c = (JitClosure) rator;
+    if (c.prog != prog || c.fun != fun || c.arity() != frame.length - 1) return false;
+    frame[0] = c.env;
+    return true;
+  }
+
+  public static Object badFunction(int fun) { throw new EvalException("Illegal compiled function index " + fun); }
+}
+
+/** A Jam program compiled to a JVM class, together with the SMaps of its functions */
+class JitProgram {
+  Jit.Code code;
+  final SMap[] funs;
+
+  JitProgram(SMap[] f) { funs = f; }
+
+  JamVal run() { return (JamVal) Jit.complete(code.main()); }
+}
+
+/** The result of a compiled tail call of a JitClosure whose frame has been bound; it never escapes Jit.complete */
+final class JitTailCall {
+  final JitClosure closure;
+  final Object[] frame;
+  JitTailCall(JitClosure c, Object[] f) { closure = c; frame = f; }
+}
+
+/** Jam closure representation for compiled programs */
+class JitClosure extends JamFun implements Closure {
+  final JitProgram prog;
+  final int fun;
+  final Object[] env;
+
+  JitClosure(JitProgram p, int f, Object[] e) { prog = p; fun = f; env = e; }
+
+  public int arity() { return prog.funs[fun].arity(); }
+  public JamVal apply(JamVal[] args) {
+    int n = arity();
+    if (n != args.length) throw new EvalException("closure " + this + " applied to " + args.length +
+                                                  " arguments instead of " + n + " arguments");
+    Object[] frame = new Object[n+1];
+    frame[0] = env;
+    System.arraycopy(args, 0, frame, 1, n);
+    return (JamVal) Jit.complete(prog.code.run(fun, frame));
+  }
+  public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
+  public String toString() { return "(closure: " + prog.funs[fun] + ")"; }
+}
+
+/** Compiles an SDAST program to a JVM class implementing Jit.Code.  The main program becomes the static method m
+  * and the body of the i-th SMap the static method fi; both take their frame as their only argument.  The frames
+  * of let and letrec blocks are held in local variables, so a variable bound in the same method is loaded without
+  * following static links.  The JVM has no tail calls; a function that calls itself in tail position reuses its
+  * own activation instead, and any other call in tail position returns a JitTailCall to its caller's trampoline. */
+class JitCompiler {
+
+  private static final String CODE = "JamCode";
+  private static final String JIT = "Jit";
+  private static final String OBJ = "java/lang/Object";
+  private static final String FRAME = "[Ljava/lang/Object;";
+  private static final String BODY = "(" + FRAME + ")Ljava/lang/Object;";
+  private static final String BINARY = "(Ljava/lang/Object;Ljava/lang/Object;)";
+
+  /** Names of the Jit methods implementing the strict binary operators, indexed by operator code */
+  private static final String[] BINOP_METHODS = { "plus", "minus", "times", null, "equal", "notEqual", "less",
+    "greater", "lessEqual", "greaterEqual" };
+
+  private final ClassFile cf = new ClassFile();
+  private final ArrayList<Object> consts = new ArrayList<Object>();
+  private final ArrayList<SMap> funs = new ArrayList<SMap>();
+
+  private JitCompiler() {}
+
+  /** Compiles the SDAST program prog and loads the resulting class */
+  static JitProgram compile(SDAST prog) throws MethodTooLarge {
+    JitCompiler c = new JitCompiler();
+    c.consts.add(null);  // slot 0 holds the JitProgram
+    c.cf.method(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "m", BODY, c.new FunCompiler(-1).compile(prog));
+    for (int f = 0; f < c.funs.size(); f++)  // funs grows as nested SMaps are encountered
+      c.cf.method(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "f" + f, BODY,
+                  c.new FunCompiler(f).compile(c.funs.get(f).body()));
+    c.cf.field(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "K", FRAME);
+    c.cf.method(ClassFile.ACC_PUBLIC, "<init>", "()V", c.constructor());
+    c.cf.method(ClassFile.ACC_PUBLIC, "main", "()Ljava/lang/Object;", c.mainMethod());
+    c.cf.method(ClassFile.ACC_PUBLIC, "run", "(I" + FRAME + ")Ljava/lang/Object;", c.dispatcher());
+    byte[] bytes = c.cf.toBytes(ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL | ClassFile.ACC_SUPER, CODE, OBJ,
+                                JIT + "$Code");
+
+    JitProgram program = new JitProgram(c.funs.toArray(new SMap[0]));
+    c.consts.set(0, program);
+    try {
+      Class<?> cls = new Loader().define(CODE, bytes);
+      cls.getField("K").set(null, c.consts.toArray());
+      program.code = (Jit.Code) cls.getDeclaredConstructor().newInstance();
+    }
+    catch (ReflectiveOperationException e) { throw new IllegalStateException("cannot load compiled program", e); }
+    return program;
+  }
+
+  /** Each compiled program gets its own loader so that its class can be unloaded with it */
+  private static class Loader extends ClassLoader {
+    Loader() { super(Jit.class.getClassLoader()); }
+    Class<?> define(String name, byte[] b) { return defineClass(name, b, 0, b.length); }
+  }
+
+  private ClassFile.Code constructor() {
+    ClassFile.Code code = cf.new Code(1);
+    code.aload(0);
+    code.invoke(ClassFile.INVOKESPECIAL, OBJ, "<init>", "()V", -1);
+    code.op(ClassFile.RETURN, 0);
+    return code;
+  }
+
+  private ClassFile.Code mainMethod() {
+    ClassFile.Code code = cf.new Code(1);
+    code.op(ClassFile.ACONST_NULL, 1);
+    code.invoke(ClassFile.INVOKESTATIC, CODE, "m", BODY, 0);
+    code.op(ClassFile.ARETURN, -1);
+    return code;
+  }
+
+  /** Generates run(fun, frame), which dispatches on fun with a tableswitch */
+  private ClassFile.Code dispatcher() {
+    ClassFile.Code code = cf.new Code(3);
+    int n = funs.size();
+    int[] cases = new int[n];
+    if (n > 0) {
+      code.iload(1);
+      int sw = code.tableswitch(n);
+      for (int f = 0; f < n; f++) {
+        cases[f] = code.position();
+        code.aload(2);
+        code.invoke(ClassFile.INVOKESTATIC, CODE, "f" + f, BODY, 0);
+        code.op(ClassFile.ARETURN, -1);
+      }
+      code.patchSwitch(sw, code.position(), cases);
+    }
+    code.iload(1);
+    code.invoke(ClassFile.INVOKESTATIC, JIT, "badFunction", "(I)Ljava/lang/Object;", 0);
+    code.op(ClassFile.ARETURN, -1);
+    return code;
+  }
+
+  /** Compiles the body of one function (or of the main program when fun is -1) to a static method */
+  class FunCompiler {
+    private final int fun;
+    private final ClassFile.Code code = cf.new Code(1);
+    /** Local variables holding the frames of the enclosing blocks; the innermost is last */
+    private final ArrayList<Integer> frames = new ArrayList<Integer>();
+    private final Emitter emitter = new Emitter(false);
+    private final Emitter tailEmitter = new Emitter(true);
+
+    FunCompiler(int f) { fun = f; frames.add(0); }
+
+    ClassFile.Code compile(AST body) {
+      body.accept(tailEmitter);
+      code.op(ClassFile.ARETURN, -1);
+      return code;
+    }
+
+    private void loadConst(Object c) {
+      consts.add(c);
+      loadK(consts.size() - 1);
+    }
+
+    private void loadK(int k) {
+      code.getstatic(CODE, "K", FRAME);
+      code.iconst(k);
+      code.op(ClassFile.AALOAD, -1);
+    }
+
+    private void loadFrame() { code.aload(frames.get(frames.size() - 1)); }
+
+    private void callJit(String name, String desc, int delta) {
+      code.invoke(ClassFile.INVOKESTATIC, JIT, name, desc, delta);
+    }
+
+    /** Emits code that leaves the value of the test of an if on the stack as a JVM boolean */
+    private void emitTest(AST test) {
+      if (test instanceof BinOpApp) {
+        BinOpApp b = (BinOpApp) test;
+        int op = b.rator().code();
+        if (op >= VMCode.B_EQUALS && op <= VMCode.B_GREATER_EQUALS) {
+          b.arg1().accept(emitter);
+          b.arg2().accept(emitter);
+          callJit(BINOP_METHODS[op], BINARY + "Z", -1);
+          return;
+        }
+      }
+      test.accept(emitter);
+      callJit("test", "(Ljava/lang/Object;)Z", 0);
+    }
+
+    /** Emits code that allocates a frame for n values linked to the current frame */
+    private void newFrame(int n) {
+      code.iconst(n + 1);
+      code.anewarray(OBJ);
+      code.op(ClassFile.DUP, 1);
+      code.iconst(0);
+      loadFrame();
+      code.op(ClassFile.AASTORE, -3);
+    }
+
+    /** Emits code that allocates the argument frame of application a, leaving it on the stack */
+    private void argFrame(AST[] args) {
+      code.iconst(args.length + 1);
+      code.anewarray(OBJ);
+      for (int i = 0; i < args.length; i++) {
+        code.op(ClassFile.DUP, 1);
+        code.iconst(i + 1);
+        args[i].accept(emitter);
+        code.op(ClassFile.AASTORE, -3);
+      }
+    }
+
+    /** Visitor that emits the code for an SDAST; the code leaves the value of the SDAST on the stack */
+    class Emitter implements ASTVisitor<Void> {
+
+      /** Is the visited expression in tail position? */
+      private final boolean tail;
+
+      Emitter(boolean t) { tail = t; }
+
+      private Void forDefault(AST a) { throw new EvalException(a + " cannot be compiled by " + getClass()); }
+
+      public Void forBoolConstant(BoolConstant b) { loadConst(b); return null; }
+      public Void forIntConstant(IntConstant i) { loadConst(i); return null; }
+      public Void forNullConstant(NullConstant n) { loadConst(JamEmpty.ONLY); return null; }
+      public Void forPrimFun(PrimFun f) { loadConst(f); return null; }
+
+      public Void forPair(Pair p) {
+        int d = p.dist();
+        int local = frames.size() - 1 - d;
+        if (local >= 0) code.aload(frames.get(local));
+        else {
+          /* Follow static links out of the frames of this method */
+          code.aload(frames.get(0));
+          for (; local < 0; local++) {
+            code.iconst(0);
+            code.op(ClassFile.AALOAD, -1);
+            code.checkcast(FRAME);
+          }
+        }
+        code.iconst(p.offset() + 1);
+        code.op(ClassFile.AALOAD, -1);
+        return null;
+      }
+
+      public Void forUnOpApp(UnOpApp u) {
+        code.iconst(u.rator().code());
+        u.arg().accept(emitter);
+        callJit("unOp", "(ILjava/lang/Object;)Ljava/lang/Object;", -1);
+        return null;
+      }
+
+      public Void forBinOpApp(BinOpApp b) {
+        int op = b.rator().code();
+        if (op == VMCode.B_AND || op == VMCode.B_OR) {
+          /* The non-strict operators are compiled to conditional code */
+          b.arg1().accept(emitter);
+          code.iconst(op);
+          callJit("boolArg", "(Ljava/lang/Object;I)Z", -1);
+          int hole = code.jump(ClassFile.IFEQ);
+          if (op == VMCode.B_AND) {
+            b.arg2().accept(emitter);
+            code.iconst(op);
+            callJit("boolArg", "(Ljava/lang/Object;I)Z", -1);
+            callJit("bool", "(Z)Ljava/lang/Object;", 0);
+          }
+          else loadConst(BoolConstant.TRUE);
+          int end = code.jump(ClassFile.GOTO);
+          code.patch(hole);
+          code.adjust(-1);  // only one of the two arms runs
+          if (op == VMCode.B_AND) loadConst(BoolConstant.FALSE);
+          else {
+            b.arg2().accept(emitter);
+            code.iconst(op);
+            callJit("boolArg", "(Ljava/lang/Object;I)Z", -1);
+            callJit("bool", "(Z)Ljava/lang/Object;", 0);
+          }
+          code.patch(end);
+          return null;
+        }
+        String method = BINOP_METHODS.length > op ? BINOP_METHODS[op] : null;
+        if (op == VMCode.B_DIVIDE) {
+          b.arg2().accept(emitter);
+          callJit("divisor", "(Ljava/lang/Object;)Ljava/lang/Object;", 0);
+          b.arg1().accept(emitter);
+          callJit("divide", BINARY + "Ljava/lang/Object;", -1);
+        }
+        else if (method == null) {
+          code.iconst(op);
+          b.arg1().accept(emitter);
+          b.arg2().accept(emitter);
+          callJit("binOp", "(I" + BINARY.substring(1) + "Ljava/lang/Object;", -2);
+        }
+        else {
+          b.arg1().accept(emitter);
+          b.arg2().accept(emitter);
+          if (op >= VMCode.B_EQUALS) {
+            callJit(method, BINARY + "Z", -1);
+            callJit("bool", "(Z)Ljava/lang/Object;", 0);
+          }
+          else callJit(method, BINARY + "Ljava/lang/Object;", -1);
+        }
+        return null;
+      }
+
+      public Void forApp(App a) {
+        AST[] args = a.args();
+        int n = args.length;
+        if (a.rator() instanceof PrimFun) {
+          int p = ((PrimFun) a.rator()).code();
+          if (p == VMCode.P_CONS && n == 2) {
+            args[0].accept(emitter);
+            args[1].accept(emitter);
+            callJit("cons", BINARY + "Ljava/lang/Object;", -1);
+          }
+          else if (p != VMCode.P_CONS && n == 1) {
+            code.iconst(p);
+            args[0].accept(emitter);
+            callJit("prim1", "(ILjava/lang/Object;)Ljava/lang/Object;", -1);
+          }
+          else {
+            code.iconst(p);
+            argFrame(args);
+            callJit("prim", "(I" + FRAME + ")Ljava/lang/Object;", -1);
+          }
+          return null;
+        }
+        a.rator().accept(emitter);
+        argFrame(args);
+        if (tail && fun >= 0) {
+          /* A call of the enclosing function in tail position replaces the current activation */
+          int rator = code.newLocal();
+          int frame = code.newLocal();
+          code.astore(frame);
+          code.astore(rator);
+          code.aload(rator);
+          code.aload(frame);
+          loadK(0);
+          code.iconst(fun);
+          callJit("enterSelf", "(Ljava/lang/Object;" + FRAME + "Ljava/lang/Object;I)Z", -3);
+          int other = code.jump(ClassFile.IFEQ);
+          code.aload(frame);
+          code.astore(0);
+          code.jumpTo(ClassFile.GOTO, 0);
+          code.patch(other);
+          code.aload(rator);
+          code.aload(frame);
+        }
+        loadConst(a);
+        callJit(tail ? "tailCall" : "call", "(Ljava/lang/Object;" + FRAME + "Ljava/lang/Object;)Ljava/lang/Object;", -2);
+        return null;
+      }
+
+      public Void forIf(If i) {
+        emitTest(i.test());
+        int hole = code.jump(ClassFile.IFEQ);
+        i.conseq().accept(this);
+        int end = code.jump(ClassFile.GOTO);
+        code.patch(hole);
+        code.adjust(-1);  // only one of the two arms runs
+        i.alt().accept(this);
+        code.patch(end);
+        return null;
+      }
+
+      public Void forBlock(Block b) {
+        AST[] exps = b.exps();
+        int n = exps.length;
+        for (int i = 0; i < n-1; i++) {
+          exps[i].accept(emitter);
+          code.op(ClassFile.POP, -1);
+        }
+        exps[n-1].accept(this);
+        return null;
+      }
+
+      public Void forSMap(SMap sm) {
+        funs.add(sm);
+        loadK(0);
+        code.iconst(funs.size() - 1);
+        loadFrame();
+        callJit("closure", "(Ljava/lang/Object;I" + FRAME + ")Ljava/lang/Object;", -2);
+        return null;
+      }
+
+      public Void forSLet(SLet sl) {
+        SDAST[] rhss = sl.rhss();
+        newFrame(rhss.length);
+        for (int i = rhss.length - 1; i >= 0; i--) {  // right to left, like the evaluators
+          code.op(ClassFile.DUP, 1);
+          code.iconst(i + 1);
+          rhss[i].accept(emitter);
+          code.op(ClassFile.AASTORE, -3);
+        }
+        return body(sl.body());
+      }
+
+      public Void forSLetRec(SLetRec slr) {
+        SDAST[] rhss = slr.rhss();
+        newFrame(rhss.length);
+        int local = code.newLocal();
+        code.astore(local);
+        frames.add(local);
+        for (int i = 0; i < rhss.length; i++) {
+          code.aload(local);
+          code.iconst(i + 1);
+          rhss[i].accept(emitter);
+          code.op(ClassFile.AASTORE, -3);
+        }
+        slr.body().accept(this);
+        frames.remove(frames.size() - 1);
+        return null;
+      }
+
+      /** Emits body in the scope of the frame on top of the stack */
+      private Void body(SDAST body) {
+        int local = code.newLocal();
+        code.astore(local);
+        frames.add(local);
+        body.accept(this);
+        frames.remove(frames.size() - 1);
+        return null;
+      }
+
+      /* Methods that are never invoked on well-formed SDASTs */
+      public Void forSymVariable(Variable host) { return forDefault(host); }
+      public Void forMap(Map host) { return forDefault(host); }
+      public Void forLet(Let host) { return forDefault(host); }
+      public Void forLetRec(LetRec host) { return forDefault(host); }
+      public Void forLetcc(Letcc host) { return forDefault(host); }
+      public Void forSLetcc(SLetcc host) { return forDefault(host); }
+    }
+  }
+
+}
+
+/** Thrown by ClassFile.method when the code of a method is too large to compile; JitCompiler.compile passes it on,
+  * and Interpreter then runs the program on the VM instead. */
+class MethodTooLarge extends Exception {
+  private static final long serialVersionUID = 1L;
+  MethodTooLarge(String method) { super("method " + method + " is too large to compile"); }
+}
+
+/** A minimal writer for Java class files that supports what JitCompiler needs: a constant pool, fields, and
+  * methods with a Code attribute.  Class files are written in version 49 format, so the JVM verifies them by
+  * type inference and no StackMapTable attributes are needed. */
+class ClassFile {
+
+  static final int ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+  static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, ILOAD = 0x15,
+    ALOAD = 0x19, AALOAD = 0x32, ASTORE = 0x3a, AASTORE = 0x53, POP = 0x57, DUP = 0x59, IFEQ = 0x99, GOTO = 0xa7,
+    TABLESWITCH = 0xaa, ARETURN = 0xb0, RETURN = 0xb1, GETSTATIC = 0xb2, INVOKESPECIAL = 0xb7,
+    INVOKESTATIC = 0xb8, ANEWARRAY = 0xbd, CHECKCAST = 0xc0, WIDE = 0xc4;
+
+  private final Bytes pool = new Bytes();
+  private int poolCount = 1;
+  private final HashMap<String,Integer> poolIndex = new HashMap<String,Integer>();
+  private final Bytes fields = new Bytes();
+  private int fieldCount = 0;
+  private final Bytes methods = new Bytes();
+  private int methodCount = 0;
+
+  /** A growable byte array */
+  static class Bytes {
+    byte[] data = new byte[256];
+    int length = 0;
+
+    void u1(int b) {
+      if (length == data.length) data = Arrays.copyOf(data, 2 * length);
+      data[length++] = (byte) b;
+    }
+    void u2(int s) { u1(s >> 8); u1(s); }
+    void u4(int i) { u2(i >> 16); u2(i); }
+    void bytes(Bytes b) { for (int i = 0; i < b.length; i++) u1(b.data[i]); }
+  }
+
+  /** Returns the index of the constant pool entry with the given key, or -1 if there is none yet */
+  private int lookup(String key) {
+    Integer i = poolIndex.get(key);
+    return i == null ? -1 : i;
+  }
+
+  private int enter(String key) {
+    poolIndex.put(key, poolCount);
+    return poolCount++;
+  }
+
+  int utf8(String s) {
+    int i = lookup("U" + s);
+    if (i >= 0) return i;
+    try {
+      byte[] b = s.getBytes("UTF-8");  // generated names and descriptors are ASCII
+      pool.u1(1);
+      pool.u2(b.length);
+      for (byte x : b) pool.u1(x);
+    }
+    catch (java.io.UnsupportedEncodingException e) { throw new IllegalStateException(e); }
+    return enter("U" + s);
+  }
+
+  int integer(int v) {
+    int i = lookup("I" + v);
+    if (i >= 0) return i;
+    pool.u1(3);
+    pool.u4(v);
+    return enter("I" + v);
+  }
+
+  int classRef(String name) {
+    int i = lookup("C" + name);
+    if (i >= 0) return i;
+    int n = utf8(name);
+    pool.u1(7);
+    pool.u2(n);
+    return enter("C" + name);
+  }
+
+  private int memberRef(int tag, String owner, String name, String desc) {
+    String key = tag + owner + "." + name + ":" + desc;
+    int i = lookup(key);
+    if (i >= 0) return i;
+    int c = classRef(owner);
+    int nt = lookup("N" + name + ":" + desc);
+    if (nt < 0) {
+      int n = utf8(name);
+      int d = utf8(desc);
+      pool.u1(12);
+      pool.u2(n);
+      pool.u2(d);
+      nt = enter("N" + name + ":" + desc);
+    }
+    pool.u1(tag);
+    pool.u2(c);
+    pool.u2(nt);
+    return enter(key);
+  }
+
+  int fieldRef(String owner, String name, String desc) { return memberRef(9, owner, name, desc); }
+  int methodRef(String owner, String name, String desc) { return memberRef(10, owner, name, desc); }
+
+  void field(int access, String name, String desc) {
+    fields.u2(access);
+    fields.u2(utf8(name));
+    fields.u2(utf8(desc));
+    fields.u2(0);
+    fieldCount++;
+  }
+
+  /** Adds a method; throws MethodTooLarge if code is longer than the signed 16-bit offsets of jumps can span */
+  void method(int access, String name, String desc, Code code) throws MethodTooLarge {
+    if (code.length > Short.MAX_VALUE) throw new MethodTooLarge(name);
+    methods.u2(access);
+    methods.u2(utf8(name));
+    methods.u2(utf8(desc));
+    methods.u2(1);
+    methods.u2(utf8("Code"));
+    methods.u4(12 + code.length);
+    methods.u2(code.maxStack);
+    methods.u2(code.maxLocals);
+    methods.u4(code.length);
+    methods.bytes(code);
+    methods.u2(0);  // exception table
+    methods.u2(0);  // attributes
+    methodCount++;
+  }
+
+  byte[] toBytes(int access, String name, String superName, String iface) {
+    int thisClass = classRef(name);
+    int superClass = classRef(superName);
+    int ifaceClass = classRef(iface);
+    Bytes b = new Bytes();
+    b.u4(0xcafebabe);
+    b.u2(0);
+    b.u2(49);
+    b.u2(poolCount);
+    b.bytes(pool);
+    b.u2(access);
+    b.u2(thisClass);
+    b.u2(superClass);
+    b.u2(1);
+    b.u2(ifaceClass);
+    b.u2(fieldCount);
+    b.bytes(fields);
+    b.u2(methodCount);
+    b.bytes(methods);
+    b.u2(0);
+    return Arrays.copyOf(b.data, b.length);
+  }
+
+  /** The bytecode of one method.  It tracks the operand stack depth to compute max_stack. */
+  class Code extends Bytes {
+    int maxStack = 0;
+    int maxLocals;
+    private int depth = 0;
+
+    Code(int params) { maxLocals = params; }
+
+    int position() { return length; }
+
+    /** Records a change of delta in the stack depth */
+    void adjust(int delta) {
+      depth += delta;
+      if (depth > maxStack) maxStack = depth;
+    }
+
+    void op(int opcode, int delta) { u1(opcode); adjust(delta); }
+
+    int newLocal() { return maxLocals++; }
+
+    private void local(int opcode, int n, int delta) {
+      if (n < 256) { u1(opcode); u1(n); }
+      else { u1(WIDE); u1(opcode); u2(n); }
+      adjust(delta);
+    }
+
+    void aload(int n) { local(ALOAD, n, 1); }
+    void astore(int n) { local(ASTORE, n, -1); }
+    void iload(int n) { local(ILOAD, n, 1); }
+
+    void iconst(int v) {
+      if (v >= -1 && v <= 5) u1(ICONST_0 + v);
+      else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) { u1(BIPUSH); u1(v); }
+      else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) { u1(SIPUSH); u2(v); }
+      else { u1(LDC_W); u2(integer(v)); }
+      adjust(1);
+    }
+
+    void getstatic(String owner, String name, String desc) {
+      u1(GETSTATIC);
+      u2(fieldRef(owner, name, desc));
+      adjust(1);
+    }
+
+    /** Emits a method invocation whose net effect on the stack depth is delta */
+    void invoke(int opcode, String owner, String name, String desc, int delta) {
+      u1(opcode);
+      u2(methodRef(owner, name, desc));
+      adjust(delta);
+    }
+
+    void anewarray(String elementClass) { u1(ANEWARRAY); u2(classRef(elementClass)); }
+    void checkcast(String c) { u1(CHECKCAST); u2(classRef(c)); }
+
+    /** Emits a branch with a placeholder offset and returns the address of the branch */
+    int jump(int opcode) {
+      int at = length;
+      op(opcode, opcode == GOTO ? 0 : -1);
+      u2(0);
+      return at;
+    }
+
+    void jumpTo(int opcode, int target) {
+      int at = length;
+      op(opcode, opcode == GOTO ? 0 : -1);
+      u2(target - at);
+    }
+
+    /** Makes the branch at address at jump to the current position */
+    void patch(int at) {
+      int offset = length - at;
+      data[at+1] = (byte) (offset >> 8);
+      data[at+2] = (byte) offset;
+    }
+
+    /** Emits a tableswitch on the top of the stack for cases 0..n-1 with placeholder offsets; returns its address */
+    int tableswitch(int n) {
+      int at = length;
+      op(TABLESWITCH, -1);
+      while (length % 4 != 0) u1(0);
+      u4(0);
+      u4(0);
+      u4(n - 1);
+      for (int i = 0; i < n; i++) u4(0);
+      return at;
+    }
+
+    void patchSwitch(int at, int dflt, int[] cases) {
+      int p = (at + 4) & ~3;
+      setU4(p, dflt - at);
+      for (int i = 0; i < cases.length; i++) setU4(p + 12 + 4*i, cases[i] - at);
+    }
+
+    private void setU4(int p, int v) {
+      data[p] = (byte) (v >> 24);
+      data[p+1] = (byte) (v >> 16);
+      data[p+2] = (byte) (v >> 8);
+      data[p+3] = (byte) v;
+    }
+  }
+}
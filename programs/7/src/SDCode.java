@@ -0,0 +1,297 @@
+/** An SDAST translated by SDCodeCompiler into a tree of Java functional objects.  Evaluating it is a direct call;
+  * all dispatch on node types and operators happens once, at translation time.  A frame is an Object[] whose slot
+  * 0 holds the static link, as in the VM; the main program runs in a null frame. */
+interface SDCode {
+  Object eval(Object[] frame);
+}
+
+/** Jam closure representation for compiled SDCode */
+class SDCodeClosure extends JamFun implements Closure {
+  final SMap map;
+  final SDCode body;
+  final Object[] env;
+
+  SDCodeClosure(SMap m, SDCode b, Object[] e) { map = m; body = b; env = e; }
+
+  public int arity() { return map.arity(); }
+  public JamVal apply(JamVal[] args) {
+    int n = map.arity();
+    if (n != args.length) throw new EvalException("closure " + this + " applied to " + args.length +
+                                                  " arguments instead of " + n + " arguments");
+    Object[] frame = new Object[n+1];
+    frame[0] = env;
+    System.arraycopy(args, 0, frame, 1, n);
+    return (JamVal) SDCodeCompiler.complete(body.eval(frame));
+  }
+  public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
+  public String toString() { return "(closure: " + map + ")"; }
+}
+
+/** The result of an application of an SDCodeClosure in tail position, with its frame already bound; it never
+  * escapes SDCodeCompiler.complete */
+final class SDCodeTailCall {
+  final SDCodeClosure closure;
+  final Object[] frame;
+  SDCodeTailCall(SDCodeClosure c, Object[] f) { closure = c; frame = f; }
+}
+
+/** Translates an SDAST into SDCode.  The translation is done once per program; the result can be run any number
+  * of times.  Operators and variable accesses are specialized on their static shape: a Pair becomes a direct read
+  * of a slot of the current or a fixed enclosing frame, and arithmetic and comparisons with an integer constant
+  * operand read the constant from the translated code rather than evaluating it.  An application of a closure in
+  * tail position returns an SDCodeTailCall, which the nearest enclosing application completes in a loop, so tail
+  * calls run in constant Java stack. */
+class SDCodeCompiler implements ASTVisitor<SDCode> {
+
+  /** Translators for expressions in non-tail and tail position */
+  static final SDCodeCompiler ONLY = new SDCodeCompiler(false);
+  static final SDCodeCompiler TAIL = new SDCodeCompiler(true);
+
+  /** Is the translated expression in tail position? */
+  private final boolean tail;
+
+  private SDCodeCompiler(boolean t) { tail = t; }
+
+  /** Translates the SDAST program prog */
+  static SDCode compile(SDAST prog) { return prog.accept(ONLY); }
+
+  /** Applies rator to the arguments in slots 1.. of frame on behalf of the application app; an application of a
+    * closure in tail position is returned as an SDCodeTailCall instead */
+  static Object call(Object rator, Object[] frame, App app, boolean tail) {
+    if (rator instanceof SDCodeClosure) {
+      SDCodeClosure c = (SDCodeClosure) rator;
+      int arity = c.map.arity();
+      if (arity != frame.length - 1) throw new EvalException("closure " + c + " applied to " + (frame.length - 1) +
+                                                             " arguments instead of " + arity + " arguments");
+      frame[0] = c.env;
+      if (tail) return new SDCodeTailCall(c, frame);
+      return complete(c.body.eval(frame));
+    }
+    return Jit.call(rator, frame, app);
+  }
+
+  /** Performs the tail calls starting with result until one returns a value */
+  static Object complete(Object result) {
+    while (result instanceof SDCodeTailCall) {
+      SDCodeTailCall call = (SDCodeTailCall) result;
+      result = call.closure.body.eval(call.frame);
+    }
+    return result;
+  }
+
+  private SDCode forDefault(AST a) { throw new EvalException(a + " cannot be compiled by " + getClass()); }
+
+  public SDCode forBoolConstant(BoolConstant b) { return f -> b; }
+  public SDCode forIntConstant(IntConstant i) { return f -> i; }
+  public SDCode forNullConstant(NullConstant n) { return f -> JamEmpty.ONLY; }
+  public SDCode forPrimFun(PrimFun p) { return f -> p; }
+
+  public SDCode forPair(Pair p) {
+    int o = p.offset() + 1;  // slot 0 of a frame holds its static link
+    switch (p.dist()) {
+      case 0: return f -> f[o];
+      case 1: return f -> ((Object[]) f[0])[o];
+      case 2: return f -> ((Object[]) ((Object[]) f[0])[0])[o];
+      default: {
+        int d = p.dist();
+        return f -> {
+          for (int i = 0; i < d; i++) f = (Object[]) f[0];
+          return f[o];
+        };
+      }
+    }
+  }
+
+  public SDCode forUnOpApp(UnOpApp u) {
+    SDCode arg = u.arg().accept(ONLY);
+    int op = u.rator().code();
+    switch (op) {
+      case VMCode.U_MINUS:
+        return f -> {
+          Object x = arg.eval(f);
+          if (x instanceof IntConstant) return IntConstant.valueOf(- ((IntConstant) x).value());
+          return VM.unOp(op, x);
+        };
+      case VMCode.U_NOT:
+        return f -> {
+          Object x = arg.eval(f);
+          if (x == BoolConstant.TRUE) return BoolConstant.FALSE;
+          if (x == BoolConstant.FALSE) return BoolConstant.TRUE;
+          return VM.unOp(op, x);
+        };
+      default: return f -> VM.unOp(op, arg.eval(f));
+    }
+  }
+
+  public SDCode forBinOpApp(BinOpApp b) {
+    int op = b.rator().code();
+    if (op >= VMCode.B_EQUALS && op <= VMCode.B_GREATER_EQUALS) return compare(b);
+    SDCode x = b.arg1().accept(ONLY);
+    if (b.arg2() instanceof IntConstant) {
+      int k = ((IntConstant) b.arg2()).value();
+      switch (op) {
+        case VMCode.B_PLUS: return f -> IntConstant.valueOf(VM.intArg(x.eval(f), op) + k);
+        case VMCode.B_MINUS: return f -> IntConstant.valueOf(VM.intArg(x.eval(f), op) - k);
+        case VMCode.B_TIMES: return f -> IntConstant.valueOf(VM.intArg(x.eval(f), op) * k);
+        default:
+      }
+    }
+    SDCode y = b.arg2().accept(ONLY);
+    switch (op) {
+      case VMCode.B_PLUS: return f -> Jit.plus(x.eval(f), y.eval(f));
+      case VMCode.B_MINUS: return f -> Jit.minus(x.eval(f), y.eval(f));
+      case VMCode.B_TIMES: return f -> Jit.times(x.eval(f), y.eval(f));
+      case VMCode.B_DIVIDE:
+        return f -> {
+          int d = VM.checkDivisor(y.eval(f));
+          return VM.divide(x.eval(f), d);
+        };
+      case VMCode.B_AND:
+        return f -> Jit.boolArg(x.eval(f), op) ? BoolConstant.toBoolConstant(Jit.boolArg(y.eval(f), op))
+                                               : BoolConstant.FALSE;
+      case VMCode.B_OR:
+        return f -> Jit.boolArg(x.eval(f), op) ? BoolConstant.TRUE
+                                               : BoolConstant.toBoolConstant(Jit.boolArg(y.eval(f), op));
+      default: return f -> VM.binOp(op, x.eval(f), y.eval(f));
+    }
+  }
+
+  /** Translates a comparison to SDCode that returns a BoolConstant */
+  private SDCode compare(BinOpApp b) {
+    int op = b.rator().code();
+    SDCode x = b.arg1().accept(ONLY);
+    if (b.arg2() instanceof IntConstant && op != VMCode.B_EQUALS && op != VMCode.B_NOT_EQUALS) {
+      int k = ((IntConstant) b.arg2()).value();
+      switch (op) {
+        case VMCode.B_LESS: return f -> BoolConstant.toBoolConstant(VM.intArg(x.eval(f), op) < k);
+        case VMCode.B_GREATER: return f -> BoolConstant.toBoolConstant(VM.intArg(x.eval(f), op) > k);
+        case VMCode.B_LESS_EQUALS: return f -> BoolConstant.toBoolConstant(VM.intArg(x.eval(f), op) <= k);
+        default: return f -> BoolConstant.toBoolConstant(VM.intArg(x.eval(f), op) >= k);
+      }
+    }
+    SDCode y = b.arg2().accept(ONLY);
+    switch (op) {
+      case VMCode.B_EQUALS: return f -> BoolConstant.toBoolConstant(Jit.equal(x.eval(f), y.eval(f)));
+      case VMCode.B_NOT_EQUALS: return f -> BoolConstant.toBoolConstant(Jit.notEqual(x.eval(f), y.eval(f)));
+      case VMCode.B_LESS: return f -> BoolConstant.toBoolConstant(Jit.less(x.eval(f), y.eval(f)));
+      case VMCode.B_GREATER: return f -> BoolConstant.toBoolConstant(Jit.greater(x.eval(f), y.eval(f)));
+      case VMCode.B_LESS_EQUALS: return f -> BoolConstant.toBoolConstant(Jit.lessEqual(x.eval(f), y.eval(f)));
+      default: return f -> BoolConstant.toBoolConstant(Jit.greaterEqual(x.eval(f), y.eval(f)));
+    }
+  }
+
+  public SDCode forApp(App a) {
+    AST[] args = a.args();
+    int n = args.length;
+    SDCode[] codes = new SDCode[n];
+    for (int i = 0; i < n; i++) codes[i] = args[i].accept(ONLY);
+    if (a.rator() instanceof PrimFun) {
+      int p = ((PrimFun) a.rator()).code();
+      if (p == VMCode.P_CONS && n == 2) {
+        SDCode x = codes[0], y = codes[1];
+        return f -> Jit.cons(x.eval(f), y.eval(f));
+      }
+      if (p != VMCode.P_CONS && n == 1) {
+        SDCode x = codes[0];
+        return f -> Jit.prim1(p, x.eval(f));
+      }
+      return f -> Jit.prim(p, argFrame(codes, f));
+    }
+    SDCode rator = a.rator().accept(ONLY);
+    boolean t = tail;
+    switch (n) {
+      case 0: return f -> call(rator.eval(f), new Object[1], a, t);
+      case 1: {
+        SDCode x = codes[0];
+        return f -> call(rator.eval(f), new Object[] { null, x.eval(f) }, a, t);
+      }
+      case 2: {
+        SDCode x = codes[0], y = codes[1];
+        return f -> {
+          Object r = rator.eval(f);
+          return call(r, new Object[] { null, x.eval(f), y.eval(f) }, a, t);
+        };
+      }
+      default:
+        return f -> {
+          Object r = rator.eval(f);
+          return call(r, argFrame(codes, f), a, t);
+        };
+    }
+  }
+
+  /** Evaluates codes in frame f into slots 1.. of a new frame */
+  private static Object[] argFrame(SDCode[] codes, Object[] f) {
+    Object[] frame = new Object[codes.length + 1];
+    for (int i = 0; i < codes.length; i++) frame[i+1] = codes[i].eval(f);
+    return frame;
+  }
+
+  public SDCode forIf(If i) {
+    SDCode conseq = i.conseq().accept(this);
+    SDCode alt = i.alt().accept(this);
+    if (i.test() instanceof BinOpApp) {
+      int op = ((BinOpApp) i.test()).rator().code();
+      if (op >= VMCode.B_EQUALS && op <= VMCode.B_GREATER_EQUALS) {
+        SDCode test = compare((BinOpApp) i.test());
+        return f -> test.eval(f) == BoolConstant.TRUE ? conseq.eval(f) : alt.eval(f);
+      }
+    }
+    SDCode test = i.test().accept(ONLY);
+    return f -> Jit.test(test.eval(f)) ? conseq.eval(f) : alt.eval(f);
+  }
+
+  public SDCode forBlock(Block b) {
+    AST[] exps = b.exps();
+    SDCode[] codes = new SDCode[exps.length];
+    for (int i = 0; i < exps.length; i++) codes[i] = exps[i].accept(i == exps.length - 1 ? this : ONLY);
+    int last = codes.length - 1;
+    return f -> {
+      for (int i = 0; i < last; i++) codes[i].eval(f);
+      return codes[last].eval(f);
+    };
+  }
+
+  public SDCode forSMap(SMap sm) {
+    SDCode body = sm.body().accept(TAIL);
+    return f -> new SDCodeClosure(sm, body, f);
+  }
+
+  public SDCode forSLet(SLet sl) {
+    SDCode[] rhss = compileAll(sl.rhss());
+    SDCode body = sl.body().accept(this);
+    int n = rhss.length;
+    return f -> {
+      Object[] frame = new Object[n+1];
+      frame[0] = f;
+      for (int i = n - 1; i >= 0; i--) frame[i+1] = rhss[i].eval(f);  // right to left, like the evaluators
+      return body.eval(frame);
+    };
+  }
+
+  public SDCode forSLetRec(SLetRec slr) {
+    SDCode[] rhss = compileAll(slr.rhss());
+    SDCode body = slr.body().accept(this);
+    int n = rhss.length;
+    return f -> {
+      Object[] frame = new Object[n+1];
+      frame[0] = f;
+      for (int i = 0; i < n; i++) frame[i+1] = rhss[i].eval(frame);
+      return body.eval(frame);
+    };
+  }
+
+  private SDCode[] compileAll(SDAST[] asts) {
+    SDCode[] codes = new SDCode[asts.length];
+    for (int i = 0; i < asts.length; i++) codes[i] = asts[i].accept(ONLY);
+    return codes;
+  }
+
+  /* Methods that are never invoked on well-formed SDASTs */
+  public SDCode forSymVariable(Variable host) { return forDefault(host); }
+  public SDCode forMap(Map host) { return forDefault(host); }
+  public SDCode forLet(Let host) { return forDefault(host); }
+  public SDCode forLetRec(LetRec host) { return forDefault(host); }
+  public SDCode forLetcc(Letcc host) { return forDefault(host); }
+  public SDCode forSLetcc(SLetcc host) { return forDefault(host); }
+}
@@ -2,6 +2,7 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /** The exception class for Jam run-time errors */
 class EvalException extends RuntimeException {
@@ -24,13 +25,73 @@ interface EvalVisitor extends ASTVisitor<JamVal> {
   FunVisitor<JamVal> newFunVisitor(AST[] args);
 }
 
+/** A closure whose calls in tail position are completed by the trampoline in Closure.apply rather than by a nested
+  * Java call. */
+interface TailCallable extends Closure {
+  /** Binds args and evaluates the body of this closure in tail position; the result may be a TailCall */
+  JamVal enter(JamVal[] args);
+}
+
+/** The result of a tail evaluator for an application of a TailCallable; it is never visible outside of the loop in
+  * TailCall.complete. */
+final class TailCall implements JamVal {
+  private final TailCallable closure;
+  private final JamVal[] args;
+  TailCall(TailCallable c, JamVal[] a) { closure = c; args = a; }
+  public <RtnType> RtnType accept(JamValVisitor<RtnType> jvv) {
+	throw new EvalException("tail call of " + closure + " escaped its trampoline");
+  }
+  /** Performs the tail calls starting with result until one returns a value */
+  static JamVal complete(JamVal result) {
+	while (result instanceof TailCall) {
+	  TailCall call = (TailCall) result;
+	  result = call.closure.enter(call.args);
+	}
+	return result;
+  }
+}
+
+/** A continuation captured by letcc in SymEvaluator or SDEvaluator.  It is only an escape: invoking it while its
+  * letcc is being evaluated throws its preallocated Escape, which the letcc catches.  Invoking it after the letcc
+  * has returned throws ContinuationReentered; Interpreter then evaluates the program again in CPS. */
+class EscapeContinuation extends JamFun implements Closure {
+  final Escape escape = new Escape(this);
+  boolean live = true;
+
+  /** The control transfer to the letcc of continuation k; it carries no stack trace */
+  static final class Escape extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+	final EscapeContinuation k;
+	JamVal value;
+	Escape(EscapeContinuation k) { super(null, null, false, false); this.k = k; }
+  }
+
+  public int arity() { return 1; }
+  public JamVal apply(JamVal[] args) {
+	if (args.length != 1) throw new EvalException(this + " applied to " + args.length + " arguments instead of 1");
+	if (! live) throw ContinuationReentered.ONLY;
+	escape.value = args[0];
+	throw escape;
+  }
+  public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
+  public String toString() { return "(continuation)"; }
+}
+
+/** Thrown when an EscapeContinuation is invoked after its letcc has returned */
+final class ContinuationReentered extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+  static final ContinuationReentered ONLY = new ContinuationReentered();
+  private ContinuationReentered() { super("continuation invoked after its letcc returned", null, false, false); }
+}
+
 /** Jam closure represention for programs with symbolic variables*/
-class VarClosure extends JamFun implements Closure {
+class VarClosure extends JamFun implements TailCallable {
   private Map map;
   private SymEvaluator eval;
   VarClosure(Map m, SymEvaluator e) { map = m; eval = e; }
   public int arity() { return map.vars().length; }
-  public JamVal apply(JamVal[] args) {
+  public JamVal apply(JamVal[] args) { return TailCall.complete(enter(args)); }
+  public JamVal enter(JamVal[] args) {
 	Variable[] vars = map.vars();
 	VarEnv newEnv = eval.env();
 	int n = vars.length;
@@ -38,14 +99,16 @@ class VarClosure extends JamFun implements Closure {
 	   args.length + " arguments instead of " + n + " arguments");
 	for (int i = n-1 ; i >= 0; i--)
 	  newEnv = newEnv.cons(new Binding(vars[i],args[i]));
-	return map.body().accept(eval.newEvalVisitor(newEnv));
+	TierCode code = TierCompiler.hot(map.profile(), map.body());
+	if (code != null) return code.eval(newEnv);
+	return map.body().accept(eval.newEvaluator(newEnv, true));
   }
   public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
   public String toString() { return "(closure: " + map + ")"; }
 }
 
 /** Jam closure representation for programs with static distance coordinates */
-class SDClosure extends JamFun implements Closure {
+class SDClosure extends JamFun implements TailCallable {
   private SMap smap;
   private SDEvaluator eval;
   
@@ -56,13 +119,35 @@ class SDClosure extends JamFun implements Closure {
   public int arity() {
   	return smap.arity();
   }
-  public JamVal apply(JamVal[] args) {
-	SDEnv newEnv = eval.env();
+  public JamVal apply(JamVal[] args) { return TailCall.complete(enter(args)); }
+  SMap smap() { return smap; }
+  public JamVal enter(JamVal[] args) {
 	int n = smap.arity();
 	if (n != args.length) throw new EvalException("closure " + this + " applied to " +
 	   args.length + " arguments instead of " + n + " arguments");
-	  newEnv = newEnv.cons(args);
-	return smap.body().accept(eval.newEvalVisitor(newEnv));
+	return run(args);
+  }
+  /** Binds args, whose number is known to be the arity of smap, and evaluates the body in tail position */
+  JamVal run(JamVal[] args) {
+	SDEnv newEnv = eval.env().cons(args);
+	TierCode code = TierCompiler.hot(smap.profile(), smap.body());
+	if (code != null) return code.eval(newEnv);
+	return smap.body().accept(eval.newEvaluator(newEnv, true));
+  }
+  public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
+  public String toString() { return "(closure: " + smap + ")"; }
+}
+
+/** Jam closure decoded from the ram heap.  Its environment stays on the heap, so it can be printed but not
+  * applied. */
+class RamClosure extends JamFun implements Closure {
+  private SMap smap;
+
+  RamClosure(SMap sm) { smap = sm; }
+
+  public int arity() { return smap.arity(); }
+  public JamVal apply(JamVal[] args) {
+    throw new EvalException("closure " + this + " cannot be applied outside of the ram heap");
   }
   public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
   public String toString() { return "(closure: " + smap + ")"; }
@@ -77,46 +162,51 @@ class Interpreter {
   Interpreter(String fileName) throws IOException { parser = new Parser(fileName); }
   
   Interpreter(Parser p) { parser = p; }
+
+  /** Advances to the next program in a sequence of programs separated by `;' (see Parser.nextProg); the evaluation
+    * methods then interpret that program.  Returns false at the end of the input. */
+  boolean nextProg() { return parser.nextProg() != null; }
   
   Interpreter(Reader reader) {
-  	parser = new Parser(reader);
-  	heap = new int[HEAPSIZE];
+  	this(reader, HEAPSIZE);
   }
 
-  Interpreter(StringReader stringReader, int hs) {
-	  parser = new Parser(stringReader);
-	  heap = new int[HEAPSIZE];
-	  for (int i = 0; i < HEAPSIZE; i++) {
-	  	heap[i] = 0;
-	  }
+  /** Constructs an Interpreter whose ram heap holds hs words, half of which are usable at a time */
+  Interpreter(Reader reader, int hs) {
+	  parser = new Parser(reader);
+	  heap = new int[hs];
 	  ramEvaluator = new ramEvaluator(heap);
   }
 
-	private void printHeap() {
-		String out = "";
-		int i = 0;
-		while (heap[i] != 0) {
-			out = out + heap[i] + " ";
-			i++;
-		}
-		System.out.println(out);
-	}
-	
 	/**
 	 * Retursn the heap.
 	 */
 	public int[] getMemory() {
 		return heap;
 	}
+
+	/** Returns the number of garbage collections performed on the ram heap */
+	public int ramCollections() {
+		return ramEvaluator.collections();
+	}
+
+	/** Returns the number of words allocated on the ram heap */
+	public long ramWordsAllocated() {
+		return ramEvaluator.wordsAllocated();
+	}
+
+	/** Returns the number of tail calls that reused the caller's activation record on the ram heap */
+	public int ramFramesReused() {
+		return ramEvaluator.framesReused();
+	}
 	
 	/**
-	 * Returns the JamVal result (decoding the heap-index or pseudo-index) of evaluating the embedded SDAST program using the low-level interpreter
+	 * Returns the JamVal result (decoding the heap-index or pseudo-index) of evaluating the embedded SDAST program using the low-level interpreter.
+	 * A program using letcc is converted to CPS first.
 	 */
 	public JamVal ramSDEval() {
-		SDAST prog = parser.statCheckProg();
-		System.out.println(prog);
-		Integer out = prog.accept(ramEvaluator);
-		return ramCaseEval(out);
+		SDAST prog = letccFreeProg();
+		return ramCaseEval(ramEvaluator.run(prog));
 	}
 	
 	/**
@@ -125,90 +215,33 @@ class Interpreter {
 	 */
 	public JamVal ramSDCpsEval() {
 		SDAST prog = parser.statCpsProg();
-		System.out.println(prog);
-		Integer out = prog.accept(ramEvaluator);
-		return ramCaseEval(out);
+		return ramCaseEval(ramEvaluator.run(prog));
 	}
 
 	private JamVal ramCaseEval(Integer idx) {
-		int tag = heap[idx];
-		printHeap();
-		switch (tag) {
-			case 0:
-				System.out.println("Gets into case 0: Exception case");
-				throw new EvalException("ramEval should never encounter case 0");
-			case 1:
-				System.out.println("Gets into case 1: int");
-				return new IntConstant(heap[idx + 1]);
-			case 2:
-				System.out.println("Gets into case 2: cons");
-			case 3:
-				System.out.println("Gets into case 3: ref");
-				JamVal arg = ramCaseEval(idx + 1);
-				return new JamRef(arg);
-			case 4:
-				System.out.println("Gets into case 4: closure");
-			case 5:
-				System.out.println("Gets into case 5: activation record");
-			case -1:
-				System.out.println("Gets into case -1: null");
-				return JamEmpty.ONLY;
-			case -2:
-				System.out.println("Gets into case -2: unit");
-				return JamUnit.ONLY;
-			case -3:
-				System.out.println("Gets into case -3: true");
-				return BoolConstant.TRUE;
-			case -4:
-				System.out.println("Gets into case -4: false");
-				return BoolConstant.FALSE;
-			case -5:
-				System.out.println("Gets into case -5: number?");
-				return NumberPPrim.ONLY;
-			case -6:
-				System.out.println("Gets into case -6: function?");
-				return FunctionPPrim.ONLY;
-			case -7:
-				System.out.println("Gets into case -7: list?");
-				return ListPPrim.ONLY;
-			case -8:
-				System.out.println("Gets into case -8: null?");
-				return NullPPrim.ONLY;
-			case -9:
-				System.out.println("Gets into case -9: cons?");
-				return ConsPPrim.ONLY;
-			case -10:
-				System.out.println("Gets into case -10: ref");
-				return RefPPrim.ONLY;
-			case -11:
-				System.out.println("Gets into case -11: arity");
-				return ArityPrim.ONLY;
-			case -12:
-				System.out.println("Gets into case -12: cons");
-				return ConsPrim.ONLY;
-			case -13:
-				System.out.println("Gets into case -13: first");
-				return FirstPrim.ONLY;
-			case -14:
-				System.out.println("Gets into case -14: rest");
-				return RestPrim.ONLY;
-			default:
-				System.out.println("Gets into default case");
-				throw new EvalException("ramEval should never encounter case 0");
-		}
+		return ramEvaluator.decode(idx);
 	}
 
 	
-	/** Parses, checks, and interprets the input embeded in parser */
+	/** Parses, checks, and interprets the input embeded in parser.  A program whose letcc continuations may be used
+	* as values or invoked after their letcc has returned is interpreted in CPS. */
     public JamVal eval() {
 	SymAST prog = parser.checkProg();
-	return prog.accept(valueValueVisitor);
+	if (LetccUsageVisitor.escapeOnly(prog)) {
+	  try { return prog.accept(valueValueVisitor); }
+	  catch (ContinuationReentered e) { /* evaluate the program again in CPS */ }
+	}
+	return cpsEval();
   }
   
-  /** Parses and checks the input embeded in parser, converts it to SD form, and interprets it. */
+  /** Parses and checks the input embeded in parser, converts it to SD form, and interprets it.  Programs using
+	* letcc are handled as in eval(). */
   public JamVal SDEval() {
-	SDAST prog = parser.statCheckProg();
-	return prog.accept(SDEvalVisitor);
+	if (LetccUsageVisitor.escapeOnly(parser.checkProg())) {
+	  try { return parser.statCheckProg().accept(SDEvalVisitor); }
+	  catch (ContinuationReentered e) { /* evaluate the program again in CPS */ }
+	}
+	return SDCpsEval();
   }
   /** Parses, checks, CPS converts, and interprets the input embedded in parser using the SymAST representation. */
   public JamVal cpsEval() {
@@ -220,14 +253,149 @@ class Interpreter {
 	SDAST prog = parser.statCpsProg();
 	return prog.accept(SDEvalVisitor);
   }
-  
+
+  /** Parses, checks, converts to A-normal form, and interprets the input embedded in parser using the SymAST
+	* representation.  Programs using letcc are handled as in eval(). */
+  public JamVal anfEval() {
+	SymAST prog = parser.anfProg();
+	if (LetccUsageVisitor.escapeOnly(prog)) {
+	  try { return prog.accept(valueValueVisitor); }
+	  catch (ContinuationReentered e) { /* evaluate the program again in CPS */ }
+	}
+	return cpsEval();
+  }
+  /** Parses, checks, converts to A-normal form, SD converts, and interprets the input embedded in parser using the
+	* SDAST representation.  Programs using letcc are handled as in eval(). */
+  public JamVal SDAnfEval() {
+	if (LetccUsageVisitor.escapeOnly(parser.anfProg())) {
+	  try { return parser.statAnfProg().accept(SDEvalVisitor); }
+	  catch (ContinuationReentered e) { /* evaluate the program again in CPS */ }
+	}
+	return SDCpsEval();
+  }
+
+  /** Parses, checks, and interprets the input embedded in parser with SwitchEvaluator.  Programs using letcc are
+	* handled as in eval(). */
+  public JamVal switchEval() {
+	SymAST prog = parser.checkProg();
+	if (LetccUsageVisitor.escapeOnly(prog)) {
+	  try { return SwitchEvaluator.eval(prog, EmptyVarEnv.ONLY); }
+	  catch (ContinuationReentered e) { /* evaluate the program again in CPS */ }
+	}
+	return SwitchEvaluator.eval(parser.cpsProg(), EmptyVarEnv.ONLY);
+  }
+  /** Parses and checks the input embedded in parser, converts it to SD form, and interprets it with
+	* SwitchEvaluator.  Programs using letcc are handled as in eval(). */
+  public JamVal switchSDEval() {
+	if (LetccUsageVisitor.escapeOnly(parser.checkProg())) {
+	  try { return SwitchEvaluator.eval(parser.statCheckProg(), EmptySDEnv.ONLY); }
+	  catch (ContinuationReentered e) { /* evaluate the program again in CPS */ }
+	}
+	return SwitchEvaluator.eval(parser.statCpsProg(), EmptySDEnv.ONLY);
+  }
+
+  /** Parses and checks the input embedded in parser and interprets it on the Cek machine, which supports letcc and
+	* is not limited by the depth of the Java stack. */
+  public JamVal cekEval() {
+	return Cek.run(parser.checkProg(), EmptyVarEnv.ONLY);
+  }
+  /** Parses and checks the input embedded in parser, converts it to SD form, and interprets it on the Cek machine. */
+  public JamVal cekSDEval() {
+	return Cek.run(parser.statCheckProg(), EmptySDEnv.ONLY);
+  }
+
+  /** Parses and checks the input embedded in parser, converts it to SD form, compiles it to VMCode, and runs it on
+	* the VM.  A program using letcc is converted to CPS first, as in letccFreeProg. */
+  public JamVal vmEval() {
+	return new VM(VMCompiler.compile(letccFreeProg())).run();
+  }
+  /** Parses, checks, CPS converts, SD converts, compiles the input embedded in parser to VMCode, and runs it on the VM. */
+  public JamVal vmCpsEval() {
+	return new VM(VMCompiler.compile(parser.statCpsProg())).run();
+  }
+
+  /** Parses and checks the input embedded in parser, converts it to SD form, compiles it to a JVM class, and runs
+	* it.  Compiling and loading the class takes tens of milliseconds, so the class is kept: later calls for the same
+	* program run it again without compiling it.  A program using letcc is converted to CPS first. */
+  public JamVal jitEval() {
+	SDAST prog = letccFreeProg();
+	if (jitProg != prog) {
+	  jitCode = jitCompile(prog);
+	  jitProg = prog;
+	}
+	return jitRun(jitCode);
+  }
+  /** Parses, checks, CPS converts, SD converts, compiles the input embedded in parser to a JVM class, and runs it.
+	* Like jitEval, it keeps the class for later calls. */
+  public JamVal jitCpsEval() {
+	SDAST prog = parser.statCpsProg();
+	if (jitCpsProg != prog) {
+	  jitCpsCode = jitCompile(prog);
+	  jitCpsProg = prog;
+	}
+	return jitRun(jitCpsCode);
+  }
+  /** The programs last compiled by jitEval and jitCpsEval and their compiled forms: a JitProgram, or VMCode for a
+	* program that is too large for the JVM's limits on method size */
+  private SDAST jitProg, jitCpsProg;
+  private Object jitCode, jitCpsCode;
+
+  /** Parses and checks the input embedded in parser, converts it to SD form, translates it to SDCode, and runs it.
+	* The translation is kept, so later calls run the same program again without parsing or translating it.  A
+	* program using letcc is converted to CPS first. */
+  public JamVal compiledSDEval() {
+	SDAST prog = letccFreeProg();
+	if (compiledSDProg != prog) {
+	  compiledSD = SDCodeCompiler.compile(prog);
+	  compiledSDProg = prog;
+	}
+	return (JamVal) compiledSD.eval(null);
+  }
+  /** The program last translated by compiledSDEval and its translation */
+  private SDAST compiledSDProg;
+  private SDCode compiledSD;
+
+  /** Parses and checks the input embedded in parser, converts it to SD form, and interprets it with a tree of
+	* SpecNodes that specialize themselves to the types of the values they see.  A program using letcc is converted
+	* to CPS first. */
+  public JamVal specSDEval() {
+	return (JamVal) SpecNodeBuilder.build(letccFreeProg()).execute(null);
+  }
+
+  /** Returns the SD form of the program for the engines that do not implement letcc: the ram evaluator, the VM, the
+	* JIT, SDCode, and SpecNodes.  A program that uses letcc is converted to CPS, which removes letcc; SDEval falls
+	* back to the same form when a continuation is not only an escape. */
+  private SDAST letccFreeProg() {
+	SymAST prog = parser.checkProg();
+	if (letccChecked != prog) {
+	  letccUsed = LetccUsageVisitor.usesLetcc(prog);
+	  letccChecked = prog;
+	}
+	return letccUsed ? parser.statCpsProg() : parser.statCheckProg();
+  }
+  /** The program last checked by letccFreeProg and whether it uses letcc */
+  private SymAST letccChecked;
+  private boolean letccUsed;
+
+  /** Compiles prog to a JVM class, or to VMCode if it is too large for the JVM's limits on method size */
+  private static Object jitCompile(SDAST prog) {
+	try { return JitCompiler.compile(prog); }
+	catch (MethodTooLarge e) { return VMCompiler.compile(prog); }
+  }
+
+  /** Runs code, the result of jitCompile */
+  private static JamVal jitRun(Object code) {
+	if (code instanceof JitProgram) return ((JitProgram) code).run();
+	return new VM((VMCode) code).run();
+  }
+
   /** Renames variables in parsed program, a SymAST, so no variable is shadowed. */
   public SymAST unshadow() {
 	return parser.checkProg();
   }
 
   /** Returns the CPS form of the embedded proggram. */
-  public SymAST convertToCPS() { return parser.cpsProg(); }
+  public SymAST convertToCPS() { return parser.classicCpsProg(); }
   
   /** Returns the SDAST for the embedded program. */
   public SDAST convertToSD() {
@@ -240,7 +408,7 @@ class Interpreter {
   /** Visitor that evaluates programs represented in SymAST form. */
   private SDASTVisitor<JamVal> SDEvalVisitor = new SDEvaluator(EmptySDEnv.ONLY);
 
-  private SDASTVisitor<Integer> ramEvaluator;
+  private ramEvaluator ramEvaluator;
   
   
 }
@@ -256,10 +424,25 @@ abstract class Evaluator<Env extends Environment> implements EvalVisitor {
   
   Env env;  // getter defined below
   
+  /** Is this evaluator evaluating an expression in tail position?  A tail evaluator does not apply a TailCallable
+	* closure at the head of an application; it returns a TailCall that the enclosing Closure.apply completes. */
+  boolean tail;
+  private Evaluator<Env> nonTail;
+
   /* Constructor */
   Evaluator(Env e) { env = e; }
+
+  /** Returns an evaluator for env, in tail position if t is true */
+  abstract Evaluator<Env> newEvaluator(Env env, boolean t);
+
+  /** Returns the evaluator for the subexpressions of the visited expression that are not in tail position */
+  Evaluator<Env> nonTail() {
+	if (! tail) return this;
+	if (nonTail == null) nonTail = newEvaluator(env, false);
+	return nonTail;
+  }
   
-  private JamVal[] evalArgs(AST[] args) {
+  JamVal[] evalArgs(AST[] args) {
 	int n = args.length;
 	JamVal[] vals = new JamVal[n];
 	for (int i = 0; i < n; i++) vals[i] = args[i].accept(this);
@@ -285,24 +468,35 @@ abstract class Evaluator<Env extends Environment> implements EvalVisitor {
   public JamVal forNullConstant(NullConstant n) { return JamEmpty.ONLY; }
   public JamVal forPrimFun(PrimFun f) { return f; }
   public JamVal forUnOpApp(UnOpApp u) {
-	return u.rator().accept(newUnOpVisitor(u.arg().accept(this)));
+	return u.rator().accept(newUnOpVisitor(u.arg().accept(nonTail())));
   }
   public JamVal forBinOpApp(BinOpApp b) {
-	return b.rator().accept(newBinOpVisitor(b.arg1(), b.arg2()));
+	return b.rator().accept(nonTail().newBinOpVisitor(b.arg1(), b.arg2()));
   }
  
   public JamVal forApp(App a) {
-	JamVal rator = a.rator().accept(this);
+	Evaluator<Env> e = nonTail();
+	JamVal rator = a.rator().accept(e);
+	if (! (rator instanceof TailCallable)) return apply(e, rator, a);
+	/* A non-tail call enters the closure directly rather than through apply, so each Jam call level costs as few
+	   Java frames as possible */
+	TailCallable c = (TailCallable) rator;
+	if (tail) return new TailCall(c, e.evalArgs(a.args()));
+	return TailCall.complete(c.enter(e.evalArgs(a.args())));
+  }
+
+  /** Applies rator, the value of the rator of a, to the values of the args of a in e, the non-tail evaluator */
+  JamVal apply(Evaluator<Env> e, JamVal rator, App a) {
 	if (rator instanceof JamFun)  {
 	  //System.err.println(Evaluator.this);
 	  //System.err.println(newFunVisitor(a.args()).getClass());
-	  return ((JamFun) rator).accept(newFunVisitor(a.args()));
+	  return ((JamFun) rator).accept(e.newFunVisitor(a.args()));
 	}
 	throw new EvalException(rator + " appears at head of application " + a  + " but it is not a valid function");
   }
   
   public JamVal forIf(If i) {
-	JamVal test = i.test().accept(this);
+	JamVal test = i.test().accept(nonTail());
 	if (! (test instanceof BoolConstant))
 	  throw new EvalException("non Boolean " + test + " used as test in if");
 	if (test == BoolConstant.TRUE) return i.conseq().accept(this);
@@ -312,16 +506,22 @@ abstract class Evaluator<Env extends Environment> implements EvalVisitor {
   public JamVal forBlock(Block b) {
 	AST[] exps = b.exps();
 	int n = exps.length;
-	for (int i = 0; i < n-1; i++) exps[i].accept(this);
+	for (int i = 0; i < n-1; i++) exps[i].accept(nonTail());
 	return exps[n-1].accept(this);
   }
   
   /* Methods common to SymASTVisitor and SDASTVisitor but not semantically shared. */
   
-  /** In either a SymAST or SDAST, evaluating Letcc node throws an exception.  In the former case, it is
-	* not supported.  In the latter case, it is syntactically illegal but we are forced to include
-	* it our definitions in order to share code. */
-  public JamVal forLetcc(Letcc host) { return forDefault(host); }
+  /** Evaluates body, the body of a letcc that binds k, in env.  The body is not in tail position, so k can escape
+	* to this activation until body returns. */
+  JamVal evalLetcc(AST body, Env env, EscapeContinuation k) {
+	try { return body.accept(newEvaluator(env, false)); }
+	catch (EscapeContinuation.Escape e) {
+	  if (e.k != k) throw e;
+	  return e.value;
+	}
+	finally { k.live = false; }
+  }
   
   /** Remaining visitor methods are abstract; they are defined differently in SymAST and SDAST evaluation.  For each
 	* form of evaluation, some methods below generate run-time errors because the corresponding nodes do not appear
@@ -335,6 +535,7 @@ abstract class Evaluator<Env extends Environment> implements EvalVisitor {
   abstract public JamVal forSMap(SMap host);
   abstract public JamVal forSLet(SLet host);
   abstract public JamVal forSLetRec(SLetRec host);
+  abstract public JamVal forSLetcc(SLetcc host);
 
   /* Inner classes */
   
@@ -427,24 +628,24 @@ abstract class Evaluator<Env extends Environment> implements EvalVisitor {
 	};
 
 	FunVisitor<IntConstant> arityEvaluator = new FunVisitor<IntConstant>() { /* ANONYMOUS CLASS */
-	  public IntConstant forClosure(Closure jc) { return new IntConstant(jc.arity()); }
+	  public IntConstant forClosure(Closure jc) { return IntConstant.valueOf(jc.arity()); }
 	  public IntConstant forPrimFun(PrimFun jpf) { return jpf.accept(primArityEvaluator); }
 	};
 
 	PrimFunVisitor<IntConstant> primArityEvaluator =
 	  new PrimFunVisitor<IntConstant>() { /* ANONYMOUS CLASS */
 
-	  public IntConstant forFunctionPPrim() { return new IntConstant(1); }
-	  public IntConstant forNumberPPrim() { return new IntConstant(1); }
-	  public IntConstant forListPPrim() { return new IntConstant(1); }
-	  public IntConstant forConsPPrim() { return new IntConstant(1); }
-	  public IntConstant forNullPPrim() { return new IntConstant(1); }
-	  public IntConstant forArityPrim() { return new IntConstant(1); }
-	  public IntConstant forConsPrim() { return new IntConstant(2); }
-	  public IntConstant forRefPPrim() { return new IntConstant(1); }
-	  public IntConstant forFirstPrim() { return new IntConstant(1); }
-	  public IntConstant forRestPrim() { return new IntConstant(1); }
-	  public IntConstant forAsBoolPrim() { return new IntConstant(1); }
+	  public IntConstant forFunctionPPrim() { return IntConstant.valueOf(1); }
+	  public IntConstant forNumberPPrim() { return IntConstant.valueOf(1); }
+	  public IntConstant forListPPrim() { return IntConstant.valueOf(1); }
+	  public IntConstant forConsPPrim() { return IntConstant.valueOf(1); }
+	  public IntConstant forNullPPrim() { return IntConstant.valueOf(1); }
+	  public IntConstant forArityPrim() { return IntConstant.valueOf(1); }
+	  public IntConstant forConsPrim() { return IntConstant.valueOf(2); }
+	  public IntConstant forRefPPrim() { return IntConstant.valueOf(1); }
+	  public IntConstant forFirstPrim() { return IntConstant.valueOf(1); }
+	  public IntConstant forRestPrim() { return IntConstant.valueOf(1); }
+	  public IntConstant forAsBoolPrim() { return IntConstant.valueOf(1); }
 	};
   }
   
@@ -470,7 +671,7 @@ abstract class Evaluator<Env extends Environment> implements EvalVisitor {
 
 	public JamVal forUnOpPlus(UnOpPlus op) { return checkInteger(op); }
 	public JamVal forUnOpMinus(UnOpMinus op) {
-	  return new IntConstant(- checkInteger(op).value());
+	  return IntConstant.valueOf(- checkInteger(op).value());
 	}
 	public JamVal forOpTilde(OpTilde op) { return checkEval(op).not(); }
 	public JamVal forOpBang(OpBang op) { return checkRef(op).value(); }
@@ -482,12 +683,28 @@ abstract class Evaluator<Env extends Environment> implements EvalVisitor {
 
 	BinOpEvaluator(AST a1, AST a2) { arg1 = a1; arg2 = a2; }
 
-	private IntConstant evalIntegerArg(AST arg, BinOp b) {
+	/** Returns the int value of arg, an operand of b.  If arg is itself an application of +, -, * or /, it is
+	  * evaluated as an int, so chained arithmetic allocates an IntConstant only for its final result. */
+	private int evalIntegerArg(AST arg, BinOp b) {
+	  if (arg instanceof BinOpApp) {
+		BinOpApp app = (BinOpApp) arg;
+		BinOp op = app.rator();
+		if (op == BinOpPlus.ONLY) return evalIntegerArg(app.arg1(), op) + evalIntegerArg(app.arg2(), op);
+		if (op == BinOpMinus.ONLY) return evalIntegerArg(app.arg1(), op) - evalIntegerArg(app.arg2(), op);
+		if (op == OpTimes.ONLY) return evalIntegerArg(app.arg1(), op) * evalIntegerArg(app.arg2(), op);
+		if (op == OpDivide.ONLY) return divide(app.arg1(), app.arg2(), op);
+	  }
 	  JamVal val = arg.accept(Evaluator.this);
-	  if (val instanceof IntConstant) return (IntConstant) val;
+	  if (val instanceof IntConstant) return ((IntConstant) val).value();
 	  throw new EvalException("Binary operator `" + b + "' applied to non-integer " + val);
 	}
 
+	/** Divides the value of dividend by the value of divisor, which is evaluated first */
+	private int divide(AST dividend, AST divisor, BinOp op) {
+	  int d = VM.checkDivisor(evalIntegerArg(divisor, op));
+	  return evalIntegerArg(dividend, op) / d;
+	}
+
 	private BoolConstant evalBoolArg(AST arg, BinOp b) {
 	  JamVal val = arg.accept(Evaluator.this);
 	  if (val instanceof BoolConstant) return (BoolConstant) val;
@@ -497,44 +714,42 @@ abstract class Evaluator<Env extends Environment> implements EvalVisitor {
 //    public JamVal forDefault(BinOp op) { throw new EvalException(op + " is not a supported binary operation"); }
 
 	public JamVal forBinOpPlus(BinOpPlus op) {
-	  return new IntConstant(evalIntegerArg(arg1,op).value() + evalIntegerArg(arg2,op).value());
+	  return IntConstant.valueOf(evalIntegerArg(arg1,op) + evalIntegerArg(arg2,op));
 	}
 	public JamVal forBinOpMinus(BinOpMinus op) {
-	  return new IntConstant(evalIntegerArg(arg1,op).value() - evalIntegerArg(arg2,op).value());
+	  return IntConstant.valueOf(evalIntegerArg(arg1,op) - evalIntegerArg(arg2,op));
 	}
 
 	public JamVal forOpTimes(OpTimes op) {
-	  return new IntConstant(evalIntegerArg(arg1,op).value() * evalIntegerArg(arg2,op).value());
+	  return IntConstant.valueOf(evalIntegerArg(arg1,op) * evalIntegerArg(arg2,op));
 	}
 
 	public JamVal forOpDivide(OpDivide op) {
-	  int divisor = evalIntegerArg(arg2,op).value();
-	  if (divisor == 0) throw new EvalException("Attempt to divide by zero");
-	  return new IntConstant(evalIntegerArg(arg1,op).value() / divisor);
+	  return IntConstant.valueOf(divide(arg1, arg2, op));
 	}
 
 	public JamVal forOpEquals(OpEquals op) {
-	  return BoolConstant.toBoolConstant(arg1.accept(Evaluator.this).equals(arg2.accept(Evaluator.this)));
+	  return BoolConstant.toBoolConstant(VM.equal(arg1.accept(Evaluator.this), arg2.accept(Evaluator.this)));
 	}
 
 	public JamVal forOpNotEquals(OpNotEquals op) {
-	  return BoolConstant.toBoolConstant(! arg1.accept(Evaluator.this).equals(arg2.accept(Evaluator.this)));
+	  return BoolConstant.toBoolConstant(! VM.equal(arg1.accept(Evaluator.this), arg2.accept(Evaluator.this)));
 	}
 
 	public JamVal forOpLessThan(OpLessThan op) {
-	  return BoolConstant.toBoolConstant(evalIntegerArg(arg1,op).value() < evalIntegerArg(arg2,op).value());
+	  return BoolConstant.toBoolConstant(evalIntegerArg(arg1,op) < evalIntegerArg(arg2,op));
 	}
 
 	public JamVal forOpGreaterThan(OpGreaterThan op) {
-	  return BoolConstant.toBoolConstant(evalIntegerArg(arg1,op).value() > evalIntegerArg(arg2,op).value());
+	  return BoolConstant.toBoolConstant(evalIntegerArg(arg1,op) > evalIntegerArg(arg2,op));
 	}
 
 	public JamVal forOpLessThanEquals(OpLessThanEquals op) {
-	  return BoolConstant.toBoolConstant(evalIntegerArg(arg1,op).value() <= evalIntegerArg(arg2,op).value());
+	  return BoolConstant.toBoolConstant(evalIntegerArg(arg1,op) <= evalIntegerArg(arg2,op));
 	}
 
 	public JamVal forOpGreaterThanEquals(OpGreaterThanEquals op) {
-	  return BoolConstant.toBoolConstant(evalIntegerArg(arg1,op).value() >= evalIntegerArg(arg2,op).value());
+	  return BoolConstant.toBoolConstant(evalIntegerArg(arg1,op) >= evalIntegerArg(arg2,op));
 	}
 
 	public JamVal forOpAnd(OpAnd op) {
@@ -562,6 +777,11 @@ class SymEvaluator extends Evaluator<VarEnv> {
   
   /* EvalVisitor methods for SymASTs */
   public SymASTVisitor<JamVal> newEvalVisitor(VarEnv env) { return new SymEvaluator(env); }
+  SymEvaluator newEvaluator(VarEnv env, boolean t) {
+	SymEvaluator e = new SymEvaluator(env);
+	e.tail = t;
+	return e;
+  }
   public JamVal forSymVariable(Variable v) { return env.lookup(v); }
   public JamVal forMap(Map m) { return new VarClosure(m, this); }
   public JamVal forLet(Let l) {
@@ -573,10 +793,10 @@ class SymEvaluator extends Evaluator<VarEnv> {
 	VarEnv newEnv = env();
 	Binding[] bindings = new Binding[n];
 	for (int i = n-1; i >= 0; i--) {
-	  bindings[i] = new Binding(vars[i], exps[i].accept(this));  // bind var[i] to exps[i] in this evaluator
+	  bindings[i] = new Binding(vars[i], exps[i].accept(nonTail()));  // bind var[i] to exps[i] in this evaluator
 	  newEnv = newEnv.cons(bindings[i]);
 	}
-	SymASTVisitor<JamVal> newEvalVisitor = newEvalVisitor(newEnv);
+	SymASTVisitor<JamVal> newEvalVisitor = newEvaluator(newEnv, tail);
 	return l.body().accept(newEvalVisitor);
   }
   
@@ -600,7 +820,12 @@ class SymEvaluator extends Evaluator<VarEnv> {
 	for (int i = 0; i < n; i++)
 	  bindings[i].setBinding(exps[i].accept(newEvalVisitor));  // modifies newEnv and newEvalVisitor
 
-	return l.body().accept(newEvalVisitor);
+	return l.body().accept(newEvaluator(newEnv, tail));
+  }
+
+  public JamVal forLetcc(Letcc l) {
+	EscapeContinuation k = new EscapeContinuation();
+	return evalLetcc(l.body(), env.cons(new Binding(l.var(), k)), k);
   }
   
   /* EvalVisitor methods for evaluating SDASTs that are never invoked in the evaluation of well-formed SymASTs. */
@@ -608,716 +833,694 @@ class SymEvaluator extends Evaluator<VarEnv> {
   public JamVal forSMap(SMap host) { return forDefault(host); }
   public JamVal forSLet(SLet host) { return forDefault(host); }
   public JamVal forSLetRec(SLetRec host) { return forDefault(host); }
+  public JamVal forSLetcc(SLetcc host) { return forDefault(host); }
 }
 
 
-class varAddress {
-	int startIdx;
-	int endIdx;
-
-	public varAddress(int s, int e) {
-		startIdx = s;
-		endIdx = e;
-	}
-	
-	public String toString() {
-		return "varAddress: start=" + this.startIdx + " end=" + this.endIdx;
-	}
-}
 /*
- * New visitor that does stuff with the heap and then returns the address of the final result.
- * Then, in the ramXYZ methods, we use this address and the heap to make the desired JamVal and return that as the
+ * New visitor that does stuff with the heap and then returns the value word of the final result.
+ * Then, in the ramXYZ methods, we use this word and the heap to make the desired JamVal and return that as the
  * output to the user/test.
+ *
+ * Value words are tagged in their low bit:
+ *   odd:               an immediate int whose value is word >> 1
+ *   even, >= 0:        a pointer to the heap object at index word >> 1
+ *   even, < 0:         an immediate constant: NULL, UNIT, TRUE, FALSE, or the primitive function PRIM_TAGS[i] as
+ *                      PRIM - 2 * i
+ * so ints in [-2^30, 2^30), booleans, null, unit and primitives never occupy heap space.
+ *
+ * Heap objects start with a tag word:
+ *   int:     [1, value]                      (only for ints outside the immediate range)
+ *   cons:    [2, first, rest]                (first and rest are value words)
+ *   ref:     [3, value]
+ *   closure: [4, code index, env]            (the code index selects the SMap in codeTbl)
+ *   AR:      [5, size, static link, v_0 .. v_size-1]
+ * Static links and closure environments are pointers to ARs, or NULL outside of all of them.  The CAPTURED bit of
+ * an AR's size word is set once a closure refers to the AR directly or through static links.
+ *
+ * The ramEvaluator keeps the current AR in env.  An application in tail position does not call the body of the
+ * closure it applies: it installs the callee's AR in env, leaves the body in tailBody and returns TAILCALL to the
+ * nearest enclosing non-tail application, which runs the body in a loop.  Every application in a CPS program is in
+ * tail position, so ramSDCpsEval runs in constant Java stack.  A tail call overwrites the current AR instead of
+ * allocating a new one when the AR has the callee's arity and has not been captured.
+ *
+ * The heap is split into two semispaces.  Objects are bump allocated in the current semispace; when it is full a
+ * Cheney copying collector moves the live objects into the other one.  The roots are env and the root stack, which
+ * holds the ARs of pending non-tail applications and lets, and intermediate results.  Any value that must survive
+ * an allocation is pushed on the root stack and read back from it after the allocation, because collection moves
+ * objects.
  */
 class ramEvaluator implements ASTVisitor<Integer> {
 	
-
-	private ArrayList<SDAST> codeTbl = new ArrayList<>();
-	public ArrayList<SDAST> getCodeTbl() {
+	/** Tags of heap objects */
+	static final int INT = 1, CONS = 2, REF = 3, CLOSURE = 4, AR = 5;
+	/** Flag in the size word of a captured AR */
+	static final int CAPTURED = 1 << 30;
+	/** Immediate constants */
+	static final int NULL = -2, UNIT = -4, TRUE = -6, FALSE = -8, PRIM = -10;
+	/** The value of a letrec variable before its right hand side has been evaluated */
+	static final int UNBOUND = Integer.MIN_VALUE;
+	/** Result of an application in tail position; the call is completed by the enclosing non-tail application */
+	static final int TAILCALL = Integer.MIN_VALUE + 2;
+
+	/** Primitive functions; PRIM_TAGS[i] is encoded as PRIM - 2 * i */
+	static final PrimFun[] PRIM_TAGS = { NumberPPrim.ONLY, FunctionPPrim.ONLY, ListPPrim.ONLY, NullPPrim.ONLY,
+		ConsPPrim.ONLY, RefPPrim.ONLY, ArityPrim.ONLY, ConsPrim.ONLY, FirstPrim.ONLY, RestPrim.ONLY, AsBoolPrim.ONLY };
+
+	private ArrayList<SMap> codeTbl = new ArrayList<>();
+	public ArrayList<SMap> getCodeTbl() {
 		return codeTbl;
 	}
 
 	private int[] heap;
+	/** Start and size of the current semispace */
+	private int spaceBase = 0;
+	private final int spaceSize;
+	/** Index of the next free word in the current semispace */
+	private int lastIdx = 0;
 
-	private ArrayList<varAddress[]> envLink = new ArrayList<>();
+	/** Memory statistics */
+	private int collections = 0;
+	private long wordsAllocated = 0;
+	private int framesReused = 0;
 
-	private int lastIdx = 0;
+	/** The current AR */
+	private int env = NULL;
+	/** Whether the expression being evaluated is in tail position */
+	private boolean tail = false;
+	/** The body of the closure applied by the last tail call */
+	private AST tailBody;
+
+	private int[] roots = new int[64];
+	private int rootTop = 0;
 
 	ramEvaluator(int[] heap) {
 		this.heap = heap;
+		spaceSize = heap.length / 2;
 	}
 
-	public Integer forPair(Pair p) {
-		varAddress v = envLink.get(envLink.size() - 1 - p.dist())[p.offset()];
-		return v.startIdx;
+	/** Evaluates prog and returns its value word */
+	Integer run(SDAST prog) {
+		env = NULL;
+		rootTop = 0;
+		int result = eval(prog, true);
+		while (result == TAILCALL) result = eval(tailBody, true);
+		env = NULL;
+		return result;
 	}
 
-	public Integer forSMap(SMap sm) {
-		sm.setCodeIdx(getCodeTbl().size());
-		codeTbl.add(sm);
+	/** Evaluates e, in tail position if t holds */
+	private int eval(AST e, boolean t) {
+		boolean saved = tail;
+		tail = t;
+		int result = e.accept(this);
+		tail = saved;
+		return result;
+	}
 
-		return 0;
+	/** Returns the number of garbage collections performed so far */
+	public int collections() {
+		return collections;
 	}
 
-	public Integer forSLet(SLet sl) {
-		heap[lastIdx] = 5;
-		lastIdx++;
-
-		heap[lastIdx] = envLink.size() == 0 ? -100 : envLink.size() - 1;
-		lastIdx++;
-		heap[lastIdx] = sl.rhss().length;
-		lastIdx++;
-		varAddress[] thisEnv = new varAddress[sl.rhss().length];
-		for (int i = 0; i < sl.rhss().length; i++) {
-			Integer startIdx = sl.rhss()[i].accept(this);
-			int endIdx = lastIdx - 1;
-			thisEnv[i] = new varAddress(startIdx, endIdx);
-		}
-		envLink.add(thisEnv);
+	/** Returns the number of heap words allocated so far */
+	public long wordsAllocated() {
+		return wordsAllocated;
+	}
 
-		return sl.body().accept(this);
+	/** Returns the number of tail calls that overwrote the caller's AR */
+	public int framesReused() {
+		return framesReused;
 	}
 
-	public Integer forSLetRec(SLetRec slr) {
-		heap[lastIdx] = 5;
-		lastIdx++;
-
-		heap[lastIdx] = envLink.size() == 0 ? -100 : envLink.size() - 1;
-		lastIdx++;
-		heap[lastIdx] = slr.rhss().length;
-		lastIdx++;
-		varAddress[] thisEnv = new varAddress[slr.rhss().length];
-		for (int i = 0; i < slr.rhss().length; i++) {
-			Integer startIdx = slr.rhss()[i].accept(this);
-			int endIdx = lastIdx - 1;
-			thisEnv[i] = new varAddress(startIdx, endIdx);
-		}
-		envLink.add(thisEnv);
+	private void push(int v) {
+		if (rootTop == roots.length) roots = Arrays.copyOf(roots, 2 * rootTop);
+		roots[rootTop++] = v;
+	}
 
-		return slr.body().accept(this);
+	private int pop() {
+		return roots[--rootTop];
 	}
 
-	public Integer forBoolConstant(BoolConstant b) {
-		int temp = lastIdx;
-		int boolVal = b.value() ? -3 : -4;
-		heap[lastIdx] = boolVal;
-		lastIdx++;
-		return temp;
+	/* Value words */
+
+	static boolean isPtr(int v) {
+		return (v & 1) == 0 && v >= 0;
 	}
 
-	public Integer forIntConstant(IntConstant i) {
-		int temp = lastIdx;
-		heap[lastIdx] = 1;
-		lastIdx++;
-		heap[lastIdx] = i.value();
-		lastIdx++;
-		return temp;
+	/** Returns the tag of the heap object v points to, or v itself if it is an immediate constant */
+	private int tag(int v) {
+		if ((v & 1) != 0) return INT;
+		return v >= 0 ? heap[v >> 1] : v;
 	}
 
-	public Integer forNullConstant(NullConstant n) {
+	private boolean isInt(int v) {
+		return tag(v) == INT;
+	}
+
+	/** Returns the value of the int v */
+	private int intVal(int v) {
+		return (v & 1) != 0 ? v >> 1 : heap[(v >> 1) + 1];
+	}
+
+	private static boolean isBool(int v) {
+		return v == TRUE || v == FALSE;
+	}
+
+	static int mkBool(boolean b) {
+		return b ? TRUE : FALSE;
+	}
+
+	static boolean isPrim(int v) {
+		return v <= PRIM && v > PRIM - 2 * PRIM_TAGS.length && (v & 1) == 0;
+	}
+
+	private boolean isFunction(int v) {
+		return isPrim(v) || tag(v) == CLOSURE;
+	}
+
+	/** Returns the value word for value, which is boxed on the heap only if it is outside the immediate range */
+	private int mkInt(int value) {
+		if ((value << 1) >> 1 == value) return (value << 1) | 1;
+		int temp = alloc(2);
+		heap[temp] = INT;
+		heap[temp + 1] = value;
+		return temp << 1;
+	}
+
+	/** Returns the field at offset i of the heap object v points to */
+	private int field(int v, int i) {
+		return heap[(v >> 1) + i];
+	}
+
+	/** Allocates an AR with n slots whose static link is the AR or closure environment at roots[linkRoot] */
+	private int mkAR(int n, int linkRoot) {
+		int temp = alloc(3 + n);
+		heap[temp] = AR;
+		heap[temp + 1] = n;
+		heap[temp + 2] = roots[linkRoot];
+		return temp << 1;
+	}
+
+	/** Returns the index of size free words, collecting garbage if the current semispace is full */
+	private int alloc(int size) {
+		if (lastIdx + size > spaceBase + spaceSize) {
+			collect();
+			if (lastIdx + size > spaceBase + spaceSize)
+				throw new EvalException("Heap overflow: " + size + " words requested with " + (spaceBase + spaceSize - lastIdx)
+						+ " of " + spaceSize + " free after garbage collection");
+		}
 		int temp = lastIdx;
-		heap[lastIdx] = -1;
-		lastIdx++;
+		lastIdx += size;
+		wordsAllocated += size;
 		return temp;
 	}
 
-	public Integer forPrimFun(PrimFun pf) {
-		Integer tag = pf.accept(new PrimFunVisitor<Integer>() {
-			@Override
-			public Integer forFunctionPPrim() {
-				return -6;
-			}
+	/* The copying collector */
 
-			@Override
-			public Integer forNumberPPrim() {
-				return -5;
-			}
+	/** Index of the next free word in the semispace being copied to */
+	private int copyIdx;
 
-			@Override
-			public Integer forListPPrim() {
-				return -7;
-			}
+	/** Returns the number of words of the heap object at index i */
+	private int sizeAt(int i) {
+		switch (heap[i]) {
+			case INT: return 2;
+			case CONS: return 3;
+			case REF: return 2;
+			case CLOSURE: return 3;
+			case AR: return 3 + (heap[i + 1] & ~CAPTURED);
+			default: throw new EvalException("Corrupt ram heap: tag " + heap[i] + " at " + i);
+		}
+	}
 
-			@Override
-			public Integer forConsPPrim() {
-				return -9;
-			}
+	/** Copies the object v points to into the other semispace, unless that has been done, and returns the pointer
+	 * to its copy; immediate values are returned unchanged.  A copied object's tag is replaced by -1 - its new
+	 * index. */
+	private int forward(int v) {
+		if (! isPtr(v)) return v;
+		int from = v >> 1;
+		int tag = heap[from];
+		if (tag < 0) return (-1 - tag) << 1;
+		int size = sizeAt(from);
+		int to = copyIdx;
+		System.arraycopy(heap, from, heap, to, size);
+		copyIdx += size;
+		heap[from] = -1 - to;
+		return to << 1;
+	}
 
-			@Override
-			public Integer forNullPPrim() {
-				return -8;
+	private void collect() {
+		collections++;
+		int toBase = spaceBase == 0 ? spaceSize : 0;
+		copyIdx = toBase;
+		env = forward(env);
+		for (int i = 0; i < rootTop; i++) roots[i] = forward(roots[i]);
+		int scan = toBase;
+		while (scan < copyIdx) {
+			int size = sizeAt(scan);
+			switch (heap[scan]) {
+				case CONS:
+					heap[scan + 1] = forward(heap[scan + 1]);
+					heap[scan + 2] = forward(heap[scan + 2]);
+					break;
+				case REF:
+					heap[scan + 1] = forward(heap[scan + 1]);
+					break;
+				case CLOSURE:
+					heap[scan + 2] = forward(heap[scan + 2]);
+					break;
+				case AR:
+					for (int i = 2; i < size; i++) heap[scan + i] = forward(heap[scan + i]);
+					break;
+				default:
 			}
+			scan += size;
+		}
+		spaceBase = toBase;
+		lastIdx = copyIdx;
+	}
 
-			@Override
-			public Integer forArityPrim() {
-				return -11;
+	/* Decoding and comparing values */
+
+	/** Returns the JamVal represented by the value word v */
+	JamVal decode(int v) {
+		switch (tag(v)) {
+			case INT:
+				return IntConstant.valueOf(intVal(v));
+			case CONS: {
+				ArrayList<JamVal> firsts = new ArrayList<>();
+				while (tag(v) == CONS) {
+					firsts.add(decode(field(v, 1)));
+					v = field(v, 2);
+				}
+				JamList list = JamEmpty.ONLY;
+				for (int i = firsts.size() - 1; i >= 0; i--) list = list.cons(firsts.get(i));
+				return list;
 			}
+			case REF:
+				return new JamRef(decode(field(v, 1)));
+			case CLOSURE:
+				return new RamClosure(codeTbl.get(field(v, 1)));
+			case NULL:
+				return JamEmpty.ONLY;
+			case UNIT:
+				return JamUnit.ONLY;
+			case TRUE:
+				return BoolConstant.TRUE;
+			case FALSE:
+				return BoolConstant.FALSE;
+			default:
+				if (isPrim(v)) return PRIM_TAGS[(PRIM - v) >> 1];
+				throw new EvalException("Corrupt ram value " + v);
+		}
+	}
 
-			@Override
-			public Integer forConsPrim() {
-				return -12;
+	/** Jam equality on values: structural for ints and lists, identity for refs and closures */
+	private boolean equal(int v1, int v2) {
+		while (v1 != v2) {
+			int tag = tag(v1);
+			if (tag != tag(v2)) return false;
+			switch (tag) {
+				case INT:
+					return intVal(v1) == intVal(v2);
+				case CONS:
+					if (! equal(field(v1, 1), field(v2, 1))) return false;
+					v1 = field(v1, 2);
+					v2 = field(v2, 2);
+					break;
+				default:
+					return false;  // distinct refs, closures or immediate constants
 			}
+		}
+		return true;
+	}
 
-			@Override
-			public Integer forRefPPrim() {
-				return -10;
-			}
+	private int intArg(int v, Object op) {
+		if (isInt(v)) return intVal(v);
+		throw new EvalException("Binary operator `" + op + "' applied to non-integer " + decode(v));
+	}
 
-			@Override
-			public Integer forFirstPrim() {
-				return -13;
-			}
+	/* Visitor methods */
 
-			@Override
-			public Integer forRestPrim() {
-				return -14;
-			}
+	public Integer forPair(Pair p) {
+		int ar = env;
+		for (int d = p.dist(); d > 0; d--) ar = field(ar, 2);
+		int v = field(ar, 3 + p.offset());
+		if (v == UNBOUND) throw new EvalException("variable " + p + " referenced before it is defined");
+		return v;
+	}
 
-			@Override
-			public Integer forAsBoolPrim() {
-				return -15;
-			}
-		});
-		int temp = lastIdx;
-		heap[lastIdx] = tag;
-		lastIdx++;
-		return temp;
+	public Integer forSMap(SMap sm) {
+		int idx = sm.getCodeIdx();
+		if (idx < 0 || idx >= codeTbl.size() || codeTbl.get(idx) != sm) {
+			idx = codeTbl.size();
+			sm.setCodeIdx(idx);
+			codeTbl.add(sm);
+		}
+		for (int ar = env; isPtr(ar) && (field(ar, 1) & CAPTURED) == 0; ar = field(ar, 2))
+			heap[(ar >> 1) + 1] |= CAPTURED;
+		int temp = alloc(3);
+		heap[temp] = CLOSURE;
+		heap[temp + 1] = idx;
+		heap[temp + 2] = env;
+		return temp << 1;
+	}
+
+	public Integer forSLet(SLet sl) {
+		SDAST[] rhss = sl.rhss();
+		int n = rhss.length;
+		boolean t = tail;
+		push(env);
+		for (int i = n - 1; i >= 0; i--) push(eval(rhss[i], false));  // right to left, like the other evaluators
+		int base = rootTop - n;
+		int ar = mkAR(n, base - 1);
+		for (int i = 0; i < n; i++) heap[(ar >> 1) + 3 + i] = roots[base + n - 1 - i];
+		rootTop = base;
+		if (t) pop();
+		env = ar;
+		int result = eval(sl.body(), t);
+		if (! t) env = pop();
+		return result;
+	}
+
+	public Integer forSLetRec(SLetRec slr) {
+		SDAST[] rhss = slr.rhss();
+		int n = rhss.length;
+		boolean t = tail;
+		push(env);
+		int ar = mkAR(n, rootTop - 1);
+		Arrays.fill(heap, (ar >> 1) + 3, (ar >> 1) + 3 + n, UNBOUND);
+		if (t) pop();
+		env = ar;
+		for (int i = 0; i < n; i++) {
+			int v = eval(rhss[i], false);
+			heap[(env >> 1) + 3 + i] = v;
+		}
+		int result = eval(slr.body(), t);
+		if (! t) env = pop();
+		return result;
+	}
+
+	public Integer forBoolConstant(BoolConstant b) {
+		return mkBool(b.value());
+	}
+
+	public Integer forIntConstant(IntConstant i) {
+		return mkInt(i.value());
+	}
+
+	public Integer forNullConstant(NullConstant n) {
+		return NULL;
+	}
+
+	public Integer forPrimFun(PrimFun pf) {
+		for (int p = 0; p < PRIM_TAGS.length; p++)
+			if (PRIM_TAGS[p] == pf) return PRIM - 2 * p;
+		throw new EvalException("Unknown primitive function " + pf);
 	}
 
 	public Integer forUnOpApp(UnOpApp u) {
-		Integer argTagIdx = u.arg().accept(this);
+		Integer arg = eval(u.arg(), false);
 		return u.rator().accept(new UnOpVisitor<Integer>() {
+			private int intArg(UnOp op) {
+				if (isInt(arg)) return intVal(arg);
+				throw new EvalException("Unary operator `" + op + "' applied to non-integer " + decode(arg));
+			}
+
 			@Override
 			public Integer forUnOpPlus(UnOpPlus op) {
-				if (heap[argTagIdx] == 1) {
-					int temp = lastIdx;
-					heap[lastIdx] = 1;
-					lastIdx++;
-					heap[lastIdx] = +heap[argTagIdx + 1];
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("arg: " + u.arg() + " is not an integer");
-				}
+				intArg(op);
+				return arg;
 			}
 			
 			@Override
 			public Integer forUnOpMinus(UnOpMinus op) {
-				if (heap[argTagIdx] == 1) {
-					int temp = lastIdx;
-					heap[lastIdx] = 1;
-					lastIdx++;
-					heap[lastIdx] = -heap[argTagIdx + 1];
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("arg: " + u.arg() + " is not an integer");
-				}
+				return mkInt(- intArg(op));
 			}
 			
 			@Override
 			public Integer forOpTilde(OpTilde op) {
-				if (heap[argTagIdx] == -3) {
-					int temp = lastIdx;
-					heap[lastIdx] = -4;
-					lastIdx++;
-					return temp;
-				} else if (heap[argTagIdx] == -4) {
-					int temp = lastIdx;
-					heap[lastIdx] = -3;
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("Arg: " + u.arg() + " is not a boolean");
-				}
+				if (! isBool(arg))
+					throw new EvalException("Unary operator `" + op + "' applied to non-boolean " + decode(arg));
+				return mkBool(arg == FALSE);
 			}
 			
 			@Override
 			public Integer forOpBang(OpBang op) {
-				if (heap[argTagIdx] != 3) {
-					throw new EvalException("Operator ! applied to " + u.arg() + " which is not a ref");
-				}
-				return argTagIdx + 1;
+				if (tag(arg) != REF)
+					throw new EvalException("Unary operator `" + op + "' applied to non-reference" + decode(arg));
+				return field(arg, 1);
 			}
 			
 			@Override
 			public Integer forOpRef(OpRef op) {
-				// the way we do things here, we're pushing the arguement information on the heap twice, because
-				// we evaluate the argument before this visitor. It seems correct but redundant.
-				for (int i = lastIdx; i > argTagIdx; i--) {
-					heap[i] = heap[i - 1];
-				}
-				heap[argTagIdx] = 3;
-				lastIdx++;
-
-				return argTagIdx;
+				push(arg);
+				int temp = alloc(2);
+				heap[temp] = REF;
+				heap[temp + 1] = pop();
+				return temp << 1;
 			}
 		});
 	}
 
 	public Integer forBinOpApp(BinOpApp b) {
-		Integer argTagIdx1 = b.arg1().accept(this);
-		Integer argTagIdx2 = b.arg2().accept(this);
-		System.out.printf("BinOpApp arg1: %s, idx1: %d arg2: %s, idx2: %d\n", b.arg1(), argTagIdx1, b.arg2(), argTagIdx2);
 		return b.rator().accept(new BinOpVisitor<Integer>() {
+			/** Evaluates both arguments, which must be ints, and returns them */
+			private int[] intArgs(BinOp op) {
+				int x = intArg(eval(b.arg1(), false), op);
+				int y = intArg(eval(b.arg2(), false), op);
+				return new int[] { x, y };
+			}
+
+			private boolean boolArg(AST arg, BinOp op) {
+				int v = eval(arg, false);
+				if (! isBool(v))
+					throw new EvalException("Binary operator `" + op + "' applied to non-boolean " + decode(v));
+				return v == TRUE;
+			}
+
+			/** Evaluates both arguments and returns whether they are equal */
+			private boolean equalArgs() {
+				push(eval(b.arg1(), false));
+				int v2 = eval(b.arg2(), false);
+				return equal(pop(), v2);
+			}
+
 			@Override
 			public Integer forBinOpPlus(BinOpPlus op) {
-				if (heap[argTagIdx1] == 1 && heap[argTagIdx2] == 1) {
-					int temp = lastIdx;
-					heap[lastIdx] = 1;
-					lastIdx++;
-					heap[lastIdx] = heap[argTagIdx1 + 1] + heap[argTagIdx2 + 1];
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("One of arg1: "+ b.arg1() + " arg2: " + b.arg2() + " is not an integer");
-				}
+				int[] args = intArgs(op);
+				return mkInt(args[0] + args[1]);
 			}
 
 			@Override
 			public Integer forBinOpMinus(BinOpMinus op) {
-				if (heap[argTagIdx1] == 1 && heap[argTagIdx2] == 1) {
-					int temp = lastIdx;
-					heap[lastIdx] = 1;
-					lastIdx++;
-					heap[lastIdx] = heap[argTagIdx1 + 1] - heap[argTagIdx2 + 1];
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("One of arg1: "+ b.arg1() + " arg2: " + b.arg2() + " is not an integer");
-				}
+				int[] args = intArgs(op);
+				return mkInt(args[0] - args[1]);
 			}
 
 			@Override
 			public Integer forOpTimes(OpTimes op) {
-				if (heap[argTagIdx1] == 1 && heap[argTagIdx2] == 1) {
-					int temp = lastIdx;
-					heap[lastIdx] = 1;
-					lastIdx++;
-					heap[lastIdx] = heap[argTagIdx1 + 1] * heap[argTagIdx2 + 1];
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("One of arg1: "+ b.arg1() + " arg2: " + b.arg2() + " is not an integer");
-				}
+				int[] args = intArgs(op);
+				return mkInt(args[0] * args[1]);
 			}
 
 			@Override
 			public Integer forOpDivide(OpDivide op) {
-				if (heap[argTagIdx1] == 1 && heap[argTagIdx2] == 1) {
-					int temp = lastIdx;
-					heap[lastIdx] = 1;
-					lastIdx++;
-					heap[lastIdx] = heap[argTagIdx1 + 1] / heap[argTagIdx2 + 1];
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("One of arg1: "+ b.arg1() + " arg2: " + b.arg2() + " is not an integer");
-				}
+				int y = VM.checkDivisor(intArg(eval(b.arg2(), false), op));
+				return mkInt(intArg(eval(b.arg1(), false), op) / y);
 			}
 
 			@Override
 			public Integer forOpEquals(OpEquals op) {
-				int temp = lastIdx;
-				// If tags are different, then output must be false.
-				if (heap[argTagIdx1] != heap[argTagIdx2]) {
-					heap[lastIdx] = -4; // false
-					lastIdx++;
-					return temp;
-				// If tags are same but tag is ref, output is false. (Try ref 10 = ref 10 in reference interpreter).
-				} else if (heap[argTagIdx1] == 3) {
-					heap[lastIdx] = -4; // false
-					lastIdx++;
-					return temp;
-				// If tags are negative, then this is primitive so return true (since both tags are the same).
-				} else if (heap[argTagIdx1] < 0) {
-					heap[lastIdx] = -3; // true
-					lastIdx++;
-					return temp;
-				// Remaining cases:
-				} else {
-					// We don't have a reliable way of finding arg1Len because there could be stuff between arg1
-					// and arg2. So we just find arg2 (we can do this reliably) and compare element by element.
-					int arg2Len = (lastIdx - 1) - argTagIdx2;
-					int arg1start = argTagIdx1 + 1;
-					int arg2start = argTagIdx2 + 1;
-					for (int i = 0; i < arg2Len; i++) {
-						// If any are unequal
-						if (heap[arg1start + i] != heap[arg2start + i]) {
-							// Return false case
-							heap[lastIdx] = -4; // false
-							lastIdx++;
-							return temp;
-						}
-					}
-					// Everything equal so return true case.
-					heap[lastIdx] = -3; // true
-					lastIdx++;
-					return temp;
-				}
+				return mkBool(equalArgs());
 			}
 
 			@Override
 			public Integer forOpNotEquals(OpNotEquals op) {
-				int temp = lastIdx;
-				// If tags are different, then output must be true.
-				if (heap[argTagIdx1] != heap[argTagIdx2]) {
-					heap[lastIdx] = -3; // true
-					lastIdx++;
-					return temp;
-					// If tags are same but tag is ref, output is true. (Try ref 10 = ref 10 in reference interpreter).
-				} else if (heap[argTagIdx1] == 3) {
-					heap[lastIdx] = -3; // true
-					lastIdx++;
-					return temp;
-					// If tags are negative, then this is primitive so return false (since both tags are the same).
-				} else if (heap[argTagIdx1] < 0) {
-					heap[lastIdx] = -4; // false
-					lastIdx++;
-					return temp;
-					// Remaining cases:
-				} else {
-					// We don't have a reliable way of finding arg1Len because there could be stuff between arg1
-					// and arg2. So we just find arg2 (we can do this reliably) and compare element by element.
-					int arg2Len = (lastIdx - 1) - argTagIdx2;
-					int arg1start = argTagIdx1 + 1;
-					int arg2start = argTagIdx2 + 1;
-					for (int i = 0; i < arg2Len; i++) {
-						// If any are unequal
-						if (heap[arg1start + i] != heap[arg2start + i]) {
-							// Return true case
-							heap[lastIdx] = -3; // true
-							lastIdx++;
-							return temp;
-						}
-					}
-					// Everything equal so return fa;se case.
-					heap[lastIdx] = -4; // false
-					lastIdx++;
-					return temp;
-				}
-
+				return mkBool(! equalArgs());
 			}
 
 			@Override
 			public Integer forOpLessThan(OpLessThan op) {
-				if (heap[argTagIdx1] == 1 && heap[argTagIdx2] == 1) {
-					int temp = lastIdx;
-					int boolVal = heap[argTagIdx1 + 1] < heap[argTagIdx2 + 1] ? -3 : -4;
-					heap[lastIdx] = boolVal;
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("One of arg1: "+ b.arg1() + " arg2: " + b.arg2() + " is not an integer");
-				}
+				int[] args = intArgs(op);
+				return mkBool(args[0] < args[1]);
 			}
 
 			@Override
 			public Integer forOpGreaterThan(OpGreaterThan op) {
-				if (heap[argTagIdx1] == 1 && heap[argTagIdx2] == 1) {
-					int temp = lastIdx;
-					int boolVal = heap[argTagIdx1 + 1] > heap[argTagIdx2 + 1] ? -3 : -4;
-					heap[lastIdx] = boolVal;
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("One of arg1: "+ b.arg1() + " arg2: " + b.arg2() + " is not an integer");
-				}
+				int[] args = intArgs(op);
+				return mkBool(args[0] > args[1]);
 			}
 
 			@Override
 			public Integer forOpLessThanEquals(OpLessThanEquals op) {
-				if (heap[argTagIdx1] == 1 && heap[argTagIdx2] == 1) {
-					int temp = lastIdx;
-					int boolVal = heap[argTagIdx1 + 1] <= heap[argTagIdx2 + 1] ? -3 : -4;
-					heap[lastIdx] = boolVal;
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("One of arg1: "+ b.arg1() + " arg2: " + b.arg2() + " is not an integer");
-				}
+				int[] args = intArgs(op);
+				return mkBool(args[0] <= args[1]);
 			}
 
 			@Override
 			public Integer forOpGreaterThanEquals(OpGreaterThanEquals op) {
-				if (heap[argTagIdx1] == 1 && heap[argTagIdx2] == 1) {
-					int temp = lastIdx;
-					int boolVal = heap[argTagIdx1 + 1] >= heap[argTagIdx2 + 1] ? -3 : -4;
-					heap[lastIdx] = boolVal;
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("One of arg1: "+ b.arg1() + " arg2: " + b.arg2() + " is not an integer");
-				}
-			}
-
-			private boolean bothBoolean(int l, int r) {
-				if ((l != -3) && (l != -4)) {
-					return false;
-				}
-				return (r == -3) || (r == -4);
+				int[] args = intArgs(op);
+				return mkBool(args[0] >= args[1]);
 			}
 
 			@Override
 			public Integer forOpAnd(OpAnd op) {
-				System.out.println("Arg1: " + b.arg1() + " Arg: " + b.arg2());
-				if (bothBoolean(heap[argTagIdx1], heap[argTagIdx2])) {
-					int temp = lastIdx;
-					int boolVal = heap[argTagIdx1 + 1] == -3 && heap[argTagIdx2 + 1] == -3 ? -3 : -4;
-					heap[lastIdx] = boolVal;
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("One of arg1: "+ b.arg1() + " arg2: " + b.arg2() + " is not an boolean");
-				}
+				return mkBool(boolArg(b.arg1(), op) && boolArg(b.arg2(), op));
 			}
 
 			@Override
 			public Integer forOpOr(OpOr op) {
-				if (bothBoolean(heap[argTagIdx1], heap[argTagIdx2])) {
-					int temp = lastIdx;
-					int boolVal = heap[argTagIdx1 + 1] == -3 || heap[argTagIdx2 + 1] == -3 ? -3 : -4;
-					heap[lastIdx] = boolVal;
-					lastIdx++;
-					return temp;
-				} else {
-					throw new EvalException("One of arg1: "+ b.arg1() + " arg2: " + b.arg2() + " is not an boolean");
-				}
+				return mkBool(boolArg(b.arg1(), op) || boolArg(b.arg2(), op));
 			}
 
 			@Override
 			public Integer forOpGets(OpGets op) {
-				if (heap[argTagIdx1] != 3) {
-					throw new EvalException("Op " + op +" applied on non-ref " + b.arg1());
-				}
-				heap[lastIdx] = 3;
-				lastIdx++;
-				int arg2Len = lastIdx - argTagIdx2;
-				for (int i = 0; i < arg2Len; i++) {
-					heap[lastIdx] = heap[argTagIdx2 + i];
-					lastIdx++;
-				}
-				if (b.arg1() instanceof Pair) {
-					Pair p1 = (Pair) b.arg1();
-					varAddress v = envLink.get(envLink.size() - 1 - p1.dist())[p1.offset()];
-					v.startIdx = lastIdx - arg2Len - 1;
-				}
-				int temp = lastIdx;
-				heap[lastIdx] = -2;
-				lastIdx++;
-				return temp;
+				int ref = eval(b.arg1(), false);
+				if (tag(ref) != REF) throw new EvalException("Left argument " + b.arg1() + " of <- is not a JamRef");
+				push(ref);
+				int val = eval(b.arg2(), false);
+				heap[(pop() >> 1) + 1] = val;
+				return UNIT;
 			}
 		});
 	}
 
 	public Integer forApp(App a) {
-		System.out.println("Reaches app: " + a);
-		ASTVisitor<Integer> tempVis = this;
-		if (a.rator() instanceof PrimFun) {
-			int n = a.args().length;
-			return ((PrimFun) a.rator()).accept(new PrimFunVisitor<Integer>() {
-				@Override
-				public Integer forFunctionPPrim() {
-
-					if (n != 1) {
-						throw new EvalException("Incorrect number of arguments for " + a.rator());
-					}
-
-					Integer argTag = a.args()[0].accept(tempVis);
-					int temp = lastIdx;
-					if (heap[argTag] == 4 || heap[argTag] < -4) {
-						heap[lastIdx] = -3;
-						lastIdx++;
-						return temp;
-					} else {
-						heap[lastIdx] = -4;
-						lastIdx++;
-						return temp;
-					}
-				}
+		if (a.rator() instanceof PrimFun) return applyPrim((PrimFun) a.rator(), a.args());
+		boolean t = tail;
+		int rator = eval(a.rator(), false);
+		if (isPrim(rator)) return applyPrim(PRIM_TAGS[(PRIM - rator) >> 1], a.args());
+		if (tag(rator) != CLOSURE)
+			throw new EvalException(decode(rator) + " appears at head of application " + a + " but it is not a valid function");
+		AST[] args = a.args();
+		int n = args.length;
+		SMap sm = codeTbl.get(field(rator, 1));
+		if (sm.arity() != n)
+			throw new EvalException("closure " + decode(rator) + " applied to " + n + " arguments instead of " + sm.arity() +
+					" arguments");
+		push(rator);
+		for (AST arg : args) push(eval(arg, false));
+		int base = rootTop - n;
+		int ar;
+		if (t && isPtr(env) && field(env, 1) == n) {
+			// the current AR is dead after a tail call unless it has been captured, in which case its size word differs
+			ar = env;
+			heap[(ar >> 1) + 2] = field(roots[base - 1], 2);
+			framesReused++;
+		} else {
+			roots[base - 1] = field(roots[base - 1], 2);
+			ar = mkAR(n, base - 1);
+		}
+		System.arraycopy(roots, base, heap, (ar >> 1) + 3, n);
+		rootTop = base - 1;
+		if (t) {
+			env = ar;
+			tailBody = sm.body();
+			return TAILCALL;
+		}
+		push(env);
+		env = ar;
+		int result = eval(sm.body(), true);
+		while (result == TAILCALL) result = eval(tailBody, true);
+		env = pop();
+		return result;
+	}
 
-				@Override
-				public Integer forNumberPPrim() {
-					if (n != 1) {
-						throw new EvalException("Incorrect number of arguments for " + a.rator());
-					}
-
-					Integer argTag = a.args()[0].accept(tempVis);
-					int temp = lastIdx;
-					if (heap[argTag] == 1) {
-						heap[lastIdx] = -3;
-						lastIdx++;
-						return temp;
-					} else {
-						heap[lastIdx] = -4;
-						lastIdx++;
-						return temp;
-					}
-				}
+	/** Evaluates args and applies the primitive function pf to them */
+	private int applyPrim(PrimFun pf, AST[] args) {
+		int n = args.length;
+		for (AST arg : args) push(eval(arg, false));
+		int base = rootTop - n;
+		int result = pf.accept(new PrimFunVisitor<Integer>() {
+			private int arg() {
+				if (n != 1) throw new EvalException("Primitive function `" + pf + "' applied to " + n + " arguments");
+				return roots[base];
+			}
 
-				@Override
-				public Integer forListPPrim() {
-					if (n != 1) {
-						throw new EvalException("Incorrect number of arguments for " + a.rator());
-					}
-
-					Integer argTag = a.args()[0].accept(tempVis);
-					int temp = lastIdx;
-					if (heap[argTag] == -1 || heap[argTag] == 2) {
-						heap[lastIdx] = -3;
-						lastIdx++;
-						return temp;
-					} else {
-						heap[lastIdx] = -4;
-						lastIdx++;
-						return temp;
-					}
-				}
+			private int toCons(int v) {
+				if (tag(v) == CONS) return v;
+				throw new EvalException("Primitive function `" + pf + "' applied to argument " + decode(v) +
+						" that is not a JamCons");
+			}
 
-				@Override
-				public Integer forConsPPrim() {
-
-					if (n != 1) {
-						throw new EvalException("Incorrect number of arguments for " + a.rator());
-					}
-
-					Integer argTag = a.args()[0].accept(tempVis);
-					int temp = lastIdx;
-					if (heap[argTag] == 2) {
-						heap[lastIdx] = -3;
-						lastIdx++;
-						return temp;
-					} else {
-						heap[lastIdx] = -4;
-						lastIdx++;
-						return temp;
-					}
-				}
+			@Override
+			public Integer forFunctionPPrim() {
+				return mkBool(isFunction(arg()));
+			}
 
-				@Override
-				public Integer forNullPPrim() {
-					if (n != 1) {
-						throw new EvalException("Incorrect number of arguments for " + a.rator());
-					}
-
-					Integer argTag = a.args()[0].accept(tempVis);
-					int temp = lastIdx;
-					if (heap[argTag] == -1) {
-						heap[lastIdx] = -3;
-						lastIdx++;
-						return temp;
-					} else {
-						heap[lastIdx] = -4;
-						lastIdx++;
-						return temp;
-					}
-				}
+			@Override
+			public Integer forNumberPPrim() {
+				return mkBool(isInt(arg()));
+			}
 
-				@Override
-				public Integer forArityPrim() {
-					if (n != 1) {
-						throw new EvalException("Incorrect number of arguments for " + a.rator());
-					}
-
-					Integer argTag = a.args()[0].accept(tempVis);
-					int temp = lastIdx;
-					if (heap[argTag] == -12) {
-						heap[lastIdx] = 1;
-						lastIdx++;
-						heap[lastIdx] = 2;
-						lastIdx++;
-						return temp;
-					} else if (heap[argTag] < -4){
-						heap[lastIdx] = 1;
-						lastIdx++;
-						heap[lastIdx] = 1;
-						lastIdx++;
-						return temp;
-					} else if (heap[argTag] == 4) {
-						System.out.println("Closure case missing in APP");
-						return 0;
-					} else {
-						throw new EvalException("Incorrect argument for Prim Fun arity");
-					}
-				}
+			@Override
+			public Integer forListPPrim() {
+				int tag = tag(arg());
+				return mkBool(tag == NULL || tag == CONS);
+			}
 
-				@Override
-				public Integer forConsPrim() {
-					if (n != 2) {
-						throw new EvalException("Incorrect number of arguments for " + a.rator());
-					}
-					int temp = lastIdx;
+			@Override
+			public Integer forConsPPrim() {
+				return mkBool(tag(arg()) == CONS);
+			}
 
-					heap[lastIdx] = 2;
-					lastIdx++;
+			@Override
+			public Integer forNullPPrim() {
+				return mkBool(arg() == NULL);
+			}
 
-					a.args()[0].accept(tempVis);
-					Integer argTag2 = a.args()[1].accept(tempVis);
+			@Override
+			public Integer forArityPrim() {
+				int v = arg();
+				if (isPrim(v)) return mkInt(PRIM_TAGS[(PRIM - v) >> 1] == ConsPrim.ONLY ? 2 : 1);
+				if (tag(v) == CLOSURE) return mkInt(codeTbl.get(field(v, 1)).arity());
+				throw new EvalException("arity applied to argument " + decode(v));
+			}
 
-					if (!(heap[argTag2] == 2 || heap[argTag2] == -1)) {
-						throw new EvalException("Incorrect second argument for " + a.rator());
-					}
-					return temp;
-				}
+			@Override
+			public Integer forConsPrim() {
+				if (n != 2) throw new EvalException("Primitive function `" + pf + "' applied to " + n + " arguments");
+				int tag = tag(roots[base + 1]);
+				if (tag != NULL && tag != CONS)
+					throw new EvalException("Second argument " + decode(roots[base + 1]) + " to `cons' is not a JamList");
+				int temp = alloc(3);
+				heap[temp] = CONS;
+				heap[temp + 1] = roots[base];
+				heap[temp + 2] = roots[base + 1];
+				return temp << 1;
+			}
 
-				@Override
-				public Integer forRefPPrim() {
-					if (n != 1) {
-						throw new EvalException("Incorrect number of arguments for " + a.rator());
-					}
-
-					Integer argTag = a.args()[0].accept(tempVis);
-					int temp = lastIdx;
-					if (heap[argTag] == 3) {
-						heap[lastIdx] = -3;
-						lastIdx++;
-						return temp;
-					} else {
-						heap[lastIdx] = -4;
-						lastIdx++;
-						return temp;
-					}
-				}
+			@Override
+			public Integer forRefPPrim() {
+				return mkBool(tag(arg()) == REF);
+			}
 
-				@Override
-				public Integer forFirstPrim() {
-					return -13;
-				}
+			@Override
+			public Integer forFirstPrim() {
+				return field(toCons(arg()), 1);
+			}
 
-				@Override
-				public Integer forRestPrim() {
-					return -14;
-				}
+			@Override
+			public Integer forRestPrim() {
+				return field(toCons(arg()), 2);
+			}
 
-				@Override
-				public Integer forAsBoolPrim() {
-					if (n != 1) {
-						throw new EvalException("Incorrect number of arguments for " + a.rator());
-					}
-
-					Integer argTag = a.args()[0].accept(tempVis);
-					int temp = lastIdx;
-					if (heap[argTag] == -3) {
-						heap[lastIdx] = -3;
-						lastIdx++;
-						return temp;
-					} else if (heap[argTag] == -4){
-						heap[lastIdx] = -4;
-						lastIdx++;
-						return temp;
-					} else {
-						throw new EvalException("Incorrect number of arguments for " + a.rator());
-					}
-				}
-			});
-		}
-		return 0;
+			@Override
+			public Integer forAsBoolPrim() {
+				int v = arg();
+				if (! isBool(v)) throw new EvalException("The Jam value " + decode(v) + " must be of boolean type");
+				return v;
+			}
+		});
+		rootTop = base;
+		return result;
 	}
 
 	public Integer forIf(If i) {
-		Integer t = i.test().accept(this);
-		if (heap[t] == -3) {
-			System.out.println(i.conseq());
+		Integer t = eval(i.test(), false);
+		if (! isBool(t)) throw new EvalException("non Boolean " + decode(t) + " used as test in if");
+		if (t == TRUE) {
 			return i.conseq().accept(this);
 		} else {
 			return i.alt().accept(this);
@@ -1326,7 +1529,7 @@ class ramEvaluator implements ASTVisitor<Integer> {
 
 	public Integer forBlock(Block b) {
 		for (int i = 0; i < b.exps().length -1; i++) {
-			b.exps()[i].accept(this);
+			eval(b.exps()[i], false);
 		}
 		return b.exps()[b.exps().length - 1].accept(this);
 	}
@@ -1337,19 +1540,85 @@ class ramEvaluator implements ASTVisitor<Integer> {
 	public Integer forLet(Let host) { return forDefault(host); }
 	public Integer forLetRec(LetRec host) { return forDefault(host); }
 	public Integer forLetcc(Letcc host) { return forDefault(host);}
+	public Integer forSLetcc(SLetcc host) { return forDefault(host);}
 	
 }
 
+/** A polymorphic inline cache for an App node evaluated by SDEvaluator.  It records up to WIDTH rators that the node
+  * has applied: the SMaps of SDClosures whose arity matches the node, and PrimFuns with their VMCode primitive
+  * codes.  Once WIDTH entries are recorded the site is megamorphic and every new rator is a miss.  Hits and misses
+  * are counted per site and in total, for tuning WIDTH. */
+final class CallSiteCache {
+  static final int WIDTH = 4;
+  private static long totalHits, totalMisses;
+
+  private final Object[] keys = new Object[WIDTH];
+  private final int[] codes = new int[WIDTH];
+  private int size;
+  private long hits, misses;
+
+  static long totalHits() { return totalHits; }
+  static long totalMisses() { return totalMisses; }
+  long hits() { return hits; }
+  long misses() { return misses; }
+
+  /** Returns the index of key in this cache, or -1 if it is not cached */
+  int find(Object key) {
+    for (int i = 0; i < size; i++)
+      if (keys[i] == key) { hits++; totalHits++; return i; }
+    return -1;
+  }
+  int code(int i) { return codes[i]; }
+
+  /** Records a miss on key, caching it with code unless the site is megamorphic; returns code */
+  int add(Object key, int code) {
+    misses++; totalMisses++;
+    if (size < WIDTH) { keys[size] = key; codes[size++] = code; }
+    return code;
+  }
+}
+
 class SDEvaluator extends Evaluator<SDEnv> implements SDASTVisitor<JamVal> {
   
     SDEvaluator(SDEnv env) { super(env);}
   
 	/*  EvalVisitor methods for evaluating SDASTs. */
 	public SDASTVisitor<JamVal> newEvalVisitor(SDEnv env) { return new SDEvaluator(env); }
+	SDEvaluator newEvaluator(SDEnv env, boolean t) {
+	  SDEvaluator e = new SDEvaluator(env);
+	  e.tail = t;
+	  return e;
+	}
 	public JamVal forPair(Pair p)  { return env.lookup(p); }
+
+	/** Applies closures and primitives through the CallSiteCache of a.  A rator whose SMap (or PrimFun) is in the
+	  * cache is applied directly: the arity check passed when it was cached, and no FunVisitor is created. */
+	public JamVal forApp(App a) {
+	  Evaluator<SDEnv> e = nonTail();
+	  JamVal rator = a.rator().accept(e);
+	  CallSiteCache cache = a.callSiteCache();
+	  if (rator instanceof SDClosure) {
+		SDClosure c = (SDClosure) rator;
+		if (cache.find(c.smap()) < 0) {
+		  if (c.arity() != a.args().length) return apply(e, rator, a);  // reports the arity error
+		  cache.add(c.smap(), -1);
+		}
+		JamVal[] vals = e.evalArgs(a.args());
+		return tail ? new TailCall(c, vals) : TailCall.complete(c.run(vals));
+	  }
+	  if (rator instanceof PrimFun) {
+		int i = cache.find(rator);
+		int code = i >= 0 ? cache.code(i) : cache.add(rator, ((PrimFun) rator).code());
+		JamVal[] vals = e.evalArgs(a.args());
+		return VM.prim(code, vals, 0, vals.length);
+	  }
+	  return apply(e, rator, a);
+	}
 	
 	public JamVal forSMap(SMap sm) {
-		return new SDClosure(sm, this);
+		/* The closure captures only the frames that its body refers to */
+		SDEnv captured = env.innermost(sm.freeDepth());
+		return new SDClosure(sm, captured == env ? this : new SDEvaluator(captured));
 	}
 	
 	public JamVal forSLet(SLet sl) {
@@ -1361,10 +1630,10 @@ class SDEvaluator extends Evaluator<SDEnv> implements SDASTVisitor<JamVal> {
 	/* Construct newEnv for Let body and exps; vars are bound to values of corresponding exps using newEvalVisitor */
 	SDEnv newEnv = env();
 	for (int i = n-1; i >= 0; i--) {
-	  jArr[i] = rhss[i].accept(this);
+	  jArr[i] = rhss[i].accept(nonTail());
 	}
 	newEnv = newEnv.cons(jArr);
-	SDASTVisitor<JamVal> newEvalVisitor = newEvalVisitor(newEnv);
+	SDASTVisitor<JamVal> newEvalVisitor = newEvaluator(newEnv, tail);
 	return sl.body().accept(newEvalVisitor);
 	}
 	public JamVal forSLetRec(SLetRec slr) {
@@ -1388,7 +1657,12 @@ class SDEvaluator extends Evaluator<SDEnv> implements SDASTVisitor<JamVal> {
 	for (int i = 0; i < n; i++)
 	  jArr[i] = (rhss[i].accept(newEvalVisitor));  // modifies newEnv and newEvalVisitor
 	
-	return slr.body().accept(newEvalVisitor);
+	return slr.body().accept(newEvaluator(newEnv, tail));
+	}
+
+	public JamVal forSLetcc(SLetcc slc) {
+	  EscapeContinuation k = new EscapeContinuation();
+	  return evalLetcc(slc.body(), env.cons(new JamVal[] { k }), k);
 	}
 	
 //	/* Methods that are never invoked in the evaluation of well-formed SymASTs */
@@ -1396,6 +1670,7 @@ class SDEvaluator extends Evaluator<SDEnv> implements SDASTVisitor<JamVal> {
 	public JamVal forMap(Map host) { return forDefault(host); }
 	public JamVal forLet(Let host) { return forDefault(host); }
 	public JamVal forLetRec(LetRec host) { return forDefault(host); }
+	public JamVal forLetcc(Letcc host) { return forDefault(host); }
 }
 
 
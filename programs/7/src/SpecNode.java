@@ -0,0 +1,584 @@
+/** A node of a self-specializing evaluation tree built from an SDAST by SpecNodeBuilder.  Operator and if nodes
+  * start out uninitialized, observe the types of the values they see, and replace themselves in their parent with
+  * a node specialized to those types.  Specialized nodes exchange unboxed ints and booleans through executeInt and
+  * executeBoolean.  When a specialized node meets a value of another type it replaces itself with the generic
+  * form of the operation, which never specializes again.  A frame is an Object[] whose slot 0 holds the static
+  * link, as in the VM. */
+abstract class SpecNode {
+
+  SpecNode parent;
+
+  abstract Object execute(Object[] frame);
+
+  /** Evaluates this node, expecting an int */
+  int executeInt(Object[] frame) throws UnexpectedResultException {
+    Object v = execute(frame);
+    if (v instanceof IntConstant) return ((IntConstant) v).value();
+    throw new UnexpectedResultException(v);
+  }
+
+  /** Evaluates this node, expecting a boolean */
+  boolean executeBoolean(Object[] frame) throws UnexpectedResultException {
+    Object v = execute(frame);
+    if (v == BoolConstant.TRUE) return true;
+    if (v == BoolConstant.FALSE) return false;
+    throw new UnexpectedResultException(v);
+  }
+
+  /** Makes this node the parent of child and returns child */
+  <T extends SpecNode> T adopt(T child) {
+    child.parent = this;
+    return child;
+  }
+
+  /** Replaces the child old of this node by n.  Nodes with children override it. */
+  void replaceChild(SpecNode old, SpecNode n) {
+    throw new IllegalStateException(this + " has no child " + old);
+  }
+
+  /** Replaces this node by n in its parent and returns n.  A recursive activation may already have replaced this
+    * node, in which case the parent is left alone. */
+  <T extends SpecNode> T replace(T n) {
+    n.parent = parent;
+    if (parent != null) parent.replaceChild(this, n);
+    return n;
+  }
+
+  /** Returns the int value of the result of a generic operation that must produce one */
+  static int expectInt(Object v) throws UnexpectedResultException {
+    if (v instanceof IntConstant) return ((IntConstant) v).value();
+    throw new UnexpectedResultException(v);
+  }
+
+  static boolean expectBoolean(Object v) throws UnexpectedResultException {
+    if (v == BoolConstant.TRUE) return true;
+    if (v == BoolConstant.FALSE) return false;
+    throw new UnexpectedResultException(v);
+  }
+}
+
+/** Thrown by executeInt and executeBoolean when the value of a node has another type.  It is thrown only when a
+  * node deoptimizes, so it carries no stack trace. */
+class UnexpectedResultException extends Exception {
+  private static final long serialVersionUID = 1L;
+  final Object result;
+  UnexpectedResultException(Object r) { super(null, null, false, false); result = r; }
+}
+
+class ConstNode extends SpecNode {
+  private final Object value;
+  ConstNode(Object v) { value = v; }
+  Object execute(Object[] frame) { return value; }
+}
+
+class IntConstNode extends SpecNode {
+  private final IntConstant value;
+  private final int i;
+  IntConstNode(IntConstant v) { value = v; i = v.value(); }
+  Object execute(Object[] frame) { return value; }
+  int executeInt(Object[] frame) { return i; }
+}
+
+/** A variable bound in the current frame */
+class LocalNode extends SpecNode {
+  private final int slot;
+  LocalNode(int s) { slot = s; }
+  Object execute(Object[] frame) { return frame[slot]; }
+}
+
+/** A variable bound in an enclosing frame */
+class VarNode extends SpecNode {
+  private final int dist, slot;
+  VarNode(int d, int s) { dist = d; slot = s; }
+  Object execute(Object[] frame) {
+    for (int d = dist; d > 0; d--) frame = (Object[]) frame[0];
+    return frame[slot];
+  }
+}
+
+/** A strict binary operation; op is a VMCode operator code */
+abstract class BinaryNode extends SpecNode {
+  final int op;
+  SpecNode left, right;
+
+  BinaryNode(int o, SpecNode l, SpecNode r) { op = o; left = adopt(l); right = adopt(r); }
+
+  void replaceChild(SpecNode old, SpecNode n) {
+    if (left == old) left = n;
+    else if (right == old) right = n;
+  }
+
+  /** Replaces this node by its generic form */
+  GenericBinaryNode generalize() { return replace(new GenericBinaryNode(op, left, right)); }
+}
+
+class UninitializedBinaryNode extends BinaryNode {
+  UninitializedBinaryNode(int o, SpecNode l, SpecNode r) { super(o, l, r); }
+
+  Object execute(Object[] frame) {
+    Object x, y;
+    if (op == VMCode.B_DIVIDE) {
+      y = right.execute(frame);
+      VM.checkDivisor(y);
+      x = left.execute(frame);
+    }
+    else {
+      x = left.execute(frame);
+      y = right.execute(frame);
+    }
+    if (x instanceof IntConstant && y instanceof IntConstant) {
+      if (op <= VMCode.B_DIVIDE) replace(IntArithmeticNode.create(op, left, right));
+      else if (op >= VMCode.B_EQUALS && op <= VMCode.B_GREATER_EQUALS) replace(IntCompareNode.create(op, left, right));
+      else generalize();
+    }
+    else generalize();
+    return VM.binOp(op, x, y);
+  }
+}
+
+class GenericBinaryNode extends BinaryNode {
+  GenericBinaryNode(int o, SpecNode l, SpecNode r) { super(o, l, r); }
+  Object execute(Object[] frame) {
+    if (op == VMCode.B_DIVIDE) return executeLeft(right.execute(frame), frame);
+    return VM.binOp(op, left.execute(frame), right.execute(frame));
+  }
+  /** Completes the operation for a specialized node that has already evaluated its left operand to x */
+  Object executeRight(Object x, Object[] frame) { return VM.binOp(op, x, right.execute(frame)); }
+  /** Completes a division for a specialized node that has already evaluated its divisor to y */
+  Object executeLeft(Object y, Object[] frame) {
+    int d = VM.checkDivisor(y);
+    return VM.divide(left.execute(frame), d);
+  }
+}
+
+/** Integer +, -, *, or / on unboxed operands */
+abstract class IntArithmeticNode extends BinaryNode {
+  IntArithmeticNode(int o, SpecNode l, SpecNode r) { super(o, l, r); }
+
+  abstract int compute(int a, int b);
+
+  static IntArithmeticNode create(int op, SpecNode l, SpecNode r) {
+    switch (op) {
+      case VMCode.B_PLUS: return new IntArithmeticNode(op, l, r) { int compute(int a, int b) { return a + b; } };
+      case VMCode.B_MINUS: return new IntArithmeticNode(op, l, r) { int compute(int a, int b) { return a - b; } };
+      case VMCode.B_DIVIDE: return new IntDivideNode(l, r);
+      default: return new IntArithmeticNode(op, l, r) { int compute(int a, int b) { return a * b; } };
+    }
+  }
+
+  Object execute(Object[] frame) {
+    try { return IntConstant.valueOf(executeInt(frame)); }
+    catch (UnexpectedResultException e) { return e.result; }
+  }
+
+  int executeInt(Object[] frame) throws UnexpectedResultException {
+    int a;
+    try { a = left.executeInt(frame); }
+    catch (UnexpectedResultException e) { return expectInt(generalize().executeRight(e.result, frame)); }
+    int b;
+    try { b = right.executeInt(frame); }
+    catch (UnexpectedResultException e) { return expectInt(VM.binOp(generalize().op, IntConstant.valueOf(a), e.result)); }
+    return compute(a, b);
+  }
+}
+
+/** Integer / on unboxed operands */
+class IntDivideNode extends IntArithmeticNode {
+  IntDivideNode(SpecNode l, SpecNode r) { super(VMCode.B_DIVIDE, l, r); }
+
+  int compute(int a, int b) { return a / b; }
+
+  int executeInt(Object[] frame) throws UnexpectedResultException {
+    int b;
+    try { b = right.executeInt(frame); }
+    catch (UnexpectedResultException e) { return expectInt(generalize().executeLeft(e.result, frame)); }
+    VM.checkDivisor(b);
+    int a;
+    try { a = left.executeInt(frame); }
+    catch (UnexpectedResultException e) { generalize(); return expectInt(VM.divide(e.result, b)); }
+    return compute(a, b);
+  }
+}
+
+/** Integer comparison on unboxed operands */
+abstract class IntCompareNode extends BinaryNode {
+  IntCompareNode(int o, SpecNode l, SpecNode r) { super(o, l, r); }
+
+  abstract boolean compute(int a, int b);
+
+  static IntCompareNode create(int op, SpecNode l, SpecNode r) {
+    switch (op) {
+      case VMCode.B_EQUALS: return new IntCompareNode(op, l, r) { boolean compute(int a, int b) { return a == b; } };
+      case VMCode.B_NOT_EQUALS:
+        return new IntCompareNode(op, l, r) { boolean compute(int a, int b) { return a != b; } };
+      case VMCode.B_LESS: return new IntCompareNode(op, l, r) { boolean compute(int a, int b) { return a < b; } };
+      case VMCode.B_GREATER: return new IntCompareNode(op, l, r) { boolean compute(int a, int b) { return a > b; } };
+      case VMCode.B_LESS_EQUALS:
+        return new IntCompareNode(op, l, r) { boolean compute(int a, int b) { return a <= b; } };
+      default: return new IntCompareNode(op, l, r) { boolean compute(int a, int b) { return a >= b; } };
+    }
+  }
+
+  Object execute(Object[] frame) {
+    try { return BoolConstant.toBoolConstant(executeBoolean(frame)); }
+    catch (UnexpectedResultException e) { return e.result; }
+  }
+
+  boolean executeBoolean(Object[] frame) throws UnexpectedResultException {
+    int a;
+    try { a = left.executeInt(frame); }
+    catch (UnexpectedResultException e) { return expectBoolean(generalize().executeRight(e.result, frame)); }
+    int b;
+    try { b = right.executeInt(frame); }
+    catch (UnexpectedResultException e) {
+      return expectBoolean(VM.binOp(generalize().op, IntConstant.valueOf(a), e.result));
+    }
+    return compute(a, b);
+  }
+}
+
+/** The non-strict operators & and | */
+class ShortCircuitNode extends BinaryNode {
+  ShortCircuitNode(int o, SpecNode l, SpecNode r) { super(o, l, r); }
+  Object execute(Object[] frame) {
+    boolean x = Jit.boolArg(left.execute(frame), op);
+    if (x == (op == VMCode.B_OR)) return BoolConstant.toBoolConstant(x);
+    return BoolConstant.toBoolConstant(Jit.boolArg(right.execute(frame), op));
+  }
+}
+
+/** A unary operation; op is a VMCode operator code */
+abstract class UnaryNode extends SpecNode {
+  final int op;
+  SpecNode arg;
+
+  UnaryNode(int o, SpecNode a) { op = o; arg = adopt(a); }
+
+  void replaceChild(SpecNode old, SpecNode n) { if (arg == old) arg = n; }
+
+  GenericUnaryNode generalize() { return replace(new GenericUnaryNode(op, arg)); }
+}
+
+class UninitializedUnaryNode extends UnaryNode {
+  UninitializedUnaryNode(int o, SpecNode a) { super(o, a); }
+  Object execute(Object[] frame) {
+    Object x = arg.execute(frame);
+    if (op == VMCode.U_MINUS && x instanceof IntConstant) replace(new IntNegateNode(arg));
+    else if (op == VMCode.U_NOT && x instanceof BoolConstant) replace(new NotNode(arg));
+    else generalize();
+    return VM.unOp(op, x);
+  }
+}
+
+class GenericUnaryNode extends UnaryNode {
+  GenericUnaryNode(int o, SpecNode a) { super(o, a); }
+  Object execute(Object[] frame) { return VM.unOp(op, arg.execute(frame)); }
+}
+
+class IntNegateNode extends UnaryNode {
+  IntNegateNode(SpecNode a) { super(VMCode.U_MINUS, a); }
+  Object execute(Object[] frame) {
+    try { return IntConstant.valueOf(executeInt(frame)); }
+    catch (UnexpectedResultException e) { return e.result; }
+  }
+  int executeInt(Object[] frame) throws UnexpectedResultException {
+    try { return - arg.executeInt(frame); }
+    catch (UnexpectedResultException e) { return expectInt(VM.unOp(generalize().op, e.result)); }
+  }
+}
+
+class NotNode extends UnaryNode {
+  NotNode(SpecNode a) { super(VMCode.U_NOT, a); }
+  Object execute(Object[] frame) {
+    try { return BoolConstant.toBoolConstant(executeBoolean(frame)); }
+    catch (UnexpectedResultException e) { return e.result; }
+  }
+  boolean executeBoolean(Object[] frame) throws UnexpectedResultException {
+    try { return ! arg.executeBoolean(frame); }
+    catch (UnexpectedResultException e) { return expectBoolean(VM.unOp(generalize().op, e.result)); }
+  }
+}
+
+/** An if.  The test is evaluated unboxed, and the expected result type is passed on to the arm that runs, so an
+  * if whose arms are specialized arithmetic does not box its value either. */
+class IfNode extends SpecNode {
+  SpecNode test, conseq, alt;
+
+  IfNode(SpecNode t, SpecNode c, SpecNode a) { test = adopt(t); conseq = adopt(c); alt = adopt(a); }
+
+  void replaceChild(SpecNode old, SpecNode n) {
+    if (test == old) test = n;
+    else if (conseq == old) conseq = n;
+    else if (alt == old) alt = n;
+  }
+
+  private boolean test(Object[] frame) {
+    try { return test.executeBoolean(frame); }
+    catch (UnexpectedResultException e) { throw new EvalException("non Boolean " + e.result + " used as test in if"); }
+  }
+
+  Object execute(Object[] frame) { return test(frame) ? conseq.execute(frame) : alt.execute(frame); }
+  int executeInt(Object[] frame) throws UnexpectedResultException {
+    return test(frame) ? conseq.executeInt(frame) : alt.executeInt(frame);
+  }
+  boolean executeBoolean(Object[] frame) throws UnexpectedResultException {
+    return test(frame) ? conseq.executeBoolean(frame) : alt.executeBoolean(frame);
+  }
+}
+
+class BlockNode extends SpecNode {
+  private final SpecNode[] exps;
+
+  BlockNode(SpecNode[] e) {
+    exps = e;
+    for (SpecNode n : e) adopt(n);
+  }
+
+  void replaceChild(SpecNode old, SpecNode n) {
+    for (int i = 0; i < exps.length; i++) if (exps[i] == old) exps[i] = n;
+  }
+
+  private SpecNode prefix(Object[] frame) {
+    int last = exps.length - 1;
+    for (int i = 0; i < last; i++) exps[i].execute(frame);
+    return exps[last];
+  }
+
+  Object execute(Object[] frame) { return prefix(frame).execute(frame); }
+  int executeInt(Object[] frame) throws UnexpectedResultException { return prefix(frame).executeInt(frame); }
+  boolean executeBoolean(Object[] frame) throws UnexpectedResultException {
+    return prefix(frame).executeBoolean(frame);
+  }
+}
+
+/** A let or letrec block; its body runs in a new frame */
+class LetNode extends SpecNode {
+  private final SpecNode[] rhss;
+  private final boolean rec;
+  SpecNode body;
+
+  LetNode(SpecNode[] r, SpecNode b, boolean isRec) {
+    rhss = r;
+    for (SpecNode n : r) adopt(n);
+    body = adopt(b);
+    rec = isRec;
+  }
+
+  void replaceChild(SpecNode old, SpecNode n) {
+    if (body == old) body = n;
+    for (int i = 0; i < rhss.length; i++) if (rhss[i] == old) rhss[i] = n;
+  }
+
+  private Object[] bind(Object[] frame) {
+    Object[] f = new Object[rhss.length + 1];
+    f[0] = frame;
+    if (rec) for (int i = 0; i < rhss.length; i++) f[i+1] = rhss[i].execute(f);
+    else for (int i = rhss.length - 1; i >= 0; i--) f[i+1] = rhss[i].execute(frame);  // right to left, like let
+    return f;
+  }
+
+  Object execute(Object[] frame) { return body.execute(bind(frame)); }
+  int executeInt(Object[] frame) throws UnexpectedResultException { return body.executeInt(bind(frame)); }
+  boolean executeBoolean(Object[] frame) throws UnexpectedResultException {
+    return body.executeBoolean(bind(frame));
+  }
+}
+
+/** A map; it is also the root of the tree of its body, which is shared by all of its closures */
+class MapNode extends SpecNode {
+  final SMap map;
+  SpecNode body;
+
+  MapNode(SMap m, SpecNode b) { map = m; body = adopt(b); }
+
+  void replaceChild(SpecNode old, SpecNode n) { if (body == old) body = n; }
+
+  Object execute(Object[] frame) { return new SpecClosure(this, frame); }
+}
+
+/** The root of the tree of a program */
+class ProgramNode extends SpecNode {
+  SpecNode body;
+
+  ProgramNode(SpecNode b) { body = adopt(b); }
+
+  void replaceChild(SpecNode old, SpecNode n) { if (body == old) body = n; }
+
+  Object execute(Object[] frame) { return body.execute(frame); }
+}
+
+/** An application of a closure.  In tail position it returns a SpecTailCall instead of calling a SpecClosure, and
+  * the nearest enclosing application that is not in tail position completes it in a loop. */
+class AppNode extends SpecNode {
+  private final App app;
+  private final boolean tail;
+  private SpecNode rator;
+  private final SpecNode[] args;
+
+  AppNode(App a, boolean t, SpecNode r, SpecNode[] as) {
+    app = a;
+    tail = t;
+    rator = adopt(r);
+    args = as;
+    for (SpecNode n : as) adopt(n);
+  }
+
+  void replaceChild(SpecNode old, SpecNode n) {
+    if (rator == old) rator = n;
+    for (int i = 0; i < args.length; i++) if (args[i] == old) args[i] = n;
+  }
+
+  Object execute(Object[] frame) {
+    Object r = rator.execute(frame);
+    Object[] f = new Object[args.length + 1];
+    for (int i = 0; i < args.length; i++) f[i+1] = args[i].execute(frame);
+    if (r instanceof SpecClosure) {
+      SpecClosure c = (SpecClosure) r;
+      int arity = c.node.map.arity();
+      if (arity != args.length) throw new EvalException("closure " + c + " applied to " + args.length +
+                                                        " arguments instead of " + arity + " arguments");
+      f[0] = c.env;
+      if (tail) return new SpecTailCall(c, f);
+      return complete(c.node.body.execute(f));
+    }
+    return Jit.call(r, f, app);
+  }
+
+  /** Performs the tail calls starting with result until one returns a value */
+  static Object complete(Object result) {
+    while (result instanceof SpecTailCall) {
+      SpecTailCall call = (SpecTailCall) result;
+      result = call.closure.node.body.execute(call.frame);
+    }
+    return result;
+  }
+}
+
+/** The result of an AppNode in tail position whose closure and frame are bound; it never escapes AppNode.complete.
+  * Only execute returns one: executeInt and executeBoolean are never invoked on a node in tail position. */
+final class SpecTailCall {
+  final SpecClosure closure;
+  final Object[] frame;
+  SpecTailCall(SpecClosure c, Object[] f) { closure = c; frame = f; }
+}
+
+/** An application of a primitive function; p is a VMCode primitive code */
+class PrimAppNode extends SpecNode {
+  private final int p;
+  private final SpecNode[] args;
+
+  PrimAppNode(int pc, SpecNode[] as) {
+    p = pc;
+    args = as;
+    for (SpecNode n : as) adopt(n);
+  }
+
+  void replaceChild(SpecNode old, SpecNode n) {
+    for (int i = 0; i < args.length; i++) if (args[i] == old) args[i] = n;
+  }
+
+  Object execute(Object[] frame) {
+    if (p == VMCode.P_CONS && args.length == 2) return Jit.cons(args[0].execute(frame), args[1].execute(frame));
+    if (p != VMCode.P_CONS && args.length == 1) return Jit.prim1(p, args[0].execute(frame));
+    Object[] f = new Object[args.length + 1];
+    for (int i = 0; i < args.length; i++) f[i+1] = args[i].execute(frame);
+    return Jit.prim(p, f);
+  }
+}
+
+/** Jam closure representation for SpecNode trees */
+class SpecClosure extends JamFun implements Closure {
+  final MapNode node;
+  final Object[] env;
+
+  SpecClosure(MapNode n, Object[] e) { node = n; env = e; }
+
+  public int arity() { return node.map.arity(); }
+  public JamVal apply(JamVal[] args) {
+    int n = node.map.arity();
+    if (n != args.length) throw new EvalException("closure " + this + " applied to " + args.length +
+                                                  " arguments instead of " + n + " arguments");
+    Object[] frame = new Object[n+1];
+    frame[0] = env;
+    System.arraycopy(args, 0, frame, 1, n);
+    return (JamVal) AppNode.complete(node.body.execute(frame));
+  }
+  public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
+  public String toString() { return "(closure: " + node.map + ")"; }
+}
+
+/** Builds the SpecNode tree of an SDAST, with every operator node uninitialized */
+class SpecNodeBuilder implements ASTVisitor<SpecNode> {
+
+  /** Builders for expressions in non-tail and tail position */
+  static final SpecNodeBuilder ONLY = new SpecNodeBuilder(false);
+  static final SpecNodeBuilder TAIL = new SpecNodeBuilder(true);
+
+  /** Is the built expression in tail position? */
+  private final boolean tail;
+
+  private SpecNodeBuilder(boolean t) { tail = t; }
+
+  static ProgramNode build(SDAST prog) { return new ProgramNode(prog.accept(ONLY)); }
+
+  private SpecNode forDefault(AST a) { throw new EvalException(a + " cannot be compiled by " + getClass()); }
+
+  private SpecNode[] buildAll(AST[] asts) {
+    SpecNode[] nodes = new SpecNode[asts.length];
+    for (int i = 0; i < asts.length; i++) nodes[i] = asts[i].accept(ONLY);
+    return nodes;
+  }
+
+  public SpecNode forBoolConstant(BoolConstant b) { return new ConstNode(b); }
+  public SpecNode forIntConstant(IntConstant i) { return new IntConstNode(i); }
+  public SpecNode forNullConstant(NullConstant n) { return new ConstNode(JamEmpty.ONLY); }
+  public SpecNode forPrimFun(PrimFun f) { return new ConstNode(f); }
+
+  public SpecNode forPair(Pair p) {
+    /* Slot 0 of a frame holds its static link */
+    if (p.dist() == 0) return new LocalNode(p.offset() + 1);
+    return new VarNode(p.dist(), p.offset() + 1);
+  }
+
+  public SpecNode forUnOpApp(UnOpApp u) {
+    return new UninitializedUnaryNode(u.rator().code(), u.arg().accept(ONLY));
+  }
+
+  public SpecNode forBinOpApp(BinOpApp b) {
+    int op = b.rator().code();
+    SpecNode l = b.arg1().accept(ONLY);
+    SpecNode r = b.arg2().accept(ONLY);
+    if (op == VMCode.B_AND || op == VMCode.B_OR) return new ShortCircuitNode(op, l, r);
+    return new UninitializedBinaryNode(op, l, r);
+  }
+
+  public SpecNode forApp(App a) {
+    SpecNode[] args = buildAll(a.args());
+    if (a.rator() instanceof PrimFun) return new PrimAppNode(((PrimFun) a.rator()).code(), args);
+    return new AppNode(a, tail, a.rator().accept(ONLY), args);
+  }
+
+  public SpecNode forIf(If i) {
+    return new IfNode(i.test().accept(ONLY), i.conseq().accept(this), i.alt().accept(this));
+  }
+
+  public SpecNode forBlock(Block b) {
+    AST[] exps = b.exps();
+    SpecNode[] nodes = new SpecNode[exps.length];
+    for (int i = 0; i < exps.length; i++) nodes[i] = exps[i].accept(i == exps.length - 1 ? this : ONLY);
+    return new BlockNode(nodes);
+  }
+  public SpecNode forSMap(SMap sm) { return new MapNode(sm, sm.body().accept(TAIL)); }
+  public SpecNode forSLet(SLet sl) { return new LetNode(buildAll(sl.rhss()), sl.body().accept(this), false); }
+  public SpecNode forSLetRec(SLetRec slr) {
+    return new LetNode(buildAll(slr.rhss()), slr.body().accept(this), true);
+  }
+
+  /* Methods that are never invoked on well-formed SDASTs */
+  public SpecNode forSymVariable(Variable host) { return forDefault(host); }
+  public SpecNode forMap(Map host) { return forDefault(host); }
+  public SpecNode forLet(Let host) { return forDefault(host); }
+  public SpecNode forLetRec(LetRec host) { return forDefault(host); }
+  public SpecNode forLetcc(Letcc host) { return forDefault(host); }
+  public SpecNode forSLetcc(SLetcc host) { return forDefault(host); }
+}
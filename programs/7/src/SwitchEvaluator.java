@@ -0,0 +1,237 @@
+/** An evaluator for SymASTs and SDASTs that dispatches on AST.kind() with a switch and passes the environment (a
+  * VarEnv or an SDEnv) as an argument.  Unlike Evaluator, it creates no visitor objects: evaluating a node allocates
+  * only the values, argument arrays and environments of the program itself.  Expressions in tail position, including
+  * the bodies of applied closures, are evaluated by the loop in eval rather than by a recursive call, so tail calls
+  * run in constant Java stack.  Like SymEvaluator and SDEvaluator, it counts the entries of each Map and SMap and runs
+  * the TierCode of hot bodies (see TierCompiler). */
+class SwitchEvaluator {
+
+  private SwitchEvaluator() {}
+
+  /** Returns the value of e in env */
+  static JamVal eval(AST e, Environment env) {
+    while (true) {
+      switch (e.kind()) {
+        case AST.K_BOOL: return (BoolConstant) e;
+        case AST.K_INT: return (IntConstant) e;
+        case AST.K_NULL: return JamEmpty.ONLY;
+        case AST.K_PRIM: return (PrimFun) e;
+        case AST.K_VARIABLE:
+        case AST.K_PAIR: return env.lookup(e);
+        case AST.K_UNOP: {
+          UnOpApp u = (UnOpApp) e;
+          return VM.unOp(u.rator().code(), eval(u.arg(), env));
+        }
+        case AST.K_BINOP: return binOp((BinOpApp) e, env);
+        case AST.K_MAP: return new SwitchClosure(e, env);
+        case AST.K_SMAP: {
+          SMap sm = (SMap) e;
+          return new SwitchClosure(sm, ((SDEnv) env).innermost(sm.freeDepth()));
+        }
+        case AST.K_IF: {
+          If i = (If) e;
+          e = Jit.test(eval(i.test(), env)) ? i.conseq() : i.alt();
+          continue;
+        }
+        case AST.K_BLOCK: {
+          AST[] exps = ((Block) e).exps();
+          int n = exps.length;
+          for (int i = 0; i < n-1; i++) eval(exps[i], env);
+          e = exps[n-1];
+          continue;
+        }
+        case AST.K_APP: {
+          App a = (App) e;
+          JamVal rator = eval(a.rator(), env);
+          AST[] args = a.args();
+          JamVal[] vals = new JamVal[args.length];
+          for (int i = 0; i < args.length; i++) vals[i] = eval(args[i], env);
+          if (rator instanceof SwitchClosure) {
+            SwitchClosure c = (SwitchClosure) rator;
+            env = c.extend(vals);
+            TierCode code = c.hot();
+            if (code != null) return TailCall.complete(code.eval(env));
+            e = c.body();
+            continue;
+          }
+          if (rator instanceof PrimFun) return VM.prim(((PrimFun) rator).code(), vals, 0, vals.length);
+          if (rator instanceof Closure) return ((Closure) rator).apply(vals);
+          throw new EvalException(rator + " appears at head of application " + a  + " but it is not a valid function");
+        }
+        /* Let right hand sides are evaluated from last to first, as in Evaluator */
+        case AST.K_LET: {
+          Let l = (Let) e;
+          Variable[] vars = l.vars();
+          SymAST[] exps = l.exps();
+          VarEnv newEnv = (VarEnv) env;
+          for (int i = vars.length - 1; i >= 0; i--) newEnv = newEnv.cons(new Binding(vars[i], eval(exps[i], env)));
+          env = newEnv;
+          e = l.body();
+          continue;
+        }
+        case AST.K_SLET: {
+          SLet sl = (SLet) e;
+          SDAST[] rhss = sl.rhss();
+          JamVal[] vals = new JamVal[rhss.length];
+          for (int i = rhss.length - 1; i >= 0; i--) vals[i] = eval(rhss[i], env);
+          env = ((SDEnv) env).cons(vals);
+          e = sl.body();
+          continue;
+        }
+        case AST.K_LETREC: {
+          LetRec l = (LetRec) e;
+          Variable[] vars = l.vars();
+          SymAST[] exps = l.exps();
+          int n = vars.length;
+          Binding[] bindings = new Binding[n];
+          VarEnv newEnv = (VarEnv) env;
+          for (int i = n-1; i >= 0; i--) {
+            bindings[i] = new Binding(vars[i], null);  // bind var[i], setting value to null, which is not a JamVal
+            newEnv = newEnv.cons(bindings[i]);
+          }
+          for (int i = 0; i < n; i++) bindings[i].setBinding(eval(exps[i], newEnv));
+          env = newEnv;
+          e = l.body();
+          continue;
+        }
+        case AST.K_SLETREC: {
+          SLetRec slr = (SLetRec) e;
+          SDAST[] rhss = slr.rhss();
+          JamVal[] vals = new JamVal[rhss.length];
+          env = ((SDEnv) env).cons(vals);
+          for (int i = 0; i < rhss.length; i++) vals[i] = eval(rhss[i], env);
+          e = slr.body();
+          continue;
+        }
+        case AST.K_LETCC: {
+          Letcc l = (Letcc) e;
+          EscapeContinuation k = new EscapeContinuation();
+          return letcc(l.body(), ((VarEnv) env).cons(new Binding(l.var(), k)), k);
+        }
+        case AST.K_SLETCC: {
+          EscapeContinuation k = new EscapeContinuation();
+          return letcc(((SLetcc) e).body(), ((SDEnv) env).cons(new JamVal[] { k }), k);
+        }
+        default: throw new EvalException(e + " is not in the domain of " + SwitchEvaluator.class);
+      }
+    }
+  }
+
+  /** Evaluates body, the body of a letcc that binds k, in env; k can escape to it until body returns */
+  private static JamVal letcc(AST body, Environment env, EscapeContinuation k) {
+    try { return eval(body, env); }
+    catch (EscapeContinuation.Escape x) {
+      if (x.k != k) throw x;
+      return x.value;
+    }
+    finally { k.live = false; }
+  }
+
+  private static JamVal binOp(BinOpApp b, Environment env) {
+    int op = b.rator().code();
+    if (op == VMCode.B_DIVIDE) {
+      int d = VM.checkDivisor(eval(b.arg2(), env));
+      return VM.divide(eval(b.arg1(), env), d);
+    }
+    switch (op) {
+      case VMCode.B_PLUS: return IntConstant.valueOf(evalInt(b.arg1(), env, op) + evalInt(b.arg2(), env, op));
+      case VMCode.B_MINUS: return IntConstant.valueOf(evalInt(b.arg1(), env, op) - evalInt(b.arg2(), env, op));
+      case VMCode.B_TIMES: return IntConstant.valueOf(evalInt(b.arg1(), env, op) * evalInt(b.arg2(), env, op));
+      case VMCode.B_LESS:
+        return BoolConstant.toBoolConstant(evalInt(b.arg1(), env, op) < evalInt(b.arg2(), env, op));
+      case VMCode.B_GREATER:
+        return BoolConstant.toBoolConstant(evalInt(b.arg1(), env, op) > evalInt(b.arg2(), env, op));
+      case VMCode.B_LESS_EQUALS:
+        return BoolConstant.toBoolConstant(evalInt(b.arg1(), env, op) <= evalInt(b.arg2(), env, op));
+      case VMCode.B_GREATER_EQUALS:
+        return BoolConstant.toBoolConstant(evalInt(b.arg1(), env, op) >= evalInt(b.arg2(), env, op));
+      default:
+    }
+    JamVal x = eval(b.arg1(), env);
+    switch (op) {
+      case VMCode.B_AND:
+        return Jit.boolArg(x, op) ? BoolConstant.toBoolConstant(Jit.boolArg(eval(b.arg2(), env), op)) : x;
+      case VMCode.B_OR:
+        return Jit.boolArg(x, op) ? x : BoolConstant.toBoolConstant(Jit.boolArg(eval(b.arg2(), env), op));
+      case VMCode.B_GETS:
+        if (! (x instanceof JamRef)) throw new EvalException("Left argument " + b.arg1() + " of <- is not a JamRef");
+        ((JamRef) x).setValue(eval(b.arg2(), env));
+        return JamUnit.ONLY;
+      default:
+        return VM.binOp(op, x, eval(b.arg2(), env));
+    }
+  }
+
+  /** Returns the value of e, which must be an int, as the operand of binary operator op.  Chained +, - and * are
+    * evaluated unboxed, as in Evaluator. */
+  private static int evalInt(AST e, Environment env, int op) {
+    switch (e.kind()) {
+      case AST.K_INT: return ((IntConstant) e).value();
+      case AST.K_BINOP: {
+        BinOpApp b = (BinOpApp) e;
+        int o = b.rator().code();
+        switch (o) {
+          case VMCode.B_PLUS: return evalInt(b.arg1(), env, o) + evalInt(b.arg2(), env, o);
+          case VMCode.B_MINUS: return evalInt(b.arg1(), env, o) - evalInt(b.arg2(), env, o);
+          case VMCode.B_TIMES: return evalInt(b.arg1(), env, o) * evalInt(b.arg2(), env, o);
+          default: return VM.intArg(binOp(b, env), op);
+        }
+      }
+      default: return VM.intArg(eval(e, env), op);
+    }
+  }
+}
+
+/** Jam closure representation for SwitchEvaluator; map is a Map over a VarEnv or an SMap over an SDEnv */
+class SwitchClosure extends JamFun implements TailCallable {
+  private final AST map;
+  private final Environment env;
+  private final int arity;
+  private final AST body;
+  private final TierProfile profile;
+
+  SwitchClosure(AST map, Environment env) {
+    this.map = map;
+    this.env = env;
+    if (map.kind() == AST.K_SMAP) {
+      SMap sm = (SMap) map;
+      arity = sm.arity();
+      body = sm.body();
+      profile = sm.profile();
+    }
+    else {
+      Map m = (Map) map;
+      arity = m.vars().length;
+      body = m.body();
+      profile = m.profile();
+    }
+  }
+
+  public int arity() { return arity; }
+  AST body() { return body; }
+
+  /** Records an entry of this closure; returns the TierCode of its body if it is hot, else null */
+  TierCode hot() { return TierCompiler.hot(profile, body); }
+
+  /** Returns env extended with args bound to the parameters of map */
+  Environment extend(JamVal[] args) {
+    int n = arity;
+    if (n != args.length) throw new EvalException("closure " + this + " applied to " +
+                                                  args.length + " arguments instead of " + n + " arguments");
+    if (map.kind() == AST.K_SMAP) return ((SDEnv) env).cons(args);
+    Variable[] vars = ((Map) map).vars();
+    VarEnv newEnv = (VarEnv) env;
+    for (int i = n-1 ; i >= 0; i--) newEnv = newEnv.cons(new Binding(vars[i], args[i]));
+    return newEnv;
+  }
+
+  public JamVal enter(JamVal[] args) {
+    Environment newEnv = extend(args);
+    TierCode code = hot();
+    return code != null ? code.eval(newEnv) : SwitchEvaluator.eval(body, newEnv);
+  }
+
+  public JamVal apply(JamVal[] args) { return TailCall.complete(enter(args)); }
+  public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
+  public String toString() { return "(closure: " + map + ")"; }
+}
@@ -1,4 +1,8 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /** AST class definitions.  These definitions anticipate the definition and implementation of an interpreter based
@@ -26,6 +30,12 @@ interface AST {
     * SymAST or SDAST methods are well-defined in a concrete ASTVisitor class; the others throw exceptions. We do not
     * support ASTs that intermix SymAST and SDAST nodes. */
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v);
+
+  /** Node kinds, for evaluators that dispatch on kind() with a switch instead of using a visitor */
+  int K_BOOL = 0, K_INT = 1, K_NULL = 2, K_PRIM = 3, K_VARIABLE = 4, K_PAIR = 5, K_UNOP = 6, K_BINOP = 7, K_APP = 8,
+    K_MAP = 9, K_SMAP = 10, K_IF = 11, K_BLOCK = 12, K_LET = 13, K_SLET = 14, K_LETREC = 15, K_SLETREC = 16,
+    K_LETCC = 17, K_SLETCC = 18;
+  int kind();
 }
 
 /** The AST type for conventional abstract syntax (with variables) */
@@ -69,6 +79,7 @@ interface SDASTVisitor<RtnType> extends ComASTVisitor<RtnType> {
   RtnType forSMap(SMap sm);
   RtnType forSLet(SLet sl);
   RtnType forSLetRec(SLetRec slr);
+  RtnType forSLetcc(SLetcc slc);
 }
 
 /** An important SubType of the AST Type but it does not have its own visitor interface.  Visited as part of AST type.
@@ -102,15 +113,21 @@ class Variable implements Token, Term, SymAST, WithVariable {
     throw new SyntaxException("Variable " + this + "is being traversed by SDASTVisitor " + v);
   }
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forSymVariable(this); }
+  public int kind() { return K_VARIABLE; }
   public String toString() { return name; }
 }
 
 /** Op ::= UnOp | BinOp */
-interface Op {}
+interface Op {
+  /** Returns the VMCode operator code of this operator; the evaluators switch on it */
+  int code();
+}
 
 abstract class UnOp implements Op {
   String name;
-  public UnOp(String s) { name = s; }
+  private final int code;
+  public UnOp(String s, int c) { name = s; code = c; }
+  public int code() { return code; }
   public String toString() { return name; }
   public abstract <RtnType> RtnType accept(UnOpVisitor<RtnType> v);
 }
@@ -126,7 +143,9 @@ interface UnOpVisitor<RtnType> {
 
 abstract class BinOp implements Op {
   String name;
-  public BinOp(String s) { name = s; }
+  private final int code;
+  public BinOp(String s, int c) { name = s; code = c; }
+  public int code() { return code; }
   public String toString() { return name; }
   public abstract <RtnType> RtnType accept(BinOpVisitor<RtnType> v);
 }
@@ -150,25 +169,25 @@ interface BinOpVisitor<RtnType> {
 
 class UnOpPlus extends UnOp {
   public static final UnOpPlus ONLY = new UnOpPlus();
-  private UnOpPlus() { super("+"); }
+  private UnOpPlus() { super("+", VMCode.U_PLUS); }
   public <RtnType> RtnType accept(UnOpVisitor<RtnType> v) { return v.forUnOpPlus(this); }
 }
 
 class UnOpMinus extends UnOp {
   public static final UnOpMinus ONLY = new UnOpMinus();
-  private UnOpMinus() { super("-"); }
+  private UnOpMinus() { super("-", VMCode.U_MINUS); }
   public <RtnType> RtnType accept(UnOpVisitor<RtnType> v) { return v.forUnOpMinus(this); }
 }
 
 class OpTilde extends UnOp {
   public static final OpTilde ONLY = new OpTilde();
-  private OpTilde() { super("~"); }
+  private OpTilde() { super("~", VMCode.U_NOT); }
   public <RtnType> RtnType accept(UnOpVisitor<RtnType> v) { return v.forOpTilde(this); }
 }
 
 class OpBang extends UnOp {
   public static final OpBang ONLY = new OpBang();
-  private OpBang() { super("!"); }
+  private OpBang() { super("!", VMCode.U_BANG); }
   public <RtnType> RtnType accept(UnOpVisitor<RtnType> v) {
     return v.forOpBang(this);
   }
@@ -176,7 +195,7 @@ class OpBang extends UnOp {
 
 class OpRef extends UnOp {
   public static final OpRef ONLY = new OpRef();
-  private OpRef() { super("ref"); }
+  private OpRef() { super("ref", VMCode.U_REF); }
   public <RtnType> RtnType accept(UnOpVisitor<RtnType> v) {
     return v.forOpRef(this);
   }
@@ -184,7 +203,7 @@ class OpRef extends UnOp {
 
 class BinOpPlus extends BinOp {
   public static final BinOpPlus ONLY = new BinOpPlus();
-  private BinOpPlus() { super("+"); }
+  private BinOpPlus() { super("+", VMCode.B_PLUS); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forBinOpPlus(this);
   }
@@ -192,14 +211,14 @@ class BinOpPlus extends BinOp {
 
 class BinOpMinus extends BinOp {
   public static final BinOpMinus ONLY = new BinOpMinus();
-  private BinOpMinus() { super("-"); }
+  private BinOpMinus() { super("-", VMCode.B_MINUS); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forBinOpMinus(this);
   }
 }
 class OpTimes extends BinOp {
   public static final OpTimes ONLY = new OpTimes();
-  private OpTimes() { super("*"); }
+  private OpTimes() { super("*", VMCode.B_TIMES); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forOpTimes(this);
   }
@@ -207,7 +226,7 @@ class OpTimes extends BinOp {
 
 class OpDivide extends BinOp {
   public static final OpDivide ONLY = new OpDivide();
-  private OpDivide() { super("/"); }
+  private OpDivide() { super("/", VMCode.B_DIVIDE); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forOpDivide(this);
   }
@@ -215,7 +234,7 @@ class OpDivide extends BinOp {
 
 class OpEquals extends BinOp {
   public static final OpEquals ONLY = new OpEquals();
-  private OpEquals() { super("="); }
+  private OpEquals() { super("=", VMCode.B_EQUALS); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forOpEquals(this);
   }
@@ -223,7 +242,7 @@ class OpEquals extends BinOp {
 
 class OpNotEquals extends BinOp {
   public static final OpNotEquals ONLY = new OpNotEquals();
-  private OpNotEquals() { super("!="); }
+  private OpNotEquals() { super("!=", VMCode.B_NOT_EQUALS); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forOpNotEquals(this);
   }
@@ -231,7 +250,7 @@ class OpNotEquals extends BinOp {
 
 class OpLessThan extends BinOp {
   public static final OpLessThan ONLY = new OpLessThan();
-  private OpLessThan() { super("<"); }
+  private OpLessThan() { super("<", VMCode.B_LESS); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forOpLessThan(this);
   }
@@ -239,7 +258,7 @@ class OpLessThan extends BinOp {
 
 class OpGreaterThan extends BinOp {
   public static final OpGreaterThan ONLY = new OpGreaterThan();
-  private OpGreaterThan() { super(">"); }
+  private OpGreaterThan() { super(">", VMCode.B_GREATER); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forOpGreaterThan(this);
   }
@@ -247,7 +266,7 @@ class OpGreaterThan extends BinOp {
 
 class OpLessThanEquals extends BinOp {
   public static final OpLessThanEquals ONLY = new OpLessThanEquals();
-  private OpLessThanEquals() { super("<="); }
+  private OpLessThanEquals() { super("<=", VMCode.B_LESS_EQUALS); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forOpLessThanEquals(this);
   }
@@ -255,7 +274,7 @@ class OpLessThanEquals extends BinOp {
 
 class OpGreaterThanEquals extends BinOp {
   public static final OpGreaterThanEquals ONLY = new OpGreaterThanEquals();
-  private OpGreaterThanEquals() { super(">="); }
+  private OpGreaterThanEquals() { super(">=", VMCode.B_GREATER_EQUALS); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forOpGreaterThanEquals(this);
   }
@@ -263,7 +282,7 @@ class OpGreaterThanEquals extends BinOp {
 
 class OpAnd extends BinOp {
   public static final OpAnd ONLY = new OpAnd();
-  private OpAnd() { super("&"); }
+  private OpAnd() { super("&", VMCode.B_AND); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forOpAnd(this);
   }
@@ -271,7 +290,7 @@ class OpAnd extends BinOp {
 
 class OpOr extends BinOp {
   public static final OpOr ONLY = new OpOr();
-  private OpOr() { super("|"); }
+  private OpOr() { super("|", VMCode.B_OR); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) {
     return v.forOpOr(this);
   }
@@ -279,7 +298,7 @@ class OpOr extends BinOp {
 
 class OpGets extends BinOp {
   public static final OpGets ONLY = new OpGets();
-  private OpGets() { super("<-"); }
+  private OpGets() { super("<-", VMCode.B_GETS); }
   public <RtnType> RtnType accept(BinOpVisitor<RtnType> v) { return v.forOpGets(this); }
 }
 
@@ -294,6 +313,7 @@ class UnOpApp implements Term {
   public AST arg() { return arg; }
 
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forUnOpApp(this); }
+  public int kind() { return K_UNOP; }
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forUnOpApp(this); }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forUnOpApp(this); }
   public String toString() { return rator + " " + arg; }
@@ -310,6 +330,7 @@ class BinOpApp implements Term {
   public AST arg2() { return arg2; }
 
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forBinOpApp(this); }
+  public int kind() { return K_BINOP; }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forBinOpApp(this); }
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forBinOpApp(this); }
   public String toString() {
@@ -326,12 +347,17 @@ class Map implements SymAST {
   private Variable[] vars;
   private SymAST body;
 
+  private final TierProfile profile = new TierProfile();
+
   Map(Variable[] v, SymAST b) { vars = v; body = b; }
   public Variable[] vars() { return vars; }
   public SymAST body() { return body; }
+  /** Returns the TierCompiler profile of this map */
+  TierProfile profile() { return profile; }
 
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forMap(this); }
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forMap(this); }
+  public int kind() { return K_MAP; }
 
   public String toString() {
     return "map " + ToString.toString(vars,",") + " to " + body ;
@@ -341,13 +367,20 @@ class Map implements SymAST {
 class App implements Term {
   private AST rator;
   private AST[] args;
+  private CallSiteCache cache;
 
   App(AST r, AST[] a) { rator = r; args = a; }
 
   public AST rator() { return rator; }
   public AST[] args() { return args; }
+  /** Returns the inline cache used by SDEvaluator for this application, creating it on first use */
+  CallSiteCache callSiteCache() {
+    if (cache == null) cache = new CallSiteCache();
+    return cache;
+  }
 
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forApp(this); }
+  public int kind() { return K_APP; }
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forApp(this); }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forApp(this); }
 
@@ -368,6 +401,7 @@ class If implements SymAST, SDAST {
   public AST alt() { return alt; }
 
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forIf(this); }
+  public int kind() { return K_IF; }
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forIf(this); }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forIf(this); }
   public String toString() {
@@ -381,6 +415,7 @@ class Let implements SymAST {
   Let(Def[] d, SymAST b) { defs = d; body = b; }
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forLet(this); }
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forLet(this); }
+  public int kind() { return K_LET; }
   public Def[] defs() { return defs; }
   public SymAST body() { return body; }
 
@@ -412,6 +447,7 @@ class LetRec implements SymAST {
 
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forLetRec(this); }
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forLetRec(this); }
+  public int kind() { return K_LETREC; }
 
   public Def[] defs() { return defs; }
   public SymAST body() { return body; }
@@ -446,6 +482,7 @@ class Block implements  SymAST, SDAST {
 
   /** Applies the visitor v to this. */
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forBlock(this); }
+  public int kind() { return K_BLOCK; }
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forBlock(this); }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forBlock(this); }
   /** Gets the definitions field */
@@ -463,6 +500,7 @@ class Letcc implements SymAST {
 
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forLetcc(this); }
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forLetcc(this); }
+  public int kind() { return K_LETCC; }
 
 
   /** Getters */
@@ -515,6 +553,7 @@ class Pair implements Term, SDAST {
   }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return  v.forPair(this); }
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return  v.forPair(this); }
+  public int kind() { return K_PAIR; }
   public String toString() { return "[" + dist + "," + offset + "]"; }
 }
 
@@ -529,8 +568,20 @@ class SMap implements SDAST {
   SMap(int i, int a, SDAST b) { codeIdx = i; arity = a; body = b; }
   public int arity() { return arity; }
   public SDAST body() { return body; }
+  private final TierProfile profile = new TierProfile();
+  /** Returns the TierCompiler profile of this map */
+  TierProfile profile() { return profile; }
+  private int freeDepth = -1;
+  /** Returns the number of enclosing frames that the body refers to */
+  public int freeDepth() {
+    if (freeDepth < 0) freeDepth = FreeDepthVisitor.freeDepth(body);
+    return freeDepth;
+  }
+  boolean hasFreeDepth() { return freeDepth >= 0; }
+  void setFreeDepth(int d) { freeDepth = d; }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forSMap(this); }
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forSMap(this); }
+  public int kind() { return K_SMAP; }
   public String toString() {
     return "map [*" +  arity + "*] to " + body ;
   }
@@ -545,6 +596,7 @@ class SLet implements SDAST {
   public SDAST body() { return body; }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forSLet(this); }
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forSLet(this); }
+  public int kind() { return K_SLET; }
   public String toString() {
     return "let [*" + rhss.length + "*] " + ToString.toString(rhss,"; ") + "; in " + body;
   }
@@ -560,11 +612,64 @@ class SLetRec implements SDAST {
   public SDAST body() { return body; }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forSLetRec(this); }
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forSLetRec(this); }
+  public int kind() { return K_SLETREC; }
   public String toString() {
     return "letrec [*" +rhss.length +"*] " + ToString.toString(rhss,"; ") + "; in " + body;
   }
 }
 
+/** SDAST for a Jam letcc; its body is evaluated in a frame holding the current continuation */
+class SLetcc implements SDAST {
+  private SDAST body;
+  SLetcc(SDAST b) { body = b; }
+  public SDAST body() { return body; }
+  public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forSLetcc(this); }
+  public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forSLetcc(this); }
+  public int kind() { return K_SLETCC; }
+  public String toString() { return "letcc [*1*] in " + body; }
+}
+
+/** Computes how many frames outside of an SDAST it refers to.  It records the result for the body of each SMap that it
+  * walks, and does not walk the body of an SMap whose result is already known. */
+class FreeDepthVisitor extends TreeWalk<Integer> {
+
+  private FreeDepthVisitor() {}
+
+  /** Returns the number of frames outside of body that it refers to */
+  static int freeDepth(SDAST body) { return new FreeDepthVisitor().walk(body); }
+
+  AST[] subtrees(AST node) {
+    if (node instanceof SMap && ((SMap) node).hasFreeDepth()) return NONE;
+    return children(node);
+  }
+
+  Integer build(AST node, List<Integer> kids) {
+    int n = kids.size();
+    switch (node.kind()) {
+      case AST.K_PAIR: return ((Pair) node).dist();
+      case AST.K_SMAP:
+        SMap sm = (SMap) node;
+        if (! sm.hasFreeDepth()) sm.setFreeDepth(kids.get(0));
+        return outer(sm.freeDepth());
+      case AST.K_SLET: return Math.max(max(kids.subList(0, n-1)), outer(kids.get(n-1)));
+      case AST.K_SLETREC: return outer(max(kids));
+      case AST.K_SLETCC: return outer(kids.get(0));
+      case AST.K_VARIABLE: case AST.K_MAP: case AST.K_LET: case AST.K_LETREC: case AST.K_LETCC:
+        throw new SyntaxException(node + " is not an SDAST");
+      default: return max(kids);
+    }
+  }
+
+  /** Returns the free depth seen from outside a frame of a subtree with free depth d */
+  private static int outer(int d) { return Math.max(0, d - 1); }
+
+  private static int max(List<Integer> kids) {
+    int d = 0;
+    for (int k : kids) d = Math.max(d, k);
+    return d;
+  }
+}
+
 class ToString {
 
   public static String toString(Object[] a, String s) {
@@ -620,6 +725,7 @@ class NullConstant implements Token, Constant {
   private NullConstant() {}
 
   public <T> T accept(ASTVisitor<T> v) { return v.forNullConstant(this); }
+  public int kind() { return K_NULL; }
   public <T> T accept(SymASTVisitor<T> v) { return v.forNullConstant(this); }
   public <T> T accept(SDASTVisitor<T> v) { return v.forNullConstant(this); }
 
@@ -630,11 +736,25 @@ class NullConstant implements Token, Constant {
 class IntConstant implements Token, Constant, JamVal {
   private int value;
 
+  /** Canonical IntConstants for the integers from MIN_CACHED to MAX_CACHED */
+  static final int MIN_CACHED = -128, MAX_CACHED = 1023;
+  private static final IntConstant[] cache = new IntConstant[MAX_CACHED - MIN_CACHED + 1];
+  static {
+    for (int i = 0; i < cache.length; i++) cache[i] = new IntConstant(MIN_CACHED + i);
+  }
+
   IntConstant(int i) { value = i; } // duplicates can occur!
 
+  /** factory method that returns the canonical IntConstant for i if i is small, and a new one otherwise */
+  static IntConstant valueOf(int i) {
+    if (i >= MIN_CACHED && i <= MAX_CACHED) return cache[i - MIN_CACHED];
+    return new IntConstant(i);
+  }
+
   public int value() { return value; }
 
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forIntConstant(this); }
+  public int kind() { return K_INT; }
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forIntConstant(this); }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forIntConstant(this); }
 
@@ -642,11 +762,11 @@ class IntConstant implements Token, Constant, JamVal {
 
   /** redefines equals so that equal integers are recognized as equal */
   public boolean equals(Object other) {
-    return (other != null && this.getClass() == other.getClass()) &&
+    return other == this || (other != null && this.getClass() == other.getClass()) &&
       (value == ((IntConstant)other).value());
   }
   /** computes the obvious hashcode for this consistent with equals */
-  public int hashcode() { return value; }
+  public int hashCode() { return value; }
   public String toString() { return String.valueOf(value); }
 }
 
@@ -669,6 +789,7 @@ class BoolConstant implements Token, Constant, JamVal {
   public BoolConstant not() { if (this == FALSE) return TRUE; else return FALSE; }
 
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forBoolConstant(this); }
+  public int kind() { return K_BOOL; }
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forBoolConstant(this); }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forBoolConstant(this); }
 
@@ -763,46 +884,126 @@ class EmptyVarEnv extends Empty<Binding> implements VarEnv {
   }
 }
 
+/** A non-empty VarEnv.  Besides the list of its bindings, each node holds a VarTrie indexing the innermost binding
+  * of every variable in the list, so lookup takes at most seven steps and allocates nothing. */
 class ConsVarEnv extends Cons<Binding> implements VarEnv {
-  public ConsVarEnv(Binding b, VarEnv e) { super(b,e); }
+  private final VarTrie index;
+  public ConsVarEnv(Binding b, VarEnv e) {
+    super(b,e);
+    index = (e instanceof ConsVarEnv ? ((ConsVarEnv) e).index : VarTrie.EMPTY).put(b);
+  }
   public EmptyVarEnv empty() { return EmptyVarEnv.ONLY; }
   public ConsVarEnv cons(Binding b) { return new ConsVarEnv(b,this); }
   public JamVal lookup(Object key) {
-    Binding match = accept(new LookupVisitor<Binding>((Variable) key));
+    Binding match = index.get((Variable) key);
     if (match == null) throw new SyntaxException("Variable " + key + " not bound");
     return match.value();
   }
 }
 
-/* A Environment of SD Distance Bindings */
-interface SDEnv extends Environment, PureList<JamVal[]> {
-  EmptySDEnv empty();
-  ConsSDEnv cons(JamVal[] vals);
-}
-
-class EmptySDEnv extends Empty<JamVal[]> implements SDEnv {
-  public static final EmptySDEnv ONLY = new EmptySDEnv();
-  private EmptySDEnv() {}
-  public EmptySDEnv empty() { return ONLY; }
-  public ConsSDEnv cons(JamVal[] vals) { return new ConsSDEnv(vals,this); }
-  public JamVal lookup(Object key) {
-    throw new SyntaxException("Variable " + key + " not bound");
+/** A persistent hash array mapped trie from Variables to Bindings.  Variables are compared by identity (the lexer
+  * creates one Variable per name) and hashed by System.identityHashCode, five bits per level.  Each slot of a node
+  * holds a Binding, a child VarTrie, or, below the last level, a Binding[] of variables with equal hash codes.
+  * put copies only the nodes on the path to the new binding, so the trie of an enclosing environment is unchanged. */
+final class VarTrie {
+  static final VarTrie EMPTY = new VarTrie(0, new Object[0]);
+  private static final int BITS = 5, MAX_SHIFT = 30;
+
+  private final int bitmap;
+  private final Object[] slots;
+
+  private VarTrie(int bm, Object[] s) { bitmap = bm; slots = s; }
+
+  /** Returns the binding of v, or null if v is not bound */
+  Binding get(Variable v) {
+    int h = System.identityHashCode(v);
+    VarTrie node = this;
+    for (int shift = 0; ; shift += BITS) {
+      int bit = 1 << ((h >>> shift) & 31);
+      if ((node.bitmap & bit) == 0) return null;
+      Object o = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+      if (o instanceof Binding) return ((Binding) o).var() == v ? (Binding) o : null;
+      if (o instanceof VarTrie) { node = (VarTrie) o; continue; }
+      for (Binding b : (Binding[]) o) if (b.var() == v) return b;
+      return null;
+    }
+  }
+
+  /** Returns a trie with b added, replacing any binding of the same variable */
+  VarTrie put(Binding b) { return put(b, System.identityHashCode(b.var()), 0); }
+
+  private VarTrie put(Binding b, int h, int shift) {
+    int bit = 1 << ((h >>> shift) & 31);
+    int i = Integer.bitCount(bitmap & (bit - 1));
+    if ((bitmap & bit) == 0) {
+      Object[] s = new Object[slots.length + 1];
+      System.arraycopy(slots, 0, s, 0, i);
+      s[i] = b;
+      System.arraycopy(slots, i, s, i + 1, slots.length - i);
+      return new VarTrie(bitmap | bit, s);
+    }
+    Object o = slots[i];
+    Object replacement;
+    if (o instanceof Binding) {
+      Binding old = (Binding) o;
+      if (old.var() == b.var()) replacement = b;
+      else if (shift < MAX_SHIFT)
+        replacement = EMPTY.put(old, System.identityHashCode(old.var()), shift + BITS).put(b, h, shift + BITS);
+      else replacement = new Binding[] { b, old };
+    }
+    else if (o instanceof VarTrie) replacement = ((VarTrie) o).put(b, h, shift + BITS);
+    else {
+      Binding[] bucket = (Binding[]) o;
+      int j = 0;
+      while (j < bucket.length && bucket[j].var() != b.var()) j++;
+      Binding[] nb = Arrays.copyOf(bucket, j < bucket.length ? bucket.length : bucket.length + 1);
+      nb[j] = b;
+      replacement = nb;
+    }
+    Object[] s = slots.clone();
+    s[i] = replacement;
+    return new VarTrie(bitmap, s);
+  }
+}
+
+/* A Environment of SD Distance Bindings.  It is a display: frames[i] holds the values bound at static depth i, so a
+ * lookup at any static distance is a single array access.  Extending an environment copies its display, which
+ * stays short because closures capture only the frames that their bodies refer to. */
+interface SDEnv extends Environment {
+  SDEnv empty();
+  SDEnv cons(JamVal[] vals);
+  /** Returns the environment consisting of the innermost depth frames of this one */
+  SDEnv innermost(int depth);
+}
+
+class DisplaySDEnv implements SDEnv {
+  private final JamVal[][] frames;
+  DisplaySDEnv(JamVal[][] f) { frames = f; }
+  public SDEnv empty() { return EmptySDEnv.ONLY; }
+  public SDEnv cons(JamVal[] vals) {
+    JamVal[][] f = Arrays.copyOf(frames, frames.length + 1);
+    f[frames.length] = vals;
+    return new DisplaySDEnv(f);
+  }
+  public SDEnv innermost(int depth) {
+    int n = frames.length;
+    if (depth >= n) return this;
+    if (depth == 0) return EmptySDEnv.ONLY;
+    return new DisplaySDEnv(Arrays.copyOfRange(frames, n - depth, n));
   }
-}
-
-class ConsSDEnv extends Cons<JamVal[]> implements SDEnv {
-  public ConsSDEnv(JamVal[] vals, SDEnv e) { super(vals,e); }
-  public EmptySDEnv empty() { return EmptySDEnv.ONLY; }
-  public ConsSDEnv cons(JamVal[] vals) { return new ConsSDEnv(vals,this); }
   public JamVal lookup(Object key) {
     Pair p = (Pair) key;
-    Cons<JamVal[]> env = this;
-    int k = p.dist();
-    for (int i = 0; i < k; i++) env = (Cons<JamVal[]>) env.rest();
-    return env.first()[p.offset()];
+    int i = frames.length - 1 - p.dist();
+    if (i < 0) throw new SyntaxException("Variable " + key + " not bound");
+    return frames[i][p.offset()];
   }
 }
 
+class EmptySDEnv extends DisplaySDEnv {
+  public static final EmptySDEnv ONLY = new EmptySDEnv();
+  private EmptySDEnv() { super(new JamVal[0][]); }
+}
+
 /** A Jam list */
 interface JamList extends PureList<JamVal>, JamVal {
   JamEmpty empty();
@@ -899,10 +1100,14 @@ interface Closure {
   */
 abstract class PrimFun extends JamFun implements Token, Term {
   private String name;
-  PrimFun(String n) { name = n; }
+  private final int code;
+  PrimFun(String n, int c) { name = n; code = c; }
   public String name() { return name; }
+  /** Returns the VMCode primitive code of this primitive; the evaluators switch on it */
+  public int code() { return code; }
 
   public <RtnType> RtnType accept(ASTVisitor<RtnType> v) { return v.forPrimFun(this); }
+  public int kind() { return K_PRIM; }
   public <RtnType> RtnType accept(SymASTVisitor<RtnType> v) { return v.forPrimFun(this); }
   public <RtnType> RtnType accept(SDASTVisitor<RtnType> v) { return v.forPrimFun(this); }
 
@@ -935,57 +1140,57 @@ interface PrimFunVisitor<RtnType> {
 
 class FunctionPPrim extends PrimFun {
   public static final FunctionPPrim ONLY = new FunctionPPrim();
-  private FunctionPPrim() { super("function?"); }
+  private FunctionPPrim() { super("function?", VMCode.P_FUNCTIONP); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forFunctionPPrim(); }
 }
 class NumberPPrim extends PrimFun {
   public static final NumberPPrim ONLY = new NumberPPrim();
-  private NumberPPrim() { super("number?"); }
+  private NumberPPrim() { super("number?", VMCode.P_NUMBERP); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forNumberPPrim(); }
 }
 class ListPPrim extends PrimFun {
   public static final ListPPrim ONLY = new ListPPrim();
-  private ListPPrim() { super("list?"); }
+  private ListPPrim() { super("list?", VMCode.P_LISTP); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forListPPrim(); }
 }
 class ConsPPrim extends PrimFun {
   public static final ConsPPrim ONLY = new ConsPPrim();
-  private ConsPPrim() { super("cons?"); }
+  private ConsPPrim() { super("cons?", VMCode.P_CONSP); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forConsPPrim(); }
 }
 class NullPPrim extends PrimFun {
   public static final NullPPrim ONLY = new NullPPrim();
-  private NullPPrim() { super("null?"); }
+  private NullPPrim() { super("null?", VMCode.P_NULLP); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forNullPPrim(); }
 }
 class RefPPrim extends PrimFun {
   public static final RefPPrim ONLY = new RefPPrim();
-  private RefPPrim() { super("ref?"); }
+  private RefPPrim() { super("ref?", VMCode.P_REFP); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forRefPPrim(); }
 }
 class ArityPrim extends PrimFun {
   public static final ArityPrim ONLY = new ArityPrim();
-  private ArityPrim() { super("arity"); }
+  private ArityPrim() { super("arity", VMCode.P_ARITY); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forArityPrim(); }
 }
 class ConsPrim extends PrimFun {
   public static final ConsPrim ONLY = new ConsPrim();
-  private ConsPrim() { super("cons"); }
+  private ConsPrim() { super("cons", VMCode.P_CONS); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forConsPrim(); }
 }
 class FirstPrim extends PrimFun {
   public static final FirstPrim ONLY = new FirstPrim();
-  private FirstPrim() { super("first"); }
+  private FirstPrim() { super("first", VMCode.P_FIRST); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forFirstPrim(); }
 }
 class RestPrim extends PrimFun {
   public static final RestPrim ONLY = new RestPrim();
-  private RestPrim() { super("rest"); }
+  private RestPrim() { super("rest", VMCode.P_REST); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forRestPrim(); }
 }
 class AsBoolPrim extends PrimFun {
   public static final AsBoolPrim ONLY = new AsBoolPrim();
-  private AsBoolPrim() { super("asBool"); }
+  private AsBoolPrim() { super("asBool", VMCode.P_ASBOOL); }
   public <RtnType> RtnType accept(PrimFunVisitor<RtnType> pfv) { return pfv.forAsBoolPrim(); }
 }
 
@@ -1123,23 +1328,21 @@ class Bind implements Token {
   public static final Bind ONLY = new Bind();
 }
 
-/** Jam lexer class.              
+/** Jam lexer class.
   * Given a Lexer object, the next token in that input stream being processed by the Lexer is returned by static method
   * readToken(); it throws a ParseException (an extension of IOException) if it encounters a syntax error.  Calling
   * readToken() advances the cursor in the input stream to the next token.  The static method peek() in the Lexer class
   * has the same behavior as readToken() except for the fact that it does not advance the cursor.
+  *
+  * The lexer scans a char[] buffer refilled from its Reader, or the bytes of a file mapped into memory, which must
+  * be ASCII text.  Numbers are accumulated as ints, words are looked up in
+  * an open-addressed table keyed by their characters, and two-character operators are recognized by looking at the
+  * next character, so reading a token allocates nothing unless it is a new word or an uncached IntConstant.
   */
-class Lexer extends StreamTokenizer {
+class Lexer {
 
   /** Static Fields **/
 
-  /* Short names for StreamTokenizer codes */
-
-  public static final int WORD = StreamTokenizer.TT_WORD;
-  public static final int NUMBER = StreamTokenizer.TT_NUMBER;
-  public static final int EOF = StreamTokenizer.TT_EOF;
-  public static final int EOL = StreamTokenizer.TT_EOL;
-
   /** operator Tokens:
 
      <unop>  ::= <sign> | ~   | ! 
@@ -1180,64 +1383,112 @@ class Lexer extends StreamTokenizer {
   public static final KeyWord TO     = new KeyWord("to");
   public static final KeyWord LETCC   = new KeyWord("letcc");
 
+  /** A lexer whose word table holds only the keywords, primitives, and constants; every lexer starts with a copy of
+    * its table, so the table is built once rather than by each lexer.  It is never modified after it is built. */
+  private static final Lexer PROTOTYPE = new Lexer();
+
+  static final int BUFFER_SIZE = 8192;
+
   /** Fields **/
 
-  /** The Reader from which this lexer reads. */
-  public final Reader rdr;
+  /** The Reader from which this lexer reads, or null if it reads bytes. */
+  public Reader rdr;
+
+  /* The word table for classifying words (identifiers/operators) in the token stream: an open-addressed table of the
+   * words seen so far, holding the characters, String hash code, and token of each word */
+  private char[][] words;
+  private int[] hashes;
+  private Token[] wordTokens;
+  private int wordCount;
 
-  /** The wordtable for classifying words (identifiers/operators) in token stream */
-  public HashMap<String,Token>  wordTable = new HashMap<String,Token>();
+  /* The input: chars[pos] through chars[limit-1] have been read from rdr but not scanned, or, if bytes is not null,
+   * bytes[pos] through bytes[limit-1] have not been scanned */
+  private char[] chars;
+  private ByteBuffer bytes;
+  private int pos;
+  private int limit;
 
-  /* Lexer peek cannot be implemented using StreamTokenizer pushBack because some Jam Tokens are composed of two
-   * StreamTokenizer tokens. */
+  /* The characters of the word being scanned */
+  private char[] word = new char[32];
 
   Token buffer;  // saves token for peek() operation
 
   /* Constructors */
 
+  /** Constructs PROTOTYPE */
+  private Lexer() {
+    words = new char[64][];
+    hashes = new int[64];
+    wordTokens = new Token[64];
+    initWordTable();
+  }
+
   /** Primary constructor that takes a specified input stream; all other constructors instantiate this one. */
   Lexer(Reader inputStream) {
-    super(new BufferedReader(inputStream));
     rdr = inputStream;
+    chars = new char[BUFFER_SIZE];
+    bytes = null;
     initLexer();
   }
 
-  Lexer(String fileName) throws IOException {
-    this(new FileReader(fileName));
+  /** Constructs a lexer that scans the ASCII text in bytes from its position to its limit, without copying it */
+  Lexer(ByteBuffer bytes) {
+    rdr = null;
+    chars = null;
+    this.bytes = bytes;
+    pos = bytes.position();
+    limit = bytes.limit();
+    initLexer();
   }
 
-  private void initLexer() {
-
-    /* Configure StreamTokenizer portion of this. */
-    /* `+' `-' `*' `/' `~' `=' `<' `>' `&' `|' `:' `;' `,' '!' `(' `)' `[' `]' are ordinary characters */
-
-    resetSyntax();             // makes all characters "ordinary"
-    parseNumbers();            // makes digits and - "numeric" (which is disjoint from "ordinary")
-    ordinaryChar('-');         // eliminates '-' from number parsing and makes it "ordinary"
-    slashSlashComments(true);  // enables slash-slash comments as in C++
-    slashStarComments(true);   // enables slash-asterisk comments as in C
-
-    /* Identify chars that appear in identifiers (words) */
-    wordChars('0', '9');
-    wordChars('a', 'z');
-    wordChars('A', 'Z');
-    wordChars('_', '_');
-    wordChars('?', '?');
+  /** Constructs a lexer that scans the named file, which is mapped into memory */
+  Lexer(String fileName) throws IOException {
+    this(map(fileName));
+  }
 
-    /* Identify whitespace */
-    whitespaceChars(0, ' ');
+  /** Maps the named file into memory */
+  static ByteBuffer map(String fileName) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) throw new IOException(fileName + " is too large to map: " + size + " bytes");
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+  }
 
-    /* Initialize table of words that function as specific tokens (keywords) including "<=", ">=", "!=" */
-    initWordTable();
+  private void initLexer() {
+    /* Initialize table of words that function as specific tokens (keywords) */
+    words = PROTOTYPE.words.clone();
+    hashes = PROTOTYPE.hashes.clone();
+    wordTokens = PROTOTYPE.wordTokens.clone();
+    wordCount = PROTOTYPE.wordCount;
 
     /* Initialize buffer supporting the peek() operation */
     buffer = null;  // buffer initially empty
   }
 
-  public void flush() throws IOException {
-    eolIsSignificant(true);
-    while (nextToken() != EOL) ; // eat tokens until EOL
-    eolIsSignificant(false);
+  /** Makes this lexer scan inputStream from its beginning, reusing its buffers.  The variables interned for the
+    * previous input are dropped from the word table. */
+  void reset(Reader inputStream) {
+    rdr = inputStream;
+    bytes = null;
+    if (chars == null) chars = new char[BUFFER_SIZE];
+    pos = limit = 0;
+    if (wordCount != PROTOTYPE.wordCount) initLexer();
+    buffer = null;
+  }
+
+  /** Returns a map from each word in the word table, the keywords, primitives, and constants and the variables
+    * interned so far, to its token */
+  public HashMap<String,Token> wordTable() {
+    HashMap<String,Token> table = new HashMap<String,Token>();
+    for (int i = 0; i < words.length; i++) if (words[i] != null) table.put(new String(words[i]), wordTokens[i]);
+    return table;
+  }
+
+  /** Skips the rest of the current line */
+  public void flush() {
+    int c;
+    do c = read(); while (c != '\n' && c != -1);
   }
 
   public Token peek() {
@@ -1247,28 +1498,149 @@ class Lexer extends StreamTokenizer {
 
   /** Find variable with name sval; create one if none exists */
   public Token intern(String sval) {
-    Token regToken = wordTable.get(sval);
-    if (regToken == null) { // sval must be new variable name
-      Variable newVar = new Variable(sval);
-      wordTable.put(sval,newVar);
-      return newVar;
-    }
-    return regToken;
+    int n = sval.length();
+    if (word.length < n) word = new char[n];
+    sval.getChars(0, n, word, 0);
+    return lookup(n, sval.hashCode());
+  }
+
+  /** Returns the next character of the input without consuming it, or -1 at the end of the input */
+  private int peekChar() {
+    if (pos == limit && ! fill()) return -1;
+    return bytes == null ? chars[pos] : bytes.get(pos) & 0xFF;
+  }
+
+  /** Consumes and returns the next character of the input, or -1 at the end of the input */
+  private int read() {
+    if (pos == limit && ! fill()) return -1;
+    return bytes == null ? chars[pos++] : bytes.get(pos++) & 0xFF;
   }
 
-  /** Wrapper method for nextToken that converts IOExceptions thrown by nextToken to ParseExceptions. */
-  private int getToken() {
+  /** Refills chars from rdr; returns false at the end of the input */
+  private boolean fill() {
+    if (bytes != null) return false;
     try {
-      return nextToken();
+      int n = rdr.read(chars, 0, chars.length);
+      if (n <= 0) return false;
+      pos = 0;
+      limit = n;
+      return true;
     } catch(IOException e) {
-      throw new ParseException("IOException " + e + "thrown by nextToken()");
+      throw new ParseException("IOException " + e + "thrown by read()");
     }
   }
 
-   /* Uses getToken() to read next token and constructs Token object representing that token. */
+  private static boolean isWordChar(int c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '?';
+  }
+
+  /** Skips whitespace and comments; returns the first character of the next token, or -1 at the end of the input */
+  private int skip() {
+    while (true) {
+      int c = read();
+      if (c == -1) return -1;
+      if (c <= ' ') continue;
+      if (c != '/') return c;
+      int d = peekChar();
+      if (d == '/') flush();
+      else if (d == '*') {
+        read();
+        /* an unterminated comment extends to the end of the input */
+        for (int prev = 0; (c = read()) != -1 && ! (prev == '*' && c == '/'); prev = c) ;
+      }
+      else return '/';
+    }
+  }
+
+  /** Returns the token for the word in word[0..n-1], whose String hash code is h, adding a Variable if it is new */
+  private Token lookup(int n, int h) {
+    int mask = words.length - 1;
+    for (int i = h & mask; ; i = (i + 1) & mask) {
+      char[] w = words[i];
+      if (w == null) break;
+      if (hashes[i] == h && w.length == n && matches(w, n)) return wordTokens[i];
+    }
+    String name = new String(word, 0, n);
+    Variable newVar = new Variable(name);
+    add(name, newVar);
+    return newVar;
+  }
+
+  private boolean matches(char[] w, int n) {
+    for (int j = 0; j < n; j++) if (w[j] != word[j]) return false;
+    return true;
+  }
+
+  /** Adds the word name, which is not in the table, with token t */
+  private void add(String name, Token t) {
+    if (2 * (wordCount + 1) > words.length) grow();
+    insert(name.toCharArray(), name.hashCode(), t);
+  }
+
+  private void insert(char[] w, int h, Token t) {
+    int mask = words.length - 1;
+    int i = h & mask;
+    while (words[i] != null) i = (i + 1) & mask;
+    words[i] = w;
+    hashes[i] = h;
+    wordTokens[i] = t;
+    wordCount++;
+  }
+
+  private void grow() {
+    char[][] oldWords = words;
+    int[] oldHashes = hashes;
+    Token[] oldTokens = wordTokens;
+    words = new char[2 * oldWords.length][];
+    hashes = new int[words.length];
+    wordTokens = new Token[words.length];
+    wordCount = 0;
+    for (int i = 0; i < oldWords.length; i++) if (oldWords[i] != null) insert(oldWords[i], oldHashes[i], oldTokens[i]);
+  }
+
+  /** Scans the rest of a word whose first character is c */
+  private Token readWord(int c) {
+    int n = 0;
+    int h = 0;
+    while (true) {
+      if (n == word.length) word = Arrays.copyOf(word, 2 * n);
+      word[n++] = (char) c;
+      h = 31 * h + c;
+      c = peekChar();
+      if (! isWordChar(c)) return lookup(n, h);
+      pos++;
+    }
+  }
+
+  /** Scans the rest of a number whose first digit is c */
+  private IntConstant readNumber(int c) {
+    long value = c - '0';
+    StringBuilder digits = null;  // the digits of a number that is too large, for the error message
+    while (true) {
+      c = peekChar();
+      if (c < '0' || c > '9') break;
+      pos++;
+      if (digits == null) {
+        value = 10 * value + (c - '0');
+        if (value > Integer.MAX_VALUE) digits = new StringBuilder(Long.toString(value / 10));
+      }
+      if (digits != null) digits.append((char) c);
+    }
+    if (digits != null) throw new ParseException("The number " + digits + " is not a 32 bit integer");
+    return IntConstant.valueOf((int) value);
+  }
+
+  /** Returns OpToken t2 if the next character is c, consuming it, and t1 otherwise */
+  private OpToken pair(int c, OpToken t2, OpToken t1) {
+    if (peekChar() != c) return t1;
+    pos++;
+    return t2;
+  }
+
+   /* Scans the next token and returns the Token object representing it. */
   public Token readToken() {
 
-    /* NOTE: the token representations for all Token classes except IntConstant are unique; a HashMap is used to avoid
+    /* NOTE: the token representations for all Token classes except IntConstant are unique; a table is used to avoid
      * duplication. Hence, == can safely be used to compare all Tokens except IntConstants for equality
      */
 
@@ -1278,24 +1650,11 @@ class Lexer extends StreamTokenizer {
       return token;
     }
 
-    int tokenType = getToken();
-    switch (tokenType) {
-      case NUMBER:
-        int value = (int) nval;
-        if (nval == (double) value) return new IntConstant(value);
-        throw new ParseException("The number " + nval + " is not a 32 bit integer");
-
-      case WORD:
-        Token regToken = wordTable.get(sval);
-        if (regToken == null) { // sval must be new variable name
-          Variable newVar = new Variable(sval);
-          wordTable.put(sval,newVar);
-          return newVar;
-        }
-
-        return regToken;
-
-      case EOF: return null;
+    int c = skip();
+    if (c >= '0' && c <= '9') return readNumber(c);
+    if (isWordChar(c)) return readWord(c);
+    switch (c) {
+      case -1: return null;
       case '(': return LeftParen.ONLY;
       case ')': return RightParen.ONLY;
       case '[': return LeftBrack.ONLY;
@@ -1313,32 +1672,23 @@ class Lexer extends StreamTokenizer {
       case '~': return NOT;
       case '=': return EQUALS;
       case '<':
-        tokenType = getToken();
-        if (tokenType == '=') return LESS_THAN_EQUALS;
-        if (tokenType == '-') return GETS;
-        pushBack();
-        return LESS_THAN;
-      case '>':
-        tokenType = getToken();
-        if (tokenType == '=') return GREATER_THAN_EQUALS;
-        pushBack();
-        return GREATER_THAN;
-      case '!':
-        tokenType = getToken();
-        if (tokenType == '=') return NOT_EQUALS;
-        pushBack();
-        return BANG;
+        if (peekChar() == '-') {
+          pos++;
+          return GETS;
+        }
+        return pair('=', LESS_THAN_EQUALS, LESS_THAN);
+      case '>': return pair('=', GREATER_THAN_EQUALS, GREATER_THAN);
+      case '!': return pair('=', NOT_EQUALS, BANG);
       case '&': return AND;
       case '|': return OR;
-      case ':': {
-        tokenType = getToken();
-        if (tokenType == '=') return Bind.ONLY;
-        pushBack();
+      case ':':
+        if (peekChar() == '=') {
+          pos++;
+          return Bind.ONLY;
+        }
         throw new ParseException("`:' is not a legal token");
-      }
       default:
-        throw new
-        ParseException("`" + ((char) tokenType) + "' is not a legal token");
+        throw new ParseException("`" + ((char) c) + "' is not a legal token");
     }
   }
 
@@ -1350,38 +1700,38 @@ class Lexer extends StreamTokenizer {
        <bool>  ::= true | false
      */
 
-    wordTable.put("null",  NullConstant.ONLY);
-    wordTable.put("true",  BoolConstant.TRUE);
-    wordTable.put("false", BoolConstant.FALSE);
+    add("null",  NullConstant.ONLY);
+    add("true",  BoolConstant.TRUE);
+    add("false", BoolConstant.FALSE);
 
     /* Primitive functions + ref unary operator:
      * <prim>  ::= number? | function? | list? | null? | cons? | ref? | arity | cons | first | rest
      * Note: ref is not <prim>; it is a unary operator */
 
-    wordTable.put("number?",   NumberPPrim.ONLY);
-    wordTable.put("function?", FunctionPPrim.ONLY);
-    wordTable.put("list?",     ListPPrim.ONLY);
-    wordTable.put("null?",     NullPPrim.ONLY);
-    wordTable.put("cons?",     ConsPPrim.ONLY);
-    wordTable.put("ref?",      RefPPrim.ONLY);   // Supports addition of ref cells to Jam.
-    wordTable.put("arity",     ArityPrim.ONLY);
-    wordTable.put("cons",      ConsPrim.ONLY);
-    wordTable.put("first",     FirstPrim.ONLY);
-    wordTable.put("rest",      RestPrim.ONLY);
+    add("number?",   NumberPPrim.ONLY);
+    add("function?", FunctionPPrim.ONLY);
+    add("list?",     ListPPrim.ONLY);
+    add("null?",     NullPPrim.ONLY);
+    add("cons?",     ConsPPrim.ONLY);
+    add("ref?",      RefPPrim.ONLY);   // Supports addition of ref cells to Jam.
+    add("arity",     ArityPrim.ONLY);
+    add("cons",      ConsPrim.ONLY);
+    add("first",     FirstPrim.ONLY);
+    add("rest",      RestPrim.ONLY);
 
     /* "ref' is the only unary operator that is an identifier */
-    wordTable.put("ref",       REF);             // Supports addition of ref cells to Jam.
+    add("ref",       REF);             // Supports addition of ref cells to Jam.
 
     /* keywords: if then else let letrec in map to letcc*/
-    wordTable.put("if",   IF);
-    wordTable.put("then", THEN);
-    wordTable.put("else", ELSE);
-    wordTable.put("let",  LET);
-    wordTable.put("letrec", LETREC);             // Supports addition of separate letrec to Jam
-    wordTable.put("in",   IN);
-    wordTable.put("map",  MAP);
-    wordTable.put("to",   TO);
-    wordTable.put("letcc", LETCC);               // Supports addition of letcc to Jam
+    add("if",   IF);
+    add("then", THEN);
+    add("else", ELSE);
+    add("let",  LET);
+    add("letrec", LETREC);             // Supports addition of separate letrec to Jam
+    add("in",   IN);
+    add("map",  MAP);
+    add("to",   TO);
+    add("letcc", LETCC);               // Supports addition of letcc to Jam
   }
 
   public static void main(String[] args) throws IOException {
@@ -1422,81 +1772,46 @@ class Parser {
    /** CPS'ed program */
   SDAST statCpsProg;
 
-  private HashMap<PrimFun, SymAST> primTable = new HashMap<PrimFun, SymAST> ();
-  private HashMap<Op, SymAST> opTable = new HashMap<Op, SymAST> ();
-
-  private Token ifKey;
-  private Token thenKey;
-  private Token elseKey;
-  private Token letKey;
-  private Token letrecKey;
-  private Token inKey;
-  private Token mapKey;
-  private Token toKey;
-  private Token assignKey;
-  private Token letccKey;
+  /** Program in A-normal form */
+  SymAST anfProg;
+  SDAST statAnfProg;
+
+  private static final Token ifKey     = Lexer.IF;
+  private static final Token thenKey   = Lexer.THEN;
+  private static final Token elseKey   = Lexer.ELSE;
+  private static final Token letKey    = Lexer.LET;
+  private static final Token letrecKey = Lexer.LETREC;
+  private static final Token inKey     = Lexer.IN;
+  private static final Token mapKey    = Lexer.MAP;
+  private static final Token toKey     = Lexer.TO;
+  private static final Token assignKey = Bind.ONLY;
+  private static final Token letccKey  = Lexer.LETCC;
 
   /** Counter for generated variable names in CPS conversion */
-  private int genVarCtr;
+  private int genVarCtr = -1;  // incremented prior to use; first value will be zero
 
-  /** Fixed variable names used in CPS conversion */
-  private Variable x;
-  private Variable y;
-  private Variable k;
+  /** Fixed variable names used in CPS conversion; they are not interned, since they only occur in generated code */
+  private static final Variable x = new Variable("x");
+  private static final Variable y = new Variable("y");
+  private static final Variable k = new Variable("k");
 
-  /** identity fn and visitors for CPS conversion */
-  private SymAST identity;
-  private SymASTVisitor<SymAST> convertToCPS;
-  SymASTVisitor<Boolean> isSimple;
-  SymASTVisitor<SymAST> reshape;
-  SConverter sConverter;
+  private static final PrimFun arityFun = ArityPrim.ONLY;
+  private static final BinOp minusOp = BinOpMinus.ONLY;
+  private static final IntConstant one = IntConstant.valueOf(1);
 
-  private PrimFun arityFun;
-  private BinOp minusOp;
-  private IntConstant one;
+  /** Symbolic abstract syntax for identity function; each Parser has its own, since programs run it */
+  private final SymAST identity = new Map(new Variable[]{x},x);
 
-  Parser(Lexer i) {
-    in = i;
-    initParser();
-  }
+  /** The CPS forms of the primitives and operators.  Like the tables of the Lexer, they are built once and shared by
+    * all Parsers, and they are not modified after the class is initialized.  No program runs the Maps in them: a
+    * Parser converts programs with its own copies of the Maps (see cpsPrim), which carry its own TierProfiles. */
+  private static final HashMap<PrimFun, SymAST> primTable = new HashMap<PrimFun, SymAST> ();
+  private static final HashMap<Op, SymAST> opTable = new HashMap<Op, SymAST> ();
 
-  Parser(Reader inputStream) {
-    this(new Lexer(inputStream));
-  }
-
-  Parser(String fileName) throws IOException {
-    this(new FileReader(fileName));
-  }
-
-  Lexer lexer() { return in; }
-
-  private void initParser() {
-    ifKey     = in.wordTable.get("if");
-    thenKey   = in.wordTable.get("then");
-    elseKey   = in.wordTable.get("else");
-    letKey    = in.wordTable.get("let");
-    letrecKey = in.wordTable.get("letrec");
-    inKey     = in.wordTable.get("in");
-    mapKey    = in.wordTable.get("map");
-    toKey     = in.wordTable.get("to");
-    assignKey = in.wordTable.get(":=");
-    letccKey  = in.wordTable.get("letcc");
-
-    arityFun  = ArityPrim.ONLY;
-    minusOp   = BinOpMinus.ONLY;
-
-    one       = new IntConstant(1);
-
-
-
-    /* Counter for fresh variable generation. */
-    genVarCtr = -1;  // incremented prior to use; first value will be zero
-
-    /* Fixed variable names used in CPS transformation and identity, */
-    x = (Variable) in.intern("x");
-    y = (Variable) in.intern("y");
-    k = (Variable) in.intern("k");
+  /** This Parser's copies of the Maps in primTable, made when a primitive is first converted to CPS; reset keeps them */
+  private HashMap<PrimFun, SymAST> cpsPrims;
 
+  static {
     /* Insert only binary primitive in primTable. */
     insertBinPrim(ConsPrim.ONLY);
 
@@ -1504,9 +1819,6 @@ class Parser {
     SymAST arityExp = new BinOpApp(minusOp, new App(arityFun, new SymAST[] {x}), one);
     primTable.put(arityFun, new Map(new Variable[]{x,k}, new App(k, new SymAST[] {arityExp})));
 
-    /* Symbolic abstract syntax for identity function */
-    identity = new Map(new Variable[]{x},x);
-
     insertUnaryPrim(NumberPPrim.ONLY);
     insertUnaryPrim(FunctionPPrim.ONLY);
     insertUnaryPrim(ListPPrim.ONLY);
@@ -1533,37 +1845,76 @@ class Parser {
     insertUnOp(OpTilde.ONLY);
     insertUnOp(UnOpPlus.ONLY);
     insertUnOp(UnOpMinus.ONLY);
-//    System.err.println(opTable.get(UnOpMinus.ONLY));
+  }
 
-    /* Visitors that perform syntactic processing. */
-    convertToCPS = new ConvertToCPS(identity);
-    reshape = new Reshape();
-    isSimple = new IsSimple();
-    sConverter = new SConverter();
+  /** Visitors for CPS conversion; IsSimple has no state, so one instance is shared */
+  static final SymASTVisitor<Boolean> isSimple = new IsSimple();
+  final SymASTVisitor<SymAST> reshape = new Reshape();
+  SConverter sConverter = new SConverter();
+
+  Parser(Lexer i) {
+    in = i;
+  }
+
+  Parser(Reader inputStream) {
+    this(new Lexer(inputStream));
+  }
+
+  /** Constructs a Parser for the named file, which is mapped into memory */
+  Parser(String fileName) throws IOException {
+    this(new Lexer(fileName));
+  }
+
+  Lexer lexer() { return in; }
+
+  /** Makes this Parser process the program(s) in inputStream, reusing its Lexer and its own state; the previous
+    * program and the results computed from it are discarded. */
+  void reset(Reader inputStream) {
+    in.reset(inputStream);
+    clear();
   }
 
   private Variable genVariable() {
     /* Assert that generated name is fresh if all input read by parser is legal Jam source text */
     genVarCtr++;
-    return (Variable) in.intern(":" + genVarCtr);
+    return new Variable(":" + genVarCtr);  // Variables are compared by identity, so it need not be interned
   }
 
   /* Parses and checks embedded programin and returns the SymAST for the program. */
   public SymAST checkProg() {
     if (checkProg != null) return checkProg;
     SymAST prog = parseProg();
-    checkProg = prog.accept(CheckVisitor.INITIAL);   // aborts on an error by throwing an exception
+    checkProg = CheckVisitor.check(prog);   // aborts on an error by throwing an exception
     return checkProg;
   }
 
-  /* Parses embedded program to a SYMAST, checks it, converts it to CPS, and returns result. */
+  /* Parses embedded program to a SYMAST, checks it, converts it to CPS, and returns result.  In a program using letcc,
+   * only the parts that can reach a continuation are converted, unless a continuation may escape them (see
+   * ContinuationReach); the rest is left in direct style. */
   public SymAST cpsProg() {
     if (cpsProg != null) return cpsProg;
     checkProg();
-    cpsProg = convertToCPS(checkProg, identity);
+    Set<Variable> cpsFuns = ContinuationReach.cpsFuns(checkProg);
+    cpsProg = cpsFuns == null ? fullCpsProg() : checkProg.accept(new SelectiveStyle(cpsFuns).direct);
     return cpsProg;
   }
 
+  /* Parses embedded program to a SYMAST, checks it, and converts all of it to CPS. */
+  public SymAST fullCpsProg() {
+    checkProg();
+    return onePassCPS(checkProg, topCont, new CpsStyle());
+  }
+
+  /* Parses embedded program to a SYMAST, checks it, converts it to CPS, and simplifies the result with CpsOptimizer. */
+  public SymAST optCpsProg() { return CpsOptimizer.optimize(cpsProg()); }
+
+  /* Parses embedded program to a SYMAST, checks it, and converts it to CPS with the classic conversion.  Unlike
+   * cpsProg, it recurses on the Java stack for each level of the program. */
+  public SymAST classicCpsProg() {
+    checkProg();
+    return convertToCPS(checkProg, identity);
+  }
+
   /* Parses and checks the input program embedded in the Parser and returns the corresponding SD representation. */
   public SDAST statCheckProg() {
     if(statCheckProg != null) return statCheckProg;
@@ -1576,12 +1927,49 @@ class Parser {
   /* Parses embedded program to a SYMAST, checks it, converts it to CPS, converts it to SD form, and returns it. */
   public SDAST statCpsProg() {
     if (statCpsProg != null) return statCpsProg;
-    cpsProg();
-    statCpsProg = sConverter.convert(cpsProg);
+    statCpsProg = sConverter.convert(optCpsProg());
 //    System.err.println(statCpsProg);
     return statCpsProg;
   }
 
+  /* Parses embedded program to a SYMAST, checks it, converts it to A-normal form, and returns the result. */
+  public SymAST anfProg() {
+    if (anfProg != null) return anfProg;
+    checkProg();
+    anfProg = anf(checkProg);
+    return anfProg;
+  }
+
+  /* Parses embedded program to a SYMAST, checks it, converts it to A-normal form, converts it to SD form, and returns
+   * it. */
+  public SDAST statAnfProg() {
+    if (statAnfProg != null) return statAnfProg;
+    statAnfProg = sConverter.convert(anfProg());
+    return statAnfProg;
+  }
+
+  /* Discards the current program and the results computed from it, and parses the next program in the input stream,
+   * which holds a sequence of programs separated (and optionally terminated) by `;'.  Returns the parsed program, or
+   * null at the end of the input; checkProg(), statCheckProg(), etc. then process that program.  The Lexer, its
+   * tables, and the tables built by initParser are reused, so a batch of small programs can be processed without
+   * building a Parser for each of them; only the variable names interned by the Lexer accumulate. */
+  public SymAST nextProg() {
+    clear();
+    if (in.peek() == null) return null;
+    prog = parseExp();
+    Token t = in.readToken();
+    if (t == null || t == SemiColon.ONLY) return prog;
+    else throw new ParseException("Legal program \n" + prog + "\n followed by token " + t + " instead of `;'");
+  }
+
+  /** Discards the current program and the results computed from it */
+  private void clear() {
+    prog = checkProg = cpsProg = anfProg = null;
+    statCheckProg = statCpsProg = statAnfProg = null;
+    genVarCtr = -1;   // each program gets the generated names that a new Parser would give it
+    sConverter = new SConverter();
+  }
+
   /* Parses the input program into a SymAST */
   public SymAST parseProg() {
     if (prog != null) return prog;
@@ -1591,166 +1979,239 @@ class Parser {
     else throw new ParseException("Legal program \n" + prog + "\n followed by extra token " + t);
   }
 
-  /* Parses the next Jam expression in the input stream (assuming no tokne in that expression has yet been read) */
-  private SymAST parseExp() {
+  /* The parser below is a recursive descent parser for the grammar
 
-    Token token = in.readToken();
-    
-    /* <exp> :: = if <exp> then <exp> else <exp>
-                | let <prop-def-list> in <exp>
-                | map <id-list> to <exp>
-                | <term> { <biop> <term> }*  // (left associatively!)
-    */
+       <exp>      ::= if <exp> then <exp> else <exp>
+                    | let <prop-def-list> in <exp>
+                    | letrec <prop-def-list> in <exp>
+                    | letcc <id> in <exp>
+                    | map <id-list> to <exp>
+                    | { <prop-exp-list> }
+                    | <term> { <binop> <term> }*  // (left associatively!)
+       <term>     ::= { <unop> } <term> | <constant> | <factor> {( <exp-list> )}
+       <factor>   ::= <prim> | <variable> | ( <exp> )
+       <def>      ::= <id> := <exp> ;
 
-    if (token == ifKey) return parseIf();
-    if (token == letrecKey) return parseLetRec();
-    if (token == letccKey) return parseLetcc();
-    if (token == letKey) return parseLet();
-    if (token == mapKey) return parseMap();
+     in which the recursion is kept on an explicit stack of Pending constructs rather than the Java stack, so the depth
+     of the programs that it can parse is limited only by the heap.  Each Pending construct waits for an expression
+     (or, after a unary or binary operator, a term) and records what has been parsed of it so far. */
 
-    if (token == LeftBrace.ONLY) {
-      SymAST[] exps = parseExps(SemiColon.ONLY,RightBrace.ONLY);   // including closing brace
-      if (exps.length == 0) throw new ParseException("Illegal empty block");
-      return new Block(exps);
-    }
+  private static final int IF_TEST = 0, IF_CONSEQ = 1, IF_ALT = 2, DEF_RHS = 3, LET_BODY = 4, LETCC_BODY = 5,
+    MAP_BODY = 6, BLOCK_EXP = 7, PAREN_EXP = 8, ARG_EXP = 9, UNOP_TERM = 10, BINOP_TERM = 11;
 
-    SymAST exp = parseTerm(token);
+  /** A construct whose parse is waiting for an expression or term */
+  private static final class Pending {
+    int kind;
+    SymAST first, second;       // the test and conseq of an if; the left operand of a binop; the rator of an app
+    OpToken op;                 // the operator of a unop or binop
+    Variable var;               // the variable of a letcc or of the def being parsed
+    Variable[] vars;            // the parameters of a map
+    boolean rec;                // true for a letrec
+    ArrayList<SymAST> exps;     // the exps of a block or the args of an app parsed so far
+    ArrayList<Def> defs;        // the defs of a let or letrec parsed so far
 
-    Token next = in.peek();
-    while (next instanceof OpToken) {
-      OpToken op = (OpToken) next;
-      in.readToken(); // remove next from input stream
-      if (! (op.isBinOp())) error(next, "binary operator");
-      AST newTerm = parseTerm(in.readToken());
-      exp = new BinOpApp(op.toBinOp(), exp, newTerm);
-//      System.err.println("exp updated to: " + exp);
-      next = in.peek();
-    }
-//    System.err.println("parseTerm returning " + exp);
-    return exp;
+    Pending(int kind) { this.kind = kind; }
   }
 
-  private SymAST parseTerm(Token token) {
-    
-    /* <term>     ::= { <unop> } <term> | <constant> | <factor> {( <exp-list> )} 
-       <constant> ::= <null> | <int> | <bool>
-     */
-
-    if (token instanceof OpToken) {
-      OpToken op = (OpToken) token;
-      if (! op.isUnOp()) error(op,"unary operator");
-      return new UnOpApp(op.toUnOp(), parseTerm(in.readToken()));
-    }
-
-    if (token instanceof Constant) return (Constant) token;
+  /* Kinds of phrase that the parser has just completed */
+  private static final int FACTOR = 0, TERM = 1, EXP = 2;
 
-    SymAST factor = parseFactor(token);
+  /* Parses the next Jam expression in the input stream (assuming no token in that expression has yet been read) */
+  private SymAST parseExp() {
+    ArrayList<Pending> stack = new ArrayList<Pending>();
+    boolean wantExp = true;  // false if a term is required, after a unary or binary operator
+
+    while (true) {
+      /* Read the beginning of an exp (or a term), pushing a Pending construct for anything that contains one */
+      Token token = in.readToken();
+      if (wantExp) {
+        if (token == ifKey) { stack.add(new Pending(IF_TEST)); continue; }
+        if (token == letKey || token == letrecKey) {
+          Pending p = new Pending(DEF_RHS);
+          p.rec = token == letrecKey;
+          p.defs = new ArrayList<Def>();
+          startDef(p, in.readToken());
+          stack.add(p);
+          continue;
+        }
+        if (token == letccKey) {
+          Token var = in.readToken();
+          if (! (var instanceof Variable)) error(var,"variable");
+          Token t = in.readToken();
+          if (t != inKey) error(t,"`in'");
+          Pending p = new Pending(LETCC_BODY);
+          p.var = (Variable) var;
+          stack.add(p);
+          continue;
+        }
+        if (token == mapKey) {
+          Pending p = new Pending(MAP_BODY);
+          p.vars = parseVars();  // consumes the delimiter `to'
+          stack.add(p);
+          continue;
+        }
+        if (token == LeftBrace.ONLY) {
+          if (in.peek() == RightBrace.ONLY) throw new ParseException("Illegal empty block");
+          Pending p = new Pending(BLOCK_EXP);
+          p.exps = new ArrayList<SymAST>();
+          stack.add(p);
+          continue;
+        }
+      }
 
-    Token next = in.peek();
-    if (next == LeftParen.ONLY) {
-      in.readToken();  // remove next from input stream
-      SymAST[] exps = parseArgs();  // including closing paren
-      return new App(factor,exps);
-    }
-    return factor;
-  }
+      /* <term> */
+      while (token instanceof OpToken) {
+        OpToken op = (OpToken) token;
+        if (! op.isUnOp()) error(op,"unary operator");
+        Pending p = new Pending(UNOP_TERM);
+        p.op = op;
+        stack.add(p);
+        token = in.readToken();
+      }
+      SymAST value;
+      int phrase;
+      if (token instanceof Constant) {
+        value = (Constant) token;
+        phrase = TERM;
+      }
+      else if (token == LeftParen.ONLY) {
+        stack.add(new Pending(PAREN_EXP));
+        wantExp = true;
+        continue;
+      }
+      else {
+        if (! (token instanceof PrimFun) && ! (token instanceof Variable))
+          error(token,"constant, primitive, variable, or `('");
+        value = (SymAST) token;
+        phrase = FACTOR;
+      }
 
-  private SymAST parseFactor(Token token) {
+      /* Pass the completed phrase to the Pending constructs, completing them in turn, until one needs more input */
+      while (true) {
+        if (phrase == FACTOR) {
+          if (in.peek() == LeftParen.ONLY) {
+            in.readToken();  // remove `(' from input stream
+            if (in.peek() != RightParen.ONLY) {
+              Pending p = new Pending(ARG_EXP);
+              p.first = value;
+              p.exps = new ArrayList<SymAST>();
+              stack.add(p);
+              wantExp = true;
+              break;
+            }
+            in.readToken();  // consume `)'
+            value = new App(value, new SymAST[0]);
+          }
+          phrase = TERM;
+        }
 
-    // <factor>   ::= <prim> | <variable> | ( <exp> )
+        Pending top = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+        if (phrase == TERM) {
+          if (top != null && top.kind == UNOP_TERM) {
+            stack.remove(stack.size() - 1);
+            value = new UnOpApp(top.op.toUnOp(), value);
+            continue;
+          }
+          if (top != null && top.kind == BINOP_TERM) {
+            stack.remove(stack.size() - 1);
+            value = new BinOpApp(top.op.toBinOp(), top.first, value);
+            top = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+          }
+          Token next = in.peek();
+          if (next instanceof OpToken) {
+            OpToken op = (OpToken) next;
+            in.readToken(); // remove next from input stream
+            if (! (op.isBinOp())) error(next, "binary operator");
+            Pending p = new Pending(BINOP_TERM);
+            p.first = value;
+            p.op = op;
+            stack.add(p);
+            wantExp = false;
+            break;
+          }
+          phrase = EXP;
+        }
 
-    if (token == LeftParen.ONLY) {
-      SymAST exp = parseExp();
-      token = in.readToken();
-      if (token != RightParen.ONLY) error(token,"`)'");
-      return exp;
+        /* phrase == EXP */
+        if (top == null) return value;
+        wantExp = true;
+        if (exp(top, value)) break;
+        stack.remove(stack.size() - 1);
+        value = complete(top, value);
+        phrase = top.kind == PAREN_EXP ? FACTOR : top.kind == ARG_EXP ? TERM : EXP;
+      }
     }
-
-    if (! (token instanceof PrimFun) && ! (token instanceof Variable))
-      error(token,"constant, primitive, variable, or `('");
-
-    // Term\Constant = Variable or PrimFun
-    return (SymAST) token;
   }
 
-  private SymAST parseIf() {
-    /* Parses 'if <exp> then <exp> else <exp>' given that 'if' has already been read. */
-
-    SymAST test = parseExp();
-    Token key1 = in.readToken();
-    if (key1 != thenKey) error(key1,"`then'");
-    SymAST conseq = parseExp();
-    Token key2 = in.readToken();
-    if (key2 != elseKey) error(key2,"`else'");
-    SymAST alt = parseExp();
-    return new If(test,conseq,alt);
-  }
-
-  private SymAST parseLet() {
-    /* Parses 'let <prop-def-list> in <exp>' given that 'let' has already been read */
-
-    Def[] defs = parseDefs(false);  // consumes `in'; false means rhs may be non Map
-    SymAST body = parseExp();
-    return new Let(defs,body);
+  /** Passes exp to the Pending construct p, reading the tokens that follow it; returns true if p needs another exp */
+  private boolean exp(Pending p, SymAST exp) {
+    Token t;
+    switch (p.kind) {
+      case IF_TEST:
+        t = in.readToken();
+        if (t != thenKey) error(t,"`then'");
+        p.first = exp;
+        p.kind = IF_CONSEQ;
+        return true;
+      case IF_CONSEQ:
+        t = in.readToken();
+        if (t != elseKey) error(t,"`else'");
+        p.second = exp;
+        p.kind = IF_ALT;
+        return true;
+      case DEF_RHS: {
+        Token semi = in.readToken();
+        if (semi != SemiColon.ONLY) error(semi,"`;'");
+        Def d = new Def(p.var, exp);
+        if (p.rec && (! (exp instanceof Map)))  // each rhs of a letrec must be a Map
+          throw new ParseException("right hand side of definition `" + d + "' is not a map expression");
+        p.defs.add(d);
+        t = in.readToken();
+        if (t == inKey) p.kind = LET_BODY;
+        else startDef(p, t);
+        return true;
+      }
+      case BLOCK_EXP:
+      case ARG_EXP:
+        p.exps.add(exp);
+        t = in.readToken();
+        if (t == (p.kind == BLOCK_EXP ? SemiColon.ONLY : Comma.ONLY)) return true;
+        if (t != (p.kind == BLOCK_EXP ? RightBrace.ONLY : RightParen.ONLY)) error(t,"`,' or `)'");
+        return false;
+      case PAREN_EXP:
+        t = in.readToken();
+        if (t != RightParen.ONLY) error(t,"`)'");
+        return false;
+      default:
+        return false;
+    }
   }
 
-  private SymAST parseLetRec() {
-    /* Parses 'letrec <prop-def-list> in <exp>' given that `letrec' has already been read.. */
-
-    Def[] defs = parseDefs(true); // consumes `in'; true means each rhs must be a Map
-    SymAST body = parseExp();
-    return new LetRec(defs,body);
+  /** Returns the phrase built from the Pending construct p and its last exp, which completes it */
+  private SymAST complete(Pending p, SymAST exp) {
+    switch (p.kind) {
+      case IF_ALT: return new If(p.first, p.second, exp);
+      case LET_BODY: {
+        Def[] defs = p.defs.toArray(new Def[p.defs.size()]);
+        return p.rec ? new LetRec(defs, exp) : new Let(defs, exp);
+      }
+      case LETCC_BODY: return new Letcc(p.var, exp);
+      case MAP_BODY: return new Map(p.vars, exp);
+      case BLOCK_EXP: return new Block(p.exps.toArray(new SymAST[p.exps.size()]));
+      case ARG_EXP: return new App(p.first, p.exps.toArray(new SymAST[p.exps.size()]));
+      default: return exp;  // PAREN_EXP
+    }
   }
 
-  private SymAST parseLetcc() {
-    /* Parses 'letcc <var> in <exp>' given that 'letcc' has already been read. */
-
-    Token var = in.readToken();
+  /** Parses `<id> :=', the beginning of a def whose first token var has been read, for the let or letrec p */
+  private void startDef(Pending p, Token var) {
     if (! (var instanceof Variable)) error(var,"variable");
-    Token t = in.readToken();
-    if (t != inKey) error(t,"`in'");
-    SymAST body = parseExp();
-    assert var instanceof Variable;
-    return new Letcc((Variable) var, body);
-  }
-
-  private SymAST parseMap() {
-    /* parses 'map <id-list> to <exp>' given that `map' has already been read. */
-
-    Variable[] vars = parseVars(); // consumes the delimiter `to'
-    SymAST body = parseExp();
-    return new Map(vars, body);
-  }
-
-  private SymAST[] parseExps(Token separator, Token delim) {
-    /* Parses '<exp-list> <delim>' where 
-         <exp-list>      ::= <empty> | <prop-exp-list>
-         <empty> ::=  
-         <prop-exp-list> ::= <exp> | <exp> <separator> <prop-exp-list>
-     */
-
-    LinkedList<SymAST> exps = new LinkedList<SymAST>();
-    Token next = in.peek();
-
-    if (next == delim) {
-      in.readToken(); // consume RightParen
-      return new SymAST[0];
-    }
-
-    /* next is still at front of input stream */
-
-    do {
-      SymAST exp = parseExp();
-      exps.addLast(exp);
-      next = in.readToken();
-    } while (next == separator);
-
-    if (next != delim) error(next,"`,' or `)'");
-    return exps.toArray(new SymAST[0]);
+    Token bind = in.readToken();
+    if (bind != Bind.ONLY) error (bind,"`:='");
+    p.var = (Variable) var;
+    p.kind = DEF_RHS;
   }
 
-  private SymAST[] parseArgs() { return parseExps(Comma.ONLY,RightParen.ONLY); }
-
   private Variable[] parseVars() {
     
     /* Parses <id-list> where
@@ -1776,46 +2237,6 @@ class Parser {
     return vars.toArray(new Variable[0]);
   }
 
-  private Def[] parseDefs(boolean forceMap) {
-    /* Parses  `<prop-def-list> in' where
-        <prop-def-list> ::= <def> | <def> <def-list> 
-    
-       NOTE: consumes `in' following <prop-def-list>
-     */
-
-    LinkedList<Def> defs = new LinkedList<Def>();
-    Token t = in.readToken();
-
-    do {
-      Def d = parseDef(t);
-      if (forceMap && (! (d.rhs() instanceof Map)))
-        throw new ParseException("right hand side of definition `" + d
-                                   + "' is not a map expression");
-      defs.addLast(d);
-      t = in.readToken();
-    } while (t != inKey);
-
-    return defs.toArray(new Def[0]);
-  }
-
-  private Def parseDef(Token var) {
-    /* Parses <id> := <exp> ;
-       which is <def> given that first token var has been read.
-     */
-
-    if (! (var instanceof Variable)) error(var,"variable");
-
-    Token bind = in.readToken();
-    if (bind != Bind.ONLY) error (bind,"`:='");
-
-    SymAST exp = parseExp();
-
-    Token semi = in.readToken();
-    if (semi != SemiColon.ONLY) error(semi,"`;'");
-    assert var instanceof Variable;
-    return new Def((Variable) var, exp);
-  }
-
   private SymAST error(Token found, String expected) {
     for (int i = 0; i < 10; i++) {
       System.out.println(in.readToken());
@@ -1826,29 +2247,45 @@ class Parser {
   /* Parser members suppporting CPS transformation;
    * x,y,k are private members bound to the Variables with names "x","y","k". */
 
-  private void insertUnaryPrim(PrimFun f) {
+  /** Returns this Parser's copy of the CPS form of f.  The copy shares the body of the Map in primTable but has a
+    * TierProfile of its own, which only the interpreters running this Parser's programs update. */
+  SymAST cpsPrim(PrimFun f) {
+    if (cpsPrims == null) {
+      cpsPrims = new HashMap<PrimFun, SymAST>();
+      for (PrimFun g : primTable.keySet()) {
+        Map m = (Map) primTable.get(g);
+        cpsPrims.put(g, new Map(m.vars(), m.body()));
+      }
+    }
+    return cpsPrims.get(f);
+  }
+
+  private static void insertUnaryPrim(PrimFun f) {
     primTable.put(f, new Map(new Variable[]{x,k},
                              new App(k, new SymAST[] { new App(f, new SymAST[]{x}) })));
   }
-  private void insertBinPrim(PrimFun f) {
+  private static void insertBinPrim(PrimFun f) {
     primTable.put(f,
       new Map(new Variable[]{x,y,k},
               new App(k, new SymAST[] { new App(f,new SymAST[]{x,y}) })));
   }
-  private void insertUnOp(UnOp f) {
+  private static void insertUnOp(UnOp f) {
     opTable.put(f,
       new Map(new Variable[]{x,k}, new App(k,
               new SymAST[] { new UnOpApp(f,x) })));
   }
 
-  private void insertBinOp(BinOp f) {
+  private static void insertBinOp(BinOp f) {
     opTable.put(f,
       new Map(new Variable[]{x,y,k}, new App(k,
               new SymAST[] { new BinOpApp(f,x,y) })));
   }
 
 
-  class Reshape implements SymASTVisitor<SymAST> {
+  /** Reshapes a simple expression.  Like the other front end passes, it is a TreeWalk, so the depth of the expressions
+    * that it can reshape is limited only by the heap; it is also a visitor that walks the SymAST it visits.  The
+    * bodies of maps are not visited: map converts each map as a whole. */
+  class Reshape extends TreeWalk<SymAST> implements SymASTVisitor<SymAST> {
 
     Reshape() {}
 
@@ -1859,33 +2296,57 @@ class Parser {
     public SymAST forBoolConstant(BoolConstant host) { return host; }
     public SymAST forNullConstant(NullConstant host) { return host; }
     public SymAST forSymVariable(Variable host)      { return host; }
-    public SymAST forPrimFun(PrimFun host)           { return primTable.get(host); }
-    public SymAST forUnOpApp(UnOpApp u) {
-      SymAST arg = (SymAST) u.arg();
-      return new UnOpApp(u.rator(), arg.accept(this));
-    }
-    public SymAST forBinOpApp(BinOpApp b) {
-      SymAST arg1 = (SymAST) b.arg1();
-      SymAST arg2 = (SymAST) b.arg2();
-      return new BinOpApp(b.rator(), arg1.accept(this), arg2.accept(this));
+    public SymAST forPrimFun(PrimFun host)           { return prim(host); }
+    public SymAST forUnOpApp(UnOpApp u)              { return walk(u); }
+    public SymAST forBinOpApp(BinOpApp b)            { return walk(b); }
+    public SymAST forApp(App a)                      { return walk(a); }
+    public SymAST forMap(Map m)                      { return walk(m); }
+    public SymAST forIf(If i)                        { return walk(i); }
+    public SymAST forLet(Let l)                      { return walk(l); }
+    public SymAST forLetRec(LetRec l)                { return walk(l); }
+    public SymAST forLetcc(Letcc host)               { return walk(host); }
+    public SymAST forBlock(Block b)                  { return walk(b); }
+
+    void start(AST node) {
+      if (node instanceof App && ! (((App) node).rator() instanceof PrimFun))
+        throw new ParseException("non primitive application `" + node + "' passed to Reshape");
+    }
+
+    AST[] subtrees(AST node) {
+      if (node instanceof Map || node instanceof Letcc) return NONE;
+      return children(node);
+    }
+
+    SymAST build(AST node, List<SymAST> kids) {
+      int n = kids.size();
+      switch (node.kind()) {
+        case AST.K_PRIM: return prim((PrimFun) node);
+        case AST.K_UNOP: return new UnOpApp(((UnOpApp) node).rator(), kids.get(0));
+        case AST.K_BINOP: return new BinOpApp(((BinOpApp) node).rator(), kids.get(0), kids.get(1));
+        case AST.K_APP: return app((App) node, kids);
+        case AST.K_MAP: return map((Map) node, kids);
+        case AST.K_IF: return new If(kids.get(0), kids.get(1), kids.get(2));
+        case AST.K_LET: return new Let(defs(((Let) node).defs(), kids), kids.get(n-1));
+        case AST.K_LETREC: return new LetRec(defs(((LetRec) node).defs(), kids), kids.get(n-1));
+        case AST.K_LETCC: return letcc((Letcc) node);
+        case AST.K_BLOCK: return new Block(exps(kids, 0, n));
+        default: return (SymAST) node;  // constants and variables
+      }
     }
 
-    public SymAST forApp(App a) {
-      if (! (a.rator() instanceof PrimFun))
-        throw new ParseException("non primitive application `" + a + "' passed to Reshape");
-      SymAST[] args = (SymAST[]) a.args();
-      int n = args.length;
-      SymAST[] newArgs = new SymAST[n];
-      for (int i = 0; i < n; i++) newArgs[i] = args[i].accept(this);
-      App app = new App(a.rator(), newArgs);
+    SymAST prim(PrimFun f) { return cpsPrim(f); }
+
+    /** Returns the reshaped app a, a primitive application, given the results for its rator and args */
+    SymAST app(App a, List<SymAST> kids) {
+      App app = new App(a.rator(), exps(kids, 1, kids.size()));
       if (a.rator() == ArityPrim.ONLY) {
-        return new BinOpApp(BinOpMinus.ONLY, app, new IntConstant(1));
+        return new BinOpApp(BinOpMinus.ONLY, app, IntConstant.valueOf(1));
       }
       else return app;
     }
 
-    public SymAST forMap(Map m) {
-
+    /** Returns the reshaped map m; kids holds the result for its body if subtrees visits it */
+    SymAST map(Map m, List<SymAST> kids) {
       int n = m.vars().length;
       Variable[] newVars = new Variable[n+1];
       Variable newVar = genVariable();
@@ -1894,46 +2355,18 @@ class Parser {
       return new Map(newVars, convertToCPS(m.body(), newVar));
     }
 
-    public SymAST forIf(If i) {
-      SymAST test = (SymAST) i.test();
-      SymAST conseq = (SymAST) i.conseq();
-      SymAST alt = (SymAST) i.alt();
-      return new If(test.accept(this), conseq.accept(this), alt.accept(this));
-    }
-
-    public SymAST forLet(Let l) {
-      int n = l.defs().length;
-      Def[] newDefs = new Def[n];
-
-      for (int i = 0; i < n; i++) {
-        Def oldDef = l.defs()[i];
-        newDefs[i] = new Def(oldDef.lhs(), oldDef.rhs().accept(this));
-      }
-      return new Let(newDefs, l.body().accept(this));
+    SymAST letcc(Letcc host) {
+      throw new CPSException("Attempt to reshape the letcc expression " + host);
     }
 
-    /* Note the repeated code in forLet and forLetRe; should refactor. */
-
-    public SymAST forLetRec(LetRec l) {
-      int n = l.defs().length;
-      Def[] newDefs = new Def[n];
-
-      for (int i = 0; i < n; i++) {
-        Def oldDef = l.defs()[i];
-        newDefs[i] = new Def(oldDef.lhs(), oldDef.rhs().accept(this));
-      }
-      return new LetRec(newDefs, l.body().accept(this));
-    }
-    public SymAST forLetcc(Letcc host) {
-      throw new CPSException("Attempt to reshape the letcc expression " + host);
+    private Def[] defs(Def[] defs, List<SymAST> kids) {
+      Def[] newDefs = new Def[defs.length];
+      for (int i = 0; i < defs.length; i++) newDefs[i] = new Def(defs[i].lhs(), kids.get(i));
+      return newDefs;
     }
-    public SymAST forBlock(Block b) {
-      int n = b.exps().length;
-      SymAST[] exps = (SymAST[]) b.exps();
-      SymAST[] newExps = new SymAST[n];
-      for (int i = 0; i < n; i++) newExps[i] = exps[i].accept(this);
 
-      return new Block(newExps);
+    SymAST[] exps(List<SymAST> kids, int from, int to) {
+      return kids.subList(from, to).toArray(new SymAST[to - from]);
     }
   }
 
@@ -1941,9 +2374,10 @@ class Parser {
   static Boolean FALSE = Boolean.FALSE;
 
   /** Visitor class representing an operation that determines if an expression only
-   *  involves local allocation; TRUE means it requires no external allocation
+   *  involves local allocation; TRUE means it requires no external allocation.  It walks the SymAST it visits as a
+   *  TreeWalk.
    */
-  class IsSimple implements SymASTVisitor<Boolean> {
+  static class IsSimple extends TreeWalk<Boolean> implements SymASTVisitor<Boolean> {
 
 //    public Boolean forDefault(AST host) { 
 //      throw new CPSException("host " + host + " not supported by IsSimple visitor"); 
@@ -1954,74 +2388,29 @@ class Parser {
     public Boolean forBoolConstant(BoolConstant b) { return TRUE; }
     public Boolean forSymVariable(Variable v) { return TRUE; }
     public Boolean forPrimFun(PrimFun f)  { return TRUE; }
-
-    public Boolean forUnOpApp(UnOpApp u) {
-      SymAST arg = (SymAST) u.arg();
-      return arg.accept(this);
-    }
-
-    public Boolean forBinOpApp(BinOpApp b) {
-      SymAST arg1 = (SymAST) b.arg1();
-      SymAST arg2 = (SymAST) b.arg2();
-      if ((arg1.accept(this) == TRUE) && (arg2.accept(this) == TRUE)) return TRUE;
-      return FALSE;
-    }
-
-    public Boolean forApp(App a) {
-      if (! (a.rator() instanceof PrimFun)) return FALSE;
-      SymAST[] args = (SymAST[]) a.args();
-      int n = args.length;
-      for (SymAST arg : args) {
-        if (arg.accept(this) == FALSE) return FALSE;
-      }
-      return TRUE;
-    }
-
+    public Boolean forUnOpApp(UnOpApp u) { return walk(u); }
+    public Boolean forBinOpApp(BinOpApp b) { return walk(b); }
+    public Boolean forApp(App a) { return walk(a); }
     public Boolean forMap(Map m) { return TRUE; }
+    public Boolean forIf(If i) { return walk(i); }
+    public Boolean forLet(Let l) { return walk(l); }
+    public Boolean forLetRec(LetRec l) { return walk(l); }
+    public Boolean forLetcc(Letcc l) { return FALSE; }
+    public Boolean forBlock(Block b) { return walk(b); }
 
-    public Boolean forIf(If i) {
-      SymAST test = (SymAST) i.test();
-      SymAST conseq = (SymAST) i.conseq();
-      SymAST alt = (SymAST) i.alt();
-      if ((test.accept(this) == TRUE) && (conseq.accept(this) == TRUE) && (alt.accept(this) == TRUE))
-        return TRUE;
-      else return FALSE;
-    }
-
-    public Boolean forLet(Let l) {
-      Def[] defs = l.defs();
-      int n = defs.length;
-
-      for (Def def : defs) {
-        SymAST rhs = def.rhs();
-        if (rhs.accept(this) == FALSE) return FALSE;
-      }
-      if (l.body().accept(this) == FALSE) return FALSE;
-      return TRUE;
+    AST[] subtrees(AST node) {
+      if (node instanceof Map || node instanceof Letcc) return NONE;
+      return children(node);
     }
 
-    public Boolean forLetRec(LetRec l) {
-      Def[] defs = l.defs();
-      int n = defs.length;
-
-      for (Def def : defs) {
-        SymAST rhs = def.rhs();
-        if (rhs.accept(this) == FALSE) return FALSE;
-      }
-      if (l.body().accept(this) == FALSE) return FALSE;
-      return TRUE;
+    Boolean build(AST node, List<Boolean> kids) {
+      if (node instanceof Letcc) return FALSE;
+      if (node instanceof App) return app((App) node, kids);
+      return all(kids);
     }
 
-    public Boolean forLetcc(Letcc l) { return FALSE; }
-
-    public Boolean forBlock(Block b) {
-      SymAST[] exps = (SymAST[]) b.exps();
-      int n = exps.length;
-      for (SymAST exp : exps) {
-        if (exp.accept(this) == FALSE) return FALSE;
-      }
-      return TRUE;
-    }
+    /** Returns true if the application a is simple, given the results for its rator and args */
+    boolean app(App a, List<Boolean> kids) { return a.rator() instanceof PrimFun && all(kids); }
   }
 
   /** Reshapes the arguments and adds the continuation as the final argument */
@@ -2373,230 +2762,1046 @@ class Parser {
 
   }
 
-  public static void main(String[] args) throws IOException {
-    /* Check for a legal argument list. */
-    if (args.length == 0) {
-      System.out.println("Usage: java Parser <filename>");
-      return;
-    }
-    Parser p = new Parser(args[0]);
-    System.out.println("Parsed and checked program is: " + p.checkProg());
-    System.out.println("CPSed program is: " + p.cpsProg());
+  /* One-pass CPS conversion in the style of Danvy and Filinski.  The continuation of the expression being converted
+   * is a CpsCont: either a SymAST (DynCont) or a function, at conversion time, from the SymAST for a value to the
+   * code that consumes it (StaticCont).  A StaticCont becomes a map only when it must be passed to a function, so
+   * the result contains no administrative redexes.  The classic conversion above is kept because the Assignment 6
+   * tests pin its output. */
+
+  /** Code, generated on demand, in which the parameter of a StaticCont is bound */
+  interface CpsBody { SymAST make(); }
+
+  abstract class CpsCont {
+    /** Returns code that passes v, a simple reshaped expression, to this continuation */
+    abstract SymAST apply(SymAST v);
+    /** Returns a simple expression, a map or a variable, denoting this continuation */
+    abstract SymAST reify();
   }
-}
 
-/** A visitor class  that performs syntax checking and unshadowing. It returns asyntax tree (with new variable names)
-  * unless there is a syntax error. On a syntax error, throws a SyntaxException. */
-class CheckVisitor implements SymASTVisitor<SymAST> {
+  class DynCont extends CpsCont {
+    final SymAST k;
+    DynCont(SymAST k) { this.k = k; }
+    SymAST apply(SymAST v) { return new App(k, new SymAST[] {v}); }
+    SymAST reify() { return k; }
+  }
 
-  private static final Empty<DepthVariable> emptyVars = new Empty<DepthVariable>();
+  /** A continuation whose code is generated at most once, binding param to the value passed to it */
+  class StaticCont extends CpsCont {
+    final Variable param;
+    final CpsBody body;
+    StaticCont(Variable p, CpsBody b) { param = p; body = b; }
+    SymAST apply(SymAST v) { return new Let(new Def[] {new Def(param, v)}, body.make()); }
+    SymAST reify() { return new Map(new Variable[] {param}, body.make()); }
+  }
 
-  /** Symbol table used to detect free variables */
-  private PureList<DepthVariable> env;
+  /** Code, generated on demand, that consumes a value */
+  interface CpsFun { SymAST make(SymAST v); }
 
-  /** Lexical depth in symbol table */
-  private int depth;
+  /** A continuation whose code is generated at most once.  A trivial value, or any value if inline is true, is
+    * passed directly to that code; other values are bound to a fresh variable first. */
+  class ValueCont extends CpsCont {
+    final CpsFun body;
+    final boolean inline;
+    ValueCont(CpsFun b, boolean i) { body = b; inline = i; }
+    SymAST apply(SymAST v) {
+      if (inline || isTrivial(v)) return body.make(v);
+      Variable t = genVariable();
+      return new Let(new Def[] {new Def(t, v)}, body.make(t));
+    }
+    SymAST reify() {
+      Variable t = genVariable();
+      return new Map(new Variable[] {t}, body.make(t));
+    }
+  }
 
-  public static final CheckVisitor INITIAL = new CheckVisitor(emptyVars,0);
+  /** The continuation of the whole program, which returns its value */
+  final CpsCont topCont = new CpsCont() {
+    SymAST apply(SymAST v) { return v; }
+    SymAST reify() { return identity; }
+  };
 
-  /** Initializes the env and depth fields of a new Check Visitor object */
-  private CheckVisitor(PureList<DepthVariable> e, int d) { env = e; depth = d; }
+  /** Returns m with a continuation parameter k added and its body converted with the continuation k in style */
+  private Map cpsMap(Map m, CpsStyle style) {
+    int n = m.vars().length;
+    Variable[] newVars = Arrays.copyOf(m.vars(), n+1);
+    Variable k = genVariable();
+    newVars[n] = k;
+    return new Map(newVars, onePassCPS(m.body(), new DynCont(k), style));
+  }
 
-  /** Constructs a new Check Visitor object with specified environment and incremented depth */
-  CheckVisitor newVisitor(PureList<DepthVariable> env) { return new CheckVisitor(env, depth+1);  }
+  /** How onePassCPS treats simple expressions, let-bound maps, and calls.  The full conversion passes a continuation
+    * to every function.  A style serves a single conversion, since it remembers which subtrees are simple. */
+  class CpsStyle {
+    /** The simplicity of every node reached by isSimple so far */
+    private final IdentityHashMap<AST,Boolean> simple = new IdentityHashMap<AST,Boolean>();
 
-//  public SymAST forDefault(AST host)   {
-//    throw new CPSException("host " + host + " not supported by Check visitor");
-//  }
-  public SymAST forIntConstant(IntConstant host) { return host; }
-  public SymAST forBoolConstant(BoolConstant host) { return host; }
-  public SymAST forNullConstant(NullConstant host) { return host; }
+    /** Stops at the nodes whose simplicity is already known, so each node is walked at most once */
+    private final IsSimple simplicity = new IsSimple() {
+      AST[] subtrees(AST node) { return simple.containsKey(node) ? NONE : super.subtrees(node); }
+      Boolean build(AST node, List<Boolean> kids) {
+        Boolean r = simple.get(node);
+        if (r == null) simple.put(node, r = super.build(node, kids));
+        return r;
+      }
+      boolean app(App a, List<Boolean> kids) { return simpleApp(a, kids); }
+    };
+
+    /** Reshapes simple expressions: a map gets a continuation parameter k and its body is converted with the
+      * continuation k */
+    private final Reshape reshaper = new Reshape() {
+      SymAST map(Map m, List<SymAST> kids) { return cpsMap(m, CpsStyle.this); }
+    };
+
+    boolean isSimple(SymAST e) { return simplicity.walk(e); }
+    /** Returns true if the application a is simple, given the results for its rator and args */
+    boolean simpleApp(App a, List<Boolean> kids) { return a.rator() instanceof PrimFun && TreeWalk.all(kids); }
+    SymAST reshape(SymAST e) { return e.accept(reshaper); }
+    /** Reshapes the simple right hand side of d */
+    SymAST reshapeDef(Def d) { return reshape(d.rhs()); }
+    /** Returns true if a call of rator, which is neither a PrimFun nor a Map, passes it a continuation */
+    boolean passesCont(SymAST rator) { return true; }
+    /** Returns the application of f to vals, simple reshaped expressions */
+    SymAST prim(PrimFun f, SymAST[] vals) {
+      App app = new App(f, vals);
+      return f == arityFun ? new BinOpApp(minusOp, app, one) : app;
+    }
+  }
+
+  /** The selective conversion.  Only the functions in cpsFuns, found by ContinuationReach, take a continuation; they
+    * are called only from the body of a letcc or from each other.  The rest of the program stays in direct style,
+    * and each letcc that is not inside another one is converted, with the continuation topCont, to an expression
+    * that returns the value of the letcc.  Calls of other functions stay direct calls in the converted code, and
+    * only calls of cpsFuns and letccs make an expression non-simple. */
+  class SelectiveStyle extends CpsStyle {
+    final Set<Variable> cpsFuns;
+    SelectiveStyle(Set<Variable> cpsFuns) { this.cpsFuns = cpsFuns; }
+
+    /** The maps bound to cpsFuns in the code visited by direct */
+    private final Set<Map> cpsMaps = Collections.newSetFromMap(new IdentityHashMap<Map,Boolean>());
+
+    /** Leaves the code that it visits in direct style, apart from the letccs and the maps bound to cpsFuns in it */
+    final Reshape direct = new Reshape() {
+      void start(AST node) {
+        Def[] defs = node instanceof Let ? ((Let) node).defs() : node instanceof LetRec ? ((LetRec) node).defs() : null;
+        if (defs != null) for (Def d : defs) if (cpsFuns.contains(d.lhs())) cpsMaps.add((Map) d.rhs());
+      }
+      /* the args of an app are visited before its rator, so the letccs in them are converted first */
+      AST[] subtrees(AST node) {
+        if (node instanceof Letcc || cpsMaps.contains(node)) return NONE;
+        if (node instanceof App) {
+          AST[] args = ((App) node).args();
+          AST[] kids = Arrays.copyOf(args, args.length + 1, AST[].class);
+          kids[args.length] = ((App) node).rator();
+          return kids;
+        }
+        return children(node);
+      }
+      SymAST prim(PrimFun f) { return f; }
+      SymAST app(App a, List<SymAST> kids) {
+        int n = kids.size() - 1;
+        return new App(kids.get(n), exps(kids, 0, n));
+      }
+      SymAST map(Map m, List<SymAST> kids) {
+        if (cpsMaps.contains(m)) return cpsMap(m, SelectiveStyle.this);
+        return new Map(m.vars(), kids.get(0));
+      }
+      SymAST letcc(Letcc l) { return onePassCPS(l, topCont, SelectiveStyle.this); }
+    };
 
-  public SymAST forSymVariable(Variable host) {
-    DepthVariable match = env.accept(new LookupVisitor<DepthVariable>(host));
-    if (match == null) throw new
-      SyntaxException("variable " + host + " is unbound");
-    return match.rename();
+    boolean simpleApp(App a, List<Boolean> kids) { return ! cpsFuns.contains(a.rator()) && TreeWalk.all(kids); }
+    SymAST reshape(SymAST e) { return e.accept(direct); }
+    SymAST reshapeDef(Def d) {
+      if (cpsFuns.contains(d.lhs())) return cpsMap((Map) d.rhs(), this);
+      return reshape(d.rhs());
+    }
+    boolean passesCont(SymAST rator) { return cpsFuns.contains(rator); }
+    SymAST prim(PrimFun f, SymAST[] vals) { return new App(f, vals); }
   }
 
-  public SymAST forPrimFun(PrimFun host) { return host; }
+  /** Returns true if the simple reshaped expression e has no effects, so it can be evaluated later or not at all */
+  private static boolean isTrivial(SymAST e) {
+    return e instanceof Constant || e instanceof Variable || e instanceof Map;
+  }
 
-  public SymAST forUnOpApp(UnOpApp host) {
-    SymAST arg = (SymAST) host.arg();
-    SymAST newArg = arg.accept(this);  // throws an exception on error
-    return new UnOpApp(host.rator(), newArg);
+  /** Converts exp, a checked SymAST, to CPS with continuation k in the given style */
+  SymAST onePassCPS(SymAST exp, CpsCont k, CpsStyle style) {
+    if (style.isSimple(exp)) return k.apply(style.reshape(exp));
+    return exp.accept(new OnePassCPS(k, style));
   }
 
-  public SymAST forBinOpApp(BinOpApp host) {
-    SymAST arg1 = (SymAST) host.arg1();
-    SymAST arg2 = (SymAST) host.arg2();
-    BinOp rator = host.rator();
-    SymAST newArg1 = arg1.accept(this);  // throws an exception on error
-    SymAST newArg2 = arg2.accept(this);  // throws an exception on error
-    if (rator == OpAnd.ONLY) {  // second argument must be Boolean!
-      SymAST conseq = new App(AsBoolPrim.ONLY, new SymAST[]{newArg2}); // performs run-time check
-      return new If(newArg1, conseq, BoolConstant.FALSE);
+  /** Converts the non-simple expression that it visits to CPS with continuation k */
+  class OnePassCPS implements SymASTVisitor<SymAST> {
+    final CpsCont k;
+    final CpsStyle style;
+    OnePassCPS(CpsCont k, CpsStyle style) { this.k = k; this.style = style; }
+
+    private SymAST convert(SymAST e, CpsCont kont) { return onePassCPS(e, kont, style); }
+
+    /* Simple expressions are handled by onePassCPS */
+    private SymAST simple(SymAST e) { return k.apply(style.reshape(e)); }
+    public SymAST forIntConstant(IntConstant i) { return simple(i); }
+    public SymAST forNullConstant(NullConstant n) { return simple(n); }
+    public SymAST forBoolConstant(BoolConstant b) { return simple(b); }
+    public SymAST forSymVariable(Variable v) { return simple(v); }
+    public SymAST forPrimFun(PrimFun f) { return simple(f); }
+    public SymAST forMap(Map m) { return simple(m); }
+
+    public SymAST forUnOpApp(UnOpApp u) {
+      return sequence(new SymAST[] {(SymAST) u.arg()}, vals -> k.apply(new UnOpApp(u.rator(), vals[0])));
     }
-    if (rator == OpOr.ONLY) {  // second argument must be Boolean!
-      SymAST alt = new App(AsBoolPrim.ONLY, new SymAST[]{newArg2}); // performs run-time check
-      return new If(newArg1, BoolConstant.TRUE, alt);
+
+    /* The divisor of / is evaluated first; see VM.checkDivisor */
+    public SymAST forBinOpApp(BinOpApp b) {
+      if (b.rator() == OpDivide.ONLY)
+        return sequence(new SymAST[] {(SymAST) b.arg2(), (SymAST) b.arg1()},
+                        vals -> k.apply(new BinOpApp(b.rator(), vals[1], vals[0])));
+      return sequence(new SymAST[] {(SymAST) b.arg1(), (SymAST) b.arg2()},
+                      vals -> k.apply(new BinOpApp(b.rator(), vals[0], vals[1])));
+    }
+
+    public SymAST forApp(App a) {
+      SymAST[] args = (SymAST[]) a.args();
+      if (a.rator() instanceof Map) {
+        /* (map x1, ..., xn to B)(E1, ..., En) binds x1 := E1, ..., xn := En from left to right and then evaluates B */
+        Map m = (Map) a.rator();
+        ArrayList<Def> defs = new ArrayList<Def>();
+        for (int i = 0; i < args.length; i++) defs.add(new Def(m.vars()[i], args[i]));
+        return let(defs, m.body());
+      }
+      if (a.rator() instanceof PrimFun) {
+        PrimFun f = (PrimFun) a.rator();
+        return sequence(args, vals -> k.apply(style.prim(f, vals)));
+      }
+      /* The rator and the args are evaluated from left to right */
+      SymAST[] exps = new SymAST[args.length + 1];
+      exps[0] = (SymAST) a.rator();
+      System.arraycopy(args, 0, exps, 1, args.length);
+      if (! style.passesCont(exps[0]))
+        return sequence(exps, vals -> k.apply(new App(vals[0], Arrays.copyOfRange(vals, 1, vals.length))));
+      return sequence(exps, vals -> {
+        SymAST[] newArgs = Arrays.copyOfRange(vals, 1, vals.length + 1);
+        newArgs[args.length] = k.reify();
+        return new App(vals[0], newArgs);
+      });
+    }
+
+    public SymAST forIf(If i) {
+      return sequence(new SymAST[] {(SymAST) i.test()}, vals -> {
+        /* Both branches use the continuation, so it is named unless it already is a variable */
+        if (k == topCont) return branch(vals[0], i, k);
+        SymAST kont = k.reify();
+        if (kont instanceof Variable) return branch(vals[0], i, new DynCont(kont));
+        Variable j = genVariable();
+        return new Let(new Def[] {new Def(j, kont)}, branch(vals[0], i, new DynCont(j)));
+      });
+    }
+
+    private SymAST branch(SymAST test, If i, CpsCont kont) {
+      return new If(test, convert((SymAST) i.conseq(), kont), convert((SymAST) i.alt(), kont));
+    }
+
+    public SymAST forLet(Let l) { return let(new ArrayList<Def>(), l); }
+
+    /** Converts code that binds defs, in that order, and then evaluates body.  While body is a non-simple let, its
+      * defs join the chain from last to first, as Evaluator binds them.  The chain is converted from its end back to
+      * its start, so each def is converted after the code following it and nested lets take no Java stack. */
+    private SymAST let(ArrayList<Def> defs, SymAST body) {
+      while (body instanceof Let && ! style.isSimple(body)) {
+        Def[] ds = ((Let) body).defs();
+        for (int i = ds.length - 1; i >= 0; i--) defs.add(ds[i]);
+        body = ((Let) body).body();
+      }
+      SymAST code = convert(body, k);
+      for (int i = defs.size() - 1; i >= 0; i--) {
+        Def d = defs.get(i);
+        SymAST rest = code;
+        if (style.isSimple(d.rhs())) code = new Let(new Def[] {new Def(d.lhs(), style.reshapeDef(d))}, rest);
+        else code = convert(d.rhs(), new StaticCont(d.lhs(), () -> rest));
+      }
+      return code;
+    }
+
+    public SymAST forLetRec(LetRec l) {
+      Def[] defs = l.defs();
+      Def[] newDefs = new Def[defs.length];
+      for (int i = 0; i < defs.length; i++) newDefs[i] = new Def(defs[i].lhs(), style.reshapeDef(defs[i]));
+      return new LetRec(newDefs, convert(l.body(), k));
+    }
+
+    public SymAST forLetcc(Letcc l) {
+      /* letcc x in B binds x to map v, k' to K(v), where K names the continuation of the letcc.  The selective
+       * conversion returns the value of a letcc that is not inside another one to the direct-style code around it,
+       * so there K(v) is just v. */
+      CpsCont kont = k;
+      Def[] defs = new Def[0];
+      if (k != topCont || ! (style instanceof SelectiveStyle)) {
+        SymAST j = k.reify();
+        if (! (j instanceof Variable)) {
+          Variable jv = genVariable();
+          defs = new Def[] {new Def(jv, j)};
+          j = jv;
+        }
+        kont = new DynCont(j);
+      }
+      Variable v = genVariable();
+      Map escape = new Map(new Variable[] {v, genVariable()}, kont.apply(v));
+      SymAST body = new Let(new Def[] {new Def(l.var(), escape)}, convert(l.body(), kont));
+      return defs.length == 0 ? body : new Let(defs, body);
+    }
+
+    public SymAST forBlock(Block b) { return block((SymAST[]) b.exps(), 0); }
+
+    /** Converts {exps[i]; ...}, dropping the values of all but the last expression */
+    private SymAST block(SymAST[] exps, int i) {
+      if (i == exps.length - 1) return convert(exps[i], k);
+      SymAST e = exps[i];
+      if (style.isSimple(e)) {
+        SymAST r = style.reshape(e);
+        if (isTrivial(r)) return block(exps, i+1);
+        return new Let(new Def[] {new Def(genVariable(), r)}, block(exps, i+1));
+      }
+      return convert(e, new ValueCont(v -> block(exps, i+1), false));
+    }
+
+    /** Evaluates exps from left to right and passes their values, as simple expressions, to rest.  A non-trivial
+      * simple expression followed by a non-simple one is bound to a variable first, preserving the order of their
+      * effects; one that is not is left in place. */
+    private SymAST sequence(SymAST[] exps, CpsSeq rest) {
+      return sequence(exps, 0, new SymAST[exps.length], rest);
+    }
+
+    private SymAST sequence(SymAST[] exps, int i, SymAST[] vals, CpsSeq rest) {
+      if (i == exps.length) return rest.make(vals);
+      SymAST e = exps[i];
+      if (! style.isSimple(e)) {
+        CpsFun next = v -> { vals[i] = v; return sequence(exps, i+1, vals, rest); };
+        return convert(e, new ValueCont(next, ! hasNonSimple(exps, i+1)));
+      }
+      SymAST r = style.reshape(e);
+      if (isTrivial(r) || ! hasNonSimple(exps, i+1)) {
+        vals[i] = r;
+        return sequence(exps, i+1, vals, rest);
+      }
+      Variable v = genVariable();
+      vals[i] = v;
+      return new Let(new Def[] {new Def(v, r)}, sequence(exps, i+1, vals, rest));
+    }
+
+    private boolean hasNonSimple(SymAST[] exps, int i) {
+      for (; i < exps.length; i++) if (! style.isSimple(exps[i])) return true;
+      return false;
     }
-    return new BinOpApp(rator, newArg1, newArg2);
   }
 
-  public SymAST forApp(App a) {
-    SymAST rator = (SymAST) a.rator();
-    SymAST newRator = rator.accept(this); // throws an exception on error
-    SymAST[] args = (SymAST[]) a.args();
-    int n = args.length;
-    SymAST[] newArgs = new SymAST[n];
-    for (int i = 0; i < n; i++)
-      newArgs[i] = args[i].accept(this); // throws an exception on error
-    return new App(newRator, newArgs);
+  /** The code consuming the values of a sequence of expressions */
+  interface CpsSeq { SymAST make(SymAST[] vals); }
+
+  /* Conversion to A-normal form.  The operands of every unary, binary, and primitive operation, the rator and args of
+   * every application, and the test of every if are atoms: constants, variables, primitives, or maps whose bodies
+   * are in A-normal form.  The value of any other operand is bound to a fresh variable by a let with one def, so the
+   * lets appear in the order in which the operands are evaluated.  A let with several defs, whose right hand sides
+   * are evaluated from last to first, becomes nested lets binding them in that order.  Unlike CPS, the conversion
+   * adds no closures: an if, let, letrec, or letcc stays in place, with its parts converted. */
+
+  /** Returns true if e is an atom of A-normal form */
+  private static boolean isAtom(SymAST e) {
+    return e instanceof Constant || e instanceof Variable || e instanceof PrimFun || e instanceof Map;
   }
 
-  /* Checka for duplicates in Map vars, increment depth, construct new visitor for Map body, and translate body. */
-  public SymAST forMap(Map m) {
-    Variable[] vars = m.vars();
-    PureList<Variable> varList = PureListClass.arrayToList(vars);
-//    System.err.println("variable list is: " + varList);
-    varList.accept(AnyDuplicatesVisitor.ONLY);  // throws exception on an error
+  /** Converts exp, a checked SymAST, to A-normal form */
+  SymAST anf(SymAST exp) { return exp.accept(new ANFConverter(v -> v)); }
 
-    int n = vars.length;
+  /** Converts the expression that it visits and passes the result, which is an atom or a simple operation on atoms,
+    * to rest */
+  class ANFConverter implements SymASTVisitor<SymAST> {
+    final CpsFun rest;
+    ANFConverter(CpsFun rest) { this.rest = rest; }
+
+    /** Converts e and passes an atom for its value to next, binding it to a fresh variable unless it is an atom */
+    private SymAST name(SymAST e, CpsFun next) {
+      return e.accept(new ANFConverter(v -> {
+        if (isAtom(v)) return next.make(v);
+        Variable t = genVariable();
+        return new Let(new Def[] {new Def(t, v)}, next.make(t));
+      }));
+    }
+
+    /** Converts exps from left to right and passes atoms for their values to next */
+    private SymAST names(SymAST[] exps, int i, SymAST[] vals, CpsSeq next) {
+      if (i == exps.length) return next.make(vals);
+      return name(exps[i], v -> { vals[i] = v; return names(exps, i+1, vals, next); });
+    }
+
+    public SymAST forIntConstant(IntConstant i) { return rest.make(i); }
+    public SymAST forNullConstant(NullConstant n) { return rest.make(n); }
+    public SymAST forBoolConstant(BoolConstant b) { return rest.make(b); }
+    public SymAST forSymVariable(Variable v) { return rest.make(v); }
+    public SymAST forPrimFun(PrimFun f) { return rest.make(f); }
+    public SymAST forMap(Map m) { return rest.make(new Map(m.vars(), anf(m.body()))); }
+
+    public SymAST forUnOpApp(UnOpApp u) { return name((SymAST) u.arg(), v -> rest.make(new UnOpApp(u.rator(), v))); }
+
+    /* The divisor of / is named first; see VM.checkDivisor */
+    public SymAST forBinOpApp(BinOpApp b) {
+      if (b.rator() == OpDivide.ONLY)
+        return name((SymAST) b.arg2(), v2 -> name((SymAST) b.arg1(), v1 -> rest.make(new BinOpApp(b.rator(), v1, v2))));
+      return name((SymAST) b.arg1(), v1 -> name((SymAST) b.arg2(), v2 -> rest.make(new BinOpApp(b.rator(), v1, v2))));
+    }
+
+    /* The rator and the args are evaluated from left to right */
+    public SymAST forApp(App a) {
+      AST[] args = a.args();
+      SymAST[] exps = new SymAST[args.length + 1];
+      exps[0] = (SymAST) a.rator();
+      System.arraycopy(args, 0, exps, 1, args.length);
+      return names(exps, 0, new SymAST[exps.length],
+                   vals -> rest.make(new App(vals[0], Arrays.copyOfRange(vals, 1, vals.length))));
+    }
+
+    public SymAST forIf(If i) {
+      return name((SymAST) i.test(), v -> rest.make(new If(v, anf((SymAST) i.conseq()), anf((SymAST) i.alt()))));
+    }
+
+    /** Converts a let, binding its defs from last to first.  The defs of the lets nested in its body join the chain,
+      * which is converted from its end back to its start, so nested lets take no Java stack. */
+    public SymAST forLet(Let l) {
+      ArrayList<Def> defs = new ArrayList<Def>();
+      SymAST body = l;
+      while (body instanceof Let) {
+        Def[] ds = ((Let) body).defs();
+        for (int i = ds.length - 1; i >= 0; i--) defs.add(ds[i]);
+        body = ((Let) body).body();
+      }
+      SymAST code = body.accept(this);
+      for (int i = defs.size() - 1; i >= 0; i--) {
+        Def d = defs.get(i);
+        SymAST rest = code;
+        code = d.rhs().accept(new ANFConverter(v -> new Let(new Def[] {new Def(d.lhs(), v)}, rest)));
+      }
+      return code;
+    }
+
+    public SymAST forLetRec(LetRec l) {
+      Def[] defs = l.defs();
+      Def[] newDefs = new Def[defs.length];
+      for (int i = 0; i < defs.length; i++) newDefs[i] = new Def(defs[i].lhs(), anf(defs[i].rhs()));
+      return new LetRec(newDefs, l.body().accept(this));
+    }
 
-    PureList<DepthVariable> newEnv = env;
-    Variable[] newVars = new Variable[n];
-    for (int i = n-1; i >= 0; i--) {
-      DepthVariable newDepthVar = new DepthVariable(vars[i], depth+1);
-      newEnv = newEnv.cons(newDepthVar);
-      newVars[i] = newDepthVar.rename();
+    public SymAST forLetcc(Letcc l) { return rest.make(new Letcc(l.var(), anf(l.body()))); }
+
+    public SymAST forBlock(Block b) { return block((SymAST[]) b.exps(), 0); }
+
+    /** Converts {exps[i]; ...}, dropping the values of all but the last expression */
+    private SymAST block(SymAST[] exps, int i) {
+      if (i == exps.length - 1) return exps[i].accept(this);
+      return exps[i].accept(new ANFConverter(v -> {
+        if (isAtom(v)) return block(exps, i+1);
+        return new Let(new Def[] {new Def(genVariable(), v)}, block(exps, i+1));
+      }));
     }
+  }
 
-    SymAST newBody = m.body().accept(newVisitor(newEnv));  // increments depth
-    return new Map(newVars,newBody);
+  public static void main(String[] args) throws IOException {
+    /* Check for a legal argument list. */
+    if (args.length == 0) {
+      System.out.println("Usage: java Parser <filename>");
+      return;
+    }
+    Parser p = new Parser(args[0]);
+    System.out.println("Parsed and checked program is: " + p.checkProg());
+    System.out.println("CPSed program is: " + p.cpsProg());
   }
+}
+
+/** Simplifies the CPS form of a checked program before it is converted to SD form.  It relies on the program being
+  * unshadowed, so each generated or renamed Variable is bound once.  A pass counts the uses of each variable and then
+  * rewrites the program:
+  *   - a continuation map :k to :j(:k) is eta-reduced to :j;
+  *   - a map bound by let and called exactly once is contified: it is moved to its call site, and the redex
+  *     (map v1, ..., vn to B)(S1, ..., Sn) is reduced to let v1 := S1; in ... let vn := Sn; in B;
+  *   - a parameter of a let-bound map that only appears in calls is dropped if it is unused, along with its argument
+  *     at every call, provided that each of those arguments is a constant, a variable, or a map;
+  *   - a let binding of such an argument whose variable is unused is dropped;
+  *   - a variable bound by let to a constant or to another variable is replaced by its value.
+  * Only variables whose names contain a colon are substituted for or substituted; the other names are the shared x,
+  * y, and k of the maps for primitives, which may be bound more than once.
+  * Passes are repeated until the program stops changing. */
+class CpsOptimizer {
+
+  static final int MAX_PASSES = 8;
+
+  /** What a pass knows about the uses of a variable */
+  private static class Uses {
+    int total, calls;
+    /** The number of arguments at every call, or -1 if calls disagree */
+    int argc = -2;
+    /** The positions at which some call has an argument that is not trivial */
+    BitSet impure = new BitSet();
+  }
+
+  private final IdentityHashMap<Variable, Uses> uses = new IdentityHashMap<Variable, Uses>();
+  /** Maps called once whose let bindings have been removed, keyed by the variable that was bound to them */
+  private final IdentityHashMap<Variable, Map> contified = new IdentityHashMap<Variable, Map>();
+  /** The parameters to drop from the calls of let-bound maps, keyed by the variable bound to them */
+  private final IdentityHashMap<Variable, BitSet> dropped = new IdentityHashMap<Variable, BitSet>();
+  /** The values of variables bound by let to constants or variables */
+  private final IdentityHashMap<Variable, SymAST> copies = new IdentityHashMap<Variable, SymAST>();
+  private boolean changed;
+
+  private CpsOptimizer() {}
+
+  static SymAST optimize(SymAST prog) {
+    for (int i = 0; i < MAX_PASSES; i++) {
+      CpsOptimizer pass = new CpsOptimizer();
+      pass.counter.walk(prog);
+      SymAST next = pass.rewriter.walk(prog);
+      if (! pass.changed) return prog;
+      prog = next;
+    }
+    return prog;
+  }
+
+  static boolean isTrivial(SymAST e) {
+    return e instanceof Constant || e instanceof Variable || e instanceof Map;
+  }
+
+  private Uses uses(Variable v) {
+    Uses u = uses.get(v);
+    if (u == null) uses.put(v, u = new Uses());
+    return u;
+  }
+
+  private boolean unused(Variable v) { return ! uses.containsKey(v); }
+
+  private static boolean isContinuation(Variable v) { return v.name().startsWith(":"); }
+  private static boolean isUnique(Variable v) { return v.name().indexOf(':') >= 0; }
+
+  /** Counts the uses of variables; a variable in rator position is a call */
+  private final TreeWalk<Void> counter = new TreeWalk<Void>() {
+    void start(AST node) {
+      if (node instanceof Variable) uses((Variable) node).total++;
+      if (! (node instanceof App) || ! (((App) node).rator() instanceof Variable)) return;
+      AST[] args = ((App) node).args();
+      Uses u = uses((Variable) ((App) node).rator());
+      u.calls++;
+      if (u.argc == -2) u.argc = args.length;
+      else if (u.argc != args.length) u.argc = -1;
+      for (int i = 0; i < args.length; i++) if (! isTrivial((SymAST) args[i])) u.impure.set(i);
+    }
+    Void build(AST node, List<Void> kids) { return null; }
+  };
+
+  /** The rewritten right hand sides of the let defs that are kept, keyed by their variables */
+  private final IdentityHashMap<Variable, SymAST> kept = new IdentityHashMap<Variable, SymAST>();
+
+  /** Rewrites a program using the counts of the last pass.  What becomes of each let def is decided as soon as its
+    * right hand side is rewritten, before the scope of its variable is visited. */
+  private final TreeWalk<SymAST> rewriter = new TreeWalk<SymAST>() {
+    void built(AST node, int i, SymAST kid) {
+      if (node instanceof Let && i < ((Let) node).defs().length) def(((Let) node).defs()[i].lhs(), kid);
+    }
+
+    SymAST build(AST node, List<SymAST> kids) {
+      int n = kids.size();
+      switch (node.kind()) {
+        case AST.K_VARIABLE:
+          SymAST value = copies.get(node);
+          return value == null ? (SymAST) node : value;
+        case AST.K_UNOP: return new UnOpApp(((UnOpApp) node).rator(), kids.get(0));
+        case AST.K_BINOP: return new BinOpApp(((BinOpApp) node).rator(), kids.get(0), kids.get(1));
+        case AST.K_APP: return app((App) node, kids.get(0), exps(kids, 1, n));
+        case AST.K_MAP: return map((Map) node, kids.get(0));
+        case AST.K_IF: return new If(kids.get(0), kids.get(1), kids.get(2));
+        case AST.K_BLOCK: return new Block(exps(kids, 0, n));
+        case AST.K_LET: return let((Let) node, kids.get(n-1));
+        case AST.K_LETREC:
+          Def[] defs = ((LetRec) node).defs();
+          Def[] newDefs = new Def[defs.length];
+          for (int i = 0; i < defs.length; i++) newDefs[i] = new Def(defs[i].lhs(), kids.get(i));
+          return new LetRec(newDefs, kids.get(n-1));
+        case AST.K_LETCC: return new Letcc(((Letcc) node).var(), kids.get(0));
+        default: return (SymAST) node;  // constants and primitives
+      }
+    }
+  };
 
-  public SymAST forIf(If i) {
-    SymAST test = (SymAST) i.test();
-    SymAST conseq = (SymAST) i.conseq();
-    SymAST alt = (SymAST) i.alt();
+  /** Decides what becomes of the let def of v, given its rewritten right hand side */
+  private void def(Variable v, SymAST rhs) {
+    Uses u = uses.get(v);
+    if (u == null && isTrivial(rhs)) { changed = true; return; }
+    if (isUnique(v) && (rhs instanceof Constant || rhs instanceof Variable && isUnique((Variable) rhs))) {
+      copies.put(v, rhs);
+      changed = true;
+      return;
+    }
+    if (u != null && rhs instanceof Map && u.total == u.calls && u.argc == ((Map) rhs).vars().length) {
+      Map m = (Map) rhs;
+      if (u.calls == 1) {
+        contified.put(v, m);
+        changed = true;
+        return;
+      }
+      BitSet drop = new BitSet();
+      for (int i = 0; i < m.vars().length; i++)
+        if (unused(m.vars()[i]) && ! u.impure.get(i)) drop.set(i);
+      if (! drop.isEmpty()) {
+        dropped.put(v, drop);
+        changed = true;
+        Variable[] vars = new Variable[m.vars().length - drop.cardinality()];
+        for (int i = 0, j = 0; i < m.vars().length; i++) if (! drop.get(i)) vars[j++] = m.vars()[i];
+        rhs = new Map(vars, m.body());
+      }
+    }
+    kept.put(v, rhs);
+  }
 
-    SymAST newTest = test.accept(this);
-    SymAST newConseq = conseq.accept(this);
-    SymAST newAlt = alt.accept(this);
-    return new If(newTest, newConseq, newAlt);
+  private SymAST let(Let l, SymAST body) {
+    ArrayList<Def> defs = new ArrayList<Def>();
+    for (Def d : l.defs()) {
+      SymAST rhs = kept.remove(d.lhs());
+      if (rhs != null) defs.add(new Def(d.lhs(), rhs));
+    }
+    if (defs.isEmpty()) return body;
+    return new Let(defs.toArray(new Def[defs.size()]), body);
   }
 
-  public SymAST forLetRec(LetRec l) {
-    /* Check for duplicates in LetRec vars, rename vars, construct newEnv, check LetRec rhs's and body in newEnv,
-     * translate rhs's and body */
-    Variable[] vars = l.vars();
-    SymAST[] exps =  l.exps();
+  /** Rewrites the application a given its rewritten rator and args */
+  private SymAST app(App a, SymAST rator, SymAST[] args) {
+    if (a.rator() instanceof Variable && ! copies.containsKey(a.rator())) {
+      Variable f = (Variable) a.rator();
+      Map m = contified.get(f);
+      if (m != null) { changed = true; return reduce(m, args); }
+      BitSet drop = dropped.get(f);
+      if (drop != null) args = remove(args, drop);
+      return new App(f, args);
+    }
+    if (rator instanceof Map && ((Map) rator).vars().length == args.length) {
+      changed = true;
+      return reduce((Map) rator, args);
+    }
+    return new App(rator, args);
+  }
 
-    PureList<Variable> varList = PureListClass.arrayToList(vars);
-    varList.accept(AnyDuplicatesVisitor.ONLY);  // throws exception on an error
+  /** Reduces (map v1, ..., vn to B)(S1, ..., Sn), whose args have been rewritten, to nested lets */
+  private static SymAST reduce(Map m, SymAST[] args) {
+    Variable[] vars = m.vars();
+    SymAST body = m.body();
+    for (int i = vars.length - 1; i >= 0; i--) body = new Let(new Def[] {new Def(vars[i], args[i])}, body);
+    return body;
+  }
 
-    int n = vars.length;
+  /** Rewrites the map m given its rewritten body */
+  private SymAST map(Map m, SymAST body) {
+    Variable[] vars = m.vars();
+    /* map :k to :j(:k) => :j */
+    if (vars.length == 1 && body instanceof App) {
+      App app = (App) body;
+      AST[] args = app.args();
+      if (app.rator() instanceof Variable && isContinuation((Variable) app.rator()) && app.rator() != vars[0]
+            && args.length == 1 && args[0] == vars[0]) {
+        changed = true;
+        return (Variable) app.rator();
+      }
+    }
+    return new Map(vars, body);
+  }
 
-    /** DUPLICATED CODE; see above */
-    PureList<DepthVariable> newEnv = env;
-    Variable[] newVars = new Variable[n];
+  private static SymAST[] exps(List<SymAST> kids, int from, int to) {
+    return kids.subList(from, to).toArray(new SymAST[to - from]);
+  }
+
+  private static SymAST[] remove(SymAST[] args, BitSet drop) {
+    SymAST[] result = new SymAST[args.length - drop.cardinality()];
+    for (int i = 0, j = 0; i < args.length; i++) if (! drop.get(i)) result[j++] = args[i];
+    return result;
+  }
+}
+
+/** Finds the parts of a checked (hence unshadowed) SymAST that Parser.cpsProg must convert to CPS.  A continuation
+  * bound by letcc reaches itself, and a map bound by let or letrec reaches a continuation if a variable free in its
+  * body is a continuation or is bound to a map that reaches one.  The continuations and the variables bound to the
+  * maps that reach them are the cpsFuns of the program.  They can take continuations while the rest of the program
+  * stays in direct style if each of them is only called, never used as a value, and is called only from the body of
+  * its letcc or map, outside any map that is not bound to a cpsFun: then a continuation is only invoked while its
+  * letcc is running and the converted code of that letcc is running it. */
+class ContinuationReach {
+
+  /** Returns the cpsFuns of prog, or null if the whole of prog must be converted to CPS.  A program without letcc is
+    * converted entirely, because the results of the CPS evaluators, such as a closure, show the conversion. */
+  static Set<Variable> cpsFuns(SymAST prog) {
+    if (! hasLetcc(prog)) return null;
+    ContinuationReach r = new ContinuationReach();
+    prog.accept(r.scanner);
+    for (boolean changed = true; changed; ) {
+      changed = false;
+      for (Variable f : r.free.keySet()) {
+        if (r.reach.contains(f)) continue;
+        for (Variable v : r.free.get(f)) {
+          if (r.reach.contains(v)) {
+            r.reach.add(f);
+            changed = true;
+            break;
+          }
+        }
+      }
+    }
+    if (r.reach.isEmpty()) return null;
+    return prog.accept(r.checker) ? r.reach : null;
+  }
+
+  /** Returns true if prog contains a letcc; it is a TreeWalk, so it does not bound the depth of prog */
+  private static boolean hasLetcc(SymAST prog) {
+    return new TreeWalk<Boolean>() {
+      Boolean build(AST node, List<Boolean> kids) { return node instanceof Letcc || kids.contains(Boolean.TRUE); }
+    }.walk(prog);
+  }
+
+  private final Set<Variable> reach = Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>());
+  /** The continuations and let-bound maps free in the body of each let-bound map, keyed by its variable */
+  private final LinkedHashMap<Variable, Set<Variable>> free = new LinkedHashMap<Variable, Set<Variable>>();
+  /** The number of let-bound maps enclosing the binding of each continuation and let-bound map */
+  private final IdentityHashMap<Variable, Integer> level = new IdentityHashMap<Variable, Integer>();
+  /** The let-bound maps enclosing the code being scanned, outermost first */
+  private final ArrayList<Variable> open = new ArrayList<Variable>();
+  /** The number of maps not bound to cpsFuns enclosing the binding of each cpsFun */
+  private final IdentityHashMap<Variable, Integer> depth = new IdentityHashMap<Variable, Integer>();
+  private int direct;
+
+  private ContinuationReach() {}
+
+  /** Records the continuations and the variables free in the bodies of let-bound maps */
+  private final SymASTVisitor<Void> scanner = new SymASTVisitor<Void>() {
+    private Void visit(AST a) { return ((SymAST) a).accept(this); }
+    private Void all(AST[] asts) {
+      for (AST a : asts) visit(a);
+      return null;
+    }
+    public Void forBoolConstant(BoolConstant b) { return null; }
+    public Void forIntConstant(IntConstant i) { return null; }
+    public Void forNullConstant(NullConstant n) { return null; }
+    public Void forPrimFun(PrimFun f) { return null; }
+    public Void forSymVariable(Variable v) {
+      Integer l = level.get(v);
+      if (l != null) for (int i = l; i < open.size(); i++) free.get(open.get(i)).add(v);
+      return null;
+    }
+    public Void forUnOpApp(UnOpApp u) { return visit(u.arg()); }
+    public Void forBinOpApp(BinOpApp b) { visit(b.arg1()); return visit(b.arg2()); }
+    public Void forApp(App a) { visit(a.rator()); return all(a.args()); }
+    public Void forMap(Map m) { return visit(m.body()); }
+    public Void forIf(If i) { visit(i.test()); visit(i.conseq()); return visit(i.alt()); }
+    public Void forBlock(Block b) { return all(b.exps()); }
+    public Void forLet(Let l) { defs(l.defs()); return visit(l.body()); }
+    public Void forLetRec(LetRec l) { defs(l.defs()); return visit(l.body()); }
+    public Void forLetcc(Letcc l) {
+      reach.add(l.var());
+      level.put(l.var(), open.size());
+      return visit(l.body());
+    }
+    private void defs(Def[] defs) {
+      for (Def d : defs) if (d.rhs() instanceof Map) level.put(d.lhs(), open.size());
+      for (Def d : defs) {
+        if (! (d.rhs() instanceof Map)) { visit(d.rhs()); continue; }
+        open.add(d.lhs());
+        free.put(d.lhs(), Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>()));
+        visit(((Map) d.rhs()).body());
+        open.remove(open.size() - 1);
+      }
+    }
+  };
 
-    for (int i = n-1; i >= 0; i--) {
-      DepthVariable newDepthVar = new DepthVariable(vars[i], depth+1);
-      newEnv = newEnv.cons(newDepthVar);
-      newVars[i] = newDepthVar.rename();
+  /** Returns true if every cpsFun is only called, from code enclosed by the same maps not bound to cpsFuns as its
+    * binding */
+  private final SymASTVisitor<Boolean> checker = new SymASTVisitor<Boolean>() {
+    private boolean visit(AST a) { return ((SymAST) a).accept(this); }
+    private boolean all(AST[] asts) {
+      for (AST a : asts) if (! visit(a)) return false;
+      return true;
     }
+    public Boolean forBoolConstant(BoolConstant b) { return true; }
+    public Boolean forIntConstant(IntConstant i) { return true; }
+    public Boolean forNullConstant(NullConstant n) { return true; }
+    public Boolean forPrimFun(PrimFun f) { return true; }
+    public Boolean forSymVariable(Variable v) { return ! reach.contains(v); }
+    public Boolean forUnOpApp(UnOpApp u) { return visit(u.arg()); }
+    public Boolean forBinOpApp(BinOpApp b) { return visit(b.arg1()) && visit(b.arg2()); }
+    public Boolean forApp(App a) {
+      AST rator = a.rator();
+      if (reach.contains(rator)) return depth.get(rator) == direct && all(a.args());
+      return visit(rator) && all(a.args());
+    }
+    public Boolean forMap(Map m) {
+      direct++;
+      boolean ok = visit(m.body());
+      direct--;
+      return ok;
+    }
+    public Boolean forIf(If i) { return visit(i.test()) && visit(i.conseq()) && visit(i.alt()); }
+    public Boolean forBlock(Block b) { return all(b.exps()); }
+    public Boolean forLet(Let l) { return defs(l.defs()) && visit(l.body()); }
+    public Boolean forLetRec(LetRec l) { return defs(l.defs()) && visit(l.body()); }
+    public Boolean forLetcc(Letcc l) {
+      depth.put(l.var(), direct);
+      return visit(l.body());
+    }
+    private boolean defs(Def[] defs) {
+      for (Def d : defs) if (reach.contains(d.lhs())) depth.put(d.lhs(), direct);
+      for (Def d : defs) {
+        /* the map bound to a cpsFun takes a continuation, so its body is converted with the code around it */
+        boolean ok = reach.contains(d.lhs()) ? visit(((Map) d.rhs()).body()) : visit(d.rhs());
+        if (! ok) return false;
+      }
+      return true;
+    }
+  };
+}
 
-    CheckVisitor newVisitor = newVisitor(newEnv);  // increments depth
-    //System.out.println("forLetrec: new visitor:" + newVisitor.depth);
+/** A post-order traversal of an AST that keeps the nodes it has entered on an explicit stack rather than the Java
+  * stack, so the depth of the trees that it can traverse is limited only by the heap.  Children are visited in the
+  * order in which Jam evaluates them: the rhss of a let or letrec precede its body and the rator of an app precedes
+  * its args.  A subclass builds the result for each node from the results for its children; the hooks start and child
+  * let it act when a node is entered and before each child is visited (to enter a scope, for example). */
+abstract class TreeWalk<R> {
 
-    SymAST[] newExps = new SymAST[n];
-    for (int i = 0; i < n; i++)
-      newExps[i] = exps[i].accept(newVisitor);
+  static final AST[] NONE = new AST[0];
 
-    SymAST newBody = l.body().accept(newVisitor); // throws an exception on error
-    return new LetRec(Def.makeDefs(newVars,newExps), newBody);
+  /** A node that has been entered but not yet built */
+  private static final class Frame {
+    final AST node;
+    final AST[] kids;
+    final int base;  // the index in results of the result for kids[0]
+    int next;        // the index of the next child to visit
+    Frame(AST n, AST[] k, int b) { node = n; kids = k; base = b; }
   }
 
-  public SymAST forLet(Let l) {
-    /* Check for duplicates in Let vars; rename vars to eliminate shadowing; check and translate RHSs of defs;
-     * construct new symbol table (newEnv) extending the old one (env); check and transform body. */
-    Variable[] vars = l.vars();
-    PureList<Variable> varList = PureListClass.arrayToList(vars);
-    varList.accept(AnyDuplicatesVisitor.ONLY);  // throws exception on an error
+  /** Called when node is entered, before any of its children is visited */
+  void start(AST node) {}
 
-    SymAST[] exps = l.exps();
-    int n = vars.length;
-    SymAST[] newExps = new SymAST[n];
+  /** Returns the subtrees of node to visit; by default all of its children */
+  AST[] subtrees(AST node) { return children(node); }
 
-    for (int i = 0; i < n; i++)
-      newExps[i] = exps[i].accept(this);
+  /** Called before the child of node with index i is visited */
+  void child(AST node, int i) {}
+
+  /** Called after the child of node with index i is built, with its result */
+  void built(AST node, int i, R kid) {}
 
-    /** More DUPLICATED Code */
-    PureList<DepthVariable> newEnv = env;
-    Variable[] newVars = new Variable[n];
+  /** Returns the result for node given the results for its children, in the order in which they were visited */
+  abstract R build(AST node, List<R> kids);
 
-    for (int i = n-1; i >= 0; i--) {
-      DepthVariable newDepthVar = new DepthVariable(vars[i], depth+1);
-      newEnv = newEnv.cons(newDepthVar);
-      newVars[i] = newDepthVar.rename();
+  /** Traverses root, returning the result that build returns for it */
+  R walk(AST root) {
+    ArrayList<R> results = new ArrayList<R>();
+    ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+    start(root);
+    stack.push(new Frame(root, subtrees(root), 0));
+    while (! stack.isEmpty()) {
+      Frame f = stack.peek();
+      if (f.next < f.kids.length) {
+        child(f.node, f.next);
+        AST kid = f.kids[f.next++];
+        start(kid);
+        stack.push(new Frame(kid, subtrees(kid), results.size()));
+      }
+      else {
+        stack.pop();
+        List<R> kids = results.subList(f.base, results.size());
+        R r = build(f.node, kids);
+        kids.clear();
+        results.add(r);
+        Frame parent = stack.peek();
+        if (parent != null) built(parent.node, parent.next - 1, r);
+      }
     }
+    return results.get(0);
+  }
 
-    CheckVisitor newVisitor = newVisitor(newEnv);  // embeds new symbol table in newVisitor
-    //System.out.println("forLet: new visitor:" + newVisitor.depth);
-    SymAST newBody = l.body().accept(newVisitor); // throws an exception on error
-    return new Let(Def.makeDefs(newVars, newExps), newBody);
+  /** Returns true if every element of results is TRUE */
+  static boolean all(List<Boolean> results) {
+    for (Boolean r : results) if (! r) return false;
+    return true;
   }
 
-  public SymAST forLetcc(Letcc host) {
-    DepthVariable newDepthVar = new DepthVariable(host.var(), depth+1);
-    PureList<DepthVariable> newEnv = env.cons(newDepthVar);
-    return new Letcc(newDepthVar.rename(), host.body().accept(newVisitor(newEnv)));
+  /** Returns the children of a in the order in which Jam evaluates them */
+  static AST[] children(AST a) {
+    switch (a.kind()) {
+      case AST.K_UNOP: return new AST[] { ((UnOpApp) a).arg() };
+      case AST.K_BINOP: return new AST[] { ((BinOpApp) a).arg1(), ((BinOpApp) a).arg2() };
+      case AST.K_APP: return append(((App) a).rator(), ((App) a).args());
+      case AST.K_MAP: return new AST[] { ((Map) a).body() };
+      case AST.K_SMAP: return new AST[] { ((SMap) a).body() };
+      case AST.K_IF: return new AST[] { ((If) a).test(), ((If) a).conseq(), ((If) a).alt() };
+      case AST.K_BLOCK: return ((Block) a).exps();
+      case AST.K_LET: return append(((Let) a).exps(), ((Let) a).body());
+      case AST.K_SLET: return append(((SLet) a).rhss(), ((SLet) a).body());
+      case AST.K_LETREC: return append(((LetRec) a).exps(), ((LetRec) a).body());
+      case AST.K_SLETREC: return append(((SLetRec) a).rhss(), ((SLetRec) a).body());
+      case AST.K_LETCC: return new AST[] { ((Letcc) a).body() };
+      case AST.K_SLETCC: return new AST[] { ((SLetcc) a).body() };
+      default: return NONE;  // constants, primitives, variables and pairs
+    }
   }
 
-  public SymAST forBlock(Block b) {
-    // Check each exp
-    SymAST[] exps =  (SymAST[]) b.exps();
-    int n = exps.length;
-    SymAST[] newExps = new SymAST[n];
-    for (int i = 0; i < n; i++) newExps[i] = exps[i].accept(this);
-    return new Block(newExps);
+  private static AST[] append(AST first, AST[] rest) {
+    AST[] all = new AST[rest.length + 1];
+    all[0] = first;
+    System.arraycopy(rest, 0, all, 1, rest.length);
+    return all;
+  }
+
+  private static AST[] append(AST[] init, AST last) {
+    AST[] all = Arrays.copyOf(init, init.length + 1, AST[].class);
+    all[init.length] = last;
+    return all;
   }
 }
 
-/** Visitor that checks for duplicate variables in a symbol table (a singleton) 
- *  Throws an SyntaxException if it encounters such an error; otherwise returns null
- */
-class AnyDuplicatesVisitor implements PureListVisitor<Variable,Void> {
-  /* Create singleton instance. */
-  public static AnyDuplicatesVisitor ONLY = new AnyDuplicatesVisitor();
-  private AnyDuplicatesVisitor() {}
+/** Decides whether every continuation bound by a letcc in a checked (hence unshadowed) SymAST is only invoked and
+  * never used as a value.  Such a continuation is invoked only by the body of its letcc or by closures created there,
+  * so SymEvaluator and SDEvaluator can treat it as an escape. */
+class LetccUsageVisitor extends TreeWalk<Boolean> {
+  private final HashSet<Variable> letccVars = new HashSet<Variable>();
+
+  private LetccUsageVisitor() {}
 
-  public Void forEmpty(Empty<Variable> host) { return null; }
-  public Void forCons(Cons<Variable> host) {
-    if (host.rest().hasMember(host.first())) throw new
-      SyntaxException(host.first() + " is declared twice in the same scope");
-    host.rest().accept(this);
-    return null;
+  /** Returns true if every continuation bound by a letcc in prog is only invoked */
+  static boolean escapeOnly(SymAST prog) { return new LetccUsageVisitor().walk(prog); }
+
+  /** Returns true if prog contains a letcc */
+  static boolean usesLetcc(SymAST prog) {
+    LetccUsageVisitor v = new LetccUsageVisitor();
+    v.walk(prog);
+    return ! v.letccVars.isEmpty();
+  }
+
+  void start(AST node) { if (node instanceof Letcc) letccVars.add(((Letcc) node).var()); }
+
+  Boolean build(AST node, List<Boolean> kids) {
+    if (node instanceof Variable) return ! letccVars.contains(node);
+    boolean ok = true;
+    for (int i = 0; i < kids.size(); i++) {
+      boolean invoked = i == 0 && node instanceof App && letccVars.contains(((App) node).rator());
+      ok = ok && (invoked || kids.get(i));
+    }
+    return ok;
   }
 }
 
-/** A lookup visitor class that returns element matching the embedded var. If no match found, returns null. */
-class LookupVisitor<ElemType extends WithVariable> implements
-  PureListVisitor<ElemType,ElemType> {
+/** Performs syntax checking and unshadowing. It returns a syntax tree (with new variable names) unless there is a
+  * syntax error. On a syntax error, throws a SyntaxException. */
+class CheckVisitor extends TreeWalk<SymAST> {
+
+  /** Symbol table used to detect free variables: the innermost binding of each variable in scope */
+  private final IdentityHashMap<Variable,DepthVariable> env = new IdentityHashMap<Variable,DepthVariable>();
+
+  /** The scopes that have been entered but not yet exited, innermost first */
+  private final ArrayDeque<Scope> scopes = new ArrayDeque<Scope>();
+
+  /** Lexical depth in symbol table */
+  private int depth;
+
+  /** The variables bound by a scope, their new names, and the bindings in env that they shadow */
+  private static final class Scope {
+    final Variable[] vars;
+    final Variable[] newVars;
+    final DepthVariable[] shadowed;
+    Scope(Variable[] vs, int n) { vars = vs; newVars = new Variable[n]; shadowed = new DepthVariable[n]; }
+  }
+
+  private CheckVisitor() {}
+
+  /** Checks and unshadows prog; aborts on an error by throwing an exception */
+  static SymAST check(SymAST prog) { return new CheckVisitor().walk(prog); }
+
+  /* Checks for duplicates in the vars of a Map, Let, or LetRec before any of its subtrees is checked */
+  void start(AST node) {
+    if (node instanceof Map) noDuplicates(((Map) node).vars());
+    else if (node instanceof Let) noDuplicates(((Let) node).vars());
+    else if (node instanceof LetRec) noDuplicates(((LetRec) node).vars());
+  }
+
+  /* The rhss of a Let are checked in the enclosing scope; the rhss of a LetRec and the bodies of a Let, LetRec, Map,
+   * and Letcc are checked in the new scope. */
+  void child(AST node, int i) {
+    switch (node.kind()) {
+      case AST.K_MAP: enter(((Map) node).vars()); break;
+      case AST.K_LET: if (i == ((Let) node).vars().length) enter(((Let) node).vars()); break;
+      case AST.K_LETREC: if (i == 0) enter(((LetRec) node).vars()); break;
+      case AST.K_LETCC: enter(new Variable[] { ((Letcc) node).var() }); break;
+      default:
+    }
+  }
+
+  SymAST build(AST node, List<SymAST> kids) {
+    int n = kids.size();
+    switch (node.kind()) {
+      case AST.K_VARIABLE: {
+        DepthVariable match = env.get(node);
+        if (match == null) throw new SyntaxException("variable " + node + " is unbound");
+        return match.rename();
+      }
+      case AST.K_UNOP: return new UnOpApp(((UnOpApp) node).rator(), kids.get(0));
+      case AST.K_BINOP: {
+        BinOp rator = ((BinOpApp) node).rator();
+        SymAST newArg1 = kids.get(0);
+        SymAST newArg2 = kids.get(1);
+        if (rator == OpAnd.ONLY) {  // second argument must be Boolean!
+          SymAST conseq = new App(AsBoolPrim.ONLY, new SymAST[]{newArg2}); // performs run-time check
+          return new If(newArg1, conseq, BoolConstant.FALSE);
+        }
+        if (rator == OpOr.ONLY) {  // second argument must be Boolean!
+          SymAST alt = new App(AsBoolPrim.ONLY, new SymAST[]{newArg2}); // performs run-time check
+          return new If(newArg1, BoolConstant.TRUE, alt);
+        }
+        return new BinOpApp(rator, newArg1, newArg2);
+      }
+      case AST.K_APP: return new App(kids.get(0), exps(kids, 1, n));
+      case AST.K_MAP: return new Map(exit(), kids.get(0));
+      case AST.K_IF: return new If(kids.get(0), kids.get(1), kids.get(2));
+      case AST.K_BLOCK: return new Block(exps(kids, 0, n));
+      case AST.K_LET: return new Let(Def.makeDefs(exit(), exps(kids, 0, n-1)), kids.get(n-1));
+      case AST.K_LETREC: return new LetRec(Def.makeDefs(exit(), exps(kids, 0, n-1)), kids.get(n-1));
+      case AST.K_LETCC: return new Letcc(exit()[0], kids.get(0));
+      default: return (SymAST) node;  // constants and primitives
+    }
+  }
 
-  Variable var;  // the lexer guarantees that there is only one Variable object for a given name
+  /** Binds vars at the next lexical depth, shadowing any bindings of them in the enclosing scopes */
+  private void enter(Variable[] vars) {
+    depth++;
+    int n = vars.length;
+    Scope s = new Scope(vars, n);
+    for (int i = 0; i < n; i++) {
+      DepthVariable newDepthVar = new DepthVariable(vars[i], depth);
+      s.shadowed[i] = env.put(vars[i], newDepthVar);
+      s.newVars[i] = newDepthVar.rename();
+    }
+    scopes.push(s);
+  }
 
-  LookupVisitor(Variable v) { var = v; }
+  /** Restores the bindings shadowed by the innermost scope; returns the new names of its variables */
+  private Variable[] exit() {
+    Scope s = scopes.pop();
+    for (int i = 0; i < s.vars.length; i++) {
+      if (s.shadowed[i] == null) env.remove(s.vars[i]);
+      else env.put(s.vars[i], s.shadowed[i]);
+    }
+    depth--;
+    return s.newVars;
+  }
 
-  public ElemType forEmpty(Empty<ElemType> e) { return null; }
+  private static SymAST[] exps(List<SymAST> kids, int from, int to) {
+    return kids.subList(from, to).toArray(new SymAST[to - from]);
+  }
 
-  public ElemType forCons(Cons<ElemType> c) {
-//    System.err.println("forCons in LookUpVisitor invoked; c = " + c);
-    ElemType e = c.first();
-    if (var == e.var()) return e;
-    return c.rest().accept(this);
+  /** Throws a SyntaxException if a variable is declared twice in vars, naming the leftmost one that is */
+  private static void noDuplicates(Variable[] vars) {
+    if (vars.length < 2) return;
+    HashSet<Variable> later = new HashSet<Variable>();
+    Variable dup = null;
+    for (int i = vars.length - 1; i >= 0; i--) if (! later.add(vars[i])) dup = vars[i];
+    if (dup != null) throw new SyntaxException(dup + " is declared twice in the same scope");
   }
 }
 
@@ -2613,28 +3818,20 @@ class SConvertException extends RuntimeException {
 class SConverter {
 
   SymbolTable symbolTable;
-  SymASTVisitor<SDAST> convert;   // visitor that performs the conversion
 
   SConverter() {
     symbolTable = new SymbolTable();
-    convert = new SConvert(0);
   }
 
   SDAST convert(SymAST prog) {
-    return prog.accept(convert);
+    return new SConvert().walk(prog);
   }
 
-  /** Visitor class for performing the static distance conversion; it modifies symbolTable during traversal,
-    * but restores it on exit */
-  class SConvert implements SymASTVisitor<SDAST> {
-//    int codeIdx;
+  /** Tree walk that performs the static distance conversion; it adds entries to symbolTable as it enters scopes.
+    * The lhs's of a letrec are all entered before any rhs is converted, so the rhss can refer to each other. */
+  class SConvert extends TreeWalk<SDAST> {
     int depth; // lexical depth of expression being visited
 
-    SConvert(int d) {
-      depth = d;
-//      codeIdx = 0;
-    }
-
     /** Returns Pair containing (depth - [dist for v in symbolTable], offset for v in symbolTable).
       * Note: programs are assumed to be well-formed. */
     Pair lookup(Variable v) {
@@ -2644,104 +3841,67 @@ class SConverter {
       return new Pair(depth - match.dist(), match.offset());
     }
 
-    private SDAST forDefault(AST host) { throw new SyntaxException(host + " is not a legal input to SConvert"); }
-    public SDAST forIntConstant(IntConstant i) { return i; }
-    public SDAST forNullConstant(NullConstant n) { return n; }
-    public SDAST forBoolConstant(BoolConstant b) { return b; }
-
-    public SDAST forSymVariable(Variable v) {
-      return lookup(v);
-    }
-
-    public SDAST forPrimFun(PrimFun f) { return f; }
-
-    public SDAST forUnOpApp(UnOpApp u) {
-      SDAST a = convert((SymAST) u.arg());
-      return new UnOpApp(u.rator(), a);
-    }
-
-    public SDAST forBinOpApp(BinOpApp b) {
-      SDAST a1 = convert((SymAST) b.arg1());
-      SDAST a2 = convert((SymAST) b.arg2());
-      return new BinOpApp(b.rator(), a1, a2);
-    }
-
-    public SDAST forApp(App a) {
-      SDAST[] args = new SDAST[a.args().length];
-      for (int i = 0; i < args.length; i++) {
-        args[i] = convert(((SymAST)a.args()[i]));
+    /* The rhss of a let are converted at the enclosing depth; its body, the rhss and body of a letrec, and the
+     * bodies of a map and letcc are converted at the next depth. */
+    void child(AST node, int i) {
+      switch (node.kind()) {
+        case AST.K_MAP: enter(((Map) node).vars()); break;
+        case AST.K_LET: {
+          Variable[] vars = ((Let) node).vars();
+          if (i == 0) put(vars);
+          if (i == vars.length) depth++;
+          break;
+        }
+        case AST.K_LETREC: if (i == 0) enter(((LetRec) node).vars()); break;
+        case AST.K_LETCC: enter(new Variable[] { ((Letcc) node).var() }); break;
+        default:
       }
-      return new App(convert((SymAST) a.rator()), args);
     }
 
-    public SDAST forMap(Map m) {
-      for (int i = 0; i < m.vars().length; i++) {
-        symbolTable.put(m.vars()[i], new Pair(depth + 1, i));
-      }
-      depth++;
-      SDAST body = convert(m.body());
-      depth--;
-
-//      return new SMap(codeIdx++, m.vars().length, body);
-      return new SMap(-1, m.vars().length, body);
+    private void put(Variable[] vars) {
+      for (int i = 0; i < vars.length; i++) symbolTable.put(vars[i], new Pair(depth + 1, i));
     }
 
-    public SDAST forIf(If i) {
-      SDAST t = convert((SymAST) i.test());
-      SDAST c = convert((SymAST) i.conseq());
-      SDAST a = convert((SymAST) i.alt());
-
-      return new If(t, c, a);
-    }
-
-    public SDAST forLet(Let l) {
-      Def[] defs = l.defs();
-      SDAST[] sdArr = new SDAST[defs.length];
-      int n = defs.length;
-
-      for (int i = 0; i < n; i++) {
-        symbolTable.put(defs[i].lhs(), new Pair(depth + 1, i));
-        sdArr[i] = convert(defs[i].rhs());
-      }
+    private void enter(Variable[] vars) {
+      put(vars);
       depth++;
-      SDAST body = convert(l.body());
-      depth--;
-      return new SLet(sdArr, body);
     }
 
-    public SDAST forLetRec(LetRec l) {
-      Def[] defs = l.defs();
-      SDAST[] sdArr = new SDAST[defs.length];
-      int n = defs.length;
-
-      for (int i = 0; i < n; i++) {
-        symbolTable.put(defs[i].lhs(), new Pair(depth + 1, i));
-        depth++;
-        sdArr[i] = convert(defs[i].rhs());
-        depth--;
+    SDAST build(AST node, List<SDAST> kids) {
+      int n = kids.size();
+      switch (node.kind()) {
+        case AST.K_VARIABLE: return lookup((Variable) node);
+        case AST.K_UNOP: return new UnOpApp(((UnOpApp) node).rator(), kids.get(0));
+        case AST.K_BINOP: return new BinOpApp(((BinOpApp) node).rator(), kids.get(0), kids.get(1));
+        case AST.K_APP: return new App(kids.get(0), exps(kids, 1, n));
+        case AST.K_IF: return new If(kids.get(0), kids.get(1), kids.get(2));
+        case AST.K_BLOCK: return new Block(exps(kids, 0, n));
+        case AST.K_MAP:
+          depth--;
+//          return new SMap(codeIdx++, m.vars().length, body);
+          return new SMap(-1, ((Map) node).vars().length, kids.get(0));
+        case AST.K_LET:
+          depth--;
+          return new SLet(exps(kids, 0, n-1), kids.get(n-1));
+        case AST.K_LETREC:
+          depth--;
+          return new SLetRec(exps(kids, 0, n-1), kids.get(n-1));
+        case AST.K_LETCC:
+          depth--;
+          return new SLetcc(kids.get(0));
+        case AST.K_BOOL:
+        case AST.K_INT:
+        case AST.K_NULL:
+        case AST.K_PRIM: return (SDAST) node;
+        default: throw new SyntaxException(node + " is not a legal input to SConvert");
       }
-
-      depth++;
-      SDAST body = convert(l.body());
-      depth--;
-      return new SLetRec(sdArr, body);
     }
 
-    public SDAST forLetcc(Letcc host) {
-      throw new EvalException("letcc not supported in non-cps code");
-    }
-
-    public SDAST forBlock(Block b) {
-      SDAST[] sdArr = new SDAST[b.exps().length];
-      for (int i = 0; i < b.exps().length; i++) {
-        sdArr[i] = convert((SymAST) b.exps()[i]);
-      }
-      return new Block(sdArr);
+    private SDAST[] exps(List<SDAST> kids, int from, int to) {
+      return kids.subList(from, to).toArray(new SDAST[to - from]);
     }
   }
 
-
-
   public static void main(String[] args) throws IOException  {
     /* Check for legal argument list. */
     if (args.length == 0) {
@@ -2765,7 +3925,7 @@ class SConverter {
 
     Pair get(Variable v) {
       LinkedList<Pair> vStack = table.get(v);
-      if (v == null) return null;
+      if (vStack == null) return null;
       return vStack.getLast();
     }
 
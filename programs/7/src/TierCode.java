@@ -0,0 +1,252 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/** The body of a hot Map or SMap translated by TierCompiler into a tree of Java functional objects.  It runs in the
+  * same environments (a VarEnv or an SDEnv) as SymEvaluator and SDEvaluator, and creates the same VarClosures and
+  * SDClosures, so code in the two tiers can call each other freely.  Code in tail position returns a TailCall for
+  * an application of a TailCallable, as a tail Evaluator does. */
+interface TierCode {
+  JamVal eval(Environment env);
+}
+
+/** The profile of a Map or SMap: the number of times its closures have been entered in the tree-walking tier, and
+  * its TierCode once it is hot.  Every Map and SMap that a program runs was built by the Parser of that program
+  * (the tables that Parsers share are copied, see Parser.cpsPrim), so a profile is updated only by the thread
+  * running that Parser's programs and needs no synchronization. */
+class TierProfile {
+  int calls;
+  TierCode code;
+}
+
+/** Promotes hot function bodies from SymEvaluator and SDEvaluator to TierCode.  VarClosure.enter and SDClosure.run
+  * count the entries of each Map and SMap; a loop in Jam is a tail call, so each iteration is an entry.  When the
+  * count reaches the threshold, the body is translated and later entries run the TierCode instead of visiting the
+  * body.  The threshold is read from the system property jam.tier.threshold and can be changed with setThreshold; a
+  * negative threshold keeps all code in the tree-walking tier. */
+class TierCompiler implements ASTVisitor<TierCode> {
+
+  static final int DEFAULT_THRESHOLD = 1000;
+  private static volatile int threshold = Integer.getInteger("jam.tier.threshold", DEFAULT_THRESHOLD);
+  private static final AtomicLong compilations = new AtomicLong();
+
+  static int threshold() { return threshold; }
+  static void setThreshold(int t) { threshold = t; }
+  /** Returns the number of function bodies translated to TierCode so far, by all threads */
+  static long compilations() { return compilations.get(); }
+
+  private static final TierCompiler TAIL = new TierCompiler(true);
+  private static final TierCompiler NON_TAIL = new TierCompiler(false);
+
+  private final boolean tail;
+  private TierCompiler(boolean t) { tail = t; }
+
+  /** Records an entry of the function with profile p and body body; returns its TierCode if it is hot, else null */
+  static TierCode hot(TierProfile p, AST body) {
+    TierCode code = p.code;
+    if (code != null) return code;
+    if (threshold < 0 || ++p.calls < threshold) return null;
+    code = body.accept(TAIL);
+    p.code = code;
+    compilations.incrementAndGet();
+    return code;
+  }
+
+  /** Applies rator to vals on behalf of the application app, in tail position if tail is true */
+  static JamVal apply(JamVal rator, JamVal[] vals, App app, boolean tail) {
+    if (rator instanceof TailCallable) {
+      TailCallable c = (TailCallable) rator;
+      return tail ? new TailCall(c, vals) : TailCall.complete(c.enter(vals));
+    }
+    if (rator instanceof PrimFun) return VM.prim(((PrimFun) rator).code(), vals, 0, vals.length);
+    if (rator instanceof Closure) return ((Closure) rator).apply(vals);
+    throw new EvalException(rator + " appears at head of application " + app  + " but it is not a valid function");
+  }
+
+  /** Evaluates body, the body of a letcc that binds k, in env; k can escape to it until body returns */
+  private static JamVal letcc(TierCode body, Environment env, EscapeContinuation k) {
+    try { return body.eval(env); }
+    catch (EscapeContinuation.Escape x) {
+      if (x.k != k) throw x;
+      return x.value;
+    }
+    finally { k.live = false; }
+  }
+
+  private TierCode forDefault(AST a) { throw new EvalException(a + " cannot be compiled by " + getClass()); }
+
+  public TierCode forBoolConstant(BoolConstant b) { return env -> b; }
+  public TierCode forIntConstant(IntConstant i) { return env -> i; }
+  public TierCode forNullConstant(NullConstant n) { return env -> JamEmpty.ONLY; }
+  public TierCode forPrimFun(PrimFun p) { return env -> p; }
+  public TierCode forSymVariable(Variable v) { return env -> env.lookup(v); }
+  public TierCode forPair(Pair p) { return env -> env.lookup(p); }
+
+  public TierCode forUnOpApp(UnOpApp u) {
+    TierCode arg = u.arg().accept(NON_TAIL);
+    int op = u.rator().code();
+    return env -> VM.unOp(op, arg.eval(env));
+  }
+
+  public TierCode forBinOpApp(BinOpApp b) {
+    int op = b.rator().code();
+    TierCode x = b.arg1().accept(NON_TAIL);
+    if (b.arg2() instanceof IntConstant) {
+      int k = ((IntConstant) b.arg2()).value();
+      switch (op) {
+        case VMCode.B_PLUS: return env -> IntConstant.valueOf(VM.intArg(x.eval(env), op) + k);
+        case VMCode.B_MINUS: return env -> IntConstant.valueOf(VM.intArg(x.eval(env), op) - k);
+        case VMCode.B_LESS: return env -> BoolConstant.toBoolConstant(VM.intArg(x.eval(env), op) < k);
+        case VMCode.B_LESS_EQUALS: return env -> BoolConstant.toBoolConstant(VM.intArg(x.eval(env), op) <= k);
+        default:
+      }
+    }
+    TierCode y = b.arg2().accept(NON_TAIL);
+    switch (op) {
+      case VMCode.B_DIVIDE:
+        return env -> {
+          int d = VM.checkDivisor(y.eval(env));
+          return VM.divide(x.eval(env), d);
+        };
+      case VMCode.B_AND:
+        return env -> {
+          JamVal v = x.eval(env);
+          return Jit.boolArg(v, op) ? BoolConstant.toBoolConstant(Jit.boolArg(y.eval(env), op)) : v;
+        };
+      case VMCode.B_OR:
+        return env -> {
+          JamVal v = x.eval(env);
+          return Jit.boolArg(v, op) ? v : BoolConstant.toBoolConstant(Jit.boolArg(y.eval(env), op));
+        };
+      case VMCode.B_GETS:
+        return env -> {
+          JamVal v = x.eval(env);
+          if (! (v instanceof JamRef)) throw new EvalException("Left argument " + b.arg1() + " of <- is not a JamRef");
+          ((JamRef) v).setValue(y.eval(env));
+          return JamUnit.ONLY;
+        };
+      default: return env -> VM.binOp(op, x.eval(env), y.eval(env));
+    }
+  }
+
+  public TierCode forApp(App a) {
+    TierCode[] codes = compileAll(a.args());
+    int n = codes.length;
+    if (a.rator() instanceof PrimFun) {
+      int p = ((PrimFun) a.rator()).code();
+      return env -> VM.prim(p, evalAll(codes, env), 0, n);
+    }
+    TierCode rator = a.rator().accept(NON_TAIL);
+    boolean t = tail;
+    return env -> {
+      JamVal r = rator.eval(env);
+      return apply(r, evalAll(codes, env), a, t);
+    };
+  }
+
+  public TierCode forIf(If i) {
+    TierCode test = i.test().accept(NON_TAIL);
+    TierCode conseq = i.conseq().accept(this);
+    TierCode alt = i.alt().accept(this);
+    return env -> Jit.test(test.eval(env)) ? conseq.eval(env) : alt.eval(env);
+  }
+
+  public TierCode forBlock(Block b) {
+    AST[] exps = b.exps();
+    int last = exps.length - 1;
+    TierCode[] codes = new TierCode[exps.length];
+    for (int i = 0; i < last; i++) codes[i] = exps[i].accept(NON_TAIL);
+    codes[last] = exps[last].accept(this);
+    return env -> {
+      for (int i = 0; i < last; i++) codes[i].eval(env);
+      return codes[last].eval(env);
+    };
+  }
+
+  public TierCode forMap(Map m) { return env -> new VarClosure(m, new SymEvaluator((VarEnv) env)); }
+
+  public TierCode forSMap(SMap sm) {
+    int depth = sm.freeDepth();
+    return env -> new SDClosure(sm, new SDEvaluator(((SDEnv) env).innermost(depth)));
+  }
+
+  /* Let right hand sides are evaluated from last to first, as in Evaluator */
+  public TierCode forLet(Let l) {
+    Variable[] vars = l.vars();
+    TierCode[] rhss = compileAll(l.exps());
+    TierCode body = l.body().accept(this);
+    return env -> {
+      VarEnv newEnv = (VarEnv) env;
+      for (int i = vars.length - 1; i >= 0; i--) newEnv = newEnv.cons(new Binding(vars[i], rhss[i].eval(env)));
+      return body.eval(newEnv);
+    };
+  }
+
+  public TierCode forSLet(SLet sl) {
+    TierCode[] rhss = compileAll(sl.rhss());
+    TierCode body = sl.body().accept(this);
+    int n = rhss.length;
+    return env -> {
+      JamVal[] vals = new JamVal[n];
+      for (int i = n-1; i >= 0; i--) vals[i] = rhss[i].eval(env);
+      return body.eval(((SDEnv) env).cons(vals));
+    };
+  }
+
+  public TierCode forLetRec(LetRec l) {
+    Variable[] vars = l.vars();
+    TierCode[] rhss = compileAll(l.exps());
+    TierCode body = l.body().accept(this);
+    int n = vars.length;
+    return env -> {
+      Binding[] bindings = new Binding[n];
+      VarEnv newEnv = (VarEnv) env;
+      for (int i = n-1; i >= 0; i--) {
+        bindings[i] = new Binding(vars[i], null);  // bind var[i], setting value to null, which is not a JamVal
+        newEnv = newEnv.cons(bindings[i]);
+      }
+      for (int i = 0; i < n; i++) bindings[i].setBinding(rhss[i].eval(newEnv));
+      return body.eval(newEnv);
+    };
+  }
+
+  public TierCode forSLetRec(SLetRec slr) {
+    TierCode[] rhss = compileAll(slr.rhss());
+    TierCode body = slr.body().accept(this);
+    int n = rhss.length;
+    return env -> {
+      JamVal[] vals = new JamVal[n];
+      SDEnv newEnv = ((SDEnv) env).cons(vals);
+      for (int i = 0; i < n; i++) vals[i] = rhss[i].eval(newEnv);
+      return body.eval(newEnv);
+    };
+  }
+
+  public TierCode forLetcc(Letcc l) {
+    Variable v = l.var();
+    TierCode body = l.body().accept(NON_TAIL);
+    return env -> {
+      EscapeContinuation k = new EscapeContinuation();
+      return letcc(body, ((VarEnv) env).cons(new Binding(v, k)), k);
+    };
+  }
+
+  public TierCode forSLetcc(SLetcc slc) {
+    TierCode body = slc.body().accept(NON_TAIL);
+    return env -> {
+      EscapeContinuation k = new EscapeContinuation();
+      return letcc(body, ((SDEnv) env).cons(new JamVal[] { k }), k);
+    };
+  }
+
+  private static TierCode[] compileAll(AST[] asts) {
+    TierCode[] codes = new TierCode[asts.length];
+    for (int i = 0; i < asts.length; i++) codes[i] = asts[i].accept(NON_TAIL);
+    return codes;
+  }
+
+  private static JamVal[] evalAll(TierCode[] codes, Environment env) {
+    int n = codes.length;
+    JamVal[] vals = new JamVal[n];
+    for (int i = 0; i < n; i++) vals[i] = codes[i].eval(env);
+    return vals;
+  }
+}
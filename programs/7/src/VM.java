@@ -0,0 +1,836 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** A compiled SDAST program.  The code is a flat int[] instruction stream; each instruction is an opcode followed
+  * by its operands.  Constants (including the App nodes used in error messages) live in a separate constant pool,
+  * and every SMap in the program is compiled to an entry point in the same instruction stream. */
+class VMCode {
+
+  /* Opcodes.  Operands are listed after each opcode. */
+  static final int CONST   = 0;   // k          push consts[k]
+  static final int LOCAL   = 1;   // s          push slot s of the current frame
+  static final int VAR     = 2;   // d s        push slot s of the frame at static distance d
+  static final int UNOP    = 3;   // u          apply unary operator u to the top of the stack
+  static final int ENDLET  = 4;   //            make the static link of the current frame the current frame
+  static final int BOOL    = 5;   // b          check that the top of the stack is a boolean argument of operator b
+  static final int JUMP    = 6;   // a          pc = a
+  static final int JUMPF   = 7;   // a          pop the test; if it is false, pc = a
+  static final int POP     = 8;   //            discard the top of the stack
+  static final int CLOSURE = 9;   // f          push a closure for function f over the current frame
+  static final int CALL    = 10;  // n k        apply the function below the top n stack entries; consts[k] is the App
+  static final int TCALL   = 11;  // n k        CALL in tail position; reuses the caller's control stack entry
+  static final int PRIM    = 12;  // p n        apply primitive p to the top n stack entries
+  static final int RET     = 13;  //            return the top of the stack to the caller
+  static final int LET     = 14;  // n          pop n values into slots 1..n of a new frame and make it current
+  static final int LETREC  = 15;  // n          push an empty frame with n slots
+  static final int SET     = 16;  // s          pop the top of the stack into slot s of the current frame
+  static final int BINOP   = 17;  //            BINOP + b applies strict binary operator b to the top two entries;
+                                  //            for B_DIVIDE the divisor is the lower entry, since it is evaluated first
+
+  /* Superinstructions for the common cases of integer arithmetic and comparison */
+  static final int BINOPK  = 30;  // k          BINOPK + b applies b to the top entry and the int constant k
+  static final int IFCMP   = 40;  // a          IFCMP + b pops two entries; if b does not hold for them, pc = a
+  static final int IFCMPK  = 50;  // k a        IFCMPK + b pops one entry; if b does not hold for it and k, pc = a
+
+  static final int DIVISOR = 60;  //            check that the top of the stack is a non-zero integer divisor
+
+  /* Superinstructions for operands, calls and returns of variables.  A variable has no effects, so CALLVAR can
+   * fetch the function after the arguments have been evaluated. */
+  static final int LOCALK   = 70;  // s k       LOCALK + b pushes b applied to slot s and k; b is B_PLUS or B_MINUS
+  static final int IFLOCALK = 80;  // s k a     IFLOCALK + b; if comparison b does not hold for slot s and k, pc = a
+  static final int CALLVAR  = 90;  // n k d s   CALL of the function in slot s of the frame at static distance d
+  static final int TCALLVAR = 91;  // n k d s   CALLVAR in tail position
+  static final int RETLOCAL = 92;  // s         return slot s of the current frame
+
+  /* Unary operator codes */
+  static final int U_PLUS = 0, U_MINUS = 1, U_NOT = 2, U_BANG = 3, U_REF = 4;
+
+  /* Binary operator codes */
+  static final int B_PLUS = 0, B_MINUS = 1, B_TIMES = 2, B_DIVIDE = 3, B_EQUALS = 4, B_NOT_EQUALS = 5,
+    B_LESS = 6, B_GREATER = 7, B_LESS_EQUALS = 8, B_GREATER_EQUALS = 9, B_GETS = 10, B_AND = 11, B_OR = 12;
+
+  /* Primitive function codes */
+  static final int P_FUNCTIONP = 0, P_NUMBERP = 1, P_LISTP = 2, P_CONSP = 3, P_NULLP = 4, P_ARITY = 5, P_CONS = 6,
+    P_REFP = 7, P_FIRST = 8, P_REST = 9, P_ASBOOL = 10;
+
+  /* The operators and primitives indexed by their codes (see Op.code and PrimFun.code) */
+  static final UnOp[] UNOPS = { UnOpPlus.ONLY, UnOpMinus.ONLY, OpTilde.ONLY, OpBang.ONLY, OpRef.ONLY };
+
+  static final BinOp[] BINOPS = { BinOpPlus.ONLY, BinOpMinus.ONLY, OpTimes.ONLY, OpDivide.ONLY, OpEquals.ONLY,
+    OpNotEquals.ONLY, OpLessThan.ONLY, OpGreaterThan.ONLY, OpLessThanEquals.ONLY, OpGreaterThanEquals.ONLY,
+    OpGets.ONLY, OpAnd.ONLY, OpOr.ONLY };
+
+  static final PrimFun[] PRIMS = { FunctionPPrim.ONLY, NumberPPrim.ONLY, ListPPrim.ONLY, ConsPPrim.ONLY,
+    NullPPrim.ONLY, ArityPrim.ONLY, ConsPrim.ONLY, RefPPrim.ONLY, FirstPrim.ONLY, RestPrim.ONLY, AsBoolPrim.ONLY };
+
+  /** The instruction stream */
+  final int[] instrs;
+
+  /** The constant pool */
+  final Object[] consts;
+
+  /** The compiled SMaps; funs[f] starts at entries[f] */
+  final SMap[] funs;
+  final int[] entries;
+  final int[] arities;
+
+  VMCode(int[] is, Object[] cs, SMap[] fs, int[] es) {
+    instrs = is; consts = cs; funs = fs; entries = es;
+    arities = new int[fs.length];
+    for (int f = 0; f < fs.length; f++) arities[f] = fs[f].arity();
+  }
+}
+
+/** Compiler from SDASTs to VMCode.  The main program is compiled at address 0; the bodies of SMaps are compiled
+  * after it, in the order in which they are encountered. */
+class VMCompiler {
+
+  private int[] code = new int[256];
+  private int pc = 0;
+  private ArrayList<Object> consts = new ArrayList<Object>();
+  private ArrayList<SMap> funs = new ArrayList<SMap>();
+
+  /** Emitters for expressions in tail and non-tail position */
+  private final Emitter emitter = new Emitter(false);
+  private final Emitter tailEmitter = new Emitter(true);
+
+  private VMCompiler() {}
+
+  /** Compiles the SDAST program prog */
+  static VMCode compile(SDAST prog) {
+    VMCompiler c = new VMCompiler();
+    prog.accept(c.tailEmitter);
+    c.emit(VMCode.RET);
+    int[] entries = new int[16];
+    for (int f = 0; f < c.funs.size(); f++) {  // funs grows as nested SMaps are encountered
+      if (f == entries.length) entries = Arrays.copyOf(entries, 2 * f);
+      entries[f] = c.pc;
+      c.funs.get(f).body().accept(c.tailEmitter);
+      c.emit(VMCode.RET);
+    }
+    return new VMCode(Arrays.copyOf(c.code, c.pc), c.consts.toArray(),
+                      c.funs.toArray(new SMap[0]), Arrays.copyOf(entries, c.funs.size()));
+  }
+
+  private void emit(int word) {
+    if (pc == code.length) code = Arrays.copyOf(code, 2 * pc);
+    code[pc++] = word;
+  }
+
+  private void emit(int op, int arg) { emit(op); emit(arg); }
+
+  private void emit(int op, int arg1, int arg2) { emit(op); emit(arg1); emit(arg2); }
+
+  /** Adds c to the constant pool and returns its index */
+  private int constant(Object c) {
+    consts.add(c);
+    return consts.size() - 1;
+  }
+
+  /** Emits a jump with a placeholder target and returns the address of the placeholder */
+  private int emitJump(int op) {
+    emit(op);
+    return emitJump();
+  }
+
+  /** Emits the placeholder target of a jump whose opcode has been emitted and returns its address */
+  private int emitJump() {
+    emit(-1);
+    return pc - 1;
+  }
+
+  private void patch(int hole) { code[hole] = pc; }
+
+  /** Visitor that emits the code for an SDAST; the code leaves the value of the SDAST on top of the stack */
+  class Emitter implements ASTVisitor<Void> {
+
+    /** Is the visited expression in tail position? */
+    private final boolean tail;
+
+    Emitter(boolean t) { tail = t; }
+
+    private Void forDefault(AST a) { throw new EvalException(a + " cannot be compiled by " + getClass()); }
+
+    private void pushConst(Object c) { emit(VMCode.CONST, constant(c)); }
+
+    public Void forBoolConstant(BoolConstant b) { pushConst(b); return null; }
+    public Void forIntConstant(IntConstant i) { pushConst(i); return null; }
+    public Void forNullConstant(NullConstant n) { pushConst(JamEmpty.ONLY); return null; }
+    public Void forPrimFun(PrimFun f) { pushConst(f); return null; }
+
+    public Void forPair(Pair p) {
+      /* Slot 0 of a frame holds its static link */
+      if (p.dist() == 0) emit(tail ? VMCode.RETLOCAL : VMCode.LOCAL, p.offset() + 1);
+      else emit(VMCode.VAR, p.dist(), p.offset() + 1);
+      return null;
+    }
+
+    public Void forUnOpApp(UnOpApp u) {
+      u.arg().accept(emitter);
+      emit(VMCode.UNOP, u.rator().code());
+      return null;
+    }
+
+    public Void forBinOpApp(BinOpApp b) {
+      int op = b.rator().code();
+      if ((op == VMCode.B_PLUS || op == VMCode.B_MINUS) && b.arg2() instanceof IntConstant && isLocal(b.arg1())) {
+        emit(VMCode.LOCALK + op, ((Pair) b.arg1()).offset() + 1, ((IntConstant) b.arg2()).value());
+        return null;
+      }
+      if (op <= VMCode.B_GREATER_EQUALS && b.arg2() instanceof IntConstant &&
+          ! (op == VMCode.B_DIVIDE && ((IntConstant) b.arg2()).value() == 0)) {
+        b.arg1().accept(emitter);
+        emit(VMCode.BINOPK + op, ((IntConstant) b.arg2()).value());
+        return null;
+      }
+      if (op == VMCode.B_AND || op == VMCode.B_OR) {
+        /* The non-strict operators are compiled to conditional code */
+        b.arg1().accept(emitter);
+        emit(VMCode.BOOL, op);
+        int hole = emitJump(VMCode.JUMPF);
+        if (op == VMCode.B_AND) {
+          b.arg2().accept(emitter);
+          emit(VMCode.BOOL, op);
+        }
+        else pushConst(BoolConstant.TRUE);
+        int end = emitJump(VMCode.JUMP);
+        patch(hole);
+        if (op == VMCode.B_AND) pushConst(BoolConstant.FALSE);
+        else {
+          b.arg2().accept(emitter);
+          emit(VMCode.BOOL, op);
+        }
+        patch(end);
+        return null;
+      }
+      if (op == VMCode.B_DIVIDE) {
+        b.arg2().accept(emitter);
+        emit(VMCode.DIVISOR);
+        b.arg1().accept(emitter);
+      }
+      else {
+        b.arg1().accept(emitter);
+        b.arg2().accept(emitter);
+      }
+      emit(VMCode.BINOP + op);
+      return null;
+    }
+
+    public Void forApp(App a) {
+      AST[] args = a.args();
+      int n = args.length;
+      if (a.rator() instanceof PrimFun) {
+        for (AST arg : args) arg.accept(emitter);
+        emit(VMCode.PRIM, ((PrimFun) a.rator()).code(), n);
+        return null;
+      }
+      if (a.rator() instanceof Pair) {
+        Pair rator = (Pair) a.rator();
+        for (AST arg : args) arg.accept(emitter);
+        emit(tail ? VMCode.TCALLVAR : VMCode.CALLVAR, n, constant(a));
+        emit(rator.dist(), rator.offset() + 1);
+        return null;
+      }
+      a.rator().accept(emitter);
+      for (AST arg : args) arg.accept(emitter);
+      emit(tail ? VMCode.TCALL : VMCode.CALL, n, constant(a));
+      return null;
+    }
+
+    public Void forIf(If i) {
+      int hole;
+      int op = i.test() instanceof BinOpApp ? ((BinOpApp) i.test()).rator().code() : -1;
+      if (op >= VMCode.B_EQUALS && op <= VMCode.B_GREATER_EQUALS) {
+        /* Fuse the comparison with the conditional jump */
+        BinOpApp test = (BinOpApp) i.test();
+        if (test.arg2() instanceof IntConstant && isLocal(test.arg1())) {
+          emit(VMCode.IFLOCALK + op, ((Pair) test.arg1()).offset() + 1, ((IntConstant) test.arg2()).value());
+          hole = emitJump();
+        }
+        else if (test.arg2() instanceof IntConstant) {
+          test.arg1().accept(emitter);
+          emit(VMCode.IFCMPK + op, ((IntConstant) test.arg2()).value());
+          hole = emitJump();
+        }
+        else {
+          test.arg1().accept(emitter);
+          test.arg2().accept(emitter);
+          emit(VMCode.IFCMP + op);
+          hole = emitJump();
+        }
+      }
+      else {
+        i.test().accept(emitter);
+        hole = emitJump(VMCode.JUMPF);
+      }
+      i.conseq().accept(this);
+      if (tail) {  // return from the conseq rather than jump to the return after the alt
+        emit(VMCode.RET);
+        patch(hole);
+        i.alt().accept(this);
+        return null;
+      }
+      int end = emitJump(VMCode.JUMP);
+      patch(hole);
+      i.alt().accept(this);
+      patch(end);
+      return null;
+    }
+
+    /** Is e a variable bound in the current frame? */
+    private boolean isLocal(AST e) { return e instanceof Pair && ((Pair) e).dist() == 0; }
+
+    public Void forBlock(Block b) {
+      AST[] exps = b.exps();
+      int n = exps.length;
+      for (int i = 0; i < n-1; i++) {
+        exps[i].accept(emitter);
+        emit(VMCode.POP);
+      }
+      exps[n-1].accept(this);
+      return null;
+    }
+
+    public Void forSMap(SMap sm) {
+      funs.add(sm);
+      emit(VMCode.CLOSURE, funs.size() - 1);
+      return null;
+    }
+
+    public Void forSLet(SLet sl) {
+      SDAST[] rhss = sl.rhss();
+      for (int i = rhss.length - 1; i >= 0; i--) rhss[i].accept(emitter);  // right to left, like the evaluators
+      emit(VMCode.LET, rhss.length);
+      sl.body().accept(this);
+      if (! tail) emit(VMCode.ENDLET);  // a return discards the frame anyway
+      return null;
+    }
+
+    public Void forSLetRec(SLetRec slr) {
+      SDAST[] rhss = slr.rhss();
+      emit(VMCode.LETREC, rhss.length);
+      for (int i = 0; i < rhss.length; i++) {
+        rhss[i].accept(emitter);
+        emit(VMCode.SET, i + 1);
+      }
+      slr.body().accept(this);
+      if (! tail) emit(VMCode.ENDLET);
+      return null;
+    }
+
+    /* Methods that are never invoked on well-formed SDASTs */
+    public Void forSymVariable(Variable host) { return forDefault(host); }
+    public Void forMap(Map host) { return forDefault(host); }
+    public Void forLet(Let host) { return forDefault(host); }
+    public Void forLetRec(LetRec host) { return forDefault(host); }
+    public Void forLetcc(Letcc host) { return forDefault(host); }
+    public Void forSLetcc(SLetcc host) { return forDefault(host); }
+  }
+}
+
+/** Jam closure representation for programs running on the VM.  A frame is an Object[] whose slot 0 holds the
+  * static link and whose remaining slots hold the values bound in the frame. */
+class VMClosure extends JamFun implements Closure {
+  final VM vm;
+  final int fun;
+  final Object[] env;
+
+  /** The arity and entry point of fun, copied from vm.code so that a call need not index its tables */
+  final int arity;
+  final int entry;
+
+  VMClosure(VM m, int f, Object[] e) {
+    vm = m; fun = f; env = e;
+    arity = m.code.arities[f];
+    entry = m.code.entries[f];
+  }
+
+  public int arity() { return arity; }
+  public JamVal apply(JamVal[] args) { return vm.apply(this, args); }
+  public <RtnType> RtnType accept(FunVisitor<RtnType> jfv) { return jfv.forClosure(this); }
+  public String toString() { return "(closure: " + vm.code.funs[fun] + ")"; }
+}
+
+/** The dispatch-loop machine that executes VMCode.  Jam calls do not consume Java stack; the machine keeps an
+  * explicit value stack and an explicit control stack of return addresses and frames. */
+class VM {
+
+  final VMCode code;
+
+  /** Value stack.  It is an Object[] rather than a JamVal[] so that pushing a value read from a frame or the
+    * constant pool needs neither a cast nor an array store check against the JamVal interface. */
+  private Object[] stack = new Object[256];
+  private int sp = 0;
+
+  /** Control stack */
+  private int[] retPcs = new int[64];
+  private Object[][] retEnvs = new Object[64][];
+  private int csp = 0;
+
+  VM(VMCode c) { code = c; }
+
+  /** Runs the main program */
+  JamVal run() { return run(0, new Object[] { null }); }
+
+  /** Applies the closure c to args on behalf of a caller outside the machine */
+  JamVal apply(VMClosure c, JamVal[] args) {
+    int n = c.arity;
+    if (n != args.length) throw new EvalException("closure " + c + " applied to " + args.length +
+                                                  " arguments instead of " + n + " arguments");
+    Object[] frame = new Object[n+1];
+    frame[0] = c.env;
+    System.arraycopy(args, 0, frame, 1, n);
+    return run(c.entry, frame);
+  }
+
+  private JamVal run(int pc, Object[] env) {
+    int base = csp;
+    int stackBase = sp;
+    try {
+      return execute(pc, env, base);
+    }
+    finally {
+      csp = base;
+      sp = stackBase;
+    }
+  }
+
+  /** Doubles the capacity of the value stack */
+  private Object[] grow() { return stack = Arrays.copyOf(stack, 2 * stack.length); }
+
+  /** The dispatch loop.  The value and control stacks and their pointers are cached in local variables and written
+    * back to their fields only when control may re-enter the machine (an application of a closure that does not
+    * belong to it). */
+  private JamVal execute(int pc, Object[] env, int base) {
+    final int[] instrs = code.instrs;
+    final Object[] consts = code.consts;
+    Object[] stack = this.stack;
+    int sp = this.sp;
+    int[] retPcs = this.retPcs;
+    Object[][] retEnvs = this.retEnvs;
+    int csp = this.csp;
+    for (;;) {
+      switch (instrs[pc++]) {
+        case VMCode.CONST:
+          if (sp == stack.length) stack = grow();
+          stack[sp++] = consts[instrs[pc++]];
+          break;
+        case VMCode.LOCAL:
+          if (sp == stack.length) stack = grow();
+          stack[sp++] = env[instrs[pc++]];
+          break;
+        case VMCode.VAR: {
+          Object[] frame = env;
+          for (int d = instrs[pc++]; d > 0; d--) frame = (Object[]) frame[0];
+          if (sp == stack.length) stack = grow();
+          stack[sp++] = frame[instrs[pc++]];
+          break;
+        }
+        case VMCode.UNOP:
+          stack[sp-1] = unOp(instrs[pc++], stack[sp-1]);
+          break;
+        case VMCode.BINOP + VMCode.B_PLUS:
+          sp--;
+          stack[sp-1] = IntConstant.valueOf(intArg(stack[sp-1], VMCode.B_PLUS) + intArg(stack[sp], VMCode.B_PLUS));
+          break;
+        case VMCode.BINOP + VMCode.B_MINUS:
+          sp--;
+          stack[sp-1] = IntConstant.valueOf(intArg(stack[sp-1], VMCode.B_MINUS) - intArg(stack[sp], VMCode.B_MINUS));
+          break;
+        case VMCode.BINOP + VMCode.B_TIMES:
+          sp--;
+          stack[sp-1] = IntConstant.valueOf(intArg(stack[sp-1], VMCode.B_TIMES) * intArg(stack[sp], VMCode.B_TIMES));
+          break;
+        case VMCode.BINOP + VMCode.B_LESS:
+          sp--;
+          stack[sp-1] = BoolConstant.toBoolConstant(intArg(stack[sp-1], VMCode.B_LESS) <
+                                                    intArg(stack[sp], VMCode.B_LESS));
+          break;
+        case VMCode.BINOP + VMCode.B_GREATER:
+          sp--;
+          stack[sp-1] = BoolConstant.toBoolConstant(intArg(stack[sp-1], VMCode.B_GREATER) >
+                                                    intArg(stack[sp], VMCode.B_GREATER));
+          break;
+        case VMCode.BINOP + VMCode.B_LESS_EQUALS:
+          sp--;
+          stack[sp-1] = BoolConstant.toBoolConstant(intArg(stack[sp-1], VMCode.B_LESS_EQUALS) <=
+                                                    intArg(stack[sp], VMCode.B_LESS_EQUALS));
+          break;
+        case VMCode.BINOP + VMCode.B_GREATER_EQUALS:
+          sp--;
+          stack[sp-1] = BoolConstant.toBoolConstant(intArg(stack[sp-1], VMCode.B_GREATER_EQUALS) >=
+                                                    intArg(stack[sp], VMCode.B_GREATER_EQUALS));
+          break;
+        case VMCode.BINOP + VMCode.B_EQUALS:
+          sp--;
+          stack[sp-1] = BoolConstant.toBoolConstant(equal(stack[sp-1], stack[sp]));
+          break;
+        case VMCode.BINOP + VMCode.B_NOT_EQUALS:
+          sp--;
+          stack[sp-1] = BoolConstant.toBoolConstant(! equal(stack[sp-1], stack[sp]));
+          break;
+        case VMCode.BINOP + VMCode.B_DIVIDE:
+          sp--;
+          stack[sp-1] = divide(stack[sp], ((IntConstant) stack[sp-1]).value());
+          break;
+        case VMCode.DIVISOR:
+          checkDivisor(stack[sp-1]);
+          break;
+        case VMCode.BINOP + VMCode.B_GETS:
+          sp--;
+          stack[sp-1] = binOp(instrs[pc-1] - VMCode.BINOP, stack[sp-1], stack[sp]);
+          break;
+        case VMCode.BINOPK + VMCode.B_PLUS:
+          stack[sp-1] = IntConstant.valueOf(intArg(stack[sp-1], VMCode.B_PLUS) + instrs[pc++]);
+          break;
+        case VMCode.BINOPK + VMCode.B_MINUS:
+          stack[sp-1] = IntConstant.valueOf(intArg(stack[sp-1], VMCode.B_MINUS) - instrs[pc++]);
+          break;
+        case VMCode.BINOPK + VMCode.B_TIMES:
+          stack[sp-1] = IntConstant.valueOf(intArg(stack[sp-1], VMCode.B_TIMES) * instrs[pc++]);
+          break;
+        case VMCode.BINOPK + VMCode.B_DIVIDE:
+        case VMCode.BINOPK + VMCode.B_EQUALS:
+        case VMCode.BINOPK + VMCode.B_NOT_EQUALS:
+          stack[sp-1] = binOp(instrs[pc-1] - VMCode.BINOPK, stack[sp-1], IntConstant.valueOf(instrs[pc++]));
+          break;
+        case VMCode.BINOPK + VMCode.B_LESS:
+          stack[sp-1] = BoolConstant.toBoolConstant(intArg(stack[sp-1], VMCode.B_LESS) < instrs[pc++]);
+          break;
+        case VMCode.BINOPK + VMCode.B_GREATER:
+          stack[sp-1] = BoolConstant.toBoolConstant(intArg(stack[sp-1], VMCode.B_GREATER) > instrs[pc++]);
+          break;
+        case VMCode.BINOPK + VMCode.B_LESS_EQUALS:
+          stack[sp-1] = BoolConstant.toBoolConstant(intArg(stack[sp-1], VMCode.B_LESS_EQUALS) <= instrs[pc++]);
+          break;
+        case VMCode.BINOPK + VMCode.B_GREATER_EQUALS:
+          stack[sp-1] = BoolConstant.toBoolConstant(intArg(stack[sp-1], VMCode.B_GREATER_EQUALS) >= instrs[pc++]);
+          break;
+        case VMCode.IFCMP + VMCode.B_EQUALS:
+          sp -= 2;
+          pc = equal(stack[sp], stack[sp+1]) ? pc + 1 : instrs[pc];
+          break;
+        case VMCode.IFCMP + VMCode.B_NOT_EQUALS:
+          sp -= 2;
+          pc = ! equal(stack[sp], stack[sp+1]) ? pc + 1 : instrs[pc];
+          break;
+        case VMCode.IFCMP + VMCode.B_LESS:
+          sp -= 2;
+          pc = intArg(stack[sp], VMCode.B_LESS) < intArg(stack[sp+1], VMCode.B_LESS) ? pc + 1 : instrs[pc];
+          break;
+        case VMCode.IFCMP + VMCode.B_GREATER:
+          sp -= 2;
+          pc = intArg(stack[sp], VMCode.B_GREATER) > intArg(stack[sp+1], VMCode.B_GREATER) ? pc + 1 : instrs[pc];
+          break;
+        case VMCode.IFCMP + VMCode.B_LESS_EQUALS:
+          sp -= 2;
+          pc = intArg(stack[sp], VMCode.B_LESS_EQUALS) <= intArg(stack[sp+1], VMCode.B_LESS_EQUALS) ? pc + 1 : instrs[pc];
+          break;
+        case VMCode.IFCMP + VMCode.B_GREATER_EQUALS:
+          sp -= 2;
+          pc = intArg(stack[sp], VMCode.B_GREATER_EQUALS) >= intArg(stack[sp+1], VMCode.B_GREATER_EQUALS) ? pc + 1 : instrs[pc];
+          break;
+        case VMCode.IFCMPK + VMCode.B_EQUALS:
+          sp--;
+          pc = stack[sp] instanceof IntConstant && ((IntConstant) stack[sp]).value() == instrs[pc] ? pc + 2 : instrs[pc+1];
+          break;
+        case VMCode.IFCMPK + VMCode.B_NOT_EQUALS:
+          sp--;
+          pc = ! (stack[sp] instanceof IntConstant && ((IntConstant) stack[sp]).value() == instrs[pc]) ? pc + 2 : instrs[pc+1];
+          break;
+        case VMCode.IFCMPK + VMCode.B_LESS:
+          sp--;
+          pc = intArg(stack[sp], VMCode.B_LESS) < instrs[pc] ? pc + 2 : instrs[pc+1];
+          break;
+        case VMCode.IFCMPK + VMCode.B_GREATER:
+          sp--;
+          pc = intArg(stack[sp], VMCode.B_GREATER) > instrs[pc] ? pc + 2 : instrs[pc+1];
+          break;
+        case VMCode.IFCMPK + VMCode.B_LESS_EQUALS:
+          sp--;
+          pc = intArg(stack[sp], VMCode.B_LESS_EQUALS) <= instrs[pc] ? pc + 2 : instrs[pc+1];
+          break;
+        case VMCode.IFCMPK + VMCode.B_GREATER_EQUALS:
+          sp--;
+          pc = intArg(stack[sp], VMCode.B_GREATER_EQUALS) >= instrs[pc] ? pc + 2 : instrs[pc+1];
+          break;
+        case VMCode.LOCALK + VMCode.B_PLUS:
+          if (sp == stack.length) stack = grow();
+          stack[sp++] = IntConstant.valueOf(intArg(env[instrs[pc]], VMCode.B_PLUS) + instrs[pc+1]);
+          pc += 2;
+          break;
+        case VMCode.LOCALK + VMCode.B_MINUS:
+          if (sp == stack.length) stack = grow();
+          stack[sp++] = IntConstant.valueOf(intArg(env[instrs[pc]], VMCode.B_MINUS) - instrs[pc+1]);
+          pc += 2;
+          break;
+        case VMCode.IFLOCALK + VMCode.B_EQUALS: {
+          Object x = env[instrs[pc]];
+          pc = x instanceof IntConstant && ((IntConstant) x).value() == instrs[pc+1] ? pc + 3 : instrs[pc+2];
+          break;
+        }
+        case VMCode.IFLOCALK + VMCode.B_NOT_EQUALS: {
+          Object x = env[instrs[pc]];
+          pc = ! (x instanceof IntConstant && ((IntConstant) x).value() == instrs[pc+1]) ? pc + 3 : instrs[pc+2];
+          break;
+        }
+        case VMCode.IFLOCALK + VMCode.B_LESS:
+          pc = intArg(env[instrs[pc]], VMCode.B_LESS) < instrs[pc+1] ? pc + 3 : instrs[pc+2];
+          break;
+        case VMCode.IFLOCALK + VMCode.B_GREATER:
+          pc = intArg(env[instrs[pc]], VMCode.B_GREATER) > instrs[pc+1] ? pc + 3 : instrs[pc+2];
+          break;
+        case VMCode.IFLOCALK + VMCode.B_LESS_EQUALS:
+          pc = intArg(env[instrs[pc]], VMCode.B_LESS_EQUALS) <= instrs[pc+1] ? pc + 3 : instrs[pc+2];
+          break;
+        case VMCode.IFLOCALK + VMCode.B_GREATER_EQUALS:
+          pc = intArg(env[instrs[pc]], VMCode.B_GREATER_EQUALS) >= instrs[pc+1] ? pc + 3 : instrs[pc+2];
+          break;
+        case VMCode.BOOL: {
+          int op = instrs[pc++];
+          if (! (stack[sp-1] instanceof BoolConstant))
+            throw new EvalException("Binary operator `" + VMCode.BINOPS[op] + "' applied to non-boolean " +
+                                    stack[sp-1]);
+          break;
+        }
+        case VMCode.JUMP:
+          pc = instrs[pc];
+          break;
+        case VMCode.JUMPF: {
+          Object test = stack[--sp];
+          if (test == BoolConstant.FALSE) pc = instrs[pc];
+          else if (test == BoolConstant.TRUE) pc++;
+          else throw new EvalException("non Boolean " + test + " used as test in if");
+          break;
+        }
+        case VMCode.POP:
+          sp--;
+          break;
+        case VMCode.CLOSURE:
+          if (sp == stack.length) stack = grow();
+          stack[sp++] = new VMClosure(this, instrs[pc++], env);
+          break;
+        case VMCode.CALL:
+        case VMCode.TCALL:
+        case VMCode.CALLVAR:
+        case VMCode.TCALLVAR: {
+          int opcode = instrs[pc-1];
+          boolean tail = opcode == VMCode.TCALL || opcode == VMCode.TCALLVAR;
+          int n = instrs[pc++];
+          int k = instrs[pc++];
+          int args = sp - n;
+          Object rator;
+          int fp;  // the stack entry that receives the result
+          if (opcode >= VMCode.CALLVAR) {
+            Object[] frame = env;
+            for (int d = instrs[pc++]; d > 0; d--) frame = (Object[]) frame[0];
+            rator = frame[instrs[pc++]];
+            if (sp == stack.length) stack = grow();
+            fp = args;
+          }
+          else {
+            fp = args - 1;
+            rator = stack[fp];
+          }
+          if (rator instanceof VMClosure && ((VMClosure) rator).vm == this) {
+            VMClosure c = (VMClosure) rator;
+            if (c.arity != n) throw new EvalException("closure " + c + " applied to " + n +
+                                                      " arguments instead of " + c.arity + " arguments");
+            Object[] frame = new Object[n+1];
+            frame[0] = c.env;
+            for (int i = 0; i < n; i++) frame[i+1] = stack[args+i];  // faster than arraycopy for a few args
+            sp = fp;
+            if (! tail) {
+              if (csp == retPcs.length) {
+                retPcs = this.retPcs = Arrays.copyOf(retPcs, 2 * csp);
+                retEnvs = this.retEnvs = Arrays.copyOf(retEnvs, 2 * csp);
+              }
+              retPcs[csp] = pc;
+              retEnvs[csp] = env;
+              csp++;
+            }
+            env = frame;
+            pc = c.entry;
+            break;
+          }
+          JamVal result;
+          if (rator instanceof PrimFun) result = prim(((PrimFun) rator).code(), stack, args, n);
+          else if (rator instanceof Closure) {
+            this.sp = sp;
+            this.csp = csp;
+            result = ((Closure) rator).apply(Arrays.copyOfRange(stack, args, sp, JamVal[].class));
+            stack = this.stack;
+            retPcs = this.retPcs;
+            retEnvs = this.retEnvs;
+          }
+          else throw new EvalException(rator + " appears at head of application " + consts[k] +
+                                       " but it is not a valid function");
+          stack[fp] = result;
+          sp = fp + 1;
+          if (tail) {  // a tail call of a primitive returns its result immediately
+            if (csp == base) return (JamVal) stack[fp];
+            csp--;
+            pc = retPcs[csp];
+            env = retEnvs[csp];
+            retEnvs[csp] = null;
+          }
+          break;
+        }
+        case VMCode.PRIM: {
+          int p = instrs[pc++];
+          int n = instrs[pc++];
+          int fp = sp - n;
+          JamVal result = prim(p, stack, fp, n);
+          if (fp == stack.length) stack = grow();
+          stack[fp] = result;
+          sp = fp + 1;
+          break;
+        }
+        case VMCode.RETLOCAL: {
+          Object v = env[instrs[pc]];
+          if (csp == base) return (JamVal) v;
+          if (sp == stack.length) stack = grow();
+          stack[sp++] = v;
+          csp--;
+          pc = retPcs[csp];
+          env = retEnvs[csp];
+          retEnvs[csp] = null;
+          break;
+        }
+        case VMCode.RET:
+          if (csp == base) return (JamVal) stack[sp-1];
+          csp--;
+          pc = retPcs[csp];
+          env = retEnvs[csp];
+          retEnvs[csp] = null;
+          break;
+        case VMCode.LET: {
+          int n = instrs[pc++];
+          Object[] frame = new Object[n+1];
+          frame[0] = env;
+          for (int i = 1; i <= n; i++) frame[i] = stack[--sp];  // the rhss were pushed last to first
+          env = frame;
+          break;
+        }
+        case VMCode.LETREC: {
+          Object[] frame = new Object[instrs[pc++] + 1];
+          frame[0] = env;
+          env = frame;
+          break;
+        }
+        case VMCode.SET:
+          env[instrs[pc++]] = stack[--sp];
+          break;
+        case VMCode.ENDLET:
+          env = (Object[]) env[0];
+          break;
+        default:
+          throw new EvalException("Illegal VM instruction " + instrs[pc-1] + " at " + (pc-1));
+      }
+    }
+  }
+
+  private static IntConstant checkInteger(Object val, UnOp op) {
+    if (val instanceof IntConstant) return (IntConstant) val;
+    throw new EvalException("Unary operator `" + op + "' applied to non-integer " + val);
+  }
+
+  static JamVal unOp(int op, Object val) {
+    switch (op) {
+      case VMCode.U_PLUS: return checkInteger(val, UnOpPlus.ONLY);
+      case VMCode.U_MINUS: return IntConstant.valueOf(- checkInteger(val, UnOpMinus.ONLY).value());
+      case VMCode.U_NOT:
+        if (val instanceof BoolConstant) return ((BoolConstant) val).not();
+        throw new EvalException("Unary operator `" + OpTilde.ONLY + "' applied to non-boolean " + val);
+      case VMCode.U_BANG:
+        if (val instanceof JamRef) return ((JamRef) val).value();
+        throw new EvalException("Unary operator `" + OpBang.ONLY + "' applied to non-reference" + val);
+      case VMCode.U_REF: return new JamRef((JamVal) val);
+      default: throw new EvalException("Illegal unary operator code " + op);
+    }
+  }
+
+  static int intArg(Object val, int op) {
+    if (val instanceof IntConstant) return ((IntConstant) val).value();
+    throw new EvalException("Binary operator `" + VMCode.BINOPS[op] + "' applied to non-integer " + val);
+  }
+
+  /** Checks that d is a legal divisor and returns it.  Every engine evaluates the divisor of / and checks it here
+    * before it evaluates the dividend; divide then completes the division. */
+  static int checkDivisor(int d) {
+    if (d == 0) throw new EvalException("Attempt to divide by zero");
+    return d;
+  }
+  static int checkDivisor(Object val) { return checkDivisor(intArg(val, VMCode.B_DIVIDE)); }
+
+  /** Divides the value of dividend by divisor, which checkDivisor has returned */
+  static JamVal divide(Object dividend, int divisor) {
+    return IntConstant.valueOf(intArg(dividend, VMCode.B_DIVIDE) / divisor);
+  }
+
+  /** Jam equality of x and y; ints are compared unboxed rather than through IntConstant.equals */
+  static boolean equal(Object x, Object y) {
+    if (x instanceof IntConstant && y instanceof IntConstant) return ((IntConstant) x).value() == ((IntConstant) y).value();
+    return x.equals(y);
+  }
+
+  static JamVal binOp(int op, Object arg1, Object arg2) {
+    switch (op) {
+      case VMCode.B_PLUS: return IntConstant.valueOf(intArg(arg1, op) + intArg(arg2, op));
+      case VMCode.B_MINUS: return IntConstant.valueOf(intArg(arg1, op) - intArg(arg2, op));
+      case VMCode.B_TIMES: return IntConstant.valueOf(intArg(arg1, op) * intArg(arg2, op));
+      case VMCode.B_DIVIDE: return divide(arg1, checkDivisor(arg2));
+      case VMCode.B_EQUALS: return BoolConstant.toBoolConstant(equal(arg1, arg2));
+      case VMCode.B_NOT_EQUALS: return BoolConstant.toBoolConstant(! equal(arg1, arg2));
+      case VMCode.B_LESS: return BoolConstant.toBoolConstant(intArg(arg1, op) < intArg(arg2, op));
+      case VMCode.B_GREATER: return BoolConstant.toBoolConstant(intArg(arg1, op) > intArg(arg2, op));
+      case VMCode.B_LESS_EQUALS: return BoolConstant.toBoolConstant(intArg(arg1, op) <= intArg(arg2, op));
+      case VMCode.B_GREATER_EQUALS: return BoolConstant.toBoolConstant(intArg(arg1, op) >= intArg(arg2, op));
+      case VMCode.B_GETS:
+        if (! (arg1 instanceof JamRef)) throw new EvalException("Left argument " + arg1 + " of <- is not a JamRef");
+        ((JamRef) arg1).setValue((JamVal) arg2);
+        return JamUnit.ONLY;
+      default: throw new EvalException("Illegal binary operator code " + op);
+    }
+  }
+
+  private static JamVal primFunError(int p, int n) {
+    throw new EvalException("Primitive function `" + VMCode.PRIMS[p] + "' applied to " + n + " arguments");
+  }
+
+  private static JamCons toJamCons(Object val, int p) {
+    if (val instanceof JamCons) return (JamCons) val;
+    throw new EvalException("Primitive function `" + VMCode.PRIMS[p] + "' applied to argument " + val +
+                            " that is not a JamCons");
+  }
+
+  /** Applies primitive p to the n arguments starting at stack[fp] */
+  static JamVal prim(int p, Object[] stack, int fp, int n) {
+    if (p == VMCode.P_CONS) {
+      if (n != 2) return primFunError(p, n);
+      if (! (stack[fp+1] instanceof JamList))
+        throw new EvalException("Second argument " + stack[fp+1] + " to `cons' is not a JamList");
+      return new JamCons((JamVal) stack[fp], (JamList) stack[fp+1]);
+    }
+    if (n != 1) return primFunError(p, n);
+    Object val = stack[fp];
+    switch (p) {
+      case VMCode.P_FUNCTIONP: return BoolConstant.toBoolConstant(val instanceof JamFun);
+      case VMCode.P_NUMBERP: return BoolConstant.toBoolConstant(val instanceof IntConstant);
+      case VMCode.P_LISTP: return BoolConstant.toBoolConstant(val instanceof JamList);
+      case VMCode.P_CONSP: return BoolConstant.toBoolConstant(val instanceof JamCons);
+      case VMCode.P_NULLP: return BoolConstant.toBoolConstant(val instanceof JamEmpty);
+      case VMCode.P_REFP: return BoolConstant.toBoolConstant(val instanceof JamRef);
+      case VMCode.P_ARITY:
+        if (val instanceof Closure) return IntConstant.valueOf(((Closure) val).arity());
+        if (val instanceof PrimFun) return IntConstant.valueOf(val == ConsPrim.ONLY ? 2 : 1);
+        throw new EvalException("arity applied to argument " + val);
+      case VMCode.P_FIRST: return toJamCons(val, p).first();
+      case VMCode.P_REST: return toJamCons(val, p).rest();
+      case VMCode.P_ASBOOL:
+        if (val instanceof BoolConstant) return (BoolConstant) val;
+        throw new EvalException("The Jam value " + val + " must be of boolean type");
+      default: throw new EvalException("Illegal primitive code " + p);
+    }
+  }
+}